@@ -0,0 +1,317 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends content to files through cached append-only channels.
+ * <p/>
+ * Appends to the same file are serialized by one of {@value #STRIPES} striped locks
+ * chosen by path, while appends to different files mostly run in parallel. Channels
+ * stay open for the next append and the least recently used ones are closed when
+ * more than <code>maxOpenFiles</code> are open. A cached channel is reopened when
+ * the file has been removed, has another file key or its size no longer matches the
+ * channel, e.g. after the file was rotated or replaced. The file is checked at most
+ * once per {@value #ROTATION_CHECK_INTERVAL} milliseconds, so appends right after a
+ * rotation may still go to the rotated file; {@link #closeIdle()} makes the next
+ * appends reopen the files at once. A failed append is truncated away, so the file
+ * never ends with a partial record. Files may be on any NIO file system.
+ * <p/>
+ * One writer is shared by all mediators of the JVM so that appends to the same file
+ * are serialized even across proxies. The number of open files defaults to
+ * {@value #DEFAULT_MAX_OPEN_FILES} and can be changed with system property
+ * {@value #MAX_OPEN_FILES_PROPERTY}.
+ */
+public final class AppendingWriter {
+
+    public static final String MAX_OPEN_FILES_PROPERTY = "fi.mystes.synapse.mediator.appendMaxOpenFiles";
+    static final int DEFAULT_MAX_OPEN_FILES = 64;
+    static final int STRIPES = 64;
+    static final long ROTATION_CHECK_INTERVAL = 1000L;
+
+    private static final Log log = LogFactory.getLog(AppendingWriter.class);
+
+    private static final AppendingWriter INSTANCE = new AppendingWriter(Integer.getInteger(MAX_OPEN_FILES_PROPERTY, DEFAULT_MAX_OPEN_FILES));
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final int maxOpenFiles;
+    private final long rotationCheckInterval;
+    // access ordered, guarded by itself
+    private final LinkedHashMap<Path, CachedChannel> channels = new LinkedHashMap<Path, CachedChannel>(16, 0.75f, true);
+
+    AppendingWriter(int maxOpenFiles) {
+        this(maxOpenFiles, ROTATION_CHECK_INTERVAL);
+    }
+
+    AppendingWriter(int maxOpenFiles, long rotationCheckInterval) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive");
+        }
+        if (rotationCheckInterval < 0) {
+            throw new IllegalArgumentException("rotationCheckInterval must not be negative");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        this.rotationCheckInterval = TimeUnit.MILLISECONDS.toNanos(rotationCheckInterval);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public static AppendingWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Appends all content to given file.
+     *
+     * @param content content to append, not closed
+     * @return number of bytes appended
+     */
+    public long append(File file, InputStream content) throws IOException {
+        return append(file, content, 0);
+    }
+
+    /**
+     * Appends all content to given file, abandoning the append if it does not complete in time.
+     * An abandoned append is truncated away like a failed one.
+     *
+     * @param content content to append, not closed
+     * @param timeout deadline in milliseconds, 0 for none
+     * @return number of bytes appended
+     * @throws WriteWatchdog.WriteTimeoutException if the deadline expired
+     */
+    public long append(File file, InputStream content, long timeout) throws IOException {
+        return append(file.toPath(), content, timeout);
+    }
+
+    /**
+     * Appends all content to given file of any file system, abandoning the append if it
+     * does not complete in time.
+     *
+     * @param content content to append, not closed
+     * @param timeout deadline in milliseconds, 0 for none
+     * @return number of bytes appended
+     * @throws WriteWatchdog.WriteTimeoutException if the deadline expired
+     */
+    public long append(Path file, InputStream content, long timeout) throws IOException {
+        Path path = file.toAbsolutePath();
+        ReentrantLock lock = locks[(path.hashCode() & Integer.MAX_VALUE) % locks.length];
+        lock.lock();
+        try {
+            CachedChannel cached = acquire(path);
+            try {
+                SeekableByteChannel channel = cached.channel;
+                long start = channel.size();
+                WriteWatchdog.Deadline deadline = timeout > 0 ? WriteWatchdog.getInstance().start(channel, path, timeout) : null;
+                try {
+                    WriteStrategy.transfer(content, channel);
+                } catch (IOException e) {
+                    truncate(channel, start, path);
+                    throw deadline != null && deadline.stop() ? deadline.timeout(e) : e;
+                } finally {
+                    if (deadline != null) {
+                        deadline.stop();
+                    }
+                }
+                if (deadline != null && deadline.stop()) {
+                    // expired right after the last write; reported as a timeout, so the content is removed as well
+                    truncate(channel, start, path);
+                    throw deadline.timeout(null);
+                }
+                return channel.size() - start;
+            } finally {
+                release(cached);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void truncate(SeekableByteChannel channel, long size, Path path) {
+        try {
+            if (channel.isOpen()) {
+                channel.truncate(size);
+            } else {
+                // closed by the write watchdog, the cached channel is replaced on next append
+                SeekableByteChannel reopened = Files.newByteChannel(path, StandardOpenOption.WRITE);
+                try {
+                    reopened.truncate(size);
+                } finally {
+                    reopened.close();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to remove partially appended content from " + path, e);
+        }
+    }
+
+    private CachedChannel acquire(Path path) throws IOException {
+        CachedChannel cached;
+        synchronized (channels) {
+            cached = channels.get(path);
+            if (cached != null) {
+                cached.users++;
+            }
+        }
+        if (cached != null) {
+            if (isCurrent(cached, path)) {
+                return cached;
+            }
+            release(cached);
+        }
+        // opened outside the cache monitor, appends to other files are not blocked by a slow open;
+        // no other thread opens the same path concurrently as the caller holds the path's stripe
+        SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        CachedChannel opened;
+        try {
+            opened = new CachedChannel(channel, Files.readAttributes(path, BasicFileAttributes.class).fileKey());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        opened.users++;
+        List<CachedChannel> evicted = new ArrayList<CachedChannel>();
+        synchronized (channels) {
+            CachedChannel previous = channels.put(path, opened);
+            if (previous != null) {
+                evict(previous, evicted);
+            }
+            Iterator<Map.Entry<Path, CachedChannel>> eldest = channels.entrySet().iterator();
+            while (channels.size() > maxOpenFiles && eldest.hasNext()) {
+                CachedChannel candidate = eldest.next().getValue();
+                eldest.remove();
+                evict(candidate, evicted);
+            }
+        }
+        close(evicted);
+        return opened;
+    }
+
+    private boolean isCurrent(CachedChannel cached, Path path) {
+        if (!cached.channel.isOpen()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - cached.checkedAt < rotationCheckInterval) {
+            return true;
+        }
+        // appends through this writer hold the path's stripe, so any difference
+        // means the file has been changed by someone else
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (cached.fileKey != null && !cached.fileKey.equals(attributes.fileKey())) {
+                return false;
+            }
+            if (cached.channel.size() != attributes.size()) {
+                return false;
+            }
+            cached.checkedAt = now;
+            return true;
+        } catch (IOException e) {
+            // including a removed file
+            return false;
+        }
+    }
+
+    private void evict(CachedChannel cached, List<CachedChannel> toClose) {
+        cached.evicted = true;
+        if (cached.users == 0) {
+            toClose.add(cached);
+        }
+    }
+
+    private void release(CachedChannel cached) {
+        boolean close;
+        synchronized (channels) {
+            close = --cached.users == 0 && cached.evicted;
+        }
+        if (close) {
+            close(Collections.singletonList(cached));
+        }
+    }
+
+    private void close(List<CachedChannel> evicted) {
+        for (CachedChannel cached : evicted) {
+            try {
+                cached.channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close append channel", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of currently cached channels
+     */
+    public int getOpenFileCount() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * Closes all cached channels not in use, e.g. before files are rotated.
+     */
+    public void closeIdle() {
+        List<CachedChannel> idle = new ArrayList<CachedChannel>();
+        synchronized (channels) {
+            Iterator<CachedChannel> iterator = channels.values().iterator();
+            while (iterator.hasNext()) {
+                CachedChannel cached = iterator.next();
+                iterator.remove();
+                evict(cached, idle);
+            }
+        }
+        close(idle);
+    }
+
+    private static final class CachedChannel {
+        private final SeekableByteChannel channel;
+        // null where the file system has no file keys
+        private final Object fileKey;
+        // guarded by the path's stripe
+        private long checkedAt;
+        // guarded by the channel map
+        private int users;
+        private boolean evicted;
+
+        private CachedChannel(SeekableByteChannel channel, Object fileKey) {
+            this.channel = channel;
+            this.fileKey = fileKey;
+            this.checkedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMText;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+
+/**
+ * Turns the base64 content of a text node into the binary content written to files.
+ * <p/>
+ * Implementations must be thread safe. The returned handler may be read several times,
+ * e.g. once per target directory. Implementations other than the ones in
+ * {@link StandardBase64Decoder} are selected by class name and need a public no-argument
+ * constructor.
+ */
+public interface Base64Decoder {
+
+    /**
+     * @return handler of the decoded content, or null if the text has no content
+     * @throws IOException if the content cannot be decoded
+     */
+    DataHandler decode(OMText text) throws IOException;
+}
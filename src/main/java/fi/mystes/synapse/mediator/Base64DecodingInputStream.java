@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Decodes base64 characters read from a {@link Reader} while the bytes are read, so
+ * that the decoded content never has to be held in memory as a whole.
+ * <p/>
+ * Decoding is table driven: runs of four alphabet characters are decoded with four
+ * lookups into a single int and written as three bytes without branching per character.
+ * Whitespace, line breaks, a missing final padding and characters split across reads
+ * are handled by a slower per-character path. Any other character, or data after the
+ * padding, fails the read with {@link MalformedBase64Exception}.
+ */
+public final class Base64DecodingInputStream extends InputStream {
+
+    private static final int INVALID = -1;
+    private static final int WHITESPACE = -2;
+    private static final int PADDING = -3;
+    private static final int[] DECODE = new int[128];
+    private static final int BUFFER_SIZE = 8192;
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = INVALID;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+        DECODE[' '] = WHITESPACE;
+        DECODE['\t'] = WHITESPACE;
+        DECODE['\r'] = WHITESPACE;
+        DECODE['\n'] = WHITESPACE;
+        DECODE['='] = PADDING;
+    }
+
+    private final Reader in;
+    private final char[] chars = new char[BUFFER_SIZE];
+    private int charPosition;
+    private int charLimit;
+    private boolean endOfInput;
+
+    private int quantum;
+    private int quantumLength;
+    private boolean padded;
+
+    private final byte[] pending = new byte[3];
+    private int pendingPosition;
+    private int pendingLimit;
+
+    public Base64DecodingInputStream(Reader in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            while (pendingPosition < pendingLimit && position < end) {
+                buffer[position++] = pending[pendingPosition++];
+            }
+            if (position == end) {
+                break;
+            }
+            if (charPosition == charLimit && !fill()) {
+                if (quantumLength == 0) {
+                    break;
+                }
+                finishQuantum();
+                continue;
+            }
+            if (quantumLength == 0 && !padded) {
+                position = decodeQuanta(buffer, position, end);
+            }
+            if (charPosition < charLimit && position < end) {
+                decodeCharacter(chars[charPosition++]);
+            }
+        }
+        return position == offset ? -1 : position - offset;
+    }
+
+    private int decodeQuanta(byte[] buffer, int position, int end) {
+        char[] chars = this.chars;
+        int charPosition = this.charPosition;
+        int charLimit = this.charLimit - 3;
+        int outputLimit = end - 2;
+        while (charPosition < charLimit && position < outputLimit) {
+            char c0 = chars[charPosition];
+            char c1 = chars[charPosition + 1];
+            char c2 = chars[charPosition + 2];
+            char c3 = chars[charPosition + 3];
+            if ((c0 | c1 | c2 | c3) >= DECODE.length) {
+                break;
+            }
+            // any negative table value makes the result negative
+            int bits = DECODE[c0] << 18 | DECODE[c1] << 12 | DECODE[c2] << 6 | DECODE[c3];
+            if (bits < 0) {
+                break;
+            }
+            buffer[position] = (byte) (bits >> 16);
+            buffer[position + 1] = (byte) (bits >> 8);
+            buffer[position + 2] = (byte) bits;
+            position += 3;
+            charPosition += 4;
+        }
+        this.charPosition = charPosition;
+        return position;
+    }
+
+    private void decodeCharacter(char c) throws IOException {
+        int value = c < DECODE.length ? DECODE[c] : INVALID;
+        if (value == WHITESPACE) {
+            return;
+        }
+        if (value == INVALID) {
+            throw new MalformedBase64Exception("Invalid base64 character 0x" + Integer.toHexString(c));
+        }
+        if (value == PADDING) {
+            if (!padded) {
+                finishQuantum();
+                padded = true;
+            }
+            return;
+        }
+        if (padded) {
+            throw new MalformedBase64Exception("Base64 data after padding");
+        }
+        quantum = quantum << 6 | value;
+        if (++quantumLength == 4) {
+            pending[0] = (byte) (quantum >> 16);
+            pending[1] = (byte) (quantum >> 8);
+            pending[2] = (byte) quantum;
+            pendingPosition = 0;
+            pendingLimit = 3;
+            quantum = 0;
+            quantumLength = 0;
+        }
+    }
+
+    private void finishQuantum() throws IOException {
+        pendingPosition = 0;
+        switch (quantumLength) {
+            case 0:
+                pendingLimit = 0;
+                break;
+            case 2:
+                pending[0] = (byte) (quantum >> 4);
+                pendingLimit = 1;
+                break;
+            case 3:
+                pending[0] = (byte) (quantum >> 10);
+                pending[1] = (byte) (quantum >> 2);
+                pendingLimit = 2;
+                break;
+            default:
+                throw new MalformedBase64Exception("Truncated base64 data");
+        }
+        quantum = 0;
+        quantumLength = 0;
+    }
+
+    private boolean fill() throws IOException {
+        while (!endOfInput) {
+            int read = in.read(chars, 0, chars.length);
+            if (read < 0) {
+                endOfInput = true;
+            } else if (read > 0) {
+                charPosition = 0;
+                charLimit = read;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int available() {
+        return pendingLimit - pendingPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Signals content that is not valid base64, as opposed to a failure of the underlying storage.
+     */
+    public static final class MalformedBase64Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedBase64Exception(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMText;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary content written by {@link BinaryFileWriter}.
+ * <p/>
+ * Content given as a stream can be read only once, so it can be written to a single
+ * file only. Other content can be written to any number of files, e.g. once per target
+ * directory. Base64 text is decoded on first use; decoders other than Axiom's may decode
+ * it again on every read, so content written to several files is first decoded into
+ * memory once with {@link #decodeOnce()}.
+ */
+public abstract class BinaryContent {
+
+    private BinaryContent() {
+    }
+
+    /**
+     * @param in decoded content, read once and closed by the write
+     */
+    public static BinaryContent fromStream(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Stream must be specified");
+        }
+        return new Decoded(new DataHandler(new SingleReadDataSource(in)), PayloadSizeEstimator.UNKNOWN_SIZE);
+    }
+
+    public static BinaryContent fromDataHandler(DataHandler dataHandler) {
+        if (dataHandler == null) {
+            throw new IllegalArgumentException("DataHandler must be specified");
+        }
+        return new Decoded(dataHandler, PayloadSizeEstimator.UNKNOWN_SIZE);
+    }
+
+    /**
+     * @param buffer content between position and limit; the buffer itself is not modified
+     */
+    public static BinaryContent fromByteBuffer(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Buffer must be specified");
+        }
+        ByteBuffer content = buffer.asReadOnlyBuffer();
+        return new Decoded(new DataHandler(new ByteBufferDataSource(content)), content.remaining());
+    }
+
+    /**
+     * Base64 content of a text node, decoded with the default decoder.
+     */
+    public static BinaryContent fromOMText(OMText text) {
+        return fromOMText(text, StandardBase64Decoder.getDefault());
+    }
+
+    public static BinaryContent fromOMText(OMText text, Base64Decoder decoder) {
+        if (text == null || decoder == null) {
+            throw new IllegalArgumentException("Text and decoder must be specified");
+        }
+        return new Encoded(text, decoder);
+    }
+
+    /**
+     * @return size of the decoded content, estimated without decoding where needed, or
+     * {@link PayloadSizeEstimator#UNKNOWN_SIZE}
+     */
+    public abstract long estimateSize();
+
+    /**
+     * Returns the decoded content, decoding it first if needed.
+     *
+     * @return handler of the decoded content, or null if there is no content
+     * @throws IOException if the content cannot be decoded
+     */
+    public abstract DataHandler getDataHandler() throws IOException;
+
+    /**
+     * @return true if decoding the content holds all of it in memory, e.g. with Axiom's
+     * decoder, false if it is decoded while read or not decoded at all
+     */
+    public boolean decodesIntoMemory() {
+        return false;
+    }
+
+    /**
+     * Returns content that may be read several times without decoding it again, decoding
+     * this content into memory if each read would decode it, e.g. with the table decoder.
+     *
+     * @throws IOException if the content cannot be decoded
+     */
+    public BinaryContent decodeOnce() throws IOException {
+        return this;
+    }
+
+    private static final class Decoded extends BinaryContent {
+        private final DataHandler dataHandler;
+        private final long size;
+
+        private Decoded(DataHandler dataHandler, long size) {
+            this.dataHandler = dataHandler;
+            this.size = size;
+        }
+
+        @Override
+        public long estimateSize() {
+            return size;
+        }
+
+        @Override
+        public DataHandler getDataHandler() {
+            return dataHandler;
+        }
+    }
+
+    private static final class Encoded extends BinaryContent {
+        private final OMText text;
+        private final Base64Decoder decoder;
+        private DataHandler dataHandler;
+        private boolean decoded;
+
+        private Encoded(OMText text, Base64Decoder decoder) {
+            this.text = text;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public long estimateSize() {
+            return PayloadSizeEstimator.estimateDecodedSize(text);
+        }
+
+        @Override
+        public synchronized DataHandler getDataHandler() throws IOException {
+            if (!decoded) {
+                text.setBinary(true);
+                dataHandler = decoder.decode(text);
+                decoded = true;
+            }
+            return dataHandler;
+        }
+
+        @Override
+        public boolean decodesIntoMemory() {
+            // custom decoders may buffer as well, optimized (MTOM) content is binary already
+            return decoder != StandardBase64Decoder.TABLE && !text.isOptimized();
+        }
+
+        @Override
+        public BinaryContent decodeOnce() throws IOException {
+            // Axiom decodes into memory itself, optimized (MTOM) content is binary already
+            if (decoder == StandardBase64Decoder.AXIOM || text.isOptimized()) {
+                return this;
+            }
+            DataHandler handler = getDataHandler();
+            if (handler == null) {
+                return this;
+            }
+            long estimatedSize = estimateSize();
+            DecodedBytes decodedContent = new DecodedBytes(estimatedSize > 0 && estimatedSize < Integer.MAX_VALUE ? (int) estimatedSize : 32);
+            InputStream in = handler.getInputStream();
+            try {
+                WriteStrategy.transfer(in, decodedContent);
+            } finally {
+                in.close();
+            }
+            return fromByteBuffer(decodedContent.toByteBuffer());
+        }
+    }
+
+    private static final class DecodedBytes extends ByteArrayOutputStream {
+
+        private DecodedBytes(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the written bytes without copying them
+         */
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static final class ByteBufferDataSource implements DataSource {
+        private final ByteBuffer content;
+
+        private ByteBufferDataSource(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(content.duplicate());
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Buffered content is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "buffer";
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.min(Math.max(count, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,653 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.activation.DataHandler;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes {@link BinaryContent} to files, independently of Synapse.
+ * <p/>
+ * Handles existing files according to the overwrite and collision settings, coalesces
+ * concurrent writes of the same file, appends in append mode, limits concurrency and
+ * selects the write strategy by size tier, abandons writes exceeding the write timeout
+ * and encrypts content when given a key. Buffers, the write watchdog, the coalescer and
+ * the appending writer are shared by all writers in the JVM.
+ * <p/>
+ * Files are given as {@link Path}s of any NIO file system, e.g. an in-memory file
+ * system in tests, or as {@link File}s of the default file system. Both are written
+ * the same way; only the direct strategy falls back to a plain transfer on file
+ * systems without file channels.
+ * <p/>
+ * A writer is configured once and may then be used by any number of threads.
+ */
+public final class BinaryFileWriter {
+
+    static final int MAX_COLLISION_RETRIES = 100;
+
+    private static final Log log = LogFactory.getLog(BinaryFileWriter.class);
+
+    /**
+     * What a write did with the target file.
+     */
+    public enum Outcome {
+        /**
+         * Content written to the requested file.
+         */
+        WRITTEN,
+        /**
+         * Content written under a suffixed name as the requested file existed.
+         */
+        RENAMED,
+        /**
+         * Content appended to the requested file.
+         */
+        APPENDED,
+        /**
+         * Nothing written as the requested file existed.
+         */
+        SKIPPED,
+        /**
+         * Write cancelled by a later write of the same file.
+         */
+        SUPERSEDED
+    }
+
+    private final AtomicLong collisionCounter = new AtomicLong();
+
+    private boolean allowOverwrite = true;
+    private CollisionPolicy collisionPolicy;
+    private CoalesceMode coalesceMode;
+    private WriteMode mode;
+    private long writeTimeout;
+    private List<SizeTier> sizeTiers;
+    private int encryptionChunkSize = FileEncryption.DEFAULT_CHUNK_SIZE;
+    private boolean createDirectories;
+
+    public boolean isAllowOverwrite() {
+        return allowOverwrite;
+    }
+
+    /**
+     * @param allowOverwrite false to create files exclusively and apply the collision policy to existing files
+     */
+    public void setAllowOverwrite(boolean allowOverwrite) {
+        this.allowOverwrite = allowOverwrite;
+    }
+
+    public CollisionPolicy getCollisionPolicy() {
+        return collisionPolicy;
+    }
+
+    private CollisionPolicy getEffectiveCollisionPolicy() {
+        return collisionPolicy == null ? CollisionPolicy.SKIP : collisionPolicy;
+    }
+
+    public void setCollisionPolicy(CollisionPolicy collisionPolicy) {
+        this.collisionPolicy = collisionPolicy;
+    }
+
+    public CoalesceMode getCoalesceMode() {
+        return coalesceMode;
+    }
+
+    /**
+     * @param coalesceMode how concurrent writes of the same file are coalesced when overwriting is allowed, null for not at all
+     */
+    public void setCoalesceMode(CoalesceMode coalesceMode) {
+        this.coalesceMode = coalesceMode;
+    }
+
+    public WriteMode getMode() {
+        return mode;
+    }
+
+    public boolean isAppendMode() {
+        return mode == WriteMode.APPEND;
+    }
+
+    public void setMode(WriteMode mode) {
+        this.mode = mode;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @param writeTimeout deadline of a single file write in milliseconds, from opening the file
+     *                     to closing it, 0 for none. Creating the file when overwriting is not
+     *                     allowed gets a deadline of its own
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public List<SizeTier> getSizeTiers() {
+        return sizeTiers;
+    }
+
+    /**
+     * @param sizeTiers tiers in any order, null to write everything with the stream strategy
+     */
+    public void setSizeTiers(List<SizeTier> sizeTiers) {
+        if (sizeTiers == null || sizeTiers.isEmpty()) {
+            this.sizeTiers = null;
+        } else {
+            List<SizeTier> sorted = new ArrayList<SizeTier>(sizeTiers);
+            Collections.sort(sorted);
+            this.sizeTiers = Collections.unmodifiableList(sorted);
+        }
+    }
+
+    public int getEncryptionChunkSize() {
+        return encryptionChunkSize;
+    }
+
+    public void setEncryptionChunkSize(int encryptionChunkSize) {
+        this.encryptionChunkSize = encryptionChunkSize;
+    }
+
+    public boolean isCreateDirectories() {
+        return createDirectories;
+    }
+
+    /**
+     * @param createDirectories true to create missing parent directories of target files
+     */
+    public void setCreateDirectories(boolean createDirectories) {
+        this.createDirectories = createDirectories;
+    }
+
+    /**
+     * @return the size tier for given content, or null if no tiers are configured
+     * @throws IOException if no tier accepts the estimated size of the content
+     */
+    public SizeTier selectTier(BinaryContent content) throws IOException {
+        if (sizeTiers == null) {
+            return null;
+        }
+        long estimatedSize = content.estimateSize();
+        SizeTier tier = SizeTier.select(sizeTiers, estimatedSize);
+        if (tier == null) {
+            throw new IOException("No size tier configured for content of " + estimatedSize + " bytes");
+        }
+        return tier;
+    }
+
+    /**
+     * Writes content to a file, selecting the size tier by the estimated size of the content.
+     */
+    public Result write(BinaryContent content, File file) throws IOException {
+        return write(content, file.toPath());
+    }
+
+    /**
+     * Writes content to a file, applying the configured collision policy if the file exists
+     * and overwriting is not allowed.
+     *
+     * @param tier          size tier selected for the content, or null for the stream strategy
+     * @param encryptionKey key to encrypt the content with, or null
+     * @throws SizeTier.BusyException if the tier had no free lane within its queue timeout
+     */
+    public Result write(BinaryContent content, File file, SizeTier tier, SecretKey encryptionKey) throws IOException {
+        return write(content, file.toPath(), tier, encryptionKey);
+    }
+
+    /**
+     * Writes content to a file, applying given collision policy if the file exists and
+     * overwriting is not allowed.
+     *
+     * @throws CollisionException if the file exists and cannot be written according to the collision policy
+     */
+    public Result write(BinaryContent content, File file, SizeTier tier, SecretKey encryptionKey, CollisionPolicy collisionPolicy) throws IOException {
+        return write(content, file.toPath(), tier, encryptionKey, collisionPolicy);
+    }
+
+    /**
+     * Writes content to a file replacing any existing content, without applying the
+     * overwrite and coalesce settings, e.g. to a temporary file only the caller knows of.
+     *
+     * @return number of bytes written, or appended in append mode
+     */
+    public long writeContent(BinaryContent content, File file, SizeTier tier, SecretKey encryptionKey) throws IOException {
+        return writeContent(content, file.toPath(), tier, encryptionKey);
+    }
+
+    /**
+     * Writes content to a file of any file system, selecting the size tier by the estimated
+     * size of the content.
+     */
+    public Result write(BinaryContent content, Path file) throws IOException {
+        return write(content, file, selectTier(content), null);
+    }
+
+    /**
+     * Writes content to a file of any file system, applying the configured collision policy
+     * if the file exists and overwriting is not allowed.
+     */
+    public Result write(BinaryContent content, Path file, SizeTier tier, SecretKey encryptionKey) throws IOException {
+        return write(content, file, tier, encryptionKey, getEffectiveCollisionPolicy());
+    }
+
+    /**
+     * Writes content to a file of any file system, applying given collision policy if the
+     * file exists and overwriting is not allowed.
+     *
+     * @throws CollisionException if the file exists and cannot be written according to the collision policy
+     */
+    public Result write(BinaryContent content, Path file, SizeTier tier, SecretKey encryptionKey, CollisionPolicy collisionPolicy) throws IOException {
+        DataHandler dataHandler = decode(content);
+        // covers creating the directories and the file, the write itself gets its own deadline
+        long expiresAt = expiresAt();
+        if (createDirectories) {
+            ensureParentDirectoryExists(file, expiresAt);
+        }
+        Path targetFile = file;
+        boolean createdExclusively = false;
+        boolean written = false;
+        WriteCoalescer.Ticket ticket = null;
+        try {
+            if (!allowOverwrite) {
+                // create the file atomically instead of checking whether it exists first,
+                // so that concurrent writers can never both claim the same name
+                targetFile = createExclusively(file, collisionPolicy, expiresAt);
+                if (targetFile == null) {
+                    return new Result(file, Outcome.SKIPPED, 0, 0);
+                }
+                createdExclusively = true;
+            } else if (coalesceMode != null) {
+                ticket = enterCoalescer(file);
+            }
+            long started = System.nanoTime();
+            long size = write(dataHandler, targetFile, tier, encryptionKey, ticket);
+            written = true;
+            if (ticket != null) {
+                ticket.succeeded();
+            }
+            Outcome outcome = isAppendMode() ? Outcome.APPENDED : (targetFile == file ? Outcome.WRITTEN : Outcome.RENAMED);
+            return new Result(targetFile, outcome, size, System.nanoTime() - started);
+        } catch (WriteCoalescer.SupersededException e) {
+            log.debug(e.getMessage());
+            // the later write starts once this one has let go of the file
+            ticket.release();
+            ticket.awaitSupersedingWrite();
+            return new Result(targetFile, Outcome.SUPERSEDED, 0, 0);
+        } catch (IOException e) {
+            if (ticket != null) {
+                ticket.failed(e);
+            }
+            throw e;
+        } finally {
+            if (ticket != null) {
+                ticket.release();
+            }
+            if (createdExclusively && !written) {
+                delete(targetFile, "incomplete output file");
+            }
+        }
+    }
+
+    /**
+     * Writes content to a file of any file system replacing any existing content, without
+     * applying the overwrite and coalesce settings.
+     *
+     * @return number of bytes written, or appended in append mode
+     */
+    public long writeContent(BinaryContent content, Path file, SizeTier tier, SecretKey encryptionKey) throws IOException {
+        return write(decode(content), file, tier, encryptionKey, null);
+    }
+
+    private DataHandler decode(BinaryContent content) throws IOException {
+        DataHandler dataHandler = content.getDataHandler();
+        if (dataHandler == null) {
+            throw new IOException("No binary content to write");
+        }
+        return dataHandler;
+    }
+
+    /**
+     * @param ticket coalescer ticket of the write, or null if the write is not coalesced
+     * @return number of bytes written, or appended in append mode
+     */
+    private long write(DataHandler dataHandler, Path file, SizeTier tier, SecretKey encryptionKey, WriteCoalescer.Ticket ticket) throws IOException {
+        acquire(tier);
+        try {
+            if (isAppendMode()) {
+                InputStream in = dataHandler.getInputStream();
+                try {
+                    return AppendingWriter.getInstance().append(file, in, writeTimeout);
+                } finally {
+                    in.close();
+                }
+            }
+            if (ticket != null && ticket.isSuperseded()) {
+                throw ticket.superseded(null);
+            }
+            // the deadline covers opening, writing, closing and measuring the file
+            long expiresAt = expiresAt();
+            SeekableByteChannel channel = open(file, expiresAt);
+            if (ticket != null && !ticket.attach(channel)) {
+                channel.close();
+                throw ticket.superseded(null);
+            }
+            WriteWatchdog.Deadline deadline = writeTimeout > 0 ? WriteWatchdog.getInstance().start(channel, file, remainingMillis(expiresAt)) : null;
+            IOException abandonedWriteFailure = null;
+            try {
+                if (encryptionKey != null) {
+                    writeEncrypted(dataHandler, channel, encryptionKey);
+                } else {
+                    (tier != null ? tier.getStrategy() : WriteStrategy.STREAM).write(dataHandler, file, channel);
+                }
+            } catch (IOException e) {
+                if (ticket != null && ticket.isSuperseded()) {
+                    // caused by the later writer closing the channel, it overwrites the partial content
+                    throw ticket.superseded(e);
+                }
+                if (deadline == null || !deadline.stop()) {
+                    throw e;
+                }
+                // most likely caused by the watchdog closing the channel
+                abandonedWriteFailure = e;
+            } finally {
+                if (deadline != null) {
+                    deadline.stop();
+                }
+                close(channel, file, expiresAt);
+            }
+            if (deadline != null && deadline.stop()) {
+                delete(file, "partial output file of an abandoned write");
+                throw deadline.timeout(abandonedWriteFailure);
+            }
+            return size(file, expiresAt);
+        } finally {
+            release(tier);
+        }
+    }
+
+    /**
+     * @return {@link System#nanoTime()} by which file operations started now must complete, 0 for no write timeout
+     */
+    private long expiresAt() {
+        return writeTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeout) : 0;
+    }
+
+    private static long remainingMillis(long expiresAt) {
+        // the watchdog expires it on its next check if nothing remains
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    private static SeekableByteChannel open(final Path file, long expiresAt) throws IOException {
+        WriteWatchdog.Operation<SeekableByteChannel> open = new WriteWatchdog.Operation<SeekableByteChannel>() {
+            @Override
+            public SeekableByteChannel run() throws IOException {
+                // a FileChannel on the default file system, as the direct strategy needs
+                return Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+
+            @Override
+            public void abandoned(SeekableByteChannel channel) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close channel of abandoned write to " + file, e);
+                }
+                delete(file, "output file of an abandoned write");
+            }
+        };
+        return expiresAt == 0 ? open.run() : WriteWatchdog.getInstance().call(open, file, expiresAt);
+    }
+
+    private static void close(final SeekableByteChannel channel, Path file, long expiresAt) throws IOException {
+        if (expiresAt == 0 || !channel.isOpen()) {
+            channel.close();
+            return;
+        }
+        // closing flushes to storage on network file systems and may block like a write
+        WriteWatchdog.getInstance().call(new WriteWatchdog.Operation<Void>() {
+            @Override
+            public Void run() throws IOException {
+                channel.close();
+                return null;
+            }
+        }, file, expiresAt);
+    }
+
+    private static long size(final Path file, long expiresAt) throws IOException {
+        if (expiresAt == 0) {
+            return Files.size(file);
+        }
+        return WriteWatchdog.getInstance().call(new WriteWatchdog.Operation<Long>() {
+            @Override
+            public Long run() throws IOException {
+                return Files.size(file);
+            }
+        }, file, expiresAt);
+    }
+
+    private static void acquire(SizeTier tier) throws SizeTier.BusyException, InterruptedIOException {
+        if (tier != null) {
+            try {
+                tier.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a write slot");
+            }
+        }
+    }
+
+    private static void release(SizeTier tier) {
+        if (tier != null) {
+            tier.release();
+        }
+    }
+
+    private static void delete(Path file, String description) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Unable to remove " + description + " " + file, e);
+        }
+    }
+
+    private void writeEncrypted(DataHandler dataHandler, SeekableByteChannel channel, SecretKey key) throws IOException {
+        OutputStream encrypted = new ChunkedEncryptingOutputStream(Channels.newOutputStream(channel), key, encryptionChunkSize);
+        InputStream in = dataHandler.getInputStream();
+        try {
+            WriteStrategy.transfer(in, encrypted);
+        } finally {
+            in.close();
+        }
+        // writes the final chunk
+        encrypted.close();
+    }
+
+    private WriteCoalescer.Ticket enterCoalescer(Path file) throws IOException {
+        try {
+            return WriteCoalescer.getInstance().enter(file, coalesceMode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for another write to " + file);
+        }
+    }
+
+    /**
+     * @return the created file, or null if writing should be skipped
+     */
+    private Path createExclusively(Path file, CollisionPolicy collisionPolicy, long expiresAt) throws IOException {
+        if (createFile(file, expiresAt)) {
+            return file;
+        }
+        switch (collisionPolicy) {
+            case FAIL:
+                throw new CollisionException("File " + file + " exists and overwriting is disabled in configuration");
+            case SUFFIX:
+                for (int attempt = 0; attempt < MAX_COLLISION_RETRIES; attempt++) {
+                    Path candidate = file.resolveSibling(withSuffix(file.getFileName().toString(), collisionCounter.incrementAndGet()));
+                    if (createFile(candidate, expiresAt)) {
+                        return candidate;
+                    }
+                }
+                throw new CollisionException("No free file name found for " + file + " after " + MAX_COLLISION_RETRIES + " attempts");
+            default:
+                log.warn("File " + file + " exists, refusing to overwrite it as overwriting is disabled in configuration");
+                return null;
+        }
+    }
+
+    private static boolean createFile(final Path file, long expiresAt) throws IOException {
+        if (expiresAt == 0) {
+            return createFile(file);
+        }
+        return WriteWatchdog.getInstance().call(new WriteWatchdog.Operation<Boolean>() {
+            @Override
+            public Boolean run() throws IOException {
+                return createFile(file);
+            }
+
+            @Override
+            public void abandoned(Boolean created) {
+                if (created) {
+                    delete(file, "output file of an abandoned write");
+                }
+            }
+        }, file, expiresAt);
+    }
+
+    private static boolean createFile(Path file) throws IOException {
+        try {
+            Files.createFile(file);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private static String withSuffix(String name, long suffix) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) + "-" + suffix + name.substring(dot) : name + "-" + suffix;
+    }
+
+    private static void ensureParentDirectoryExists(final Path file, long expiresAt) throws IOException {
+        if (expiresAt == 0) {
+            ensureParentDirectoryExists(file);
+            return;
+        }
+        WriteWatchdog.getInstance().call(new WriteWatchdog.Operation<Void>() {
+            @Override
+            public Void run() {
+                ensureParentDirectoryExists(file);
+                return null;
+            }
+        }, file, expiresAt);
+    }
+
+    static void ensureParentDirectoryExists(File file) {
+        ensureParentDirectoryExists(file.toPath());
+    }
+
+    static void ensureParentDirectoryExists(Path file) {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            try {
+                Files.createDirectories(parent);
+            } catch (IOException e) {
+                log.warn("Unable to create directory " + parent, e);
+            }
+        }
+    }
+
+    /**
+     * Outcome of a single write.
+     */
+    public static final class Result {
+        private final Path path;
+        private final Outcome outcome;
+        private final long size;
+        private final long writeNanos;
+
+        Result(Path path, Outcome outcome, long size, long writeNanos) {
+            this.path = path;
+            this.outcome = outcome;
+            this.size = size;
+            this.writeNanos = writeNanos;
+        }
+
+        /**
+         * @return the written file, which differs from the requested file if it was renamed
+         * @throws UnsupportedOperationException if the file is not on the default file system
+         */
+        public File getFile() {
+            return path.toFile();
+        }
+
+        /**
+         * @return the written file as a path of its file system
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return number of bytes written, or appended in append mode
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return time spent writing the content in nanoseconds
+         */
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+    }
+
+    /**
+     * Thrown when the target file exists and the collision policy does not allow writing.
+     */
+    public static final class CollisionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CollisionException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bitmap of received chunks, one bit per chunk.
+ */
+public final class ChunkBitmap {
+
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality = new AtomicInteger();
+
+    public ChunkBitmap(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Bitmap size must be positive");
+        }
+        this.size = size;
+        this.words = new AtomicLongArray(wordCount(size));
+    }
+
+    static int wordCount(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * Sets given bit.
+     *
+     * @return number of set bits after this call if the bit was not set before, -1 if it already was
+     */
+    public int set(int index) {
+        checkIndex(index);
+        int word = index >>> 6;
+        long mask = 1L << (index & 63);
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0) {
+                return -1;
+            }
+            if (words.compareAndSet(word, current, current | mask)) {
+                return cardinality.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean get(int index) {
+        checkIndex(index);
+        return (words.get(index >>> 6) & 1L << (index & 63)) != 0;
+    }
+
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isComplete() {
+        return cardinality.get() == size;
+    }
+
+    int getWordCount() {
+        return words.length();
+    }
+
+    /**
+     * @return the 64 bit word containing given bit
+     */
+    long getWord(int wordIndex) {
+        return words.get(wordIndex);
+    }
+
+    /**
+     * Restores a word saved earlier. Only for initialization before the bitmap is shared.
+     */
+    void restoreWord(int wordIndex, long value) {
+        long valid = wordIndex == words.length() - 1 && (size & 63) != 0 ? value & (1L << (size & 63)) - 1 : value;
+        long previous = words.getAndSet(wordIndex, valid);
+        cardinality.addAndGet(Long.bitCount(valid) - Long.bitCount(previous));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Chunk index " + index + " outside 0.." + (size - 1));
+        }
+    }
+}
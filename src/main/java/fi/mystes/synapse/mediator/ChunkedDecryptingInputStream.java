@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Decrypts and authenticates a file written by {@link ChunkedEncryptingOutputStream}.
+ * Plaintext of a chunk is returned only after the chunk has been authenticated; an
+ * IOException is thrown for tampered, truncated or extended content.
+ */
+public class ChunkedDecryptingInputStream extends FilterInputStream {
+
+    private final SecretKey key;
+    private final byte[] header = new byte[FileEncryption.HEADER_LENGTH];
+    private Cipher cipher;
+    private byte[] ciphertext;
+    private byte[] plaintext;
+    private int plaintextPosition;
+    private int plaintextLength;
+    private long chunkIndex;
+    private boolean lastChunkRead;
+    private int lookahead = -1;
+
+    public ChunkedDecryptingInputStream(InputStream in, SecretKey key) {
+        super(in);
+        this.key = key;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int count = read(single, 0, 1);
+        return count < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (plaintextPosition == plaintextLength) {
+            if (lastChunkRead) {
+                return -1;
+            }
+            decryptNextChunk();
+        }
+        int count = Math.min(length, plaintextLength - plaintextPosition);
+        System.arraycopy(plaintext, plaintextPosition, data, offset, count);
+        plaintextPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count < 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return plaintextLength - plaintextPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // not supported
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void readHeader() throws IOException {
+        if (readFully(header, 0, header.length) != header.length
+                || !Arrays.equals(Arrays.copyOf(header, FileEncryption.MAGIC.length), FileEncryption.MAGIC)) {
+            throw new IOException("Not an encrypted file");
+        }
+        if (header[FileEncryption.MAGIC.length] != FileEncryption.VERSION) {
+            throw new IOException("Unsupported encrypted file version " + header[FileEncryption.MAGIC.length]);
+        }
+        int position = FileEncryption.MAGIC.length + 1;
+        int chunkSize = (header[position] & 0xFF) << 24 | (header[position + 1] & 0xFF) << 16
+                | (header[position + 2] & 0xFF) << 8 | header[position + 3] & 0xFF;
+        if (chunkSize < 1) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        ciphertext = new byte[chunkSize + FileEncryption.TAG_LENGTH];
+        plaintext = new byte[chunkSize];
+        try {
+            cipher = FileEncryption.newCipher();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available", e);
+        }
+    }
+
+    private void decryptNextChunk() throws IOException {
+        if (ciphertext == null) {
+            readHeader();
+        }
+        int length = 0;
+        if (lookahead >= 0) {
+            ciphertext[length++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        length += readFully(ciphertext, length, ciphertext.length - length);
+        if (length == ciphertext.length) {
+            lookahead = in.read();
+        }
+        lastChunkRead = lookahead < 0;
+        if (length < FileEncryption.TAG_LENGTH) {
+            throw new IOException("Encrypted file is truncated");
+        }
+        try {
+            FileEncryption.initChunk(cipher, Cipher.DECRYPT_MODE, key, header, chunkIndex++, lastChunkRead);
+            plaintextLength = cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+            plaintextPosition = 0;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Authentication of chunk " + (chunkIndex - 1) + " failed, encrypted file is corrupt or truncated", e);
+        }
+    }
+
+    private int readFully(byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
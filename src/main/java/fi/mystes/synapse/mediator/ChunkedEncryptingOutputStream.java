@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Encrypts written data in the {@link FileEncryption} chunk format using constant
+ * memory. The stream must be closed to write the final chunk; closing also closes
+ * the underlying stream.
+ */
+public class ChunkedEncryptingOutputStream extends FilterOutputStream {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] header;
+    private final byte[] plaintext;
+    private final byte[] ciphertext;
+    private int buffered;
+    private long chunkIndex;
+    private boolean headerWritten;
+    private boolean closed;
+
+    public ChunkedEncryptingOutputStream(OutputStream out, SecretKey key, int chunkSize) throws IOException {
+        super(out);
+        this.key = key;
+        this.plaintext = new byte[chunkSize];
+        this.ciphertext = new byte[chunkSize + FileEncryption.TAG_LENGTH];
+        this.header = createHeader(chunkSize);
+        try {
+            this.cipher = FileEncryption.newCipher();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available", e);
+        }
+    }
+
+    private static byte[] createHeader(int chunkSize) {
+        byte[] header = new byte[FileEncryption.HEADER_LENGTH];
+        System.arraycopy(FileEncryption.MAGIC, 0, header, 0, FileEncryption.MAGIC.length);
+        int position = FileEncryption.MAGIC.length;
+        header[position++] = FileEncryption.VERSION;
+        header[position++] = (byte) (chunkSize >>> 24);
+        header[position++] = (byte) (chunkSize >>> 16);
+        header[position++] = (byte) (chunkSize >>> 8);
+        header[position++] = (byte) chunkSize;
+        byte[] noncePrefix = new byte[FileEncryption.NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        System.arraycopy(noncePrefix, 0, header, position, noncePrefix.length);
+        return header;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (buffered == plaintext.length) {
+                // more data follows, so the buffered chunk is not the last one
+                encryptChunk(false);
+            }
+            int count = Math.min(length, plaintext.length - buffered);
+            System.arraycopy(data, offset, plaintext, buffered, count);
+            buffered += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream only; buffered plaintext is written when the chunk is full or on close.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            encryptChunk(true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void encryptChunk(boolean lastChunk) throws IOException {
+        if (!headerWritten) {
+            out.write(header);
+            headerWritten = true;
+        }
+        try {
+            FileEncryption.initChunk(cipher, Cipher.ENCRYPT_MODE, key, header, chunkIndex++, lastChunk);
+            int length = cipher.doFinal(plaintext, 0, buffered, ciphertext, 0);
+            out.write(ciphertext, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt chunk " + (chunkIndex - 1), e);
+        }
+        buffered = 0;
+    }
+}
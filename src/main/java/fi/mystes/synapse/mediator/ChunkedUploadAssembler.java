@@ -0,0 +1,549 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.util.xpath.SynapseXPath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Assembles files uploaded as numbered chunks in separate messages.
+ * <p/>
+ * Each upload is written to <code>&lt;uploadId&gt;.assembling</code>, preallocated
+ * as a sparse file of <code>totalChunks * chunkSize</code> bytes, so chunks can be
+ * written concurrently and in any order with positional writes at
+ * <code>chunkIndex * chunkSize</code>. Received chunks are tracked in a bitmap
+ * persisted next to the data in <code>&lt;uploadId&gt;.chunks</code>, which lets
+ * uploads continue after a restart. A chunk is forced to disk before its bit is
+ * persisted, so that a crash never leaves a chunk marked received that is not there.
+ * The message completing the upload truncates the file to its real size and moves it
+ * to its final location.
+ * <p/>
+ * An upload receiving no chunks for the idle timeout of the assembler is abandoned:
+ * its files are closed and removed, as are files of uploads left from a previous run
+ * that have not been modified for the idle timeout.
+ */
+public final class ChunkedUploadAssembler {
+
+    static final String DATA_SUFFIX = ".assembling";
+    static final String BITMAP_SUFFIX = ".chunks";
+
+    private static final Log log = LogFactory.getLog(ChunkedUploadAssembler.class);
+
+    private static final Pattern VALID_UPLOAD_ID = Pattern.compile("[A-Za-z0-9._-]{1,128}");
+    // total chunks, chunk size and length of the last chunk
+    private static final int BITMAP_HEADER_LENGTH = 3 * 8;
+    private static final long MAX_EXPIRY_INTERVAL = 60 * 1000L;
+
+    private static final Map<File, ChunkedUploadAssembler> ASSEMBLERS = new HashMap<File, ChunkedUploadAssembler>();
+
+    private final File directory;
+    private final long idleTimeout;
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+    private final ScheduledExecutorService expirer;
+    private int references;
+
+    private ChunkedUploadAssembler(File directory, long idleTimeout) {
+        this.directory = directory;
+        this.idleTimeout = idleTimeout;
+        this.expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "WriteBinaryFileUploadExpirer-" + ChunkedUploadAssembler.this.directory.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.min(idleTimeout, MAX_EXPIRY_INTERVAL);
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expireIdleUploads(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.warn("Unable to remove idle uploads from " + ChunkedUploadAssembler.this.directory, e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the assembler for given directory with the default idle timeout.
+     */
+    public static ChunkedUploadAssembler acquire(File directory) throws IOException {
+        return acquire(directory, Settings.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Returns the assembler for given directory, shared by all mediators using it.
+     *
+     * @param idleTimeout milliseconds without chunks after which an upload is abandoned
+     * @throws IOException if the assembler is in use already with another idle timeout
+     */
+    public static ChunkedUploadAssembler acquire(File directory, long idleTimeout) throws IOException {
+        File canonicalDirectory = directory.getCanonicalFile();
+        synchronized (ASSEMBLERS) {
+            ChunkedUploadAssembler assembler = ASSEMBLERS.get(canonicalDirectory);
+            if (assembler == null) {
+                if (!canonicalDirectory.isDirectory() && !canonicalDirectory.mkdirs()) {
+                    throw new IOException("Unable to create assembly directory " + canonicalDirectory);
+                }
+                assembler = new ChunkedUploadAssembler(canonicalDirectory, idleTimeout);
+                ASSEMBLERS.put(canonicalDirectory, assembler);
+            } else if (assembler.idleTimeout != idleTimeout) {
+                throw new IOException("Assembly directory " + canonicalDirectory + " is already used with idle timeout " + assembler.idleTimeout);
+            }
+            assembler.references++;
+            return assembler;
+        }
+    }
+
+    /**
+     * Releases the assembler, closing open files when the last user releases it.
+     * Incomplete uploads are continued after the next acquire.
+     */
+    public void release() {
+        synchronized (ASSEMBLERS) {
+            if (--references > 0) {
+                return;
+            }
+            ASSEMBLERS.remove(directory);
+        }
+        expirer.shutdownNow();
+        for (Upload upload : uploads.values()) {
+            // waits for chunk writes and publishing in progress
+            upload.lock.writeLock().lock();
+            try {
+                upload.close();
+            } finally {
+                upload.lock.writeLock().unlock();
+            }
+        }
+        uploads.clear();
+    }
+
+    /**
+     * Abandons uploads that have received no chunks within the idle timeout, and removes
+     * files of such uploads left from a previous run.
+     *
+     * @return number of uploads removed
+     */
+    int expireIdleUploads(long now) {
+        int expired = 0;
+        for (Upload upload : uploads.values()) {
+            // an upload being written to is not idle
+            if (now - upload.lastActivity >= idleTimeout && upload.lock.writeLock().tryLock()) {
+                try {
+                    if (!upload.closed && now - upload.lastActivity >= idleTimeout) {
+                        log.warn("Removing upload " + upload.id + " with " + upload.bitmap.cardinality() + " of " + upload.bitmap.size()
+                                + " chunks received, no chunks received for " + idleTimeout + " ms");
+                        upload.close();
+                        deleteFiles(upload.id);
+                        uploads.remove(upload.id, upload);
+                        expired++;
+                    }
+                } finally {
+                    upload.lock.writeLock().unlock();
+                }
+            }
+        }
+        File[] bitmapFiles = directory.listFiles();
+        if (bitmapFiles == null) {
+            return expired;
+        }
+        for (File bitmapFile : bitmapFiles) {
+            String name = bitmapFile.getName();
+            if (!name.endsWith(BITMAP_SUFFIX) || now - bitmapFile.lastModified() < idleTimeout) {
+                continue;
+            }
+            String uploadId = name.substring(0, name.length() - BITMAP_SUFFIX.length());
+            // under the lock of upload creation, so that no upload opens the files meanwhile
+            synchronized (this) {
+                if (!uploads.containsKey(uploadId) && now - getDataFile(uploadId).lastModified() >= idleTimeout) {
+                    log.warn("Removing upload " + uploadId + " left from a previous run, not modified for " + idleTimeout + " ms");
+                    deleteFiles(uploadId);
+                    expired++;
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void deleteFiles(String uploadId) {
+        File dataFile = getDataFile(uploadId);
+        if (!dataFile.delete() && dataFile.exists()) {
+            log.warn("Unable to remove data file of upload " + uploadId);
+        }
+        File bitmapFile = new File(directory, uploadId + BITMAP_SUFFIX);
+        if (!bitmapFile.delete() && bitmapFile.exists()) {
+            log.warn("Unable to remove chunk bitmap of upload " + uploadId);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getDataFile(String uploadId) {
+        return new File(directory, uploadId + DATA_SUFFIX);
+    }
+
+    /**
+     * Writes a chunk at its offset. Writing a chunk again overwrites it with the same content.
+     *
+     * @param content decoded chunk content, not closed
+     * @throws IllegalArgumentException for an invalid upload ID or chunk index
+     * @throws IOException              if writing fails or the chunk has the wrong size
+     */
+    public ChunkResult writeChunk(String uploadId, int chunkIndex, int totalChunks, int chunkSize, InputStream content) throws IOException {
+        if (!VALID_UPLOAD_ID.matcher(uploadId).matches()) {
+            throw new IllegalArgumentException("Invalid upload ID " + uploadId);
+        }
+        if (totalChunks < 1 || chunkIndex < 0 || chunkIndex >= totalChunks) {
+            throw new IllegalArgumentException("Invalid chunk " + chunkIndex + " of " + totalChunks + " chunks");
+        }
+        while (true) {
+            Upload upload = openUpload(uploadId, totalChunks, chunkSize);
+            upload.lock.readLock().lock();
+            try {
+                if (upload.closed) {
+                    // published or released concurrently, start over with a fresh upload
+                    continue;
+                }
+                upload.lastActivity = System.currentTimeMillis();
+                upload.write(chunkIndex, content);
+                if (upload.bitmap.set(chunkIndex) > 0) {
+                    // the chunk must be on disk before a restart may find its bit set
+                    upload.data.getChannel().force(false);
+                    upload.saveWord(chunkIndex >>> 6);
+                }
+                // also claims uploads completed before a restart but never published
+                boolean completed = upload.bitmap.isComplete() && upload.completionClaimed.compareAndSet(false, true);
+                return new ChunkResult(completed, upload.bitmap.cardinality(), totalChunks);
+            } finally {
+                upload.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Truncates a complete upload to its real size and moves it to given file, replacing
+     * any existing file. Called once by the writer whose chunk completed the upload.
+     *
+     * @return size of the published file
+     */
+    public long publish(String uploadId, File targetFile) throws IOException {
+        return publish(uploadId, targetFile.toPath());
+    }
+
+    /**
+     * Publishes a complete upload as given file of any file system.
+     *
+     * @return size of the published file
+     */
+    public long publish(String uploadId, Path targetFile) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new IOException("Upload " + uploadId + " not found");
+        }
+        upload.lock.writeLock().lock();
+        try {
+            if (!upload.bitmap.isComplete()) {
+                throw new IOException("Upload " + uploadId + " is not complete");
+            }
+            long size;
+            try {
+                size = upload.truncateAndForce();
+            } catch (IOException e) {
+                // let the next chunk message retry publishing
+                upload.completionClaimed.set(false);
+                throw e;
+            }
+            upload.close();
+            uploads.remove(uploadId, upload);
+            SpoolDirectory.move(getDataFile(uploadId).toPath(), targetFile);
+            File bitmapFile = new File(directory, uploadId + BITMAP_SUFFIX);
+            if (!bitmapFile.delete()) {
+                log.warn("Unable to remove chunk bitmap " + bitmapFile);
+            }
+            return size;
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+    }
+
+    private Upload openUpload(String uploadId, int totalChunks, int chunkSize) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            synchronized (this) {
+                upload = uploads.get(uploadId);
+                if (upload == null) {
+                    upload = new Upload(uploadId, totalChunks, chunkSize);
+                    uploads.put(uploadId, upload);
+                }
+            }
+        }
+        if (upload.bitmap.size() != totalChunks || upload.chunkSize != chunkSize) {
+            throw new IOException("Upload " + uploadId + " was started with " + upload.bitmap.size() + " chunks of "
+                    + upload.chunkSize + " bytes, not " + totalChunks + " chunks of " + chunkSize + " bytes");
+        }
+        return upload;
+    }
+
+    /**
+     * Outcome of a chunk write.
+     */
+    public static final class ChunkResult {
+        private final boolean completed;
+        private final int receivedChunks;
+        private final int totalChunks;
+
+        ChunkResult(boolean completed, int receivedChunks, int totalChunks) {
+            this.completed = completed;
+            this.receivedChunks = receivedChunks;
+            this.totalChunks = totalChunks;
+        }
+
+        /**
+         * @return true if this chunk was the last missing one; exactly one writer of an upload sees true
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public int getReceivedChunks() {
+            return receivedChunks;
+        }
+
+        public int getTotalChunks() {
+            return totalChunks;
+        }
+    }
+
+    private final class Upload {
+        private final String id;
+        private final int chunkSize;
+        private ChunkBitmap bitmap;
+        private final RandomAccessFile data;
+        private final RandomAccessFile bitmapFile;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final AtomicBoolean completionClaimed = new AtomicBoolean();
+        private volatile long lastChunkLength = -1;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private boolean closed;
+
+        private Upload(String id, int totalChunks, int chunkSize) throws IOException {
+            this.id = id;
+            File file = new File(directory, id + BITMAP_SUFFIX);
+            boolean resumed = file.exists() && file.length() >= BITMAP_HEADER_LENGTH;
+            this.bitmapFile = new RandomAccessFile(file, "rw");
+            try {
+                this.data = new RandomAccessFile(getDataFile(id), "rw");
+            } catch (IOException e) {
+                bitmapFile.close();
+                throw e;
+            }
+            try {
+                if (resumed) {
+                    totalChunks = (int) bitmapFile.readLong();
+                    chunkSize = (int) bitmapFile.readLong();
+                    lastChunkLength = bitmapFile.readLong();
+                    bitmap = new ChunkBitmap(totalChunks);
+                    for (int word = 0; word < bitmap.getWordCount() && bitmapFile.getFilePointer() + 8 <= bitmapFile.length(); word++) {
+                        bitmap.restoreWord(word, bitmapFile.readLong());
+                    }
+                    log.info("Continuing upload " + id + " with " + bitmap.cardinality() + " of " + totalChunks + " chunks received");
+                } else {
+                    bitmap = new ChunkBitmap(totalChunks);
+                    bitmapFile.setLength(BITMAP_HEADER_LENGTH + 8L * bitmap.getWordCount());
+                    bitmapFile.writeLong(totalChunks);
+                    bitmapFile.writeLong(chunkSize);
+                    bitmapFile.writeLong(-1);
+                    // sparse on file systems supporting it, no blocks are allocated until written
+                    data.setLength((long) totalChunks * chunkSize);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            this.chunkSize = chunkSize;
+        }
+
+        private void write(int chunkIndex, InputStream content) throws IOException {
+            FileChannel channel = data.getChannel();
+            long start = (long) chunkIndex * chunkSize;
+            long position = start;
+            long end = start + chunkSize;
+            byte[] buffer = WriteStrategy.transferBuffer();
+            int read;
+            while ((read = content.read(buffer)) >= 0) {
+                if (position + read > end) {
+                    throw new IOException("Chunk " + chunkIndex + " of upload " + id + " is larger than chunk size " + chunkSize);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+            long length = position - start;
+            if (chunkIndex == bitmap.size() - 1) {
+                saveLastChunkLength(length);
+            } else if (length != chunkSize) {
+                throw new IOException("Chunk " + chunkIndex + " of upload " + id + " has " + length + " bytes, expected " + chunkSize);
+            }
+        }
+
+        private synchronized void saveLastChunkLength(long length) throws IOException {
+            lastChunkLength = length;
+            writeLong(16, length);
+        }
+
+        private synchronized void saveWord(int wordIndex) throws IOException {
+            // read under the monitor so a concurrent save of the same word never writes an older value last
+            writeLong(BITMAP_HEADER_LENGTH + 8L * wordIndex, bitmap.getWord(wordIndex));
+        }
+
+        private void writeLong(long position, long value) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(value).flip();
+            FileChannel channel = bitmapFile.getChannel();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private long truncateAndForce() throws IOException {
+            long size = (long) (bitmap.size() - 1) * chunkSize + lastChunkLength;
+            data.setLength(size);
+            data.getChannel().force(true);
+            return size;
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                data.close();
+            } catch (IOException e) {
+                log.warn("Unable to close data file of upload " + id, e);
+            }
+            try {
+                bitmapFile.close();
+            } catch (IOException e) {
+                log.warn("Unable to close chunk bitmap of upload " + id, e);
+            }
+        }
+    }
+
+    /**
+     * Chunked upload configuration. Upload ID, chunk index and chunk count are read from
+     * each message with XPath expressions, e.g. <code>get-property('uploadId')</code>.
+     */
+    public static final class Settings {
+        public static final int DEFAULT_MAX_CHUNKS = 10000;
+        public static final long DEFAULT_IDLE_TIMEOUT = 24 * 60 * 60 * 1000L;
+
+        private final File directory;
+        private final int chunkSize;
+        private final SynapseXPath uploadIdExpression;
+        private final SynapseXPath chunkIndexExpression;
+        private final SynapseXPath totalChunksExpression;
+        private final int maxChunks;
+        private final long idleTimeout;
+
+        public Settings(File directory, int chunkSize, SynapseXPath uploadIdExpression, SynapseXPath chunkIndexExpression, SynapseXPath totalChunksExpression) {
+            this(directory, chunkSize, uploadIdExpression, chunkIndexExpression, totalChunksExpression, DEFAULT_MAX_CHUNKS, DEFAULT_IDLE_TIMEOUT);
+        }
+
+        /**
+         * @param maxChunks   largest chunk count accepted for an upload
+         * @param idleTimeout milliseconds without chunks after which an upload is abandoned
+         */
+        public Settings(File directory, int chunkSize, SynapseXPath uploadIdExpression, SynapseXPath chunkIndexExpression, SynapseXPath totalChunksExpression,
+                        int maxChunks, long idleTimeout) {
+            if (directory == null) {
+                throw new IllegalArgumentException("Assembly directory must be specified");
+            }
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            if (uploadIdExpression == null || chunkIndexExpression == null || totalChunksExpression == null) {
+                throw new IllegalArgumentException("uploadId, chunkIndex and totalChunks expressions must be specified");
+            }
+            if (maxChunks < 1) {
+                throw new IllegalArgumentException("maxChunks must be positive");
+            }
+            if (idleTimeout < 1) {
+                throw new IllegalArgumentException("idleTimeout must be positive");
+            }
+            this.directory = directory;
+            this.chunkSize = chunkSize;
+            this.uploadIdExpression = uploadIdExpression;
+            this.chunkIndexExpression = chunkIndexExpression;
+            this.totalChunksExpression = totalChunksExpression;
+            this.maxChunks = maxChunks;
+            this.idleTimeout = idleTimeout;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public SynapseXPath getUploadIdExpression() {
+            return uploadIdExpression;
+        }
+
+        public SynapseXPath getChunkIndexExpression() {
+            return chunkIndexExpression;
+        }
+
+        public SynapseXPath getTotalChunksExpression() {
+            return totalChunksExpression;
+        }
+
+        public int getMaxChunks() {
+            return maxChunks;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * What to do when another message is already writing to the same target file.
+ */
+public enum CoalesceMode {
+    /**
+     * Wait for writes of earlier messages to complete, so that the file is written
+     * once per message in arrival order and the last message wins (default).
+     */
+    SERIALIZE,
+    /**
+     * Cancel writes of earlier messages still in progress or waiting and write only
+     * the content of the latest message.
+     */
+    SUPERSEDE;
+
+    public static CoalesceMode fromString(String value) {
+        if (value == null) {
+            return SERIALIZE;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * What to do when the target file already exists and overwriting is not allowed.
+ */
+public enum CollisionPolicy {
+    /**
+     * Leave the existing file and the payload untouched (default).
+     */
+    SKIP,
+    /**
+     * Fail mediation.
+     */
+    FAIL,
+    /**
+     * Append a running number to the file name until a free name is found.
+     */
+    SUFFIX;
+
+    public static CollisionPolicy fromString(String value) {
+        if (value == null) {
+            return SKIP;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
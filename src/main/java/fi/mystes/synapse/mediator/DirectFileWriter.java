@@ -0,0 +1,282 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes large files without filling the page cache with data that is never read again.
+ * <p/>
+ * Where the JDK supports direct I/O (<code>ExtendedOpenOption.DIRECT</code>, Java 10 and
+ * later) and the file system accepts it, content is written with <code>O_DIRECT</code>
+ * from a direct buffer aligned to the block size of the file store. The last block is
+ * padded and the file truncated to its real length afterwards. At most
+ * {@value #MAX_BUFFERS} direct buffers exist at a time; writes finding none free are
+ * forced instead. {@link #releaseBuffers()} drops the buffers not in use.
+ * <p/>
+ * Otherwise content is written through the file channel and forced to disk every
+ * {@value #FORCE_INTERVAL} bytes, so that dirty pages do not pile up and the written
+ * pages stay clean and cheap for the kernel to reclaim. The JDK offers no
+ * <code>posix_fadvise</code>, so the pages cannot be dropped explicitly.
+ * <p/>
+ * The JDK features are looked up reflectively so that the class still loads on Java 7.
+ */
+final class DirectFileWriter {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+    static final long FORCE_INTERVAL = 8 * 1024 * 1024;
+    static final int MAX_BUFFERS = 4;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final Log log = LogFactory.getLog(DirectFileWriter.class);
+
+    private static final OpenOption DIRECT = lookupDirectOption();
+    private static final Method ALIGNED_SLICE = lookupMethod(ByteBuffer.class, "alignedSlice", int.class);
+    private static final Method GET_BLOCK_SIZE = lookupMethod(FileStore.class, "getBlockSize");
+
+    private static final BlockingQueue<ByteBuffer> FREE_BUFFERS = new ArrayBlockingQueue<ByteBuffer>(MAX_BUFFERS);
+    private static final AtomicInteger allocatedBuffers = new AtomicInteger();
+
+    private DirectFileWriter() {
+    }
+
+    /**
+     * @return true if the JDK supports direct I/O; the file system may still refuse it
+     */
+    static boolean isDirectSupported() {
+        return DIRECT != null && ALIGNED_SLICE != null;
+    }
+
+    /**
+     * Writes all content to given file, which has been opened by given channel. Closing the
+     * channel, e.g. by the write watchdog, aborts the write. Channels other than file
+     * channels, e.g. of in-memory file systems, are written without forcing.
+     *
+     * @return true if the content was written with direct I/O
+     */
+    static boolean write(InputStream in, Path file, SeekableByteChannel out) throws IOException {
+        if (!(out instanceof FileChannel)) {
+            WriteStrategy.transfer(in, out);
+            return false;
+        }
+        FileChannel channel = (FileChannel) out;
+        FileChannel direct = null;
+        int blockSize = 0;
+        if (isDirectSupported()) {
+            blockSize = blockSize(file);
+            if (blockSize > 0) {
+                direct = openDirect(file);
+            }
+        }
+        ByteBuffer raw = null;
+        if (direct != null) {
+            raw = takeBuffer();
+            if (raw == null) {
+                log.debug("All " + MAX_BUFFERS + " direct buffers in use, forcing writes to " + file + " instead");
+                direct.close();
+                direct = null;
+            }
+        }
+        if (direct == null) {
+            writeWithForce(in, channel);
+            return false;
+        }
+        try {
+            // closing only the watched channel would not stop writes through this one
+            WriteWatchdog.closeWithWatchedWrite(channel, direct);
+            writeDirect(in, direct, alignedBuffer(raw, blockSize), blockSize, channel);
+        } finally {
+            try {
+                direct.close();
+            } finally {
+                returnBuffer(raw);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the pooled direct buffers not in use, e.g. when a mediator is destroyed. Their
+     * memory is freed once they are garbage collected.
+     */
+    static void releaseBuffers() {
+        while (FREE_BUFFERS.poll() != null) {
+            allocatedBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of direct buffers allocated and not yet released
+     */
+    static int getAllocatedBufferCount() {
+        return allocatedBuffers.get();
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = FREE_BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers.incrementAndGet() > MAX_BUFFERS) {
+            allocatedBuffers.decrementAndGet();
+            return null;
+        }
+        // room for aligning the start to any supported block size
+        return ByteBuffer.allocateDirect(BUFFER_SIZE + MAX_BLOCK_SIZE);
+    }
+
+    private static void returnBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (!FREE_BUFFERS.offer(buffer)) {
+            allocatedBuffers.decrementAndGet();
+        }
+    }
+
+    private static void writeDirect(InputStream in, FileChannel direct, ByteBuffer buffer, int blockSize, FileChannel out) throws IOException {
+        byte[] bytes = WriteStrategy.transferBuffer();
+        long total = 0;
+        int read;
+        while ((read = in.read(bytes, 0, Math.min(bytes.length, buffer.remaining()))) >= 0) {
+            buffer.put(bytes, 0, read);
+            total += read;
+            if (!buffer.hasRemaining()) {
+                flush(buffer, direct, out);
+            }
+        }
+        if (buffer.position() > 0) {
+            // direct writes must cover whole blocks, the padding is truncated away below
+            int padded = (buffer.position() + blockSize - 1) / blockSize * blockSize;
+            while (buffer.position() < padded) {
+                buffer.put((byte) 0);
+            }
+            flush(buffer, direct, out);
+        }
+        direct.truncate(total);
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel direct, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (!out.isOpen()) {
+                throw new AsynchronousCloseException();
+            }
+            direct.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static void writeWithForce(InputStream in, FileChannel channel) throws IOException {
+        byte[] bytes = WriteStrategy.transferBuffer();
+        long unforced = 0;
+        int read;
+        while ((read = in.read(bytes)) >= 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, read);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            unforced += read;
+            if (unforced >= FORCE_INTERVAL) {
+                channel.force(false);
+                unforced = 0;
+            }
+        }
+        channel.force(false);
+    }
+
+    private static FileChannel openDirect(Path path) {
+        try {
+            return FileChannel.open(path, StandardOpenOption.WRITE, DIRECT);
+        } catch (IOException e) {
+            // e.g. tmpfs and some network file systems refuse O_DIRECT
+            log.debug("Direct I/O not available for " + path + ", forcing writes instead: " + e.getMessage());
+            return null;
+        } catch (UnsupportedOperationException e) {
+            log.debug("Direct I/O not supported by the file system of " + path + ", forcing writes instead");
+            return null;
+        }
+    }
+
+    /**
+     * @return block size of the file store, or 0 if direct I/O cannot be used with it
+     */
+    private static int blockSize(Path path) {
+        long blockSize = DEFAULT_BLOCK_SIZE;
+        if (GET_BLOCK_SIZE != null) {
+            try {
+                blockSize = (Long) GET_BLOCK_SIZE.invoke(Files.getFileStore(path.toAbsolutePath().getParent()));
+            } catch (IOException e) {
+                return 0;
+            } catch (UnsupportedOperationException e) {
+                return 0;
+            } catch (IllegalAccessException e) {
+                return 0;
+            } catch (InvocationTargetException e) {
+                return 0;
+            }
+        }
+        boolean usable = blockSize > 0 && blockSize <= MAX_BLOCK_SIZE && (blockSize & (blockSize - 1)) == 0;
+        return usable ? (int) blockSize : 0;
+    }
+
+    private static ByteBuffer alignedBuffer(ByteBuffer raw, int blockSize) throws IOException {
+        try {
+            // the aligned slice starts and ends on block boundaries
+            return (ByteBuffer) ALIGNED_SLICE.invoke(raw, blockSize);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to align direct buffer", e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Unable to align direct buffer", e.getCause());
+        }
+    }
+
+    private static OpenOption lookupDirectOption() {
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) options.getField("DIRECT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method lookupMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
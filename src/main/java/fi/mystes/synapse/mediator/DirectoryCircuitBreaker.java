@@ -0,0 +1,350 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breaker guarding writes to a single target directory.
+ * <p/>
+ * The breaker keeps the outcomes of the last <code>minimumCalls</code> writes.
+ * When the share of failures reaches <code>failureRateThreshold</code> percent,
+ * the breaker opens and rejects writes without touching the storage. After
+ * <code>cooldown</code> milliseconds a single probe write is let through;
+ * its outcome either closes the breaker or keeps it open for another cooldown.
+ * <p/>
+ * Breakers are shared by all mediator instances writing to the same directory,
+ * which must configure them alike, and registered as MBeans in category
+ * {@value #MBEAN_CATEGORY}. As directories resolved from messages, e.g. with a date
+ * in them, may come and go, a closed breaker not used for {@value #IDLE_TIMEOUT}
+ * milliseconds is dropped with its MBean. Looking a breaker up counts as using it, and
+ * breakers are created and dropped under one lock, so that a writer never gets a
+ * dropped breaker and the MBean of a new breaker is never unregistered with the old one.
+ */
+public final class DirectoryCircuitBreaker implements DirectoryCircuitBreakerMBean {
+
+    public static final String MBEAN_CATEGORY = "WriteBinaryFileCircuitBreaker";
+    public static final long IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+    private static final long EVICTION_INTERVAL = 60 * 1000L;
+
+    private static final Log log = LogFactory.getLog(DirectoryCircuitBreaker.class);
+
+    private static final ConcurrentMap<String, DirectoryCircuitBreaker> BREAKERS = new ConcurrentHashMap<String, DirectoryCircuitBreaker>();
+    private static final Object EVICTION_LOCK = new Object();
+    private static final Object REGISTRY_LOCK = new Object();
+    private static long lastEviction = System.currentTimeMillis();
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final String directory;
+    private final Settings settings;
+    private final boolean[] outcomes;
+
+    private State state = State.CLOSED;
+    private int position;
+    private int calls;
+    private int failures;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long rejectedCount;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean evicted;
+
+    DirectoryCircuitBreaker(String directory, Settings settings) {
+        this.directory = directory;
+        this.settings = settings;
+        this.outcomes = new boolean[settings.getMinimumCalls()];
+    }
+
+    /**
+     * Returns the breaker shared by all writers of given directory, creating it with given
+     * settings if it does not exist yet.
+     *
+     * @throws IllegalArgumentException if the breaker of the directory has different settings
+     */
+    public static DirectoryCircuitBreaker forDirectory(String directory, Settings settings) {
+        evictIdleBreakers(System.currentTimeMillis());
+        DirectoryCircuitBreaker breaker = BREAKERS.get(directory);
+        if (breaker == null || !breaker.use()) {
+            synchronized (REGISTRY_LOCK) {
+                breaker = BREAKERS.get(directory);
+                if (breaker == null || !breaker.use()) {
+                    // an evicted breaker has been removed under the lock already
+                    breaker = new DirectoryCircuitBreaker(directory, settings);
+                    BREAKERS.put(directory, breaker);
+                    registerMBean(breaker);
+                }
+            }
+        }
+        if (!breaker.settings.equals(settings)) {
+            throw new IllegalArgumentException("Circuit breaker for directory " + directory + " is already configured with different settings");
+        }
+        return breaker;
+    }
+
+    /**
+     * Drops closed breakers not used within {@link #IDLE_TIMEOUT}, at most once per eviction
+     * interval. Open and half open breakers are kept so that they go on rejecting writes.
+     *
+     * @return number of breakers dropped
+     */
+    static int evictIdleBreakers(long now) {
+        synchronized (EVICTION_LOCK) {
+            if (now - lastEviction < EVICTION_INTERVAL) {
+                return 0;
+            }
+            lastEviction = now;
+        }
+        int evicted = 0;
+        for (Map.Entry<String, DirectoryCircuitBreaker> entry : BREAKERS.entrySet()) {
+            DirectoryCircuitBreaker breaker = entry.getValue();
+            synchronized (REGISTRY_LOCK) {
+                // the MBean is still the one of this breaker, as no other can be registered meanwhile
+                if (breaker.evictIfIdle(now) && BREAKERS.remove(entry.getKey(), breaker)) {
+                    unregisterMBean(breaker);
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return false if the breaker has been evicted and must not be used any more
+     */
+    private synchronized boolean use() {
+        if (evicted) {
+            return false;
+        }
+        lastUsed = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Marks the breaker evicted if it is closed and has not been used within {@link #IDLE_TIMEOUT}.
+     *
+     * @return true if the breaker has been evicted
+     */
+    synchronized boolean evictIfIdle(long now) {
+        if (!evicted && state == State.CLOSED && now - lastUsed >= IDLE_TIMEOUT) {
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private static void registerMBean(DirectoryCircuitBreaker breaker) {
+        try {
+            MBeanRegistrar.getInstance().registerMBean(breaker, MBEAN_CATEGORY, mbeanId(breaker.directory));
+        } catch (RuntimeException e) {
+            log.warn("Unable to register circuit breaker MBean for directory " + breaker.directory, e);
+        }
+    }
+
+    private static void unregisterMBean(DirectoryCircuitBreaker breaker) {
+        try {
+            MBeanRegistrar.getInstance().unRegisterMBean(MBEAN_CATEGORY, mbeanId(breaker.directory));
+        } catch (RuntimeException e) {
+            log.warn("Unable to unregister circuit breaker MBean for directory " + breaker.directory, e);
+        }
+    }
+
+    static String mbeanId(String name) {
+        // characters not allowed in unquoted ObjectName values
+        return name.replaceAll("[,=:\"*?]", "_");
+    }
+
+    /**
+     * @return true if a write may be attempted, false if it should be rejected immediately
+     */
+    public synchronized boolean allowRequest() {
+        lastUsed = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < settings.getCooldown()) {
+                    rejectedCount++;
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    rejectedCount++;
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        // a write outlasting the idle timeout keeps its breaker
+        lastUsed = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            resetWindow();
+            transitionTo(State.CLOSED);
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        lastUsed = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (calls >= outcomes.length && failures * 100 >= settings.getFailureRateThreshold() * calls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Releases a probe permit without recording an outcome, e.g. when the message
+     * turned out to have nothing to write.
+     */
+    public synchronized void releaseProbe() {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (calls == outcomes.length) {
+            if (outcomes[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % outcomes.length;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transitionTo(State.OPEN);
+    }
+
+    private void resetWindow() {
+        calls = 0;
+        failures = 0;
+        position = 0;
+    }
+
+    private void transitionTo(State newState) {
+        if (state != newState) {
+            log.warn("Circuit breaker for directory " + directory + " changed from " + state + " to " + newState);
+            state = newState;
+        }
+    }
+
+    @Override
+    public String getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    @Override
+    public synchronized int getFailureRate() {
+        return calls == 0 ? 0 : failures * 100 / calls;
+    }
+
+    @Override
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized void reset() {
+        probeInFlight = false;
+        resetWindow();
+        transitionTo(State.CLOSED);
+    }
+
+    /**
+     * Circuit breaker configuration.
+     */
+    public static final class Settings {
+        private final int failureRateThreshold;
+        private final int minimumCalls;
+        private final long cooldown;
+
+        public Settings(int failureRateThreshold, int minimumCalls, long cooldown) {
+            if (failureRateThreshold < 1 || failureRateThreshold > 100) {
+                throw new IllegalArgumentException("failureRateThreshold must be between 1 and 100");
+            }
+            if (minimumCalls < 1) {
+                throw new IllegalArgumentException("minimumCalls must be positive");
+            }
+            if (cooldown < 0) {
+                throw new IllegalArgumentException("cooldown must not be negative");
+            }
+            this.failureRateThreshold = failureRateThreshold;
+            this.minimumCalls = minimumCalls;
+            this.cooldown = cooldown;
+        }
+
+        public int getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        public long getCooldown() {
+            return cooldown;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return failureRateThreshold == other.failureRateThreshold && minimumCalls == other.minimumCalls && cooldown == other.cooldown;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * failureRateThreshold + minimumCalls) + (int) (cooldown ^ (cooldown >>> 32));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * When a write to several target directories counts as successful.
+ */
+public enum FanOutPolicy {
+    /**
+     * Every target directory must be written (default).
+     */
+    ALL,
+    /**
+     * At least one target directory must be written.
+     */
+    ANY;
+
+    public static FanOutPolicy fromString(String value) {
+        if (value == null) {
+            return ALL;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.util.xpath.SynapseXPath;
+import org.jaxen.JaxenException;
+
+/**
+ * Additional target directory a file is copied to, given as a fixed value, an XPath
+ * expression or a template like the primary target directory.
+ */
+public final class FanOutTarget {
+
+    private final String value;
+    private final SynapseXPath expression;
+    private final FileNameTemplate template;
+
+    private FanOutTarget(String value, SynapseXPath expression, FileNameTemplate template) {
+        this.value = value;
+        this.expression = expression;
+        this.template = template;
+    }
+
+    public static FanOutTarget value(String directory) {
+        return new FanOutTarget(directory, null, null);
+    }
+
+    public static FanOutTarget expression(SynapseXPath expression) {
+        return new FanOutTarget(null, expression, null);
+    }
+
+    public static FanOutTarget template(FileNameTemplate template) {
+        return new FanOutTarget(null, null, template);
+    }
+
+    /**
+     * @return the directory for given message, or null if an expression yields no value
+     */
+    public String resolve(MessageContext messageContext) throws JaxenException {
+        if (value != null) {
+            return value;
+        }
+        if (template != null) {
+            return template.resolve(messageContext);
+        }
+        String directory = expression.stringValueOf(messageContext);
+        return directory == null || directory.length() == 0 ? null : directory;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public SynapseXPath getExpression() {
+        return expression;
+    }
+
+    public FileNameTemplate getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return value != null ? value : (template != null ? template.toString() : expression.toString());
+    }
+}
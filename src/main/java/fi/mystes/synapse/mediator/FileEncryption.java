@@ -0,0 +1,153 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMText;
+import org.apache.axiom.util.base64.Base64Utils;
+import org.apache.synapse.util.xpath.SynapseXPath;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Chunked AES-GCM format of encrypted output files.
+ * <p/>
+ * A file starts with a {@value #HEADER_LENGTH} byte header: the magic bytes
+ * <code>WBFE</code>, a format version byte, the plaintext chunk size as a 32-bit
+ * big endian integer and a random {@value #NONCE_PREFIX_LENGTH} byte nonce prefix.
+ * The header is followed by the chunks, each holding <code>chunkSize</code>
+ * plaintext bytes (the last one possibly fewer, even zero) plus a
+ * {@value #TAG_LENGTH} byte authentication tag.
+ * <p/>
+ * Every chunk is authenticated independently with the 12 byte nonce
+ * <code>noncePrefix | chunkIndex | lastChunkFlag</code> and the header as
+ * additional authenticated data, so reordered, truncated or extended files are
+ * detected. Chunk <i>n</i> starts at
+ * <code>HEADER_LENGTH + n * (chunkSize + TAG_LENGTH)</code>, which allows
+ * decrypting chunks in parallel.
+ */
+public final class FileEncryption {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    static final byte[] MAGIC = {'W', 'B', 'F', 'E'};
+    static final byte VERSION = 1;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + NONCE_PREFIX_LENGTH;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+
+    private FileEncryption() {
+        // suppress default constructor as class contains static utility methods only
+    }
+
+    /**
+     * @return new cipher for the chunk format
+     */
+    static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(TRANSFORMATION);
+    }
+
+    static void initChunk(Cipher cipher, int mode, SecretKey key, byte[] header, long chunkIndex, boolean lastChunk) throws GeneralSecurityException {
+        if (chunkIndex > 0xFFFFFFFFL) {
+            throw new GeneralSecurityException("Too many chunks, use a larger chunk size");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (chunkIndex >>> 24);
+        nonce[8] = (byte) (chunkIndex >>> 16);
+        nonce[9] = (byte) (chunkIndex >>> 8);
+        nonce[10] = (byte) chunkIndex;
+        nonce[11] = (byte) (lastChunk ? 1 : 0);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+    }
+
+    /**
+     * Converts a key entry to an AES key. Accepts the base64 encoded key as a string,
+     * a text node or an element containing the text, as returned by registry and
+     * secure vault lookups.
+     */
+    public static SecretKey toKey(Object entry) {
+        String encoded;
+        if (entry instanceof String) {
+            encoded = (String) entry;
+        } else if (entry instanceof OMText) {
+            encoded = ((OMText) entry).getText();
+        } else if (entry instanceof OMElement) {
+            encoded = ((OMElement) entry).getText();
+        } else {
+            throw new IllegalArgumentException("Unsupported encryption key entry " + (entry == null ? null : entry.getClass().getName()));
+        }
+        byte[] key = Base64Utils.decode(encoded.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Encryption key must be 128, 192 or 256 bits, was " + key.length * 8);
+        }
+        return new SecretKeySpec(key, KEY_ALGORITHM);
+    }
+
+    /**
+     * @return size of the encrypted file for given plaintext size
+     */
+    public static long encryptedSize(long plaintextSize, int chunkSize) {
+        // an empty file still has one (empty) final chunk
+        long chunks = Math.max(1, (plaintextSize + chunkSize - 1) / chunkSize);
+        return HEADER_LENGTH + plaintextSize + chunks * TAG_LENGTH;
+    }
+
+    /**
+     * Encryption configuration. The key is looked up either from the registry (or any
+     * other Synapse entry) by key, or evaluated with an expression such as
+     * <code>wso2:vault-lookup('alias')</code>.
+     */
+    public static final class Settings {
+        private final String keyEntry;
+        private final SynapseXPath keyExpression;
+        private final int chunkSize;
+
+        public Settings(String keyEntry, SynapseXPath keyExpression, int chunkSize) {
+            if ((keyEntry == null) == (keyExpression == null)) {
+                throw new IllegalArgumentException("Exactly one of key and keyExpression must be specified");
+            }
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.keyEntry = keyEntry;
+            this.keyExpression = keyExpression;
+            this.chunkSize = chunkSize;
+        }
+
+        public String getKeyEntry() {
+            return keyEntry;
+        }
+
+        public SynapseXPath getKeyExpression() {
+            return keyExpression;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+    }
+}
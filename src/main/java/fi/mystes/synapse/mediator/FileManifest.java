@@ -0,0 +1,531 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of completed writes, for consumers that would otherwise have to list
+ * target directories to find new files.
+ * <p/>
+ * Each record is one line of tab separated fields: completion time in epoch milliseconds,
+ * absolute path, size in bytes, checksum and message ID. Empty fields are left empty, and
+ * tabs, line breaks and backslashes in values are escaped with a backslash. Records are
+ * buffered and written with a single append when <code>batchSize</code> records are
+ * pending or every <code>flushInterval</code> milliseconds, whichever comes first. Both
+ * are written by a shared flusher thread, so recording never waits for the manifest file.
+ * The thread stops when the last manifest is released. A file is recorded only after it
+ * has been completely written and closed.
+ * <p/>
+ * When the manifest would grow past <code>maxSize</code> bytes, it is renamed to
+ * <code>&lt;name&gt;.&lt;n&gt;</code> with a running number <code>n</code> and a new one is
+ * started; only the newest <code>maxFiles</code> rotated files are kept. Consumers read
+ * rotated files in number order before the current one. Records still buffered when the
+ * server crashes are lost, and a crash in the middle of a write may leave a last line
+ * without a line break, which consumers should ignore.
+ * <p/>
+ * Manifests are shared by all mediators writing to the same manifest file, which may be
+ * on any NIO file system, and which must configure them alike.
+ */
+public final class FileManifest {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final Log log = LogFactory.getLog(FileManifest.class);
+
+    private static final Map<Path, FileManifest> MANIFESTS = new HashMap<Path, FileManifest>();
+    private static ScheduledExecutorService flusher;
+
+    private final Path file;
+    private final Settings settings;
+    private final ScheduledExecutorService executor;
+    private final Object writeLock = new Object();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushQuietly();
+        }
+    };
+    private ScheduledFuture<?> scheduledFlush;
+    private int references;
+    private volatile long lastRecorded = System.currentTimeMillis();
+
+    // guarded by this
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingRecords;
+    private boolean flushRequested;
+    private boolean closed;
+
+    // guarded by writeLock
+    private OutputStream out;
+    private long size;
+    private int lastRotation;
+
+    private FileManifest(Path file, Settings settings, ScheduledExecutorService executor) {
+        this.file = file;
+        this.settings = settings;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the manifest written to given file, opening it if it is not in use yet.
+     */
+    public static FileManifest acquire(File file, Settings settings) throws IOException {
+        return acquire(file.toPath(), settings);
+    }
+
+    /**
+     * Returns the manifest written to given file of any file system.
+     *
+     * @throws IllegalArgumentException if the manifest is in use with different settings
+     */
+    public static FileManifest acquire(Path file, Settings settings) throws IOException {
+        Path normalizedFile = file.toAbsolutePath().normalize();
+        synchronized (MANIFESTS) {
+            FileManifest manifest = MANIFESTS.get(normalizedFile);
+            if (manifest == null) {
+                FileManifest created = new FileManifest(normalizedFile, settings, flusher());
+                try {
+                    created.open();
+                } catch (IOException e) {
+                    stopIdleFlusher();
+                    throw e;
+                }
+                created.scheduledFlush = flusher.scheduleWithFixedDelay(created.flushTask,
+                        settings.getFlushInterval(), settings.getFlushInterval(), TimeUnit.MILLISECONDS);
+                MANIFESTS.put(normalizedFile, created);
+                manifest = created;
+            } else if (!manifest.settings.equals(settings)) {
+                throw new IllegalArgumentException("Manifest " + normalizedFile + " is already in use with different settings");
+            }
+            manifest.references++;
+            return manifest;
+        }
+    }
+
+    private static ScheduledExecutorService flusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WriteBinaryFileManifestFlusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return flusher;
+    }
+
+    private static void stopIdleFlusher() {
+        if (MANIFESTS.isEmpty() && flusher != null) {
+            // queued flushes still run, release() flushes its manifest itself anyway
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /**
+     * Releases the manifest. Pending records are written and the file is closed when the
+     * last user releases it; records are not accepted after that.
+     */
+    public void release() {
+        synchronized (MANIFESTS) {
+            if (--references > 0) {
+                return;
+            }
+            MANIFESTS.remove(file);
+            scheduledFlush.cancel(false);
+            stopIdleFlusher();
+        }
+        synchronized (this) {
+            closed = true;
+        }
+        flushQuietly();
+        synchronized (writeLock) {
+            closeQuietly();
+        }
+    }
+
+    public Path getPath() {
+        return file;
+    }
+
+    /**
+     * @return time of the last record in epoch milliseconds, or of acquiring if none yet
+     */
+    public long getLastRecorded() {
+        return lastRecorded;
+    }
+
+    /**
+     * Records a completed write.
+     *
+     * @param checksum checksum of the content, null if not computed
+     * @param messageId ID of the message written, may be null
+     * @return false if the manifest has been released by its last user and the record was not accepted
+     */
+    public boolean record(String path, long size, String checksum, String messageId) {
+        boolean flush;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            lastRecorded = System.currentTimeMillis();
+            pending.append(System.currentTimeMillis()).append(TabSeparatedRecords.SEPARATOR);
+            TabSeparatedRecords.appendEscaped(pending, path);
+            pending.append(TabSeparatedRecords.SEPARATOR).append(size).append(TabSeparatedRecords.SEPARATOR);
+            TabSeparatedRecords.appendEscaped(pending, checksum);
+            pending.append(TabSeparatedRecords.SEPARATOR);
+            TabSeparatedRecords.appendEscaped(pending, messageId);
+            pending.append(TabSeparatedRecords.TERMINATOR);
+            flush = ++pendingRecords >= settings.getBatchSize() && !flushRequested;
+            if (flush) {
+                flushRequested = true;
+            }
+        }
+        if (flush) {
+            try {
+                executor.execute(flushTask);
+            } catch (RejectedExecutionException e) {
+                // last manifest released meanwhile, which flushes the records itself
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all pending records with a single append, rotating the file first if needed.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            String batch;
+            int records;
+            synchronized (this) {
+                if (pendingRecords == 0) {
+                    return;
+                }
+                batch = pending.toString();
+                records = pendingRecords;
+                pending.setLength(0);
+                pendingRecords = 0;
+                flushRequested = false;
+            }
+            byte[] bytes = batch.getBytes(ENCODING);
+            try {
+                if (out == null) {
+                    open();
+                }
+                if (size > 0 && size + bytes.length > settings.getMaxSize()) {
+                    rotate();
+                }
+                out.write(bytes);
+                size += bytes.length;
+            } catch (IOException e) {
+                // keep the records for the next attempt, in their original order
+                synchronized (this) {
+                    pending.insert(0, batch);
+                    pendingRecords += records;
+                }
+                closeQuietly();
+                throw e;
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            log.warn("Unable to write records to manifest " + file + ", retrying on next flush", e);
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        lastRotation = Math.max(lastRotation, findLastRotation());
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        closeQuietly();
+        int rotation = lastRotation + 1;
+        Path rotated = file.resolveSibling(file.getFileName() + "." + rotation);
+        Files.move(file, rotated, StandardCopyOption.REPLACE_EXISTING);
+        lastRotation = rotation;
+        for (int obsolete = rotation - settings.getMaxFiles(); obsolete > 0; obsolete--) {
+            Path old = file.resolveSibling(file.getFileName() + "." + obsolete);
+            try {
+                if (!Files.deleteIfExists(old)) {
+                    break;
+                }
+            } catch (IOException e) {
+                log.warn("Unable to remove rotated manifest " + old, e);
+            }
+        }
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = 0;
+    }
+
+    private int findLastRotation() throws IOException {
+        String prefix = file.getFileName() + ".";
+        int last = 0;
+        for (Path rotated : listRotated(file, prefix)) {
+            last = Math.max(last, rotationOf(rotated, prefix));
+        }
+        return last;
+    }
+
+    /**
+     * Reads the records of given manifest and its rotated files, oldest first. A last line
+     * without a line break, left by a crash in the middle of a write, is skipped.
+     */
+    public static void read(File manifestFile, RecordHandler handler) throws IOException {
+        read(manifestFile.toPath(), handler);
+    }
+
+    /**
+     * Reads the records of given manifest of any file system and its rotated files, oldest first.
+     */
+    public static void read(Path manifestFile, RecordHandler handler) throws IOException {
+        final String prefix = manifestFile.getFileName() + ".";
+        List<Path> files = listRotated(manifestFile.toAbsolutePath(), prefix);
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path first, Path second) {
+                return rotationOf(first, prefix) - rotationOf(second, prefix);
+            }
+        });
+        if (Files.isRegularFile(manifestFile)) {
+            files.add(manifestFile);
+        }
+        for (Path file : files) {
+            readFile(file, handler);
+        }
+    }
+
+    /**
+     * @return rotated files of given manifest, in no particular order
+     */
+    private static List<Path> listRotated(Path manifestFile, final String prefix) throws IOException {
+        List<Path> rotated = new ArrayList<Path>();
+        if (!Files.isDirectory(manifestFile.getParent())) {
+            return rotated;
+        }
+        DirectoryStream<Path> entries = Files.newDirectoryStream(manifestFile.getParent(), new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) {
+                return entry.getFileName().toString().startsWith(prefix) && rotationOf(entry, prefix) > 0 && Files.isRegularFile(entry);
+            }
+        });
+        try {
+            for (Path entry : entries) {
+                rotated.add(entry);
+            }
+        } finally {
+            entries.close();
+        }
+        return rotated;
+    }
+
+    private static int rotationOf(Path file, String prefix) {
+        try {
+            return Integer.parseInt(file.getFileName().toString().substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void readFile(final Path file, final RecordHandler handler) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), ENCODING));
+        try {
+            TabSeparatedRecords.read(reader, new TabSeparatedRecords.Handler() {
+                @Override
+                public void handle(List<String> fields) {
+                    handleRecord(file, fields, handler);
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void handleRecord(Path file, List<String> fields, RecordHandler handler) {
+        if (fields.size() < 5) {
+            log.warn("Skipping malformed record in manifest " + file);
+            return;
+        }
+        try {
+            handler.handle(Long.parseLong(fields.get(0)), fields.get(1), Long.parseLong(fields.get(2)),
+                    emptyToNull(fields.get(3)), emptyToNull(fields.get(4)));
+        } catch (NumberFormatException e) {
+            log.warn("Skipping malformed record in manifest " + file);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Unable to close manifest " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Receives records read from a manifest.
+     */
+    public interface RecordHandler {
+        /**
+         * @param checksum checksum of the content, null if not recorded
+         * @param messageId ID of the message written, null if not recorded
+         */
+        void handle(long time, String path, long size, String checksum, String messageId);
+    }
+
+    /**
+     * Manifest configuration. Either <code>file</code>, a single manifest for all target
+     * directories, or <code>name</code>, a manifest of that name in the directory of each
+     * written file, is given.
+     */
+    public static final class Settings {
+        public static final int DEFAULT_BATCH_SIZE = 100;
+        public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+        public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+        public static final int DEFAULT_MAX_FILES = 10;
+
+        private final File file;
+        private final String name;
+        private final int batchSize;
+        private final long flushInterval;
+        private final long maxSize;
+        private final int maxFiles;
+
+        public Settings(File file, String name, int batchSize, long flushInterval, long maxSize, int maxFiles) {
+            if ((file == null) == (name == null)) {
+                throw new IllegalArgumentException("Exactly one of manifest file and name must be specified");
+            }
+            if (name != null && (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)) {
+                throw new IllegalArgumentException("Manifest name must not contain directories");
+            }
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+            if (flushInterval < 1) {
+                throw new IllegalArgumentException("flushInterval must be positive");
+            }
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("maxSize must be positive");
+            }
+            if (maxFiles < 0) {
+                throw new IllegalArgumentException("maxFiles must not be negative");
+            }
+            this.file = file;
+            this.name = name;
+            this.batchSize = batchSize;
+            this.flushInterval = flushInterval;
+            this.maxSize = maxSize;
+            this.maxFiles = maxFiles;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the manifest recording given written file, on the file system of the written file
+         */
+        public Path manifestFor(Path writtenFile) {
+            return file != null ? writtenFile.getFileSystem().getPath(file.getPath()) : writtenFile.toAbsolutePath().resolveSibling(name);
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public int getMaxFiles() {
+            return maxFiles;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return (file != null ? file.equals(other.file) : other.file == null) && (name != null ? name.equals(other.name) : other.name == null)
+                    && batchSize == other.batchSize && flushInterval == other.flushInterval && maxSize == other.maxSize && maxFiles == other.maxFiles;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = file != null ? file.hashCode() : name.hashCode();
+            result = 31 * result + batchSize;
+            result = 31 * result + (int) (flushInterval ^ (flushInterval >>> 32));
+            result = 31 * result + (int) (maxSize ^ (maxSize >>> 32));
+            return 31 * result + maxFiles;
+        }
+    }
+}
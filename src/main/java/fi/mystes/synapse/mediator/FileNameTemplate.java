@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.util.xpath.SynapseXPath;
+import org.jaxen.JaxenException;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-compiled template for target file names and directories, e.g.
+ * <code>{yyyy}/{MM}/{property:customerId}_{seq}_{uuid}.{ext}</code>.
+ * <p/>
+ * The template is parsed once when the mediator is created. Resolving it
+ * for a message only appends literals and cheap lookups to a buffer; XPath
+ * is evaluated only for <code>{xpath:...}</code> placeholders.
+ * <p/>
+ * Supported placeholders:
+ * <ul>
+ * <li><code>{yyyy}</code>, <code>{MM}</code>, <code>{dd}</code>, <code>{HH}</code>, <code>{mm}</code>,
+ * <code>{ss}</code>, <code>{SSS}</code> - parts of the current time</li>
+ * <li><code>{property:name}</code> - message context property</li>
+ * <li><code>{seq}</code> - sequence number, unique within the template instance only. It starts
+ * from 1 whenever the template is compiled, e.g. after a restart or redeployment, so names using
+ * it alone repeat; combine it with the time or <code>{uuid}</code>, or disallow overwriting</li>
+ * <li><code>{uuid}</code> - random UUID</li>
+ * <li><code>{msgid}</code> - message ID without the <code>urn:uuid:</code> prefix</li>
+ * <li><code>{ext}</code> - extension of the <code>FILE_NAME</code> property, <code>bin</code> if not available</li>
+ * <li><code>{xpath:expression}</code> - string value of an XPath expression</li>
+ * </ul>
+ */
+public final class FileNameTemplate {
+
+    static final String FILE_NAME_PROPERTY = "FILE_NAME";
+    static final String DEFAULT_EXTENSION = "bin";
+
+    private static final String PROPERTY_PREFIX = "property:";
+    private static final String XPATH_PREFIX = "xpath:";
+    private static final String MESSAGE_ID_PREFIX = "urn:uuid:";
+
+    private final String pattern;
+    private final Segment[] segments;
+    private final boolean timeDependent;
+    private final List<SynapseXPath> expressions;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private FileNameTemplate(String pattern, List<Segment> segments, List<SynapseXPath> expressions) {
+        this.pattern = pattern;
+        this.segments = segments.toArray(new Segment[segments.size()]);
+        this.expressions = expressions;
+        boolean usesTime = false;
+        for (Segment segment : segments) {
+            usesTime |= segment instanceof TimeSegment;
+        }
+        this.timeDependent = usesTime;
+    }
+
+    /**
+     * Compiles given pattern. Namespaces used in <code>{xpath:...}</code> placeholders
+     * are resolved from the given configuration element.
+     *
+     * @throws IllegalArgumentException if the pattern is malformed or contains unknown placeholders
+     */
+    public static FileNameTemplate compile(String pattern, OMElement namespaceContext) {
+        if (pattern == null || pattern.length() == 0) {
+            throw new IllegalArgumentException("Template must not be empty");
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        List<SynapseXPath> expressions = new ArrayList<SynapseXPath>();
+        int position = 0;
+        while (position < pattern.length()) {
+            int start = pattern.indexOf('{', position);
+            if (start < 0) {
+                segments.add(new LiteralSegment(pattern.substring(position)));
+                break;
+            }
+            if (start > position) {
+                segments.add(new LiteralSegment(pattern.substring(position, start)));
+            }
+            int end = pattern.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder in template " + pattern);
+            }
+            segments.add(compilePlaceholder(pattern.substring(start + 1, end), namespaceContext, expressions));
+            position = end + 1;
+        }
+        return new FileNameTemplate(pattern, segments, expressions);
+    }
+
+    private static Segment compilePlaceholder(String placeholder, OMElement namespaceContext, List<SynapseXPath> expressions) {
+        if (placeholder.startsWith(PROPERTY_PREFIX)) {
+            return new PropertySegment(placeholder.substring(PROPERTY_PREFIX.length()));
+        }
+        if (placeholder.startsWith(XPATH_PREFIX)) {
+            try {
+                SynapseXPath xpath = new SynapseXPath(placeholder.substring(XPATH_PREFIX.length()));
+                if (namespaceContext != null) {
+                    xpath.addNamespaces(namespaceContext);
+                }
+                expressions.add(xpath);
+                return new XPathSegment(xpath);
+            } catch (JaxenException e) {
+                throw new IllegalArgumentException("Invalid XPath in template placeholder {" + placeholder + "}", e);
+            }
+        }
+        if ("yyyy".equals(placeholder)) {
+            return new TimeSegment(Calendar.YEAR, 4, 0);
+        } else if ("MM".equals(placeholder)) {
+            return new TimeSegment(Calendar.MONTH, 2, 1);
+        } else if ("dd".equals(placeholder)) {
+            return new TimeSegment(Calendar.DAY_OF_MONTH, 2, 0);
+        } else if ("HH".equals(placeholder)) {
+            return new TimeSegment(Calendar.HOUR_OF_DAY, 2, 0);
+        } else if ("mm".equals(placeholder)) {
+            return new TimeSegment(Calendar.MINUTE, 2, 0);
+        } else if ("ss".equals(placeholder)) {
+            return new TimeSegment(Calendar.SECOND, 2, 0);
+        } else if ("SSS".equals(placeholder)) {
+            return new TimeSegment(Calendar.MILLISECOND, 3, 0);
+        } else if ("seq".equals(placeholder)) {
+            return SEQUENCE;
+        } else if ("uuid".equals(placeholder)) {
+            return RANDOM_UUID;
+        } else if ("msgid".equals(placeholder)) {
+            return MESSAGE_ID;
+        } else if ("ext".equals(placeholder)) {
+            return EXTENSION;
+        }
+        throw new IllegalArgumentException("Unknown template placeholder {" + placeholder + "}");
+    }
+
+    /**
+     * Resolves the template against given message.
+     *
+     * @throws JaxenException if evaluating an <code>{xpath:...}</code> placeholder fails
+     */
+    public String resolve(MessageContext messageContext) throws JaxenException {
+        StringBuilder result = new StringBuilder(pattern.length() + 32);
+        Calendar now = timeDependent ? Calendar.getInstance() : null;
+        for (Segment segment : segments) {
+            segment.appendTo(result, this, messageContext, now);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return XPath expressions used in the template, needed for serializing namespace definitions
+     */
+    public List<SynapseXPath> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * @return the pattern up to its first placeholder, the whole pattern if it has none
+     */
+    public String getLiteralPrefix() {
+        int placeholder = pattern.indexOf('{');
+        return placeholder < 0 ? pattern : pattern.substring(0, placeholder);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private interface Segment {
+        void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) throws JaxenException;
+    }
+
+    private static final class LiteralSegment implements Segment {
+        private final String literal;
+
+        private LiteralSegment(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            result.append(literal);
+        }
+    }
+
+    private static final class TimeSegment implements Segment {
+        private final int field;
+        private final int width;
+        private final int offset;
+
+        private TimeSegment(int field, int width, int offset) {
+            this.field = field;
+            this.width = width;
+            this.offset = offset;
+        }
+
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            String value = Integer.toString(now.get(field) + offset);
+            for (int i = value.length(); i < width; i++) {
+                result.append('0');
+            }
+            result.append(value);
+        }
+    }
+
+    private static final class PropertySegment implements Segment {
+        private final String propertyName;
+
+        private PropertySegment(String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            Object value = messageContext.getProperty(propertyName);
+            if (value != null) {
+                result.append(value);
+            }
+        }
+    }
+
+    private static final class XPathSegment implements Segment {
+        private final SynapseXPath xpath;
+
+        private XPathSegment(SynapseXPath xpath) {
+            this.xpath = xpath;
+        }
+
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            String value = xpath.stringValueOf(messageContext);
+            if (value != null) {
+                result.append(value);
+            }
+        }
+    }
+
+    private static final Segment SEQUENCE = new Segment() {
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            result.append(template.sequence.incrementAndGet());
+        }
+    };
+
+    private static final Segment RANDOM_UUID = new Segment() {
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            result.append(UUID.randomUUID().toString());
+        }
+    };
+
+    private static final Segment MESSAGE_ID = new Segment() {
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            String messageId = messageContext.getMessageID();
+            if (messageId != null) {
+                result.append(messageId.startsWith(MESSAGE_ID_PREFIX) ? messageId.substring(MESSAGE_ID_PREFIX.length()) : messageId);
+            }
+        }
+    };
+
+    private static final Segment EXTENSION = new Segment() {
+        @Override
+        public void appendTo(StringBuilder result, FileNameTemplate template, MessageContext messageContext, Calendar now) {
+            Object fileName = messageContext.getProperty(FILE_NAME_PROPERTY);
+            if (fileName != null) {
+                String name = fileName.toString();
+                int dot = name.lastIndexOf('.');
+                if (dot >= 0 && dot < name.length() - 1) {
+                    result.append(name.substring(dot + 1));
+                    return;
+                }
+            }
+            result.append(DEFAULT_EXTENSION);
+        }
+    };
+}
@@ -0,0 +1,488 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
+import org.apache.synapse.util.xpath.SynapseXPath;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of recently completed writes, mapping the idempotency key of a
+ * message to the path written for it, so that retries of the same message get the
+ * path without decoding and writing the content again.
+ * <p/>
+ * A write first reserves its key with {@link #reserve(String)}, which either answers
+ * with the path of a completed write or marks the key as being written, so that of
+ * concurrent messages with the same key only one writes. The reservation ends with
+ * {@link #record(String, String, File)} or {@link #cancel(String)}. A spooled write
+ * counts as completed while its file waits in the spool directory for the move.
+ * <p/>
+ * The least recently used completed writes are dropped when the cache is full.
+ * Reservations are kept apart from them and never dropped, as a concurrent message
+ * with the key would otherwise write as well. Optionally
+ * each completed write is appended to a journal file that is read back when the
+ * cache is opened, so that duplicates are recognized after a restart as well. Records
+ * of concurrent writes are appended and flushed together, outside the lock of the
+ * cache. The journal is rewritten with the current entries once it holds twice as many
+ * records as the cache. Written paths are checked on the target file system of the
+ * cache, while the journal and spool files are always on the default file system.
+ * <p/>
+ * Caches are registered as MBeans in category {@value #MBEAN_CATEGORY}.
+ */
+public final class IdempotencyCache implements IdempotencyCacheMBean {
+
+    public static final String MBEAN_CATEGORY = "WriteBinaryFileIdempotency";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final Log log = LogFactory.getLog(IdempotencyCache.class);
+
+    private final Settings settings;
+    private final String mbeanId;
+    private final FileSystem fileSystem;
+    private final Map<String, CachedWrite> entries;
+    // bounded by the number of concurrent writes
+    private final Set<String> inProgress = new HashSet<String>();
+    private final StringBuilder pendingRecords = new StringBuilder();
+    private final Object journalLock = new Object();
+    private long hitCount;
+    private long missCount;
+    private boolean journalEnabled;
+    private int journalRecords;
+    private Writer journal;
+
+    IdempotencyCache(Settings settings, String mbeanId) {
+        this(settings, mbeanId, FileSystems.getDefault());
+    }
+
+    IdempotencyCache(Settings settings, String mbeanId, FileSystem fileSystem) {
+        this.settings = settings;
+        this.mbeanId = mbeanId;
+        this.fileSystem = fileSystem;
+        final int maxEntries = settings.getMaxEntries();
+        this.entries = new LinkedHashMap<String, CachedWrite>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedWrite> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache, restoring its entries from the journal file if one is configured,
+     * and registers it as an MBean with given id.
+     */
+    public static IdempotencyCache open(Settings settings, String mbeanId) throws IOException {
+        return open(settings, mbeanId, FileSystems.getDefault());
+    }
+
+    /**
+     * Creates a cache of writes to given file system.
+     */
+    public static IdempotencyCache open(Settings settings, String mbeanId, FileSystem fileSystem) throws IOException {
+        IdempotencyCache cache = new IdempotencyCache(settings, mbeanId, fileSystem);
+        if (settings.getFile() != null) {
+            cache.restore();
+            cache.openJournal(true);
+            cache.journalEnabled = true;
+        }
+        try {
+            MBeanRegistrar.getInstance().registerMBean(cache, MBEAN_CATEGORY, DirectoryCircuitBreaker.mbeanId(mbeanId));
+        } catch (RuntimeException e) {
+            log.warn("Unable to register idempotency cache MBean " + mbeanId, e);
+        }
+        return cache;
+    }
+
+    /**
+     * @return path written for given key, or null if no write with the key has completed
+     * or the written file no longer exists
+     */
+    public String lookup(String key) {
+        CachedWrite entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        // checked outside the lock, as it asks the file system
+        boolean hit = entry != null && exists(entry);
+        synchronized (this) {
+            if (entry != null && !hit && entries.get(key) == entry) {
+                entries.remove(key);
+            }
+            countLookup(hit);
+        }
+        return hit ? entry.path : null;
+    }
+
+    /**
+     * Answers with the path of a completed write of given key, or reserves the key for
+     * the write of the caller, who must end the reservation with {@link #record} or
+     * {@link #cancel(String)}.
+     *
+     * @return path written for given key, or null if the key was reserved for the caller
+     * @throws InProgressException if another message with the key is being written
+     */
+    public String reserve(String key) throws InProgressException {
+        while (true) {
+            CachedWrite entry;
+            synchronized (this) {
+                if (inProgress.contains(key)) {
+                    throw new InProgressException("Message with idempotency key " + key + " is being written by another message");
+                }
+                entry = entries.get(key);
+                if (entry == null) {
+                    inProgress.add(key);
+                    countLookup(false);
+                    return null;
+                }
+            }
+            // checked outside the lock, as it asks the file system
+            boolean hit = exists(entry);
+            synchronized (this) {
+                if (entries.get(key) == entry) {
+                    countLookup(hit);
+                    if (hit) {
+                        return entry.path;
+                    }
+                    entries.remove(key);
+                    inProgress.add(key);
+                    return null;
+                }
+                // recorded or dropped meanwhile, look again
+            }
+        }
+    }
+
+    /**
+     * Ends the reservation of a write that did not complete, so that the next message
+     * with the key writes.
+     */
+    public synchronized void cancel(String key) {
+        inProgress.remove(key);
+    }
+
+    /**
+     * Remembers a completed write.
+     */
+    public void record(String key, String path) {
+        record(key, path, null);
+    }
+
+    /**
+     * Remembers a completed write, ending its reservation.
+     *
+     * @param path        path of the written file on the target file system
+     * @param spooledFile file waiting in the spool directory to be moved to the path, or null
+     */
+    public void record(String key, String path, File spooledFile) {
+        CachedWrite entry = new CachedWrite(path, spooledFile != null ? spooledFile.getPath() : null);
+        synchronized (this) {
+            inProgress.remove(key);
+            entries.put(key, entry);
+            if (!journalEnabled) {
+                return;
+            }
+            TabSeparatedRecords.appendEscaped(pendingRecords, key);
+            pendingRecords.append(TabSeparatedRecords.SEPARATOR);
+            appendWrite(pendingRecords, entry);
+        }
+        flushJournal(false);
+    }
+
+    /**
+     * Closes the journal and unregisters the MBean.
+     */
+    public void close() {
+        flushJournal(false);
+        synchronized (journalLock) {
+            synchronized (this) {
+                journalEnabled = false;
+            }
+            closeJournal();
+        }
+        try {
+            MBeanRegistrar.getInstance().unRegisterMBean(MBEAN_CATEGORY, DirectoryCircuitBreaker.mbeanId(mbeanId));
+        } catch (RuntimeException e) {
+            log.warn("Unable to unregister idempotency cache MBean " + mbeanId, e);
+        }
+    }
+
+    /**
+     * A spooled write exists as long as either its spool file or, once the spool file has
+     * been moved, the final file does.
+     */
+    private boolean exists(CachedWrite entry) {
+        return entry.spooledPath != null && new File(entry.spooledPath).exists() || Files.exists(fileSystem.getPath(entry.path));
+    }
+
+    private void countLookup(boolean hit) {
+        if (hit) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+    }
+
+    private void restore() throws IOException {
+        final File file = settings.getFile();
+        if (!file.isFile()) {
+            return;
+        }
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            TabSeparatedRecords.read(reader, new TabSeparatedRecords.Handler() {
+                @Override
+                public void handle(List<String> fields) {
+                    if (fields.size() == 2 || fields.size() == 3) {
+                        entries.put(fields.get(0), new CachedWrite(fields.get(1), fields.size() == 3 ? fields.get(2) : null));
+                        journalRecords++;
+                    } else {
+                        log.warn("Skipping malformed record in idempotency journal " + file);
+                    }
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        log.info("Restored " + entries.size() + " completed writes from idempotency journal " + file);
+    }
+
+    /**
+     * Writes the pending records of all writers with a single flush, or rewrites the journal
+     * with the current entries when it has grown too large.
+     */
+    private void flushJournal(boolean compact) {
+        synchronized (journalLock) {
+            String batch;
+            String current = null;
+            synchronized (this) {
+                if (!journalEnabled) {
+                    return;
+                }
+                batch = pendingRecords.toString();
+                pendingRecords.setLength(0);
+                if (batch.length() == 0 && !compact) {
+                    return;
+                }
+                journalRecords += countRecords(batch);
+                if (compact || journalRecords >= 2 * settings.getMaxEntries()) {
+                    current = snapshot();
+                }
+            }
+            try {
+                if (current != null) {
+                    compactJournal(current);
+                } else {
+                    if (journal == null) {
+                        // lost when a compaction failed
+                        openJournal(true);
+                    }
+                    journal.write(batch);
+                    journal.flush();
+                }
+            } catch (IOException e) {
+                log.warn("Unable to write idempotency journal " + settings.getFile() + ", duplicates are recognized only until restart", e);
+            }
+        }
+    }
+
+    private static int countRecords(String batch) {
+        int records = 0;
+        for (int i = 0; i < batch.length(); i++) {
+            if (batch.charAt(i) == TabSeparatedRecords.TERMINATOR) {
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private String snapshot() {
+        StringBuilder records = new StringBuilder();
+        journalRecords = 0;
+        for (Map.Entry<String, CachedWrite> entry : entries.entrySet()) {
+            TabSeparatedRecords.appendEscaped(records, entry.getKey());
+            records.append(TabSeparatedRecords.SEPARATOR);
+            appendWrite(records, entry.getValue());
+            journalRecords++;
+        }
+        return records.toString();
+    }
+
+    private static void appendWrite(StringBuilder record, CachedWrite entry) {
+        TabSeparatedRecords.appendEscaped(record, entry.path);
+        if (entry.spooledPath != null) {
+            record.append(TabSeparatedRecords.SEPARATOR);
+            TabSeparatedRecords.appendEscaped(record, entry.spooledPath);
+        }
+        record.append(TabSeparatedRecords.TERMINATOR);
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        File file = settings.getFile();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        journal = new OutputStreamWriter(new FileOutputStream(file, append), ENCODING);
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Unable to close idempotency journal " + settings.getFile(), e);
+            }
+            journal = null;
+        }
+    }
+
+    private void compactJournal(String records) throws IOException {
+        File file = settings.getFile();
+        File compacted = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(compacted), ENCODING);
+        try {
+            out.write(records);
+        } finally {
+            out.close();
+        }
+        closeJournal();
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            compacted.delete();
+            openJournal(true);
+            throw new IOException("Unable to replace idempotency journal " + file + " with " + compacted);
+        }
+        openJournal(true);
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return settings.getMaxEntries();
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized int getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0 : (int) (hitCount * 100 / lookups);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            pendingRecords.setLength(0);
+        }
+        flushJournal(true);
+    }
+
+    /**
+     * A completed write, or with a null path the reservation of a write in progress.
+     */
+    private static final class CachedWrite {
+        private final String path;
+        private final String spooledPath;
+
+        private CachedWrite(String path, String spooledPath) {
+            this.path = path;
+            this.spooledPath = spooledPath;
+        }
+    }
+
+    /**
+     * Thrown when a message with the same idempotency key is still being written.
+     */
+    public static final class InProgressException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public InProgressException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Idempotency configuration.
+     */
+    public static final class Settings {
+        public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+        private final SynapseXPath keyExpression;
+        private final int maxEntries;
+        private final File file;
+
+        /**
+         * @param keyExpression expression giving the idempotency key, or null to use the message ID
+         * @param file          journal file, or null to keep the cache in memory only
+         */
+        public Settings(SynapseXPath keyExpression, int maxEntries, File file) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("maxEntries must be positive");
+            }
+            this.keyExpression = keyExpression;
+            this.maxEntries = maxEntries;
+            this.file = file;
+        }
+
+        public SynapseXPath getKeyExpression() {
+            return keyExpression;
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * JMX view of an {@link IdempotencyCache}.
+ */
+public interface IdempotencyCacheMBean {
+
+    int getSize();
+
+    int getMaxEntries();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * @return share of lookups answered from the cache in percent
+     */
+    int getHitRate();
+
+    /**
+     * Forgets all completed writes, e.g. after target files have been removed by hand.
+     */
+    void clear();
+}
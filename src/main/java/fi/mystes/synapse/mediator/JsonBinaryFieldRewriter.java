@@ -0,0 +1,403 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Copies a JSON document while handing the content of one string value, selected with
+ * a {@link JsonPath}, to a {@link FieldHandler} as a stream and replacing it with the
+ * handler's result.
+ * <p/>
+ * The document is copied character by character as it is read, so everything except the
+ * selected value keeps its original formatting, and the value itself is never held in
+ * memory. Only the first value matching the path is handled.
+ */
+public final class JsonBinaryFieldRewriter {
+
+    private static final int MAX_DEPTH = 512;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final Writer out;
+    private final List<Object> path;
+    private final FieldHandler handler;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean handled;
+
+    /**
+     * Receives the selected value.
+     */
+    public interface FieldHandler {
+        /**
+         * @param value unescaped characters of the string value
+         * @return replacement string value, or null to keep the original value, in which case
+         * nothing may have been read from <code>value</code>
+         */
+        String handle(Reader value) throws IOException;
+    }
+
+    private JsonBinaryFieldRewriter(Reader in, Writer out, JsonPath path, FieldHandler handler) {
+        this.in = in;
+        this.out = out;
+        this.path = path.getSegments();
+        this.handler = handler;
+    }
+
+    /**
+     * @param in reader of the document, buffered internally
+     * @return true if a string value matching the path was found and handled
+     * @throws IOException on read or write failure, or if the document is not valid JSON
+     */
+    public static boolean rewrite(Reader in, Writer out, JsonPath path, FieldHandler handler) throws IOException {
+        JsonBinaryFieldRewriter rewriter = new JsonBinaryFieldRewriter(in, out, path, handler);
+        rewriter.copyValue(0, true);
+        rewriter.copyWhitespace();
+        if (rewriter.peek() >= 0) {
+            throw new IOException("Unexpected content after JSON document");
+        }
+        out.flush();
+        return rewriter.handled;
+    }
+
+    private void copyValue(int depth, boolean onPath) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("JSON document nested deeper than " + MAX_DEPTH);
+        }
+        copyWhitespace();
+        int c = peek();
+        if (c == '{') {
+            copyObject(depth, onPath);
+        } else if (c == '[') {
+            copyArray(depth, onPath);
+        } else if (c == '"') {
+            if (onPath && depth == path.size() && !handled) {
+                handleString();
+            } else {
+                copyString(null);
+            }
+        } else if (c < 0) {
+            throw new IOException("Unexpected end of JSON document");
+        } else {
+            copyLiteral();
+        }
+    }
+
+    private void copyObject(int depth, boolean onPath) throws IOException {
+        copy();
+        copyWhitespace();
+        if (peek() == '}') {
+            copy();
+            return;
+        }
+        while (true) {
+            copyWhitespace();
+            if (peek() != '"') {
+                throw new IOException("Expected member name in JSON document");
+            }
+            StringBuilder name = new StringBuilder();
+            copyString(name);
+            copyWhitespace();
+            expect(':');
+            boolean childOnPath = onPath && depth < path.size() && name.toString().equals(path.get(depth));
+            copyValue(depth + 1, childOnPath);
+            copyWhitespace();
+            if (expectEither(',', '}') == '}') {
+                return;
+            }
+        }
+    }
+
+    private void copyArray(int depth, boolean onPath) throws IOException {
+        copy();
+        copyWhitespace();
+        if (peek() == ']') {
+            copy();
+            return;
+        }
+        for (int index = 0; ; index++) {
+            boolean childOnPath = onPath && depth < path.size() && Integer.valueOf(index).equals(path.get(depth));
+            copyValue(depth + 1, childOnPath);
+            copyWhitespace();
+            if (expectEither(',', ']') == ']') {
+                return;
+            }
+        }
+    }
+
+    private void handleString() throws IOException {
+        read();
+        StringValueReader value = new StringValueReader();
+        String replacement = handler.handle(value);
+        handled = true;
+        out.write('"');
+        if (replacement == null) {
+            if (value.consumed) {
+                throw new IOException("Selected JSON value was partially read but not replaced");
+            }
+            copyStringContent(null);
+            return;
+        }
+        value.skipRemaining();
+        writeEscaped(replacement);
+        out.write('"');
+    }
+
+    /**
+     * Copies a string including quotes, collecting its unescaped content to <code>content</code> if given.
+     */
+    private void copyString(StringBuilder content) throws IOException {
+        copy();
+        copyStringContent(content);
+    }
+
+    private void copyStringContent(StringBuilder content) throws IOException {
+        while (true) {
+            int run = plainRunLength(Integer.MAX_VALUE);
+            if (run > 0) {
+                out.write(buffer, position, run);
+                if (content != null) {
+                    content.append(buffer, position, run);
+                }
+                position += run;
+                continue;
+            }
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unterminated string in JSON document");
+            }
+            out.write(c);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                int escaped = read();
+                if (escaped < 0) {
+                    throw new IOException("Unterminated string in JSON document");
+                }
+                out.write(escaped);
+                if (content != null) {
+                    if (escaped == 'u') {
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            int h = read();
+                            if (h < 0) {
+                                throw new IOException("Unterminated string in JSON document");
+                            }
+                            out.write(h);
+                            hex[i] = (char) h;
+                        }
+                        content.append(parseHex(hex));
+                    } else {
+                        content.append(unescape(escaped));
+                    }
+                }
+            } else if (content != null) {
+                content.append((char) c);
+            }
+        }
+    }
+
+    private void copyLiteral() throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+            copy();
+        }
+    }
+
+    private void copyWhitespace() throws IOException {
+        while (isWhitespace(peek())) {
+            copy();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw new IOException("Expected '" + expected + "' in JSON document");
+        }
+        copy();
+    }
+
+    private int expectEither(char first, char second) throws IOException {
+        int c = peek();
+        if (c != first && c != second) {
+            throw new IOException("Expected '" + first + "' or '" + second + "' in JSON document");
+        }
+        copy();
+        return c;
+    }
+
+    private void writeEscaped(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static char unescape(int escaped) throws IOException {
+        switch (escaped) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) escaped;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                throw new IOException("Invalid escape \\" + (char) escaped + " in JSON document");
+        }
+    }
+
+    private static char parseHex(char[] hex) throws IOException {
+        try {
+            return (char) Integer.parseInt(new String(hex), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid unicode escape in JSON document");
+        }
+    }
+
+    /**
+     * @return number of buffered characters from the current position, at most <code>max</code>,
+     * before the next quote or backslash
+     */
+    private int plainRunLength(int max) {
+        int end = position + Math.min(max, limit - position);
+        int i = position;
+        while (i < end && buffer[i] != '"' && buffer[i] != '\\') {
+            i++;
+        }
+        return i - position;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit) {
+            int read;
+            do {
+                read = in.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            if (read < 0) {
+                return -1;
+            }
+            position = 0;
+            limit = read;
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c >= 0) {
+            position++;
+        }
+        return c;
+    }
+
+    private void copy() throws IOException {
+        out.write(read());
+    }
+
+    /**
+     * Unescaped content of the selected string, ending at its closing quote.
+     */
+    private final class StringValueReader extends Reader {
+        private boolean consumed;
+        private boolean ended;
+
+        @Override
+        public int read(char[] target, int offset, int length) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            int count = 0;
+            while (count < length) {
+                int run = plainRunLength(length - count);
+                if (run > 0) {
+                    System.arraycopy(buffer, position, target, offset + count, run);
+                    position += run;
+                    count += run;
+                    consumed = true;
+                    continue;
+                }
+                int c = JsonBinaryFieldRewriter.this.read();
+                if (c < 0) {
+                    throw new IOException("Unterminated string in JSON document");
+                }
+                consumed = true;
+                if (c == '"') {
+                    ended = true;
+                    break;
+                }
+                if (c == '\\') {
+                    int escaped = JsonBinaryFieldRewriter.this.read();
+                    if (escaped == 'u') {
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            int h = JsonBinaryFieldRewriter.this.read();
+                            if (h < 0) {
+                                throw new IOException("Unterminated string in JSON document");
+                            }
+                            hex[i] = (char) h;
+                        }
+                        target[offset + count++] = parseHex(hex);
+                    } else if (escaped < 0) {
+                        throw new IOException("Unterminated string in JSON document");
+                    } else {
+                        target[offset + count++] = unescape(escaped);
+                    }
+                } else {
+                    target[offset + count++] = (char) c;
+                }
+            }
+            return count == 0 && ended ? -1 : count;
+        }
+
+        private void skipRemaining() throws IOException {
+            char[] discarded = new char[1024];
+            while (read(discarded, 0, discarded.length) >= 0) {
+                // discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // the document continues after the value
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Simple JSON path selecting a single value, e.g. <code>$.document.content</code>,
+ * <code>$.attachments[0].data</code> or <code>$['file-content']</code>.
+ * <p/>
+ * Only member names and array indexes are supported, no wildcards or filters, so that
+ * the selected value can be found while the payload is streamed.
+ */
+public final class JsonPath {
+
+    private final String expression;
+    private final List<Object> segments;
+
+    private JsonPath(String expression, List<Object> segments) {
+        this.expression = expression;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is not a supported path
+     */
+    public static JsonPath compile(String expression) {
+        String path = expression.trim();
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException("JSON path must start with $: " + expression);
+        }
+        List<Object> segments = new ArrayList<Object>();
+        int position = 1;
+        while (position < path.length()) {
+            char c = path.charAt(position);
+            if (c == '.') {
+                int end = position + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == position + 1) {
+                    throw new IllegalArgumentException("Empty member name in JSON path " + expression);
+                }
+                segments.add(path.substring(position + 1, end));
+                position = end;
+            } else if (c == '[') {
+                int end = path.indexOf(']', position);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ in JSON path " + expression);
+                }
+                segments.add(parseBracket(path.substring(position + 1, end).trim(), expression));
+                position = end + 1;
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + c + "' in JSON path " + expression);
+            }
+        }
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException("JSON path must select a member: " + expression);
+        }
+        return new JsonPath(expression, segments);
+    }
+
+    private static Object parseBracket(String content, String expression) {
+        if (content.length() >= 2 && (content.charAt(0) == '\'' || content.charAt(0) == '"')
+                && content.charAt(content.length() - 1) == content.charAt(0)) {
+            return content.substring(1, content.length() - 1);
+        }
+        try {
+            int index = Integer.parseInt(content);
+            if (index < 0) {
+                throw new IllegalArgumentException("Negative array index in JSON path " + expression);
+            }
+            return index;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid [" + content + "] in JSON path " + expression, e);
+        }
+    }
+
+    /**
+     * @return member names as strings and array indexes as integers, from the root down
+     */
+    public List<Object> getSegments() {
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
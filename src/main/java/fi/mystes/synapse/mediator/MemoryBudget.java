@@ -0,0 +1,254 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the decoded binary content held in memory by all mediators of the JVM.
+ * <p/>
+ * A write reserves the decoded size of its content, estimated from the length of the
+ * base64 text before decoding, and releases it when the write is complete. Content
+ * larger than the whole budget reserves the whole budget, so that it is written alone
+ * instead of never. Writes waiting for budget are served in arrival order, so a large
+ * write is not starved by a stream of small ones.
+ * <p/>
+ * The budget defaults to a quarter of the maximum heap and can be set in bytes with
+ * system property {@value #MAX_BYTES_PROPERTY}. It is registered as an MBean in
+ * category {@value #MBEAN_CATEGORY}.
+ */
+public final class MemoryBudget implements MemoryBudgetMBean {
+
+    public static final String MAX_BYTES_PROPERTY = "fi.mystes.synapse.mediator.memoryBudget";
+    public static final String MBEAN_CATEGORY = "WriteBinaryFileMemoryBudget";
+
+    private static final Log log = LogFactory.getLog(MemoryBudget.class);
+
+    private static MemoryBudget instance;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition budgetReleased = lock.newCondition();
+    // threads waiting for budget in arrival order, guarded by lock
+    private final Deque<Thread> waiters = new ArrayDeque<Thread>();
+
+    private volatile long maxBytes;
+    private long usedBytes;
+    private long peakUsedBytes;
+    private long rejectedCount;
+
+    MemoryBudget(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Returns the budget shared by all mediators, creating it on first use.
+     */
+    public static synchronized MemoryBudget getInstance() {
+        if (instance == null) {
+            instance = new MemoryBudget(Long.getLong(MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory() / 4));
+            try {
+                MBeanRegistrar.getInstance().registerMBean(instance, MBEAN_CATEGORY, "payloads");
+            } catch (RuntimeException e) {
+                log.warn("Unable to register memory budget MBean", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Reserves budget for content of given size, waiting for other writes to release
+     * budget if needed.
+     *
+     * @param bytes   estimated size of the decoded content
+     * @param timeout milliseconds to wait for budget, 0 to fail immediately if not available
+     * @return the reservation to release when the content is no longer held
+     * @throws ExhaustedException if the budget did not become available in time
+     */
+    public Reservation acquire(long bytes, long timeout) throws InterruptedException, ExhaustedException {
+        long amount = Math.min(Math.max(bytes, 0), maxBytes);
+        Thread current = Thread.currentThread();
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && usedBytes + amount <= maxBytes) {
+                return reserve(amount);
+            }
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            waiters.addLast(current);
+            try {
+                while (waiters.peekFirst() != current || usedBytes + amount > maxBytes) {
+                    if (remaining <= 0) {
+                        rejectedCount++;
+                        throw new ExhaustedException("No memory budget for " + bytes + " bytes within " + timeout
+                                + " ms, " + usedBytes + " of " + maxBytes + " bytes in use");
+                    }
+                    remaining = budgetReleased.awaitNanos(remaining);
+                    // the budget may have been lowered below the amount meanwhile
+                    amount = Math.min(amount, maxBytes);
+                }
+                return reserve(amount);
+            } finally {
+                waiters.remove(current);
+                // the next waiter may fit now
+                budgetReleased.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Reservation reserve(long amount) {
+        usedBytes += amount;
+        peakUsedBytes = Math.max(peakUsedBytes, usedBytes);
+        return new Reservation(amount);
+    }
+
+    private void release(long amount) {
+        lock.lock();
+        try {
+            usedBytes -= amount;
+            budgetReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        lock.lock();
+        try {
+            this.maxBytes = maxBytes;
+            budgetReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getPeakUsedBytes() {
+        lock.lock();
+        try {
+            return peakUsedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWaiterCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Budget held by a single write.
+     */
+    public final class Reservation {
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the budget; further calls have no effect.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                MemoryBudget.this.release(bytes);
+            }
+        }
+    }
+
+    /**
+     * Memory budget configuration of a mediator; the budget itself is shared by all mediators.
+     */
+    public static final class Settings {
+        private final long timeout;
+
+        /**
+         * @param timeout milliseconds to wait for budget, 0 to fail immediately if not available
+         */
+        public Settings(long timeout) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout must not be negative");
+            }
+            this.timeout = timeout;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+    }
+
+    /**
+     * Thrown when no budget became available in time.
+     */
+    public static final class ExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ExhaustedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * JMX view of the {@link MemoryBudget}.
+ */
+public interface MemoryBudgetMBean {
+
+    long getMaxBytes();
+
+    /**
+     * Changes the budget; writes already holding budget are not affected.
+     */
+    void setMaxBytes(long maxBytes);
+
+    long getUsedBytes();
+
+    long getPeakUsedBytes();
+
+    /**
+     * @return number of writes waiting for budget
+     */
+    int getWaiterCount();
+
+    /**
+     * @return number of writes refused as no budget became available in time
+     */
+    long getRejectedCount();
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * Where the path of the written file is put in the payload in place of the binary content.
+ */
+public enum OutputMode {
+    /**
+     * Replace the content of the binary element with the path (default).
+     */
+    REPLACE,
+    /**
+     * Remove the binary element from the payload.
+     */
+    REMOVE,
+    /**
+     * Empty the binary element and set the path to its attribute.
+     */
+    ATTRIBUTE,
+    /**
+     * Empty the binary element and set the path to a message context property.
+     */
+    PROPERTY;
+
+    public static OutputMode fromString(String value) {
+        if (value == null) {
+            return REPLACE;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * @return true if the mode needs the name of an attribute or property
+     */
+    public boolean isNamed() {
+        return this == ATTRIBUTE || this == PROPERTY;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMText;
+
+/**
+ * Estimates the decoded size of binary content without decoding it.
+ */
+public final class PayloadSizeEstimator {
+
+    public static final long UNKNOWN_SIZE = -1L;
+
+    private PayloadSizeEstimator() {
+        // suppress default constructor as class contains static utility methods only
+    }
+
+    /**
+     * @return decoded size estimated from the base64 length, or {@link #UNKNOWN_SIZE}
+     * for optimized (MTOM/SwA) content whose size is not known before reading it
+     */
+    public static long estimateDecodedSize(OMText text) {
+        if (text.isOptimized()) {
+            return UNKNOWN_SIZE;
+        }
+        String base64 = text.getText();
+        return base64 == null ? 0 : estimateDecodedSize(base64);
+    }
+
+    /**
+     * @return decoded size of given base64 content; line breaks inflate the estimate slightly
+     */
+    public static long estimateDecodedSize(CharSequence base64) {
+        int length = base64.length();
+        int padding = 0;
+        for (int i = length - 1; i >= 0 && padding < 2; i--) {
+            char c = base64.charAt(i);
+            if (c == '=') {
+                padding++;
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+        }
+        return (long) length / 4 * 3 - padding;
+    }
+}
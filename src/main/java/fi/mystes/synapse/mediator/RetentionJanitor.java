@@ -0,0 +1,406 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes written files once they are older than the retention period, without ever
+ * listing directories.
+ * <p/>
+ * Every written file is recorded in a bucket covering <code>bucket</code> milliseconds of
+ * completion times. Once a whole bucket has expired, its files are deleted by a minimum
+ * priority background thread shared by all janitors, at most <code>deletesPerSecond</code>
+ * files a second so that the storage is never saturated. A file modified after it was
+ * recorded, e.g. overwritten or appended to, is left for its newer record.
+ * <p/>
+ * Files may be on any NIO file system. Records are kept in memory and lost on restart,
+ * unless they are restored from a manifest with {@link #restore(Path, List)}. A manifest
+ * may be shared by several mediators, so only records of files within given directories
+ * are restored. At most {@value #MAX_RESTORED_RECORDS} restored records are kept in memory
+ * at a time; the next ones are read from the manifest when those have been deleted.
+ */
+public final class RetentionJanitor {
+
+    /**
+     * Modification times later than the record by more than this belong to a newer write;
+     * covers coarse timestamps of e.g. FAT and some network file systems.
+     */
+    static final long MODIFICATION_TOLERANCE = 2000L;
+    static final int MAX_RESTORED_RECORDS = 100000;
+
+    private static final Log log = LogFactory.getLog(RetentionJanitor.class);
+
+    private static ScheduledExecutorService cleaner;
+
+    private final Settings settings;
+    private final int maxRestoredRecords;
+    // bucket start time -> files completed within the bucket, guarded by this
+    private final TreeMap<Long, ArrayDeque<Record>> buckets = new TreeMap<Long, ArrayDeque<Record>>();
+    private long pendingCount;
+    private long deletedCount;
+    private ScheduledFuture<?> scheduledCleanup;
+
+    // manifest still being restored, null when all of its records have been read; guarded by this
+    private Path restoreManifest;
+    private List<Path> restoreDirectories;
+    // records after this time were written after the restore started and are recorded anyway
+    private long restoreBefore;
+    // time of the last restored record and number of restored records with that time
+    private long restoredUntil = Long.MIN_VALUE;
+    private int restoredAtUntil;
+    private long restoredPending;
+
+    public RetentionJanitor(Settings settings) {
+        this(settings, MAX_RESTORED_RECORDS);
+    }
+
+    RetentionJanitor(Settings settings, int maxRestoredRecords) {
+        this.settings = settings;
+        this.maxRestoredRecords = maxRestoredRecords;
+    }
+
+    private static synchronized ScheduledExecutorService cleaner() {
+        if (cleaner == null) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WriteBinaryFileRetentionJanitor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return cleaner;
+    }
+
+    /**
+     * Starts deleting expired files in the background.
+     */
+    public synchronized void start() {
+        if (scheduledCleanup == null) {
+            scheduledCleanup = cleaner().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deleteExpired(System.currentTimeMillis());
+                    } catch (RuntimeException e) {
+                        log.warn("Error while deleting expired files", e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduledCleanup != null) {
+            scheduledCleanup.cancel(false);
+            scheduledCleanup = null;
+        }
+    }
+
+    /**
+     * Records a file of the default file system completely written at given time.
+     */
+    public void record(String path, long time) {
+        record(Paths.get(path), time);
+    }
+
+    /**
+     * Records a file completely written at given time.
+     */
+    public synchronized void record(Path path, long time) {
+        add(new Record(path, time, false));
+    }
+
+    private void add(Record record) {
+        Long bucketStart = record.time - record.time % settings.getBucket();
+        ArrayDeque<Record> bucket = buckets.get(bucketStart);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Record>();
+            buckets.put(bucketStart, bucket);
+        }
+        bucket.add(record);
+        pendingCount++;
+        if (record.restored) {
+            restoredPending++;
+        }
+    }
+
+    /**
+     * Records the files within given directories listed in given manifest and its rotated
+     * files, e.g. after a restart.
+     *
+     * @param directories directories of the files to restore, null for all files of the manifest
+     */
+    public void restore(File manifestFile, List<Path> directories) throws IOException {
+        restore(manifestFile.toPath(), directories);
+    }
+
+    /**
+     * Records the files within given directories listed in given manifest of any file system,
+     * which are on the same file system. The first {@value #MAX_RESTORED_RECORDS} records are
+     * read right away, the rest once those have been deleted.
+     *
+     * @param directories directories of the files to restore, null for all files of the manifest
+     */
+    public void restore(Path manifestFile, List<Path> directories) throws IOException {
+        List<Path> normalized = null;
+        if (directories != null) {
+            normalized = new ArrayList<Path>();
+            for (Path directory : directories) {
+                normalized.add(directory.toAbsolutePath().normalize());
+            }
+        }
+        synchronized (this) {
+            restoreManifest = manifestFile;
+            restoreDirectories = normalized;
+            restoreBefore = System.currentTimeMillis();
+            restoredUntil = Long.MIN_VALUE;
+            restoredAtUntil = 0;
+        }
+        restoreNextBatch();
+    }
+
+    /**
+     * Reads the next batch of records of the manifest being restored.
+     *
+     * @return number of records restored
+     */
+    int restoreNextBatch() throws IOException {
+        final Path manifestFile;
+        final List<Path> directories;
+        final long before;
+        final long after;
+        final int skip;
+        synchronized (this) {
+            if (restoreManifest == null) {
+                return 0;
+            }
+            manifestFile = restoreManifest;
+            directories = restoreDirectories;
+            before = restoreBefore;
+            after = restoredUntil;
+            skip = restoredAtUntil;
+        }
+        final List<Record> batch = new ArrayList<Record>();
+        final int[] skipped = new int[1];
+        // manifests are appended in completion time order, so the batch continues where the previous one ended
+        FileManifest.read(manifestFile, new FileManifest.RecordHandler() {
+            @Override
+            public void handle(long time, String path, long size, String checksum, String messageId) {
+                if (batch.size() >= maxRestoredRecords || time < after || time > before) {
+                    return;
+                }
+                Path file = manifestFile.getFileSystem().getPath(path);
+                if (!isWithin(file, directories) || (time == after && skipped[0]++ < skip)) {
+                    return;
+                }
+                batch.add(new Record(file, time, true));
+            }
+        });
+        synchronized (this) {
+            if (restoreManifest != manifestFile) {
+                return 0;
+            }
+            for (Record record : batch) {
+                add(record);
+            }
+            if (batch.size() < maxRestoredRecords) {
+                restoreManifest = null;
+                restoreDirectories = null;
+            } else {
+                long last = batch.get(batch.size() - 1).time;
+                int atLast = last == after ? skip : 0;
+                for (Record record : batch) {
+                    if (record.time == last) {
+                        atLast++;
+                    }
+                }
+                restoredUntil = last;
+                restoredAtUntil = atLast;
+            }
+        }
+        log.info("Restored " + batch.size() + " retention records from manifest " + manifestFile);
+        return batch.size();
+    }
+
+    private static boolean isWithin(Path file, List<Path> directories) {
+        if (directories == null) {
+            return true;
+        }
+        Path normalized = file.toAbsolutePath().normalize();
+        for (Path directory : directories) {
+            if (normalized.startsWith(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes at most <code>deletesPerSecond</code> files of buckets expired at given time.
+     *
+     * @return number of files deleted
+     */
+    int deleteExpired(long now) {
+        Path restoring;
+        synchronized (this) {
+            restoring = restoredPending == 0 ? restoreManifest : null;
+        }
+        if (restoring != null) {
+            try {
+                restoreNextBatch();
+            } catch (IOException e) {
+                log.warn("Unable to restore retention records from manifest " + restoring + ", retrying", e);
+            }
+        }
+        List<Record> expired = takeExpired(now, settings.getDeletesPerSecond());
+        int deleted = 0;
+        for (Record record : expired) {
+            try {
+                long modified = Files.getLastModifiedTime(record.path).toMillis();
+                if (modified > record.time + MODIFICATION_TOLERANCE) {
+                    // rewritten later and recorded again
+                    continue;
+                }
+                if (Files.deleteIfExists(record.path)) {
+                    deleted++;
+                }
+            } catch (NoSuchFileException e) {
+                // already gone
+            } catch (IOException e) {
+                log.warn("Unable to delete expired file " + record.path, e);
+            }
+        }
+        synchronized (this) {
+            deletedCount += deleted;
+        }
+        return deleted;
+    }
+
+    private synchronized List<Record> takeExpired(long now, int limit) {
+        List<Record> expired = new ArrayList<Record>();
+        Iterator<Map.Entry<Long, ArrayDeque<Record>>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext() && expired.size() < limit) {
+            Map.Entry<Long, ArrayDeque<Record>> bucket = iterator.next();
+            if (bucket.getKey() + settings.getBucket() + settings.getMaxAge() > now) {
+                // buckets are ordered, later ones have not expired either
+                break;
+            }
+            ArrayDeque<Record> records = bucket.getValue();
+            while (!records.isEmpty() && expired.size() < limit) {
+                Record record = records.poll();
+                if (record.restored) {
+                    restoredPending--;
+                }
+                expired.add(record);
+            }
+            if (records.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        pendingCount -= expired.size();
+        return expired;
+    }
+
+    /**
+     * @return number of recorded files not deleted yet
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return number of files deleted since startup
+     */
+    public synchronized long getDeletedCount() {
+        return deletedCount;
+    }
+
+    private static final class Record {
+        private final Path path;
+        private final long time;
+        private final boolean restored;
+
+        private Record(Path path, long time, boolean restored) {
+            this.path = path;
+            this.time = time;
+            this.restored = restored;
+        }
+    }
+
+    /**
+     * Retention configuration.
+     */
+    public static final class Settings {
+        public static final long DEFAULT_BUCKET = 60000L;
+        public static final int DEFAULT_DELETES_PER_SECOND = 100;
+
+        private final long maxAge;
+        private final long bucket;
+        private final int deletesPerSecond;
+
+        public Settings(long maxAge, long bucket, int deletesPerSecond) {
+            if (maxAge < 1) {
+                throw new IllegalArgumentException("maxAge must be positive");
+            }
+            if (bucket < 1) {
+                throw new IllegalArgumentException("bucket must be positive");
+            }
+            if (deletesPerSecond < 1) {
+                throw new IllegalArgumentException("deletesPerSecond must be positive");
+            }
+            this.maxAge = maxAge;
+            this.bucket = bucket;
+            this.deletesPerSecond = deletesPerSecond;
+        }
+
+        public long getMaxAge() {
+            return maxAge;
+        }
+
+        public long getBucket() {
+            return bucket;
+        }
+
+        public int getDeletesPerSecond() {
+            return deletesPerSecond;
+        }
+    }
+}
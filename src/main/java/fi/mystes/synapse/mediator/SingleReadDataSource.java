@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Data source over content that is streamed from the payload and can be read only once.
+ */
+final class SingleReadDataSource implements DataSource {
+
+    private InputStream content;
+
+    SingleReadDataSource(InputStream content) {
+        this.content = content;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (content == null) {
+            throw new IOException("Streamed content has already been read");
+        }
+        InputStream in = content;
+        content = null;
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Streamed content is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public String getName() {
+        return "stream";
+    }
+}
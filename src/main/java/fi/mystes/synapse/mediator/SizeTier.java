@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of writes by content size. Each tier may have its own target directory
+ * and write strategy, and limits how many of its writes run concurrently, so that
+ * large transfers cannot occupy all worker threads while small files wait. A write
+ * finding no free lane waits at most the queue timeout of the tier, so that threads
+ * queued behind large transfers are returned to the pool instead of waiting without end.
+ * The queue timeout defaults to {@value #DEFAULT_QUEUE_TIMEOUT} milliseconds, so that a
+ * tier whose lanes are all briefly taken still accepts writes.
+ */
+public final class SizeTier implements Comparable<SizeTier> {
+
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 30000L;
+
+    private final long maxSize;
+    private final String targetDirectory;
+    private final WriteStrategy strategy;
+    private final int concurrency;
+    private final long queueTimeout;
+    private final Semaphore lane;
+
+    /**
+     * @param maxSize         largest decoded size in bytes handled by this tier, {@link #UNBOUNDED} for no limit
+     * @param targetDirectory directory overriding the mediator target directory, or null
+     * @param strategy        write strategy, or null for {@link WriteStrategy#STREAM}
+     * @param concurrency     maximum number of concurrent writes in this tier, waiting up to
+     *                        {@link #DEFAULT_QUEUE_TIMEOUT} for a free lane
+     */
+    public SizeTier(long maxSize, String targetDirectory, WriteStrategy strategy, int concurrency) {
+        this(maxSize, targetDirectory, strategy, concurrency, DEFAULT_QUEUE_TIMEOUT);
+    }
+
+    /**
+     * @param maxSize         largest decoded size in bytes handled by this tier, {@link #UNBOUNDED} for no limit
+     * @param targetDirectory directory overriding the mediator target directory, or null
+     * @param strategy        write strategy, or null for {@link WriteStrategy#STREAM}
+     * @param concurrency     maximum number of concurrent writes in this tier
+     * @param queueTimeout    milliseconds to wait for a free lane, 0 to fail immediately if all are taken
+     */
+    public SizeTier(long maxSize, String targetDirectory, WriteStrategy strategy, int concurrency, long queueTimeout) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        if (queueTimeout < 0) {
+            throw new IllegalArgumentException("queueTimeout must not be negative");
+        }
+        this.maxSize = maxSize;
+        this.targetDirectory = targetDirectory;
+        this.strategy = strategy == null ? WriteStrategy.STREAM : strategy;
+        this.concurrency = concurrency;
+        this.queueTimeout = queueTimeout;
+        this.lane = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Selects the first tier accepting given size from tiers sorted by size. Content of unknown
+     * size goes to the last tier.
+     *
+     * @return selected tier, or null if there are no tiers or none accepts the size
+     */
+    public static SizeTier select(List<SizeTier> tiers, long estimatedSize) {
+        if (tiers == null || tiers.isEmpty()) {
+            return null;
+        }
+        if (estimatedSize < 0) {
+            return tiers.get(tiers.size() - 1);
+        }
+        for (SizeTier tier : tiers) {
+            if (estimatedSize <= tier.maxSize) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a lane of this tier, waiting at most the queue timeout. Waiting writes are
+     * served in arrival order.
+     *
+     * @throws BusyException if no lane became free in time
+     */
+    public void acquire() throws BusyException, InterruptedException {
+        if (!lane.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+            throw new BusyException("No free lane in size tier of " + (maxSize == UNBOUNDED ? "unbounded size" : "up to " + maxSize + " bytes")
+                    + " within " + queueTimeout + " ms, all " + concurrency + " are writing");
+        }
+    }
+
+    public void release() {
+        lane.release();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public String getTargetDirectory() {
+        return targetDirectory;
+    }
+
+    public WriteStrategy getStrategy() {
+        return strategy;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * @return number of writes currently running in this tier
+     */
+    public int getActiveWrites() {
+        return concurrency - lane.availablePermits();
+    }
+
+    @Override
+    public int compareTo(SizeTier other) {
+        return maxSize < other.maxSize ? -1 : (maxSize == other.maxSize ? 0 : 1);
+    }
+
+    /**
+     * Thrown when all lanes of a tier stayed taken for the queue timeout.
+     */
+    public static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fast local directory where files are written first and moved to their slow
+ * final location in the background.
+ * <p/>
+ * Each spooled file consists of the data file <code>&lt;id&gt;.data</code> and a
+ * marker <code>&lt;id&gt;.target</code> containing the absolute final path. Data is
+ * written to <code>&lt;id&gt;.part</code> and renamed only after the marker exists,
+ * so a restart never moves incomplete data. Pending files are resumed when the
+ * spool directory is acquired again.
+ * <p/>
+ * Files are moved by a fixed number of single-threaded lanes. Files with the same
+ * final path always use the same lane, so they are moved in the order they were
+ * written. A failed move is retried with growing delays without holding up the
+ * lane, only later files of the same final path wait for it. After
+ * <code>maxAttempts</code> failed attempts the data file and marker are moved to
+ * subdirectory {@value #FAILED_DIRECTORY} for manual recovery; moving them back to
+ * the spool directory retries them on next acquire.
+ * <p/>
+ * The spool itself is always on the default file system, while final paths are on
+ * the target file system of the spool, e.g. an in-memory file system in tests.
+ */
+public final class SpoolDirectory {
+
+    static final String PART_SUFFIX = ".part";
+    static final String DATA_SUFFIX = ".data";
+    static final String TARGET_SUFFIX = ".target";
+    static final String FAILED_DIRECTORY = "failed";
+
+    private static final String ENCODING = "UTF-8";
+    private static final long MIN_RETRY_DELAY = 1000L;
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    private static final Log log = LogFactory.getLog(SpoolDirectory.class);
+
+    private static final Map<File, SpoolDirectory> SPOOLS = new HashMap<File, SpoolDirectory>();
+
+    private final File directory;
+    private final FileSystem targetFileSystem;
+    private final Lane[] lanes;
+    private final int maxAttempts;
+    private final long minRetryDelay;
+    private final AtomicInteger pending = new AtomicInteger();
+    private int references;
+    private volatile boolean shutdown;
+
+    private SpoolDirectory(File directory, FileSystem targetFileSystem, Settings settings, long minRetryDelay) {
+        this.directory = directory;
+        this.targetFileSystem = targetFileSystem;
+        this.maxAttempts = settings.getMaxAttempts();
+        this.minRetryDelay = minRetryDelay;
+        this.lanes = new Lane[settings.getMoverThreads()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(Executors.newSingleThreadScheduledExecutor(new MoverThreadFactory(directory, i)));
+        }
+    }
+
+    /**
+     * Returns the spool for given directory, starting its movers and resuming files
+     * left over from a previous run if the spool is not in use yet.
+     */
+    public static SpoolDirectory acquire(Settings settings) throws IOException {
+        return acquire(settings, FileSystems.getDefault());
+    }
+
+    /**
+     * Returns the spool for given directory moving files to given file system.
+     *
+     * @throws IOException if the spool is in use already with another target file system
+     */
+    public static SpoolDirectory acquire(Settings settings, FileSystem targetFileSystem) throws IOException {
+        return acquire(settings, targetFileSystem, MIN_RETRY_DELAY);
+    }
+
+    static SpoolDirectory acquire(Settings settings, FileSystem targetFileSystem, long minRetryDelay) throws IOException {
+        File directory = settings.getDirectory().getCanonicalFile();
+        synchronized (SPOOLS) {
+            SpoolDirectory spool = SPOOLS.get(directory);
+            if (spool == null) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Unable to create spool directory " + directory);
+                }
+                spool = new SpoolDirectory(directory, targetFileSystem, settings, minRetryDelay);
+                spool.resume();
+                SPOOLS.put(directory, spool);
+            } else if (spool.targetFileSystem != targetFileSystem) {
+                // final paths in markers would be resolved on the wrong file system after a restart
+                throw new IOException("Spool directory " + directory + " already moves files to another file system");
+            }
+            spool.references++;
+            return spool;
+        }
+    }
+
+    /**
+     * Releases the spool. Movers are stopped when the last user releases it; files not
+     * moved yet stay in the spool directory and are resumed on next acquire.
+     */
+    public void release() {
+        synchronized (SPOOLS) {
+            if (--references > 0) {
+                return;
+            }
+            SPOOLS.remove(directory);
+        }
+        shutdown = true;
+        for (Lane lane : lanes) {
+            lane.executor.shutdownNow();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return number of spooled files not moved to their final location yet
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return new file to write data to, to be passed to {@link #publish(File, Path)} once complete
+     */
+    public File newPartFile() {
+        return new File(directory, UniqueFileNameGenerator.getInstance().next() + PART_SUFFIX);
+    }
+
+    /**
+     * Records the final location of a completely written part file and schedules the move.
+     *
+     * @return the spooled data file, valid until it has been moved
+     */
+    public File publish(File partFile, File finalFile) throws IOException {
+        return publish(partFile, finalFile.toPath());
+    }
+
+    /**
+     * Records the final location of a completely written part file on the target file
+     * system and schedules the move.
+     *
+     * @return the spooled data file, valid until it has been moved
+     */
+    public File publish(File partFile, Path finalFile) throws IOException {
+        String id = partFile.getName().substring(0, partFile.getName().length() - PART_SUFFIX.length());
+        File targetMarker = new File(directory, id + TARGET_SUFFIX);
+        File dataFile = new File(directory, id + DATA_SUFFIX);
+
+        writeTargetMarker(targetMarker, finalFile);
+        if (!partFile.renameTo(dataFile)) {
+            targetMarker.delete();
+            throw new IOException("Unable to rename spooled file " + partFile + " to " + dataFile);
+        }
+        schedule(dataFile, targetMarker, finalFile);
+        return dataFile;
+    }
+
+    private void resume() throws IOException {
+        File[] parts = directory.listFiles(new SuffixFilter(PART_SUFFIX));
+        if (parts != null) {
+            for (File part : parts) {
+                // incomplete writes of a previous run, the messages have failed
+                part.delete();
+            }
+        }
+        File[] markers = directory.listFiles(new SuffixFilter(TARGET_SUFFIX));
+        if (markers == null || markers.length == 0) {
+            return;
+        }
+        Arrays.sort(markers, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = first.lastModified() - second.lastModified();
+                return difference != 0 ? (difference < 0 ? -1 : 1) : first.getName().compareTo(second.getName());
+            }
+        });
+        int resumed = 0;
+        for (File marker : markers) {
+            String id = marker.getName().substring(0, marker.getName().length() - TARGET_SUFFIX.length());
+            File dataFile = new File(directory, id + DATA_SUFFIX);
+            if (dataFile.exists()) {
+                schedule(dataFile, marker, targetFileSystem.getPath(readTargetMarker(marker)));
+                resumed++;
+            } else {
+                // move completed but marker removal did not
+                marker.delete();
+            }
+        }
+        log.info("Resumed " + resumed + " spooled files in " + directory);
+    }
+
+    private void schedule(File dataFile, File targetMarker, Path finalFile) {
+        pending.incrementAndGet();
+        Path target = finalFile.toAbsolutePath();
+        Lane lane = lanes[(target.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        lane.executor.execute(new Move(lane, dataFile, targetMarker, target));
+    }
+
+    /**
+     * Gives up a file that could not be moved, keeping it for manual recovery.
+     */
+    private void moveToFailed(Move move, IOException failure) {
+        File failed = new File(directory, FAILED_DIRECTORY);
+        File failedData = new File(failed, move.dataFile.getName());
+        if ((failed.isDirectory() || failed.mkdirs()) && move.targetMarker.renameTo(new File(failed, move.targetMarker.getName()))) {
+            if (move.dataFile.renameTo(failedData)) {
+                log.error("Giving up moving spooled file to " + move.finalFile + " after " + move.attempts
+                        + " attempts, left it in " + failedData + " with its marker", failure);
+                return;
+            }
+            log.error("Giving up moving spooled file " + move.dataFile + " to " + move.finalFile + " after " + move.attempts
+                    + " attempts, its marker is in " + failed, failure);
+            return;
+        }
+        // without the marker the file is not resumed, so both stay where they are
+        log.error("Giving up moving spooled file " + move.dataFile + " to " + move.finalFile + " after " + move.attempts
+                + " attempts, unable to move it to " + failed + "; it is retried on next start", failure);
+    }
+
+    static void move(Path source, Path destination) throws IOException {
+        Path parent = destination.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            // different file store or file system
+        }
+        // copy next to the destination and rename, so that readers of the final directory
+        // never see a partially copied file
+        Path temporary = parent.resolve("." + destination.getFileName() + "." + UniqueFileNameGenerator.getInstance().next() + ".tmp");
+        boolean renamed = false;
+        try {
+            Files.copy(source, temporary);
+            Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING);
+            renamed = true;
+        } finally {
+            // also after a copy failed half way or was interrupted, the move is retried with a new name
+            if (!renamed) {
+                deleteTemporary(temporary);
+            }
+        }
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            log.warn("Unable to remove spooled file " + source + " after moving it to " + destination, e);
+        }
+    }
+
+    private static void deleteTemporary(Path temporary) {
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            log.warn("Unable to remove partially copied file " + temporary, e);
+        }
+    }
+
+    private static void writeTargetMarker(File marker, Path finalFile) throws IOException {
+        FileOutputStream out = new FileOutputStream(marker);
+        try {
+            out.write(finalFile.toAbsolutePath().toString().getBytes(ENCODING));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readTargetMarker(File marker) throws IOException {
+        FileInputStream in = new FileInputStream(marker);
+        try {
+            byte[] content = new byte[(int) marker.length()];
+            int read = 0;
+            while (read < content.length) {
+                int count = in.read(content, read, content.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new String(content, 0, read, ENCODING);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Waits until all currently pending files have been moved. Intended for tests and orderly shutdown.
+     *
+     * @return true if nothing is pending anymore
+     */
+    public boolean awaitMoved(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Mover thread and the final paths it is retrying, with later files of the same path
+     * waiting for them. The map is accessed by the mover thread only.
+     */
+    private static final class Lane {
+        private final ScheduledExecutorService executor;
+        private final Map<Path, ArrayDeque<Move>> retrying = new HashMap<Path, ArrayDeque<Move>>();
+
+        private Lane(ScheduledExecutorService executor) {
+            this.executor = executor;
+        }
+    }
+
+    private final class Move implements Runnable {
+        private final Lane lane;
+        private final File dataFile;
+        private final File targetMarker;
+        private final Path finalFile;
+        private int attempts;
+        private long retryDelay = minRetryDelay;
+
+        private Move(Lane lane, File dataFile, File targetMarker, Path finalFile) {
+            this.lane = lane;
+            this.dataFile = dataFile;
+            this.targetMarker = targetMarker;
+            this.finalFile = finalFile;
+        }
+
+        @Override
+        public void run() {
+            if (shutdown) {
+                return;
+            }
+            ArrayDeque<Move> waiting = lane.retrying.get(finalFile);
+            if (attempts == 0 && waiting != null && waiting.peekFirst() != this) {
+                // an earlier file of the same path is being retried, keep the write order
+                waiting.addLast(this);
+                return;
+            }
+            attempts++;
+            try {
+                move(dataFile.toPath(), finalFile);
+                if (!targetMarker.delete()) {
+                    log.warn("Unable to remove spool marker " + targetMarker);
+                }
+            } catch (IOException e) {
+                if (attempts < maxAttempts) {
+                    log.warn("Unable to move spooled file " + dataFile + " to " + finalFile + ", retrying in " + retryDelay + " ms", e);
+                    if (waiting == null) {
+                        lane.retrying.put(finalFile, new ArrayDeque<Move>());
+                    }
+                    lane.executor.schedule(this, retryDelay, TimeUnit.MILLISECONDS);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                    return;
+                }
+                moveToFailed(this, e);
+            }
+            pending.decrementAndGet();
+            next();
+        }
+
+        private void next() {
+            ArrayDeque<Move> waiting = lane.retrying.get(finalFile);
+            if (waiting == null) {
+                return;
+            }
+            if (waiting.peekFirst() == this) {
+                waiting.removeFirst();
+            }
+            Move next = waiting.peekFirst();
+            if (next == null) {
+                lane.retrying.remove(finalFile);
+            } else {
+                // stays first until it is done, so files arriving meanwhile queue behind it
+                lane.executor.execute(next);
+            }
+        }
+    }
+
+    private static final class SuffixFilter implements FileFilter {
+        private final String suffix;
+
+        private SuffixFilter(String suffix) {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(suffix);
+        }
+    }
+
+    private static final class MoverThreadFactory implements ThreadFactory {
+        private final String name;
+
+        private MoverThreadFactory(File directory, int lane) {
+            this.name = "WriteBinaryFileSpoolMover-" + directory.getName() + "-" + lane;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Spool configuration.
+     */
+    public static final class Settings {
+        public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+        private final File directory;
+        private final int moverThreads;
+        private final boolean returnSpoolPath;
+        private final int maxAttempts;
+
+        public Settings(File directory, int moverThreads, boolean returnSpoolPath) {
+            this(directory, moverThreads, returnSpoolPath, DEFAULT_MAX_ATTEMPTS);
+        }
+
+        public Settings(File directory, int moverThreads, boolean returnSpoolPath, int maxAttempts) {
+            if (directory == null) {
+                throw new IllegalArgumentException("Spool directory must be specified");
+            }
+            if (moverThreads < 1) {
+                throw new IllegalArgumentException("moverThreads must be positive");
+            }
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be positive");
+            }
+            this.directory = directory;
+            this.moverThreads = moverThreads;
+            this.returnSpoolPath = returnSpoolPath;
+            this.maxAttempts = maxAttempts;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public int getMoverThreads() {
+            return moverThreads;
+        }
+
+        /**
+         * @return true if the payload should contain the interim spool path instead of the final path
+         */
+        public boolean isReturnSpoolPath() {
+            return returnSpoolPath;
+        }
+
+        /**
+         * @return attempts to move a file before it is moved to the failed subdirectory
+         */
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+    }
+}
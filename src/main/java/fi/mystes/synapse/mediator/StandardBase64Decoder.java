@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMText;
+import org.apache.commons.logging.LogFactory;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+
+/**
+ * Base64 decoders shipped with the mediator.
+ * <p/>
+ * The decoder used by mediators without explicit configuration is set with system
+ * property {@value #DEFAULT_DECODER_PROPERTY}, either <code>axiom</code> (default),
+ * <code>table</code> or the class name of a custom {@link Base64Decoder}.
+ */
+public enum StandardBase64Decoder implements Base64Decoder {
+    /**
+     * Decodes with Axiom's <code>OMText.getDataHandler()</code>, which decodes the whole
+     * content into memory at once and accepts any characters outside the base64 alphabet.
+     */
+    AXIOM {
+        @Override
+        public DataHandler decode(OMText text) {
+            return (DataHandler) text.getDataHandler();
+        }
+    },
+    /**
+     * Decodes with {@link Base64DecodingInputStream} while the content is written, without
+     * holding the decoded content in memory. Fails on characters outside the base64 alphabet
+     * other than whitespace. Optimized (MTOM) content is already binary and taken from Axiom.
+     */
+    TABLE {
+        @Override
+        public DataHandler decode(OMText text) {
+            if (text.isOptimized()) {
+                return (DataHandler) text.getDataHandler();
+            }
+            String base64 = text.getText();
+            return base64 == null ? null : new DataHandler(new Base64TextDataSource(base64));
+        }
+    };
+
+    public static final String DEFAULT_DECODER_PROPERTY = "fi.mystes.synapse.mediator.base64Decoder";
+
+    /**
+     * @return the decoder for mediators without explicit decoder configuration
+     */
+    public static Base64Decoder getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * @param name <code>axiom</code>, <code>table</code> or class name of a {@link Base64Decoder}
+     * @throws IllegalArgumentException if the decoder cannot be found or instantiated
+     */
+    public static Base64Decoder forName(String name) {
+        String trimmed = name.trim();
+        for (StandardBase64Decoder decoder : values()) {
+            if (decoder.name().equalsIgnoreCase(trimmed)) {
+                return decoder;
+            }
+        }
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            Class<?> decoderClass = Class.forName(trimmed, true, classLoader != null ? classLoader : StandardBase64Decoder.class.getClassLoader());
+            return (Base64Decoder) decoderClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown base64 decoder " + trimmed + ", expected axiom, table or a class name", e);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException(trimmed + " does not implement " + Base64Decoder.class.getName(), e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Unable to instantiate base64 decoder " + trimmed, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Unable to instantiate base64 decoder " + trimmed, e);
+        }
+    }
+
+    /**
+     * @return name accepted by {@link #forName(String)} for given decoder
+     */
+    public static String nameOf(Base64Decoder decoder) {
+        return decoder instanceof StandardBase64Decoder ? decoder.toString() : decoder.getClass().getName();
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+
+    private static final class DefaultHolder {
+        private static final Base64Decoder DEFAULT = createDefault();
+
+        private static Base64Decoder createDefault() {
+            String name = System.getProperty(DEFAULT_DECODER_PROPERTY);
+            if (name == null) {
+                return AXIOM;
+            }
+            try {
+                return forName(name);
+            } catch (IllegalArgumentException e) {
+                LogFactory.getLog(StandardBase64Decoder.class).warn("Invalid " + DEFAULT_DECODER_PROPERTY + ", using axiom", e);
+                return AXIOM;
+            }
+        }
+    }
+
+    private static final class Base64TextDataSource implements DataSource {
+        private final String base64;
+
+        private Base64TextDataSource(String base64) {
+            this.base64 = base64;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new Base64DecodingInputStream(new StringReader(base64));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Decoded base64 content is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "base64";
+        }
+    }
+}
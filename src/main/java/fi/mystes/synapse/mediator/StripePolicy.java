@@ -0,0 +1,60 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * How a {@link StripedTarget} chooses the directory of each write.
+ */
+public enum StripePolicy {
+    /**
+     * Take turns in proportion to the weights of the directories (default).
+     */
+    ROUND_ROBIN("roundRobin"),
+    /**
+     * Choose the directory with the most usable space, multiplied by its weight.
+     */
+    FREE_SPACE("freeSpace"),
+    /**
+     * Choose the directory with the lowest recently observed write latency,
+     * taking writes still in progress and weights into account.
+     */
+    LATENCY("latency");
+
+    private final String configValue;
+
+    StripePolicy(String configValue) {
+        this.configValue = configValue;
+    }
+
+    public static StripePolicy fromString(String value) {
+        if (value == null) {
+            return ROUND_ROBIN;
+        }
+        for (StripePolicy policy : values()) {
+            if (policy.configValue.equalsIgnoreCase(value.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stripe policy " + value);
+    }
+
+    @Override
+    public String toString() {
+        return configValue;
+    }
+}
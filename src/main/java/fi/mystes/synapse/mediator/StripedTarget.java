@@ -0,0 +1,243 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Target made of several directories, typically on separate disks, one of which
+ * is chosen for each write according to a {@link StripePolicy}.
+ * <p/>
+ * Every chosen directory must be handed back with {@link Member#finish(long, long)}
+ * once the write is over, so that writes in progress, latency and space used
+ * between free space checks are accounted for.
+ */
+public final class StripedTarget {
+
+    /**
+     * How often usable space of a directory is asked from the file system.
+     */
+    static final long FREE_SPACE_REFRESH_INTERVAL = 1000L;
+
+    private static final long MIN_LATENCY_SIZE = 64 * 1024;
+    private static final long LATENCY_UNIT = 1024 * 1024;
+    // weight of the latest write in the moving average of latency
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final StripePolicy policy;
+    private final List<Member> members;
+    private final int[] schedule;
+    private final AtomicLong turn = new AtomicLong();
+
+    public StripedTarget(StripePolicy policy, List<Member> members) {
+        if (members == null || members.isEmpty()) {
+            throw new IllegalArgumentException("Striped target needs at least one directory");
+        }
+        this.policy = policy != null ? policy : StripePolicy.ROUND_ROBIN;
+        this.members = Collections.unmodifiableList(new ArrayList<Member>(members));
+        this.schedule = interleave(this.members);
+    }
+
+    /**
+     * Spreads each member over the schedule in proportion to its weight, so that
+     * e.g. weights 2 and 1 give A B A instead of A A B (smooth weighted round robin).
+     */
+    private static int[] interleave(List<Member> members) {
+        int total = 0;
+        for (Member member : members) {
+            total += member.weight;
+        }
+        int[] schedule = new int[total];
+        int[] current = new int[members.size()];
+        for (int slot = 0; slot < total; slot++) {
+            int best = 0;
+            for (int i = 0; i < members.size(); i++) {
+                current[i] += members.get(i).weight;
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[slot] = best;
+        }
+        return schedule;
+    }
+
+    public StripePolicy getPolicy() {
+        return policy;
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Chooses the directory of a write to the default file system.
+     */
+    public Member select() {
+        return select(FileSystems.getDefault());
+    }
+
+    /**
+     * Chooses the directory of a write to given file system.
+     */
+    public Member select(FileSystem fileSystem) {
+        Member selected;
+        switch (policy) {
+            case FREE_SPACE:
+                selected = selectMostFreeSpace(fileSystem);
+                break;
+            case LATENCY:
+                selected = selectLowestLatency();
+                break;
+            default:
+                selected = members.get(schedule[(int) (turn.getAndIncrement() % schedule.length)]);
+        }
+        selected.inFlight.incrementAndGet();
+        return selected;
+    }
+
+    private Member selectMostFreeSpace(FileSystem fileSystem) {
+        long now = System.currentTimeMillis();
+        Member best = null;
+        double bestScore = -1;
+        for (Member member : members) {
+            double score = (double) member.usableSpace(fileSystem, now) * member.weight;
+            if (score > bestScore) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private Member selectLowestLatency() {
+        // start from a rotating position so that ties, e.g. directories not written yet, are spread
+        int start = (int) (turn.getAndIncrement() % members.size());
+        Member best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get((start + i) % members.size());
+            double score = (double) member.averageLatency * (member.inFlight.get() + 1) / member.weight;
+            if (score < bestScore) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A single directory of a striped target.
+     */
+    public static final class Member {
+        private final String directory;
+        private final int weight;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // nanoseconds per megabyte, writes smaller than MIN_LATENCY_SIZE count as that size
+        private volatile long averageLatency;
+        private long usableSpace;
+        private long usableSpaceCheckedAt;
+
+        public Member(String directory, int weight) {
+            if (directory == null) {
+                throw new IllegalArgumentException("Stripe directory must be specified");
+            }
+            if (weight < 1) {
+                throw new IllegalArgumentException("weight must be positive");
+            }
+            this.directory = directory;
+            this.weight = weight;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return writes to the directory chosen but not finished yet
+         */
+        public int getInFlightCount() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return moving average of write latency in nanoseconds per megabyte, 0 before the first write
+         */
+        public long getAverageLatency() {
+            return averageLatency;
+        }
+
+        private synchronized long usableSpace(FileSystem fileSystem, long now) {
+            if (now - usableSpaceCheckedAt >= FREE_SPACE_REFRESH_INTERVAL) {
+                usableSpace = usableSpace(fileSystem);
+                usableSpaceCheckedAt = now;
+            }
+            return usableSpace;
+        }
+
+        /**
+         * @return usable space, or 0 if the directory does not exist or its file system does not tell
+         */
+        private long usableSpace(FileSystem fileSystem) {
+            try {
+                return Files.getFileStore(fileSystem.getPath(directory)).getUsableSpace();
+            } catch (IOException e) {
+                return 0;
+            } catch (UnsupportedOperationException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Ends a write to the directory chosen with {@link StripedTarget#select()}.
+         *
+         * @param bytes bytes written
+         * @param nanos duration of the write, or 0 if nothing was written
+         */
+        public void finish(long bytes, long nanos) {
+            inFlight.decrementAndGet();
+            if (nanos <= 0) {
+                return;
+            }
+            synchronized (this) {
+                // written space is not visible to getUsableSpace() before it is flushed
+                usableSpace -= bytes;
+                long latency = (long) ((double) nanos * LATENCY_UNIT / Math.max(bytes, MIN_LATENCY_SIZE));
+                averageLatency = averageLatency == 0 ? latency : (long) (LATENCY_SMOOTHING * latency + (1 - LATENCY_SMOOTHING) * averageLatency);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return directory;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line based record format of the manifest and the idempotency journal: fields are
+ * separated by tabs and records end with a line break. Tabs, line breaks and backslashes
+ * in values are escaped with a backslash.
+ */
+final class TabSeparatedRecords {
+
+    static final char SEPARATOR = '\t';
+    static final char TERMINATOR = '\n';
+
+    /**
+     * Receives the fields of each complete record read.
+     */
+    interface Handler {
+        void handle(List<String> fields);
+    }
+
+    private TabSeparatedRecords() {
+    }
+
+    /**
+     * Appends a value escaping separators, nothing for null.
+     */
+    static void appendEscaped(StringBuilder record, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t':
+                    record.append("\\t");
+                    break;
+                case '\n':
+                    record.append("\\n");
+                    break;
+                case '\r':
+                    record.append("\\r");
+                    break;
+                case '\\':
+                    record.append("\\\\");
+                    break;
+                default:
+                    record.append(c);
+            }
+        }
+    }
+
+    /**
+     * Reads records until the end of the reader. An incomplete last record, e.g. of a
+     * crash in the middle of a write, is ignored.
+     */
+    static void read(Reader reader, Handler handler) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0) {
+            if (c == '\\') {
+                int escaped = reader.read();
+                field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : (char) escaped);
+            } else if (c == SEPARATOR) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == TERMINATOR) {
+                fields.add(field.toString());
+                field.setLength(0);
+                handler.handle(fields);
+                fields.clear();
+            } else {
+                field.append((char) c);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens the NIO file system files are written to instead of the default file system.
+ * <p/>
+ * The file system is identified by a URI, e.g. <code>memory:/test</code>. Its provider
+ * is looked up among the installed providers by the scheme of the URI, or given as a
+ * class name for providers not visible to the installed provider lookup, e.g. providers
+ * deployed in the same bundle as the mediator. Provider classes are instantiated once
+ * per JVM, so all mediators naming the same provider share its file systems. An open
+ * file system of the URI is used if there is one, otherwise the provider creates it.
+ */
+public final class TargetFileSystem {
+
+    private static final Map<String, FileSystemProvider> PROVIDERS = new HashMap<String, FileSystemProvider>();
+
+    private TargetFileSystem() {
+    }
+
+    public static FileSystem open(Settings settings) throws IOException {
+        FileSystemProvider provider = settings.getProviderClass() != null ? provider(settings.getProviderClass()) : null;
+        URI uri = settings.getUri();
+        try {
+            try {
+                return provider != null ? provider.getFileSystem(uri) : FileSystems.getFileSystem(uri);
+            } catch (FileSystemNotFoundException e) {
+                // not created yet
+            }
+            Map<String, ?> environment = Collections.emptyMap();
+            try {
+                return provider != null ? provider.newFileSystem(uri, environment) : FileSystems.newFileSystem(uri, environment);
+            } catch (FileSystemAlreadyExistsException e) {
+                // created concurrently
+                return provider != null ? provider.getFileSystem(uri) : FileSystems.getFileSystem(uri);
+            }
+        } catch (ProviderNotFoundException e) {
+            throw new IOException("No file system provider installed for scheme " + uri.getScheme(), e);
+        }
+    }
+
+    private static FileSystemProvider provider(String className) throws IOException {
+        synchronized (PROVIDERS) {
+            FileSystemProvider provider = PROVIDERS.get(className);
+            if (provider == null) {
+                try {
+                    provider = (FileSystemProvider) Class.forName(className, true, TargetFileSystem.class.getClassLoader()).newInstance();
+                } catch (Exception e) {
+                    throw new IOException("Unable to instantiate file system provider " + className, e);
+                }
+                PROVIDERS.put(className, provider);
+            }
+            return provider;
+        }
+    }
+
+    /**
+     * Target file system configuration.
+     */
+    public static final class Settings {
+        private final URI uri;
+        private final String providerClass;
+
+        /**
+         * @param providerClass class name of the provider, or null to look it up by the scheme of the URI
+         */
+        public Settings(URI uri, String providerClass) {
+            if (uri == null) {
+                throw new IllegalArgumentException("File system URI must be specified");
+            }
+            if (uri.getScheme() == null) {
+                throw new IllegalArgumentException("File system URI " + uri + " has no scheme");
+            }
+            this.uri = uri;
+            this.providerClass = providerClass;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public String getProviderClass() {
+            return providerClass;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates file system safe unique names without relying on message IDs.
+ * <p/>
+ * Names consist of the JVM start time, a random node identifier and a
+ * lock-free running counter, all in base 36, e.g. <code>kx2f9a1c-3jz8q1-1f</code>.
+ * The node identifier keeps names unique across ESB nodes writing to a
+ * shared directory.
+ * <p/>
+ * {@link #toFileName(String)} makes other values, e.g. message IDs, safe to use in
+ * file names.
+ */
+public final class UniqueFileNameGenerator {
+
+    private static final UniqueFileNameGenerator INSTANCE = new UniqueFileNameGenerator();
+    private static final String UNSAFE_CHARACTERS = "<>:\"/\\|?*";
+
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    UniqueFileNameGenerator() {
+        int node = new SecureRandom().nextInt() & Integer.MAX_VALUE;
+        this.prefix = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-" + Integer.toString(node, Character.MAX_RADIX) + "-";
+    }
+
+    public static UniqueFileNameGenerator getInstance() {
+        return INSTANCE;
+    }
+
+    public String next() {
+        return prefix + Long.toString(counter.incrementAndGet(), Character.MAX_RADIX);
+    }
+
+    /**
+     * Replaces characters not allowed in file names on common file systems, e.g. the colons
+     * of <code>urn:uuid:</code> message IDs on Windows and SMB shares, with underscores.
+     */
+    public static String toFileName(String value) {
+        StringBuilder name = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < ' ' || UNSAFE_CHARACTERS.indexOf(c) >= 0) {
+                if (name == null) {
+                    name = new StringBuilder(value);
+                }
+                name.setCharAt(i, '_');
+            }
+        }
+        return name != null ? name.toString() : value;
+    }
+}
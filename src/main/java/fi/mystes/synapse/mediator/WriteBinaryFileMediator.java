@@ -21,16 +21,46 @@ import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNode;
 import org.apache.axiom.om.OMText;
 import org.apache.axiom.om.xpath.AXIOMXPath;
+import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.SynapseException;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.SynapseEnvironment;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.mediators.AbstractMediator;
 import org.apache.synapse.util.xpath.SynapseXPath;
 import org.jaxen.JaxenException;
 
 import javax.activation.DataHandler;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BinaryFileMediator writes the contents of an XML element containing
@@ -38,41 +68,337 @@ import java.util.List;
  * and replaces the binary data in the payload with the absolute path
  * of the output file.
  * <p/>
+ * The mediator resolves the content and the target from the message and leaves
+ * writing the file to a {@link BinaryFileWriter}. Target directories are on the
+ * default file system unless a {@link TargetFileSystem} is configured.
+ * <p/>
  * Detailed instructions available in
  * <a href="https://mystes.jira.com/wiki/display/COMLIB/BinaryFileMediator">Mystes Wiki</a>
  */
-public class WriteBinaryFileMediator extends AbstractMediator {
+public class WriteBinaryFileMediator extends AbstractMediator implements ManagedLifecycle {
 
     private static final boolean DEFAULT_FORCE_UNIQUE_FILE_NAME = false;
     private static final boolean DEFAULT_ALLOW_OVERWRITE = true;
+    private static final String GENERATED_UNIQUE_FILE_NAME = "generated";
+    private static final String JSON_ENCODING = "UTF-8";
+    /**
+     * Outcome of flight recorder events for mediations that failed without setting a result.
+     */
+    private static final String EVENT_RESULT_FAILED = "FAILED";
+    /**
+     * Manifests without records for this long are released, e.g. those of directories of
+     * past days with a date in the target directory.
+     */
+    static final long MANIFEST_IDLE_TIMEOUT = 10 * 60 * 1000L;
+    private static final long MANIFEST_SWEEP_INTERVAL = 60 * 1000L;
+
+    /**
+     * Message context property telling the sequence what happened: one of
+     * {@link #RESULT_WRITTEN}, {@link #RESULT_RENAMED}, {@link #RESULT_SKIPPED} or
+     * {@link #RESULT_REJECTED} (circuit breaker open) or {@link #RESULT_SPOOLED}, and for
+     * chunked uploads {@link #RESULT_CHUNK_RECEIVED} or {@link #RESULT_ASSEMBLED} (upload complete),
+     * and {@link #RESULT_APPENDED} in append mode, or {@link #RESULT_TIMED_OUT} before the fault
+     * sequence when the write did not complete within the write timeout, or {@link #RESULT_SUPERSEDED}
+     * when a later message to the same file replaced the write, or {@link #RESULT_DUPLICATE} when
+     * a message with the same idempotency key has already been written, or {@link #RESULT_IN_PROGRESS}
+     * before the fault sequence when it is being written by another message.
+     */
+    public static final String RESULT_PROPERTY = "WRITE_BINARY_FILE_RESULT";
+    public static final String RESULT_WRITTEN = "WRITTEN";
+    public static final String RESULT_RENAMED = "RENAMED";
+    public static final String RESULT_SKIPPED = "SKIPPED";
+    public static final String RESULT_REJECTED = "REJECTED";
+    public static final String RESULT_SPOOLED = "SPOOLED";
+    public static final String RESULT_CHUNK_RECEIVED = "CHUNK_RECEIVED";
+    public static final String RESULT_ASSEMBLED = "ASSEMBLED";
+    public static final String RESULT_APPENDED = "APPENDED";
+    public static final String RESULT_TIMED_OUT = "TIMED_OUT";
+    public static final String RESULT_SUPERSEDED = "SUPERSEDED";
+    public static final String RESULT_DUPLICATE = "DUPLICATE";
+    public static final String RESULT_IN_PROGRESS = "IN_PROGRESS";
+    public static final String RESULT_OVER_BUDGET = "OVER_BUDGET";
+    public static final String RESULT_BUSY = "BUSY";
+    /**
+     * Value of ERROR_CODE in the fault sequence when the write did not complete within the write timeout.
+     */
+    public static final int WRITE_TIMEOUT_ERROR_CODE = 401901;
+    /**
+     * Message context property containing the full path of the written file.
+     */
+    public static final String PATH_PROPERTY = "WRITE_BINARY_FILE_PATH";
+    /**
+     * Prefix of message context properties containing the paths written to additional
+     * target directories, numbered from 1 in configuration order.
+     */
+    public static final String ADDITIONAL_PATH_PROPERTY_PREFIX = PATH_PROPERTY + "_";
+    /**
+     * Message context property listing the target directories that could not be written.
+     */
+    public static final String FAILED_TARGETS_PROPERTY = "WRITE_BINARY_FILE_FAILED_TARGETS";
+    /**
+     * Message context property containing the number of chunks of a chunked upload received so far.
+     */
+    public static final String RECEIVED_CHUNKS_PROPERTY = "WRITE_BINARY_FILE_RECEIVED_CHUNKS";
 
     // binaryElementXPath can only be configured in 'value' attribute, but
     // stored here as SynapseXPath (as opposed to String) to be able to include
     // namespace definitions in XPath definition
     private SynapseXPath binaryElementXPath;
+    private JsonPath binaryJsonPath;
 
     private String targetDirectory;
     private SynapseXPath targetDirectoryExpression;
+    private FileNameTemplate targetDirectoryTemplate;
     private String targetFileName;
     private SynapseXPath targetFileNameExpression;
+    private FileNameTemplate targetFileNameTemplate;
     private String forceUniqueFileName;
     private String allowOverWrite;
+    private DirectoryCircuitBreaker.Settings circuitBreakerSettings;
+    private SpoolDirectory.Settings spoolSettings;
+    private FileEncryption.Settings encryptionSettings;
+    private List<FanOutTarget> additionalTargetDirectories;
+    private FanOutPolicy fanOutPolicy;
+    private ChunkedUploadAssembler.Settings chunkedUploadSettings;
+    private Base64Decoder base64Decoder;
+    private FileManifest.Settings manifestSettings;
+    private RetentionJanitor.Settings retentionSettings;
+    private OutputMode outputMode;
+    private StripedTarget stripedTarget;
+    private IdempotencyCache.Settings idempotencySettings;
+    private MemoryBudget.Settings memoryBudgetSettings;
+    private TargetFileSystem.Settings fileSystemSettings;
+    private String outputName;
+
+    private SpoolDirectory spool;
+    private ChunkedUploadAssembler assembler;
+    private ExecutorService fanOutExecutor;
+    private RetentionJanitor janitor;
+    private IdempotencyCache idempotencyCache;
+    private volatile FileSystem targetFileSystem;
+    private final ConcurrentMap<Path, FileManifest> manifests = new ConcurrentHashMap<Path, FileManifest>();
+    private final AtomicLong lastManifestSweep = new AtomicLong(System.currentTimeMillis());
+
+    private final BinaryFileWriter writer = new BinaryFileWriter();
 
 
+    @Override
+    public void init(SynapseEnvironment synapseEnvironment) {
+        if (getFileSystemSettings() != null) {
+            // the features below resolve their files on it
+            acquireTargetFileSystem();
+        }
+        if (getSpoolSettings() != null) {
+            // resumes files spooled but not moved before a restart
+            acquireSpool();
+        }
+        if (getRetentionSettings() != null) {
+            // restores files written before a restart from the manifest
+            acquireJanitor();
+        }
+        if (getIdempotencySettings() != null) {
+            // restores completed writes from the journal
+            acquireIdempotencyCache();
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (spool != null) {
+            spool.release();
+            spool = null;
+        }
+        if (fanOutExecutor != null) {
+            fanOutExecutor.shutdown();
+            fanOutExecutor = null;
+        }
+        if (assembler != null) {
+            assembler.release();
+            assembler = null;
+        }
+        if (janitor != null) {
+            janitor.stop();
+            janitor = null;
+        }
+        if (idempotencyCache != null) {
+            idempotencyCache.close();
+            idempotencyCache = null;
+        }
+        for (FileManifest manifest : manifests.values()) {
+            manifest.release();
+        }
+        manifests.clear();
+        if (isAppendMode()) {
+            // cached channels of other mediators are reopened on their next append
+            AppendingWriter.getInstance().closeIdle();
+        }
+        DirectFileWriter.releaseBuffers();
+    }
+
     @Override
     public boolean mediate(MessageContext messageContext) {
         validateState(messageContext);
 
-        Object node = findNodeWithBinaryContent(messageContext);
-        String fullPath = writeNodeContentsToFile(node, messageContext);
-
-        if (fullPath != null) {
-            replaceBinaryElementContent(node, fullPath);
+        WriteRequest request = new WriteRequest(messageContext);
+        request.event = WriteEvent.begin();
+        if (request.event != null) {
+            request.startNanos = System.nanoTime();
+            request.previousResult = messageContext.getProperty(RESULT_PROPERTY);
+        }
+        if (getStripedTarget() != null) {
+            request.stripeMember = getStripedTarget().select(acquireTargetFileSystem());
+            request.directory = request.stripeMember.getDirectory();
+        }
+        boolean completed = false;
+        try {
+            writePayload(request);
+            completed = true;
+        } finally {
+            if (request.stripeMember != null) {
+                request.stripeMember.finish(request.writtenBytes, request.writeNanos);
+            }
+            if (request.event != null) {
+                commitEvent(request, completed);
+            }
         }
 
         return true;
     }
 
+    private void commitEvent(WriteRequest request, boolean completed) {
+        Object result = request.messageContext.getProperty(RESULT_PROPERTY);
+        String outcome;
+        if (completed) {
+            outcome = request.fullPath != null && result != null ? result.toString() : RESULT_SKIPPED;
+        } else {
+            // rejected and timed out writes set the result before failing
+            outcome = result != null && result != request.previousResult ? result.toString() : EVENT_RESULT_FAILED;
+        }
+        long resolveNanos = (request.decodeStartNanos != 0 ? request.decodeStartNanos : System.nanoTime()) - request.startNanos;
+        request.event.commit(request.fullPath, request.writtenBytes, resolveNanos, request.decodeNanos, request.writeNanos,
+                describeStrategy(request), outcome);
+    }
+
+    private String describeStrategy(WriteRequest request) {
+        if (isAppendMode()) {
+            return "append";
+        }
+        if (request.encryptionKey != null) {
+            return "encrypted";
+        }
+        if (getSpoolSettings() != null) {
+            return "spool";
+        }
+        return (request.tier != null ? request.tier.getStrategy() : WriteStrategy.STREAM).toString();
+    }
+
+    private void writePayload(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        if (getIdempotencySettings() != null) {
+            // looked up before the circuit breaker, as answering a duplicate does not touch the storage
+            request.idempotencyKey = resolveIdempotencyKey(messageContext);
+            if (request.idempotencyKey != null) {
+                try {
+                    request.duplicatePath = acquireIdempotencyCache().reserve(request.idempotencyKey);
+                } catch (IdempotencyCache.InProgressException e) {
+                    messageContext.setProperty(RESULT_PROPERTY, RESULT_IN_PROGRESS);
+                    handleException(e.getMessage(), e, messageContext);
+                }
+                request.idempotencyReserved = request.duplicatePath == null;
+            }
+        }
+
+        String fullPath = null;
+        try {
+            if (getCircuitBreakerSettings() != null && !hasTierDirectories() && request.duplicatePath == null) {
+                // resolve target directory before touching the payload so that an open
+                // breaker rejects the message before any lookup or decoding is done
+                if (request.directory == null) {
+                    request.directory = resolveTargetDirectory(messageContext);
+                }
+                request.circuitBreaker = acquireCircuitBreaker(request.directory, messageContext);
+            }
+
+            if (getBinaryJsonPath() != null) {
+                fullPath = writeJsonFieldToFile(request);
+            } else {
+                Object node = findNodeWithBinaryContent(messageContext);
+                fullPath = request.duplicatePath != null ? answerDuplicate(request) : writeNodeContentsToFile(node, request);
+
+                if (fullPath != null) {
+                    replaceBinaryElementContent(node, fullPath, messageContext);
+                }
+            }
+            request.fullPath = fullPath;
+            if (fullPath != null && request.idempotencyReserved) {
+                if (request.spooledFile != null) {
+                    // the final file appears only once the spool file has been moved
+                    acquireIdempotencyCache().record(request.idempotencyKey, request.spoolTargetPath, request.spooledFile);
+                } else {
+                    acquireIdempotencyCache().record(request.idempotencyKey, fullPath);
+                }
+                request.idempotencyReserved = false;
+            }
+        } finally {
+            if (request.idempotencyReserved) {
+                acquireIdempotencyCache().cancel(request.idempotencyKey);
+            }
+            if (request.circuitBreaker != null) {
+                if (fullPath != null) {
+                    request.circuitBreaker.recordSuccess();
+                } else {
+                    request.circuitBreaker.releaseProbe();
+                }
+            }
+        }
+    }
+
+    private String resolveIdempotencyKey(MessageContext messageContext) {
+        SynapseXPath keyExpression = getIdempotencySettings().getKeyExpression();
+        String key = keyExpression != null ? keyExpression.stringValueOf(messageContext) : messageContext.getMessageID();
+        return key == null || key.length() == 0 ? null : key;
+    }
+
+    private String answerDuplicate(WriteRequest request) {
+        log.debug("Message with idempotency key " + request.idempotencyKey + " already written to " + request.duplicatePath);
+        request.messageContext.setProperty(RESULT_PROPERTY, RESULT_DUPLICATE);
+        request.messageContext.setProperty(PATH_PROPERTY, request.duplicatePath);
+        return request.duplicatePath;
+    }
+
+    private DirectoryCircuitBreaker acquireCircuitBreaker(String directory, MessageContext messageContext) {
+        DirectoryCircuitBreaker circuitBreaker = null;
+        try {
+            circuitBreaker = DirectoryCircuitBreaker.forDirectory(directory, getCircuitBreakerSettings());
+        } catch (IllegalArgumentException e) {
+            handleException(e.getMessage(), e, messageContext);
+        }
+        if (!circuitBreaker.allowRequest()) {
+            messageContext.setProperty(RESULT_PROPERTY, RESULT_REJECTED);
+            handleException("Circuit breaker for target directory " + directory + " is open, rejecting message", messageContext);
+        }
+        return circuitBreaker;
+    }
+
+    private SecretKey resolveEncryptionKey(MessageContext messageContext) {
+        FileEncryption.Settings settings = getEncryptionSettings();
+        Object entry;
+        if (settings.getKeyEntry() != null) {
+            entry = messageContext.getEntry(settings.getKeyEntry());
+        } else {
+            entry = settings.getKeyExpression().stringValueOf(messageContext);
+        }
+        if (entry == null) {
+            handleException("Encryption key not found", messageContext);
+        }
+        try {
+            return FileEncryption.toKey(entry);
+        } catch (IllegalArgumentException e) {
+            handleException("Invalid encryption key", e, messageContext);
+            return null;
+        }
+    }
+
     public SynapseXPath getBinaryElementXPath() {
         return binaryElementXPath;
     }
@@ -81,6 +407,14 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         this.binaryElementXPath = xPath;
     }
 
+    public JsonPath getBinaryJsonPath() {
+        return binaryJsonPath;
+    }
+
+    public void setBinaryJsonPath(JsonPath binaryJsonPath) {
+        this.binaryJsonPath = binaryJsonPath;
+    }
+
     public String getTargetDirectory() {
         return targetDirectory;
     }
@@ -97,6 +431,14 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         this.targetDirectoryExpression = targetDirectoryExpression;
     }
 
+    public FileNameTemplate getTargetDirectoryTemplate() {
+        return targetDirectoryTemplate;
+    }
+
+    public void setTargetDirectoryTemplate(FileNameTemplate targetDirectoryTemplate) {
+        this.targetDirectoryTemplate = targetDirectoryTemplate;
+    }
+
     public String getTargetFileName() {
         return targetFileName;
     }
@@ -113,6 +455,14 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         this.targetFileNameExpression = targetFileNameExpression;
     }
 
+    public FileNameTemplate getTargetFileNameTemplate() {
+        return targetFileNameTemplate;
+    }
+
+    public void setTargetFileNameTemplate(FileNameTemplate targetFileNameTemplate) {
+        this.targetFileNameTemplate = targetFileNameTemplate;
+    }
+
     public String getForceUniqueFileName() {
         return forceUniqueFileName;
     }
@@ -121,6 +471,10 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         return getForceUniqueFileName() == null ? DEFAULT_FORCE_UNIQUE_FILE_NAME : Boolean.valueOf(getForceUniqueFileName());
     }
 
+    private boolean isGeneratedUniqueFileName() {
+        return GENERATED_UNIQUE_FILE_NAME.equalsIgnoreCase(getForceUniqueFileName());
+    }
+
     public void setForceUniqueFileName(String forceUniqueFileName) {
         this.forceUniqueFileName = forceUniqueFileName;
     }
@@ -135,11 +489,468 @@ public class WriteBinaryFileMediator extends AbstractMediator {
 
     public void setAllowOverWrite(String allowOverWrite) {
         this.allowOverWrite = allowOverWrite;
+        writer.setAllowOverwrite(isAllowOverWrite());
+    }
+
+    public CollisionPolicy getCollisionPolicy() {
+        return writer.getCollisionPolicy();
+    }
+
+    public void setCollisionPolicy(CollisionPolicy collisionPolicy) {
+        writer.setCollisionPolicy(collisionPolicy);
+    }
+
+    public DirectoryCircuitBreaker.Settings getCircuitBreakerSettings() {
+        return circuitBreakerSettings;
+    }
+
+    public void setCircuitBreakerSettings(DirectoryCircuitBreaker.Settings circuitBreakerSettings) {
+        this.circuitBreakerSettings = circuitBreakerSettings;
     }
 
-    private void replaceBinaryElementContent(Object node, String fullPath) {
+    public SpoolDirectory.Settings getSpoolSettings() {
+        return spoolSettings;
+    }
+
+    public void setSpoolSettings(SpoolDirectory.Settings spoolSettings) {
+        this.spoolSettings = spoolSettings;
+    }
+
+    public FileEncryption.Settings getEncryptionSettings() {
+        return encryptionSettings;
+    }
+
+    public void setEncryptionSettings(FileEncryption.Settings encryptionSettings) {
+        this.encryptionSettings = encryptionSettings;
+        writer.setEncryptionChunkSize(encryptionSettings != null ? encryptionSettings.getChunkSize() : FileEncryption.DEFAULT_CHUNK_SIZE);
+    }
+
+    public List<FanOutTarget> getAdditionalTargetDirectories() {
+        return additionalTargetDirectories;
+    }
+
+    public void setAdditionalTargetDirectories(List<FanOutTarget> additionalTargetDirectories) {
+        this.additionalTargetDirectories = additionalTargetDirectories == null || additionalTargetDirectories.isEmpty()
+                ? null : Collections.unmodifiableList(new ArrayList<FanOutTarget>(additionalTargetDirectories));
+    }
+
+    public FanOutPolicy getFanOutPolicy() {
+        return fanOutPolicy;
+    }
+
+    private FanOutPolicy getEffectiveFanOutPolicy() {
+        return fanOutPolicy != null ? fanOutPolicy : FanOutPolicy.ALL;
+    }
+
+    public void setFanOutPolicy(FanOutPolicy fanOutPolicy) {
+        this.fanOutPolicy = fanOutPolicy;
+    }
+
+    public ChunkedUploadAssembler.Settings getChunkedUploadSettings() {
+        return chunkedUploadSettings;
+    }
+
+    public void setChunkedUploadSettings(ChunkedUploadAssembler.Settings chunkedUploadSettings) {
+        this.chunkedUploadSettings = chunkedUploadSettings;
+    }
+
+    public WriteMode getMode() {
+        return writer.getMode();
+    }
+
+    private boolean isAppendMode() {
+        return writer.isAppendMode();
+    }
+
+    public void setMode(WriteMode mode) {
+        writer.setMode(mode);
+    }
+
+    public Base64Decoder getBase64Decoder() {
+        return base64Decoder;
+    }
+
+    private Base64Decoder getEffectiveBase64Decoder() {
+        return base64Decoder != null ? base64Decoder : StandardBase64Decoder.getDefault();
+    }
+
+    public void setBase64Decoder(Base64Decoder base64Decoder) {
+        this.base64Decoder = base64Decoder;
+    }
+
+    public long getWriteTimeout() {
+        return writer.getWriteTimeout();
+    }
+
+    /**
+     * @param writeTimeout deadline of a single file write in milliseconds, 0 for none
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        writer.setWriteTimeout(writeTimeout);
+    }
+
+    public FileManifest.Settings getManifestSettings() {
+        return manifestSettings;
+    }
+
+    public void setManifestSettings(FileManifest.Settings manifestSettings) {
+        this.manifestSettings = manifestSettings;
+    }
+
+    public RetentionJanitor.Settings getRetentionSettings() {
+        return retentionSettings;
+    }
+
+    public void setRetentionSettings(RetentionJanitor.Settings retentionSettings) {
+        this.retentionSettings = retentionSettings;
+    }
+
+    public CoalesceMode getCoalesceMode() {
+        return writer.getCoalesceMode();
+    }
+
+    public void setCoalesceMode(CoalesceMode coalesceMode) {
+        writer.setCoalesceMode(coalesceMode);
+    }
+
+    public OutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    private OutputMode getEffectiveOutputMode() {
+        return outputMode != null ? outputMode : OutputMode.REPLACE;
+    }
+
+    public void setOutputMode(OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * @return name of the attribute or property the path is set to, depending on output mode
+     */
+    public String getOutputName() {
+        return outputName;
+    }
+
+    public void setOutputName(String outputName) {
+        this.outputName = outputName;
+    }
+
+    /**
+     * @return directories to choose the primary target directory from for each write, replacing targetDirectory
+     */
+    public StripedTarget getStripedTarget() {
+        return stripedTarget;
+    }
+
+    public void setStripedTarget(StripedTarget stripedTarget) {
+        this.stripedTarget = stripedTarget;
+    }
+
+    public IdempotencyCache.Settings getIdempotencySettings() {
+        return idempotencySettings;
+    }
+
+    public void setIdempotencySettings(IdempotencyCache.Settings idempotencySettings) {
+        this.idempotencySettings = idempotencySettings;
+    }
+
+    public MemoryBudget.Settings getMemoryBudgetSettings() {
+        return memoryBudgetSettings;
+    }
+
+    public void setMemoryBudgetSettings(MemoryBudget.Settings memoryBudgetSettings) {
+        this.memoryBudgetSettings = memoryBudgetSettings;
+    }
+
+    public TargetFileSystem.Settings getFileSystemSettings() {
+        return fileSystemSettings;
+    }
+
+    public void setFileSystemSettings(TargetFileSystem.Settings fileSystemSettings) {
+        this.fileSystemSettings = fileSystemSettings;
+    }
+
+    public FileSystem getTargetFileSystem() {
+        return targetFileSystem;
+    }
+
+    /**
+     * @param targetFileSystem file system to write to instead of the one of the file system settings, e.g. an
+     *                         in-memory file system in tests, or null for the default file system
+     */
+    public void setTargetFileSystem(FileSystem targetFileSystem) {
+        this.targetFileSystem = targetFileSystem;
+    }
+
+    public List<SizeTier> getSizeTiers() {
+        return writer.getSizeTiers();
+    }
+
+    /**
+     * @param sizeTiers tiers in any order, null to disable size based routing
+     */
+    public void setSizeTiers(List<SizeTier> sizeTiers) {
+        writer.setSizeTiers(sizeTiers);
+    }
+
+    private boolean hasTierDirectories() {
+        if (getSizeTiers() != null) {
+            for (SizeTier tier : getSizeTiers()) {
+                if (tier.getTargetDirectory() != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized ExecutorService acquireFanOutExecutor() {
+        if (fanOutExecutor == null) {
+            fanOutExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WriteBinaryFileFanOut-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return fanOutExecutor;
+    }
+
+    private synchronized ChunkedUploadAssembler acquireAssembler() {
+        if (assembler == null) {
+            try {
+                assembler = ChunkedUploadAssembler.acquire(getChunkedUploadSettings().getDirectory(), getChunkedUploadSettings().getIdleTimeout());
+            } catch (IOException e) {
+                throw new SynapseException("Unable to initialize chunked upload directory " + getChunkedUploadSettings().getDirectory(), e);
+            }
+        }
+        return assembler;
+    }
+
+    /**
+     * @return the file system to write to
+     */
+    private FileSystem acquireTargetFileSystem() {
+        FileSystem fileSystem = targetFileSystem;
+        if (fileSystem == null && getFileSystemSettings() != null) {
+            synchronized (this) {
+                if (targetFileSystem == null) {
+                    try {
+                        targetFileSystem = TargetFileSystem.open(getFileSystemSettings());
+                    } catch (IOException e) {
+                        throw new SynapseException("Unable to open file system " + getFileSystemSettings().getUri(), e);
+                    }
+                }
+                fileSystem = targetFileSystem;
+            }
+        }
+        return fileSystem != null ? fileSystem : FileSystems.getDefault();
+    }
+
+    /**
+     * @return given file of given directory on the target file system
+     */
+    private Path resolveTargetPath(String directory, String fileName) {
+        return acquireTargetFileSystem().getPath(directory, fileName);
+    }
+
+    private FileManifest acquireManifest(Path manifestFile) throws IOException {
+        FileManifest manifest = manifests.get(manifestFile);
+        if (manifest == null) {
+            synchronized (manifests) {
+                manifest = manifests.get(manifestFile);
+                if (manifest == null) {
+                    manifest = FileManifest.acquire(manifestFile, getManifestSettings());
+                    manifests.put(manifestFile, manifest);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private synchronized RetentionJanitor acquireJanitor() {
+        if (janitor == null) {
+            janitor = new RetentionJanitor(getRetentionSettings());
+            if (getManifestSettings() != null && getManifestSettings().getFile() != null) {
+                Path manifestFile = acquireTargetFileSystem().getPath(getManifestSettings().getFile().getPath());
+                List<Path> directories = retentionDirectories();
+                if (directories == null) {
+                    log.warn("Not restoring retention records from manifest " + manifestFile
+                            + " as the target directories depend on the message and may contain files of other mediators");
+                } else {
+                    try {
+                        janitor.restore(manifestFile, directories);
+                    } catch (IOException e) {
+                        log.warn("Unable to restore retention records from manifest " + manifestFile, e);
+                    }
+                }
+            }
+            janitor.start();
+        }
+        return janitor;
+    }
+
+    /**
+     * The manifest may be shared with other mediators, so only files of the directories of
+     * this mediator are restored for retention. Templates contribute their literal prefix.
+     *
+     * @return directories this mediator writes to, or null if they depend on XPath expressions
+     */
+    private List<Path> retentionDirectories() {
+        List<String> directories = new ArrayList<String>();
+        if (getTargetDirectory() != null) {
+            directories.add(getTargetDirectory());
+        } else if (getTargetDirectoryTemplate() != null) {
+            directories.add(literalDirectory(getTargetDirectoryTemplate()));
+        } else if (getTargetDirectoryExpression() != null) {
+            return null;
+        }
+        if (getStripedTarget() != null) {
+            for (StripedTarget.Member member : getStripedTarget().getMembers()) {
+                directories.add(member.getDirectory());
+            }
+        }
+        if (getSizeTiers() != null) {
+            for (SizeTier tier : getSizeTiers()) {
+                if (tier.getTargetDirectory() != null) {
+                    directories.add(tier.getTargetDirectory());
+                }
+            }
+        }
+        if (getAdditionalTargetDirectories() != null) {
+            for (FanOutTarget target : getAdditionalTargetDirectories()) {
+                if (target.getValue() != null) {
+                    directories.add(target.getValue());
+                } else if (target.getTemplate() != null) {
+                    directories.add(literalDirectory(target.getTemplate()));
+                } else {
+                    return null;
+                }
+            }
+        }
+        List<Path> paths = new ArrayList<Path>();
+        for (String directory : directories) {
+            if (directory == null) {
+                // template starting with a placeholder
+                return null;
+            }
+            paths.add(acquireTargetFileSystem().getPath(directory));
+        }
+        return paths;
+    }
+
+    /**
+     * @return the directory part of the literal prefix of given template, null if there is none
+     */
+    private String literalDirectory(FileNameTemplate template) {
+        String prefix = template.getLiteralPrefix();
+        if (prefix.length() == template.getPattern().length()) {
+            return prefix;
+        }
+        int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        return separator < 0 ? null : prefix.substring(0, separator + 1);
+    }
+
+    /**
+     * Records a completely written file in the manifest and for retention, if configured.
+     */
+    private void recordWrittenFile(Path file, long size, MessageContext messageContext) {
+        if (getRetentionSettings() != null) {
+            acquireJanitor().record(file.toAbsolutePath(), System.currentTimeMillis());
+        }
+        if (getManifestSettings() != null) {
+            recordInManifest(file, size, messageContext);
+        }
+    }
+
+    /**
+     * The file has been written already, so a manifest failure is logged instead of failing mediation.
+     */
+    private void recordInManifest(Path file, long size, MessageContext messageContext) {
+        Path manifestFile = getManifestSettings().manifestFor(file);
+        try {
+            FileManifest manifest = acquireManifest(manifestFile);
+            while (!manifest.record(file.toAbsolutePath().toString(), size, null, messageContext.getMessageID())) {
+                // released as idle meanwhile
+                manifests.remove(manifestFile, manifest);
+                manifest = acquireManifest(manifestFile);
+            }
+        } catch (IllegalArgumentException e) {
+            handleException(e.getMessage(), e, messageContext);
+        } catch (IOException e) {
+            log.error("Unable to record " + file + " in manifest " + manifestFile, e);
+        }
+        long now = System.currentTimeMillis();
+        long lastSweep = lastManifestSweep.get();
+        if (now - lastSweep >= MANIFEST_SWEEP_INTERVAL && lastManifestSweep.compareAndSet(lastSweep, now)) {
+            releaseIdleManifests(now);
+        }
+    }
+
+    /**
+     * Releases manifests without records for {@link #MANIFEST_IDLE_TIMEOUT}.
+     *
+     * @return number of manifests released
+     */
+    int releaseIdleManifests(long now) {
+        int released = 0;
+        for (Map.Entry<Path, FileManifest> entry : manifests.entrySet()) {
+            FileManifest manifest = entry.getValue();
+            if (now - manifest.getLastRecorded() >= MANIFEST_IDLE_TIMEOUT && manifests.remove(entry.getKey(), manifest)) {
+                manifest.release();
+                released++;
+            }
+        }
+        return released;
+    }
+
+    private synchronized IdempotencyCache acquireIdempotencyCache() {
+        if (idempotencyCache == null) {
+            File file = getIdempotencySettings().getFile();
+            try {
+                idempotencyCache = IdempotencyCache.open(getIdempotencySettings(),
+                        file != null ? file.getPath() : getClass().getSimpleName() + "-" + Integer.toHexString(System.identityHashCode(this)),
+                        acquireTargetFileSystem());
+            } catch (IOException e) {
+                throw new SynapseException("Unable to initialize idempotency journal " + file, e);
+            }
+        }
+        return idempotencyCache;
+    }
+
+    private synchronized SpoolDirectory acquireSpool() {
+        if (spool == null) {
+            try {
+                spool = SpoolDirectory.acquire(getSpoolSettings(), acquireTargetFileSystem());
+            } catch (IOException e) {
+                throw new SynapseException("Unable to initialize spool directory " + getSpoolSettings().getDirectory(), e);
+            }
+        }
+        return spool;
+    }
+
+    private void replaceBinaryElementContent(Object node, String fullPath, MessageContext messageContext) {
         OMElement element = digIntoOmElement(node);
-        element.setText(fullPath);
+        switch (getEffectiveOutputMode()) {
+            case REMOVE:
+                element.detach();
+                break;
+            case ATTRIBUTE:
+                element.setText("");
+                element.addAttribute(getOutputName(), fullPath, null);
+                break;
+            case PROPERTY:
+                element.setText("");
+                messageContext.setProperty(getOutputName(), fullPath);
+                break;
+            default:
+                element.setText(fullPath);
+        }
     }
 
     private Object findNodeWithBinaryContent(MessageContext messageContext) {
@@ -158,62 +969,457 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         }
     }
 
-    private String writeNodeContentsToFile(Object node, MessageContext messageContext) {
-        OMText text = digIntoOmText(node, messageContext);
+    private String writeNodeContentsToFile(Object node, WriteRequest request) {
+        OMText text = digIntoOmText(node, request.messageContext);
 
         if (text != null) {
-            text.setBinary(true);
-
-            return writeOmTextToFile(messageContext, text);
+            request.content = BinaryContent.fromOMText(text, getEffectiveBase64Decoder());
+            if (getSizeTiers() != null) {
+                selectSizeTier(request);
+            }
+            // content written to several targets is decoded into memory once for all of them
+            if (getMemoryBudgetSettings() != null && (request.content.decodesIntoMemory() || getAdditionalTargetDirectories() != null)) {
+                request.reservation = reserveMemory(request);
+            }
+            try {
+                return writeOmTextToFile(request);
+            } finally {
+                releaseMemory(request);
+            }
         } else {
             log.info("No content found in binary element " + getBinaryElementXPath() + ", not writing output file");
             return null;
         }
     }
 
-    private String writeOmTextToFile(MessageContext messageContext, OMText text) {
-        final String targetFilePath = resolveOutputFilePath(messageContext);
-        FileOutputStream out = null;
+    /**
+     * @return the reservation, or null if the size of the content is unknown, e.g. for MTOM
+     * attachments that are not copied when decoded
+     */
+    private MemoryBudget.Reservation reserveMemory(WriteRequest request) {
+        long estimatedSize = request.content.estimateSize();
+        if (estimatedSize == PayloadSizeEstimator.UNKNOWN_SIZE) {
+            return null;
+        }
         try {
-            File targetFile = new File(targetFilePath);
-            if (!isAllowOverWrite() && targetFile.exists()) {
-                log.warn("File " + targetFilePath + " exists, refusing to overwrite it as overwriting is disabled in configuration");
-            } else {
-                out = new FileOutputStream(targetFile);
-                Object dataHandler = text.getDataHandler();
-                if (dataHandler == null) {
-                    handleException("Unable to extract DataHandler from OMText", messageContext);
+            return MemoryBudget.getInstance().acquire(estimatedSize, getMemoryBudgetSettings().getTimeout());
+        } catch (MemoryBudget.ExhaustedException e) {
+            request.messageContext.setProperty(RESULT_PROPERTY, RESULT_OVER_BUDGET);
+            handleException(e.getMessage(), e, request.messageContext);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handleException("Interrupted while waiting for memory budget", e, request.messageContext);
+        }
+        return null;
+    }
+
+    /**
+     * Releases the memory budget of the request once neither the mediating thread nor any
+     * copy to an additional target directory uses the decoded content any more.
+     */
+    private static void releaseMemory(WriteRequest request) {
+        if (request.memoryUsers.decrementAndGet() == 0 && request.reservation != null) {
+            request.reservation.release();
+        }
+    }
+
+    private void selectSizeTier(WriteRequest request) {
+        try {
+            request.tier = writer.selectTier(request.content);
+        } catch (IOException e) {
+            handleException(e.getMessage(), request.messageContext);
+        }
+        if (request.tier.getTargetDirectory() != null) {
+            request.directory = request.tier.getTargetDirectory();
+            if (getCircuitBreakerSettings() != null) {
+                request.circuitBreaker = acquireCircuitBreaker(request.directory, request.messageContext);
+            }
+        }
+    }
+
+    /**
+     * Streams the JSON payload, decoding the selected field straight to the file and
+     * replacing it with the path, without building an XML representation of the payload.
+     */
+    private String writeJsonFieldToFile(final WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        if (!(messageContext instanceof Axis2MessageContext)) {
+            handleException("JSON payloads are only supported in Axis2 message contexts", messageContext);
+        }
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).getAxis2MessageContext();
+        if (!JsonUtil.hasAJsonPayload(axis2MessageContext)) {
+            handleException("Message has no JSON payload for binary JSON path " + getBinaryJsonPath(), messageContext);
+        }
+        InputStream json = JsonUtil.getJsonPayload(axis2MessageContext);
+        if (json == null) {
+            handleException("Unable to read JSON payload", messageContext);
+        }
+
+        final String[] fullPath = new String[1];
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        try {
+            boolean found = JsonBinaryFieldRewriter.rewrite(new InputStreamReader(json, JSON_ENCODING), new OutputStreamWriter(rewritten, JSON_ENCODING),
+                    getBinaryJsonPath(), new JsonBinaryFieldRewriter.FieldHandler() {
+                        @Override
+                        public String handle(Reader value) {
+                            if (request.duplicatePath != null) {
+                                fullPath[0] = answerDuplicate(request);
+                                return fullPath[0];
+                            }
+                            if (request.event != null) {
+                                // decoded while writing
+                                request.decodeStartNanos = System.nanoTime();
+                            }
+                            request.content = BinaryContent.fromStream(new Base64DecodingInputStream(value));
+                            fullPath[0] = writeDecodedContent(request);
+                            return fullPath[0];
+                        }
+                    });
+            if (!found) {
+                handleException("No string value found in JSON payload with binary JSON path " + getBinaryJsonPath(), messageContext);
+            }
+            // the original payload stream has been consumed, so it is replaced even if the file was skipped
+            JsonUtil.newJsonPayload(axis2MessageContext, new ByteArrayInputStream(rewritten.toByteArray()), true, true);
+        } catch (IOException e) {
+            handleException("Error while processing JSON payload", e, messageContext);
+        }
+        return fullPath[0];
+    }
+
+    private String writeOmTextToFile(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        // every target reads the content through its own stream of the same DataHandler
+        if (request.event != null) {
+            request.decodeStartNanos = System.nanoTime();
+        }
+        DataHandler dataHandler = null;
+        try {
+            dataHandler = request.content.getDataHandler();
+        } catch (IOException e) {
+            handleException("Unable to decode binary content", e, messageContext);
+        }
+        if (request.event != null) {
+            request.decodeNanos = System.nanoTime() - request.decodeStartNanos;
+        }
+        if (dataHandler == null) {
+            handleException("Unable to extract DataHandler from OMText", messageContext);
+        }
+        return writeDecodedContent(request);
+    }
+
+    private String writeDecodedContent(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        if (getChunkedUploadSettings() != null) {
+            return writeChunk(request);
+        }
+        if (getEncryptionSettings() != null) {
+            request.encryptionKey = resolveEncryptionKey(messageContext);
+        }
+        request.fileName = resolveOutputFileName(messageContext);
+
+        if (getAdditionalTargetDirectories() != null) {
+            return writeToAllTargets(request);
+        }
+        return writeToPrimaryTarget(request);
+    }
+
+    private String writeChunk(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        ChunkedUploadAssembler.Settings settings = getChunkedUploadSettings();
+        String uploadId = settings.getUploadIdExpression().stringValueOf(messageContext);
+        int chunkIndex = evaluateChunkNumber(settings.getChunkIndexExpression(), messageContext);
+        int totalChunks = evaluateChunkNumber(settings.getTotalChunksExpression(), messageContext);
+        if (totalChunks > settings.getMaxChunks()) {
+            handleException("Upload " + uploadId + " has " + totalChunks + " chunks, more than the maximum " + settings.getMaxChunks(), messageContext);
+        }
+        ChunkedUploadAssembler assembler = acquireAssembler();
+
+        ChunkedUploadAssembler.ChunkResult result = null;
+        try {
+            InputStream in = request.content.getDataHandler().getInputStream();
+            try {
+                result = assembler.writeChunk(uploadId, chunkIndex, totalChunks, settings.getChunkSize(), in);
+            } finally {
+                in.close();
+            }
+        } catch (IllegalArgumentException e) {
+            handleException("Invalid chunk " + chunkIndex + " of " + totalChunks + " for upload " + uploadId, e, messageContext);
+        } catch (IOException e) {
+            handleException("Error while writing chunk " + chunkIndex + " of upload " + uploadId, e, messageContext);
+        }
+        messageContext.setProperty(RECEIVED_CHUNKS_PROPERTY, String.valueOf(result.getReceivedChunks()));
+        if (!result.isCompleted()) {
+            String path = assembler.getDataFile(uploadId).getPath();
+            messageContext.setProperty(RESULT_PROPERTY, RESULT_CHUNK_RECEIVED);
+            messageContext.setProperty(PATH_PROPERTY, path);
+            return path;
+        }
+
+        Path targetFile = resolveTargetPath(resolveTargetDirectory(messageContext), resolveOutputFileName(messageContext));
+        long size = 0;
+        try {
+            size = assembler.publish(uploadId, targetFile);
+        } catch (IOException e) {
+            handleException("Error while publishing assembled upload " + uploadId + " as " + targetFile, e, messageContext);
+        }
+        recordWrittenFile(targetFile, size, messageContext);
+        messageContext.setProperty(RESULT_PROPERTY, RESULT_ASSEMBLED);
+        messageContext.setProperty(PATH_PROPERTY, targetFile.toString());
+        return targetFile.toString();
+    }
+
+    private int evaluateChunkNumber(SynapseXPath expression, MessageContext messageContext) {
+        String value = expression.stringValueOf(messageContext);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (RuntimeException e) {
+            handleException("Expected a number from " + expression + ", got " + value, e, messageContext);
+            return -1;
+        }
+    }
+
+    private String writeToAllTargets(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        decodeOnce(request);
+        List<String> directories = new ArrayList<String>();
+        // all resolved before any copy starts, so that a failure cannot leave copies running
+        for (FanOutTarget target : getAdditionalTargetDirectories()) {
+            directories.add(resolveAdditionalTargetDirectory(target, messageContext));
+        }
+        List<Future<String>> copies = new ArrayList<Future<String>>();
+        for (String directory : directories) {
+            copies.add(submitAdditionalCopy(request, resolveTargetPath(directory, request.fileName)));
+        }
+
+        String primaryPath = null;
+        SynapseException primaryFailure = null;
+        try {
+            primaryPath = writeToPrimaryTarget(request);
+        } catch (SynapseException e) {
+            primaryFailure = e;
+        }
+
+        String firstAdditionalPath = null;
+        Throwable additionalTimeout = null;
+        StringBuilder failedTargets = new StringBuilder();
+        for (int i = 0; i < copies.size(); i++) {
+            try {
+                String path = copies.get(i).get();
+                messageContext.setProperty(ADDITIONAL_PATH_PROPERTY_PREFIX + (i + 1), path);
+                if (firstAdditionalPath == null) {
+                    firstAdditionalPath = path;
+                }
+            } catch (ExecutionException e) {
+                log.warn("Error while writing output file to additional target directory " + directories.get(i), e.getCause());
+                if (e.getCause() instanceof WriteWatchdog.WriteTimeoutException) {
+                    additionalTimeout = e.getCause();
                 }
-                ((DataHandler) dataHandler).writeTo(out);
-                return targetFilePath;
+                failedTargets.append(failedTargets.length() > 0 ? "," : "").append(directories.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handleException("Interrupted while waiting for writes to additional target directories", e, messageContext);
+            }
+        }
+        if (primaryFailure != null) {
+            failedTargets.insert(0, failedTargets.length() > 0 ? "," : "").insert(0, request.directory != null ? request.directory : "primary");
+        }
+        if (failedTargets.length() > 0) {
+            messageContext.setProperty(FAILED_TARGETS_PROPERTY, failedTargets.toString());
+        }
+
+        if (getEffectiveFanOutPolicy() == FanOutPolicy.ALL) {
+            if (primaryFailure != null) {
+                throw primaryFailure;
+            }
+            if (failedTargets.length() > 0) {
+                markFailureResult(additionalTimeout, messageContext);
+                handleException("Error while writing output file to target directories " + failedTargets, messageContext);
             }
+        } else if (primaryFailure != null) {
+            if (firstAdditionalPath == null) {
+                throw primaryFailure;
+            }
+            log.warn("Writing to primary target directory failed, returning path in additional target directory " + firstAdditionalPath);
+            messageContext.setProperty(RESULT_PROPERTY, isAppendMode() ? RESULT_APPENDED : RESULT_WRITTEN);
+            messageContext.setProperty(PATH_PROPERTY, firstAdditionalPath);
+            return firstAdditionalPath;
+        }
+        return primaryPath;
+    }
+
+    /**
+     * Decodes content that every target would otherwise decode again while reading it.
+     */
+    private void decodeOnce(WriteRequest request) {
+        long started = System.nanoTime();
+        try {
+            request.content = request.content.decodeOnce();
         } catch (IOException e) {
-            handleException("Error while writing output file " + targetFilePath, e, messageContext);
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
+            handleException("Unable to decode binary content", e, request.messageContext);
+        }
+        if (request.event != null) {
+            request.decodeNanos += System.nanoTime() - started;
+        }
+    }
+
+        private String resolveAdditionalTargetDirectory(FanOutTarget target, MessageContext messageContext) {
+        try {
+            String directory = target.resolve(messageContext);
+            if (directory == null) {
+                handleException("Unable to determine additional target directory using " + target, messageContext);
+            }
+            return directory;
+        } catch (JaxenException e) {
+            handleException("Error while resolving additional target directory " + target, e, messageContext);
+            return null;
+        }
+    }
+
+    private Future<String> submitAdditionalCopy(final WriteRequest request, final Path targetFile) {
+        request.memoryUsers.incrementAndGet();
+        try {
+            return acquireFanOutExecutor().submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    try {
+                        return writeAdditionalCopy(request, targetFile);
+                    } finally {
+                        releaseMemory(request);
+                    }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseMemory(request);
+            throw e;
+        }
+    }
+
+    private String writeAdditionalCopy(WriteRequest request, Path targetFile) throws IOException {
+        BinaryFileWriter.ensureParentDirectoryExists(targetFile);
+        // an existing copy always fails the copy, the collision policy applies to the primary target
+        BinaryFileWriter.Result result = writer.write(request.content, targetFile, request.tier, request.encryptionKey, CollisionPolicy.FAIL);
+        if (result.getOutcome() != BinaryFileWriter.Outcome.SUPERSEDED) {
+            recordWrittenFile(result.getPath(), result.getSize(), request.messageContext);
+        }
+        return targetFile.toString();
+    }
+
+    private String writeToPrimaryTarget(WriteRequest request) {
+        MessageContext messageContext = request.messageContext;
+        String directory = request.directory != null ? request.directory : resolveTargetDirectory(messageContext);
+        Path targetFile = resolveTargetPath(directory, request.fileName);
+        if (getSpoolSettings() != null) {
+            return writeOmTextToSpool(request, targetFile);
+        }
+        String target = targetFile.toString();
+        if (isTemplateConfigured()) {
+            // templates may expand to subdirectories, e.g. {yyyy}/{MM}
+            BinaryFileWriter.ensureParentDirectoryExists(targetFile);
+        }
+        BinaryFileWriter.Result result = null;
+        try {
+            result = writer.write(request.content, targetFile, request.tier, request.encryptionKey);
+        } catch (BinaryFileWriter.CollisionException e) {
+            handleException(e.getMessage(), messageContext);
+        } catch (IOException e) {
+            recordStorageFailure(request, e);
+            markFailureResult(e, messageContext);
+            handleException("Error while writing output file " + target, e, messageContext);
+        }
+        switch (result.getOutcome()) {
+            case SKIPPED:
+                messageContext.setProperty(RESULT_PROPERTY, RESULT_SKIPPED);
+                return null;
+            case SUPERSEDED:
+                messageContext.setProperty(RESULT_PROPERTY, RESULT_SUPERSEDED);
+                messageContext.setProperty(PATH_PROPERTY, target);
+                return target;
+            case APPENDED:
+                messageContext.setProperty(RESULT_PROPERTY, RESULT_APPENDED);
+                break;
+            case RENAMED:
+                messageContext.setProperty(RESULT_PROPERTY, RESULT_RENAMED);
+                break;
+            default:
+                messageContext.setProperty(RESULT_PROPERTY, RESULT_WRITTEN);
+        }
+        request.writeNanos = result.getWriteNanos();
+        request.writtenBytes = result.getSize();
+        recordWrittenFile(result.getPath(), result.getSize(), messageContext);
+        messageContext.setProperty(PATH_PROPERTY, result.getPath().toString());
+        return result.getPath().toString();
+    }
+
+    private void recordStorageFailure(WriteRequest request, IOException e) {
+        // invalid content, interruptions and busy tiers say nothing about the health of the target directory
+        if (request.circuitBreaker != null && !(e instanceof Base64DecodingInputStream.MalformedBase64Exception) && !(e instanceof InterruptedIOException)
+                && !(e instanceof SizeTier.BusyException)) {
+            request.circuitBreaker.recordFailure();
+        }
+    }
+
+    /**
+     * Sets the result and error code seen by the fault sequence when the write was abandoned,
+     * and the result when the size tier had no free lane.
+     */
+    private void markFailureResult(Throwable failure, MessageContext messageContext) {
+        if (failure instanceof WriteWatchdog.WriteTimeoutException) {
+            messageContext.setProperty(RESULT_PROPERTY, RESULT_TIMED_OUT);
+            messageContext.setProperty(SynapseConstants.ERROR_CODE, WRITE_TIMEOUT_ERROR_CODE);
+            messageContext.setProperty(SynapseConstants.ERROR_MESSAGE, failure.getMessage());
+        } else if (failure instanceof SizeTier.BusyException) {
+            messageContext.setProperty(RESULT_PROPERTY, RESULT_BUSY);
+        }
+    }
+
+    private String writeOmTextToSpool(WriteRequest request, Path targetFile) {
+        MessageContext messageContext = request.messageContext;
+        SpoolDirectory spool = acquireSpool();
+        File partFile = spool.newPartFile();
+        File spooledFile = null;
+        try {
+            writer.writeContent(request.content, partFile, request.tier, request.encryptionKey);
+            spooledFile = spool.publish(partFile, targetFile);
+        } catch (IOException e) {
+            recordStorageFailure(request, e);
+            markFailureResult(e, messageContext);
+            handleException("Error while writing spool file " + partFile.getPath() + " for " + targetFile, e, messageContext);
+        } finally {
+            if (spooledFile == null && !partFile.delete() && partFile.exists()) {
+                log.warn("Unable to remove incomplete spool file " + partFile.getPath());
             }
         }
-        return null;
+        request.spooledFile = spooledFile;
+        request.spoolTargetPath = targetFile.toString();
+        String path = getSpoolSettings().isReturnSpoolPath() ? spooledFile.getPath() : targetFile.toString();
+        messageContext.setProperty(RESULT_PROPERTY, RESULT_SPOOLED);
+        messageContext.setProperty(PATH_PROPERTY, path);
+        return path;
+    }
+
+    private boolean isTemplateConfigured() {
+        return getTargetDirectoryTemplate() != null || getTargetFileNameTemplate() != null;
     }
 
-    private String resolveOutputFilePath(MessageContext messageContext) {
+    private String resolveOutputFileName(MessageContext messageContext) {
         String fileName = resolveTargetFileName(messageContext);
 
-        if (isForceUniqueFileName()) {
-            fileName = messageContext.getMessageID() + "_" + fileName;
+        if (isGeneratedUniqueFileName()) {
+            fileName = UniqueFileNameGenerator.getInstance().next() + "_" + fileName;
+        } else if (isForceUniqueFileName()) {
+            fileName = UniqueFileNameGenerator.toFileName(messageContext.getMessageID()) + "_" + fileName;
         }
 
-        return resolveTargetDirectory(messageContext) + File.separator + fileName;
+        return fileName;
     }
 
     private String resolveTargetFileName(MessageContext messageContext) {
         if (getTargetFileName() != null) {
             return getTargetFileName();
         }
+        if (getTargetFileNameTemplate() != null) {
+            return resolveTemplate(getTargetFileNameTemplate(), messageContext);
+        }
         SynapseXPath targetFileNameXPath = getTargetFileNameExpression();
         try {
             String fileName = digIntoTextValue(targetFileNameXPath, messageContext);
@@ -231,6 +1437,9 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         if (getTargetDirectory() != null) {
             return getTargetDirectory();
         }
+        if (getTargetDirectoryTemplate() != null) {
+            return resolveTemplate(getTargetDirectoryTemplate(), messageContext);
+        }
         SynapseXPath targetDirectoryXPath = getTargetDirectoryExpression();
         try {
             String directory = digIntoTextValue(targetDirectoryXPath, messageContext);
@@ -244,6 +1453,15 @@ public class WriteBinaryFileMediator extends AbstractMediator {
         }
     }
 
+    private String resolveTemplate(FileNameTemplate template, MessageContext messageContext) {
+        try {
+            return template.resolve(messageContext);
+        } catch (JaxenException e) {
+            handleException("Error while resolving template " + template, e, messageContext);
+            return null;
+        }
+    }
+
     private String digIntoTextValue(SynapseXPath xPath, MessageContext messageContext) throws JaxenException {
         Object evaluationResult = xPath.evaluate(messageContext);
 
@@ -304,15 +1522,49 @@ public class WriteBinaryFileMediator extends AbstractMediator {
     }
 
     private void validateState(MessageContext messageContext) {
-        if (getBinaryElementXPath() == null) {
+        if (getBinaryElementXPath() == null && getBinaryJsonPath() == null) {
             handleException("Binary element XPath not specified in mediator configuration", messageContext);
         }
-        if (getTargetDirectory() == null && getTargetDirectoryExpression() == null) {
+        if (getTargetDirectory() == null && getTargetDirectoryExpression() == null && getTargetDirectoryTemplate() == null && getStripedTarget() == null) {
             handleException("Target directory not specified in mediator configuration", messageContext);
         }
-        if (getTargetFileName() == null && getTargetFileNameExpression() == null) {
+        if (getTargetFileName() == null && getTargetFileNameExpression() == null && getTargetFileNameTemplate() == null) {
             handleException("Target file name not specified in mediator configuration", messageContext);
         }
     }
 
+    /**
+     * State of a single mediation collected while the write progresses.
+     */
+    private static final class WriteRequest {
+        private final MessageContext messageContext;
+        private String directory;
+        private DirectoryCircuitBreaker circuitBreaker;
+        private SizeTier tier;
+        private BinaryContent content;
+        private SecretKey encryptionKey;
+        private String fileName;
+        private StripedTarget.Member stripeMember;
+        private String idempotencyKey;
+        private String duplicatePath;
+        private boolean idempotencyReserved;
+        private File spooledFile;
+        private String spoolTargetPath;
+        private long writtenBytes;
+        private long writeNanos;
+        private String fullPath;
+        private WriteEvent event;
+        private Object previousResult;
+        private long startNanos;
+        private long decodeStartNanos;
+        private long decodeNanos;
+        private MemoryBudget.Reservation reservation;
+        // the mediating thread and running copies to additional target directories
+        private final AtomicInteger memoryUsers = new AtomicInteger(1);
+
+        private WriteRequest(MessageContext messageContext) {
+            this.messageContext = messageContext;
+        }
+    }
+
 }
@@ -28,12 +28,68 @@ public final class WriteBinaryFileMediatorConfigConstants {
     public static final String ROOT_TAG_NAME = "writeBinaryFile";
     public static final QName ATTRIBUTE_VALUE = new QName(null, "value");
     public static final QName ATTRIBUTE_EXPRESSION = new QName(null, "expression");
+    public static final QName ATTRIBUTE_TEMPLATE = new QName(null, "template");
+    public static final QName ATTRIBUTE_FAILURE_RATE_THRESHOLD = new QName(null, "failureRateThreshold");
+    public static final QName ATTRIBUTE_MINIMUM_CALLS = new QName(null, "minimumCalls");
+    public static final QName ATTRIBUTE_COOLDOWN = new QName(null, "cooldown");
+    public static final QName ATTRIBUTE_DIRECTORY = new QName(null, "directory");
+    public static final QName ATTRIBUTE_MOVER_THREADS = new QName(null, "moverThreads");
+    public static final QName ATTRIBUTE_INTERIM_PATH = new QName(null, "interimPath");
+    public static final QName ATTRIBUTE_MAX_ATTEMPTS = new QName(null, "maxAttempts");
+    public static final QName ATTRIBUTE_MAX_SIZE = new QName(null, "maxSize");
+    public static final QName ATTRIBUTE_TARGET_DIRECTORY = new QName(null, "targetDirectory");
+    public static final QName ATTRIBUTE_STRATEGY = new QName(null, "strategy");
+    public static final QName ATTRIBUTE_CONCURRENCY = new QName(null, "concurrency");
+    public static final QName ATTRIBUTE_KEY = new QName(null, "key");
+    public static final QName ATTRIBUTE_KEY_EXPRESSION = new QName(null, "keyExpression");
+    public static final QName ATTRIBUTE_CHUNK_SIZE = new QName(null, "chunkSize");
+    public static final QName ATTRIBUTE_UPLOAD_ID = new QName(null, "uploadId");
+    public static final QName ATTRIBUTE_CHUNK_INDEX = new QName(null, "chunkIndex");
+    public static final QName ATTRIBUTE_TOTAL_CHUNKS = new QName(null, "totalChunks");
+    public static final QName ATTRIBUTE_MAX_CHUNKS = new QName(null, "maxChunks");
+    public static final QName ATTRIBUTE_IDLE_TIMEOUT = new QName(null, "idleTimeout");
+    public static final QName ATTRIBUTE_FILE = new QName(null, "file");
+    public static final QName ATTRIBUTE_NAME = new QName(null, "name");
+    public static final QName ATTRIBUTE_BATCH_SIZE = new QName(null, "batchSize");
+    public static final QName ATTRIBUTE_FLUSH_INTERVAL = new QName(null, "flushInterval");
+    public static final QName ATTRIBUTE_MAX_FILES = new QName(null, "maxFiles");
+    public static final QName ATTRIBUTE_MAX_AGE = new QName(null, "maxAge");
+    public static final QName ATTRIBUTE_BUCKET = new QName(null, "bucket");
+    public static final QName ATTRIBUTE_DELETES_PER_SECOND = new QName(null, "deletesPerSecond");
+    public static final QName ATTRIBUTE_POLICY = new QName(null, "policy");
+    public static final QName ATTRIBUTE_WEIGHT = new QName(null, "weight");
+    public static final QName ATTRIBUTE_MAX_ENTRIES = new QName(null, "maxEntries");
+    public static final QName ATTRIBUTE_TIMEOUT = new QName(null, "timeout");
+    public static final QName ATTRIBUTE_URI = new QName(null, "uri");
+    public static final QName ATTRIBUTE_PROVIDER = new QName(null, "provider");
+    public static final String INTERIM_PATH_FINAL = "final";
+    public static final String INTERIM_PATH_SPOOL = "spool";
     public static final QName ROOT_TAG = new QName(NAMESPACE_STRING, ROOT_TAG_NAME);
     public static final QName BINARY_ELEMENT_XPATH_TAG = new QName(NAMESPACE_STRING, "binaryElementXPath");
+    public static final QName BINARY_JSON_PATH_TAG = new QName(NAMESPACE_STRING, "binaryJsonPath");
     public static final QName TARGET_DIRECTORY_TAG = new QName(NAMESPACE_STRING, "targetDirectory");
     public static final QName TARGET_FILE_NAME_TAG = new QName(NAMESPACE_STRING, "targetFileName");
     public static final QName FORCE_UNIQUE_FILE_NAME_TAG = new QName(NAMESPACE_STRING, "forceUniqueFileName");
     public static final QName ALLOW_OVERWRITE_TAG = new QName(NAMESPACE_STRING, "allowOverwrite");
+    public static final QName ON_COLLISION_TAG = new QName(NAMESPACE_STRING, "onCollision");
+    public static final QName CIRCUIT_BREAKER_TAG = new QName(NAMESPACE_STRING, "circuitBreaker");
+    public static final QName SPOOL_TAG = new QName(NAMESPACE_STRING, "spool");
+    public static final QName SIZE_TIER_TAG = new QName(NAMESPACE_STRING, "sizeTier");
+    public static final QName FAN_OUT_POLICY_TAG = new QName(NAMESPACE_STRING, "fanOutPolicy");
+    public static final QName ENCRYPTION_TAG = new QName(NAMESPACE_STRING, "encryption");
+    public static final QName CHUNKED_UPLOAD_TAG = new QName(NAMESPACE_STRING, "chunkedUpload");
+    public static final QName MODE_TAG = new QName(NAMESPACE_STRING, "mode");
+    public static final QName BASE64_DECODER_TAG = new QName(NAMESPACE_STRING, "base64Decoder");
+    public static final QName WRITE_TIMEOUT_TAG = new QName(NAMESPACE_STRING, "writeTimeout");
+    public static final QName MANIFEST_TAG = new QName(NAMESPACE_STRING, "manifest");
+    public static final QName RETENTION_TAG = new QName(NAMESPACE_STRING, "retention");
+    public static final QName COALESCE_TAG = new QName(NAMESPACE_STRING, "coalesce");
+    public static final QName OUTPUT_TAG = new QName(NAMESPACE_STRING, "output");
+    public static final QName STRIPE_TAG = new QName(NAMESPACE_STRING, "stripe");
+    public static final QName DIRECTORY_TAG = new QName(NAMESPACE_STRING, "directory");
+    public static final QName IDEMPOTENCY_TAG = new QName(NAMESPACE_STRING, "idempotency");
+    public static final QName MEMORY_BUDGET_TAG = new QName(NAMESPACE_STRING, "memoryBudget");
+    public static final QName FILE_SYSTEM_TAG = new QName(NAMESPACE_STRING, "fileSystem");
 
     private WriteBinaryFileMediatorConfigConstants() {
         // suppress default constructor as class contains constant definitions only
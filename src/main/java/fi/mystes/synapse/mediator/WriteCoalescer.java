@@ -0,0 +1,323 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates writes of concurrent messages to the same target file, so that two
+ * streams never write the same file at the same time.
+ * <p/>
+ * Writers of a file take turns in arrival order. A writer in
+ * {@link CoalesceMode#SUPERSEDE} mode cancels all earlier writers of the file:
+ * waiting ones give up without touching the file and the one writing has its
+ * channel closed, the same way {@link WriteWatchdog} abandons stalled writes.
+ * A superseded writer learns the outcome of the write that superseded it with
+ * {@link Ticket#awaitSupersedingWrite()}, so that it reports its message as
+ * superseded only once the file holds the later content, and fails with the later
+ * write otherwise. The coalescer is shared by all mediator instances of the JVM.
+ */
+public final class WriteCoalescer {
+
+    private static final Log log = LogFactory.getLog(WriteCoalescer.class);
+
+    private static final WriteCoalescer INSTANCE = new WriteCoalescer();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writeFinished = lock.newCondition();
+    private final Map<Path, PathQueue> queues = new HashMap<Path, PathQueue>();
+
+    WriteCoalescer() {
+    }
+
+    public static WriteCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits until it is the turn of the caller to write given file. The returned
+     * ticket must always be released with {@link Ticket#release()}.
+     *
+     * @return ticket of the write, already superseded if a later writer arrived while waiting
+     */
+    public Ticket enter(File file, CoalesceMode mode) throws InterruptedException {
+        return enter(file.toPath(), mode);
+    }
+
+    /**
+     * Waits until it is the turn of the caller to write given file of any file system.
+     */
+    public Ticket enter(Path file, CoalesceMode mode) throws InterruptedException {
+        // paths of different file systems never equal each other
+        Path path = file.toAbsolutePath();
+        Channel cancelled = null;
+        Ticket ticket;
+        lock.lock();
+        try {
+            PathQueue queue = queues.get(path);
+            if (queue == null) {
+                queue = new PathQueue(path, lock.newCondition());
+                queues.put(path, queue);
+            }
+            ticket = new Ticket(queue);
+            if (mode == CoalesceMode.SUPERSEDE) {
+                cancelled = queue.supersedeAll(ticket);
+            }
+            queue.tickets.add(ticket);
+        } finally {
+            lock.unlock();
+        }
+        // closed outside the lock, as closing waits for the writing thread to leave the channel
+        close(cancelled, path);
+        lock.lock();
+        try {
+            while (ticket.queue.tickets.peek() != ticket && !ticket.superseded) {
+                ticket.queue.turn.await();
+            }
+        } catch (InterruptedException e) {
+            ticket.released = true;
+            leave(ticket);
+            writeFinished.signalAll();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        return ticket;
+    }
+
+    private void leave(Ticket ticket) {
+        PathQueue queue = ticket.queue;
+        queue.tickets.remove(ticket);
+        if (queue.tickets.isEmpty()) {
+            // superseded tickets are released after their queue may have been replaced
+            if (queues.get(queue.path) == queue) {
+                queues.remove(queue.path);
+            }
+        } else {
+            queue.turn.signalAll();
+        }
+    }
+
+    private static void close(Channel channel, Path path) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close channel of superseded write to " + path, e);
+            }
+        }
+    }
+
+    /**
+     * @return number of files with writers writing or waiting
+     */
+    int getActivePathCount() {
+        lock.lock();
+        try {
+            return queues.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writers of a single file, the first one of which is writing.
+     */
+    private static final class PathQueue {
+        private final Path path;
+        private final Condition turn;
+        private final ArrayDeque<Ticket> tickets = new ArrayDeque<Ticket>();
+
+        private PathQueue(Path path, Condition turn) {
+            this.path = path;
+            this.turn = turn;
+        }
+
+        /**
+         * @return channel of the write in progress, to be closed outside the lock
+         */
+        private Channel supersedeAll(Ticket superseding) {
+            if (tickets.isEmpty()) {
+                return null;
+            }
+            Ticket writing = tickets.poll();
+            writing.supersede(superseding);
+            for (Ticket waiting : tickets) {
+                waiting.supersede(superseding);
+            }
+            tickets.clear();
+            // the writing ticket stays first in line until it has stopped touching the file
+            tickets.add(writing);
+            turn.signalAll();
+            return writing.channel;
+        }
+    }
+
+    /**
+     * Permission to write a file, valid until released.
+     */
+    public final class Ticket {
+        private final PathQueue queue;
+        private boolean superseded;
+        private Ticket supersededBy;
+        private Channel channel;
+        private boolean released;
+        private boolean succeeded;
+        private IOException failure;
+
+        private Ticket(PathQueue queue) {
+            this.queue = queue;
+        }
+
+        private void supersede(Ticket superseding) {
+            superseded = true;
+            supersededBy = superseding;
+        }
+
+        /**
+         * Registers the channel to close if a later writer supersedes this one.
+         *
+         * @return false if the write has already been superseded and must not start
+         */
+        public boolean attach(Channel channel) {
+            lock.lock();
+            try {
+                if (superseded) {
+                    return false;
+                }
+                this.channel = channel;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isSuperseded() {
+            lock.lock();
+            try {
+                return superseded;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public SupersededException superseded(IOException cause) {
+            SupersededException exception = new SupersededException("Write to " + queue.path + " was superseded by a later message");
+            exception.initCause(cause);
+            return exception;
+        }
+
+        /**
+         * Marks the write as completed, before releasing the ticket. A ticket released
+         * otherwise counts as failed for the writers it superseded.
+         */
+        public void succeeded() {
+            lock.lock();
+            try {
+                succeeded = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Records why the write failed, before releasing the ticket.
+         */
+        public void failed(IOException cause) {
+            lock.lock();
+            try {
+                failure = cause;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until the write that superseded this one has finished, following later
+         * writes that superseded it in turn. Must be called after {@link #release()}, as
+         * the later write cannot start before.
+         *
+         * @throws IOException if the superseding write failed, caused by its failure
+         */
+        public void awaitSupersedingWrite() throws IOException {
+            lock.lock();
+            try {
+                Ticket winner = supersededBy;
+                while (winner != null) {
+                    if (winner.supersededBy != null) {
+                        winner = winner.supersededBy;
+                    } else if (winner.released) {
+                        if (!winner.succeeded) {
+                            IOException exception = new IOException("Write to " + queue.path + " was superseded by a later message whose write failed");
+                            exception.initCause(winner.failure);
+                            throw exception;
+                        }
+                        return;
+                    } else {
+                        writeFinished.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the write superseding the write to " + queue.path);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Lets the next writer of the file proceed. Releasing more than once has no effect.
+         */
+        public void release() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    channel = null;
+                    leave(this);
+                    writeFinished.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Thrown instead of the I/O error caused by closing the channel of a superseded write.
+     */
+    public static final class SupersededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SupersededException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder event {@value #NAME} describing a single mediation: target path,
+ * bytes written, time spent resolving, decoding and writing, the write strategy and
+ * the outcome. The event duration covers the whole mediation.
+ * <p/>
+ * The event type is defined at runtime with <code>jdk.jfr.EventFactory</code> (Java 9
+ * and later), looked up reflectively so that the class still loads on JDKs without
+ * JFR. While no recording is running, {@link #begin()} returns null after reading a
+ * single volatile flag and nothing else is measured or allocated.
+ */
+final class WriteEvent {
+
+    static final String NAME = "fi.mystes.WriteBinaryFile";
+
+    private static final Log log = LogFactory.getLog(WriteEvent.class);
+
+    private static final int PATH = 0;
+    private static final int BYTES = 1;
+    private static final int RESOLVE_DURATION = 2;
+    private static final int DECODE_DURATION = 3;
+    private static final int WRITE_DURATION = 4;
+    private static final int STRATEGY = 5;
+    private static final int RESULT = 6;
+
+    private static final Support SUPPORT = Support.lookup();
+
+    private final Object event;
+
+    private WriteEvent(Object event) {
+        this.event = event;
+    }
+
+    /**
+     * @return true if the JDK supports defining flight recorder events
+     */
+    static boolean isAvailable() {
+        return SUPPORT != null;
+    }
+
+    /**
+     * Starts timing a mediation.
+     *
+     * @return the event, or null if no recording has the event enabled
+     */
+    static WriteEvent begin() {
+        if (SUPPORT == null || !SUPPORT.isEnabled()) {
+            return null;
+        }
+        try {
+            Object event = SUPPORT.newEvent.invoke(SUPPORT.factory);
+            SUPPORT.begin.invoke(event);
+            return new WriteEvent(event);
+        } catch (Exception e) {
+            log.debug("Unable to create flight recorder event", e);
+            return null;
+        }
+    }
+
+    /**
+     * Ends timing and commits the event if it passes the threshold of the recording.
+     *
+     * @param path         written file, or null if nothing was written
+     * @param bytes        bytes written to the primary target
+     * @param resolveNanos time from the start of the mediation until decoding started
+     * @param decodeNanos  time spent decoding before the write; streaming decoders decode while writing
+     * @param writeNanos   time spent writing the primary target
+     * @param strategy     how the content was written
+     * @param result       value of the result property, or FAILED
+     */
+    void commit(String path, long bytes, long resolveNanos, long decodeNanos, long writeNanos, String strategy, String result) {
+        try {
+            SUPPORT.end.invoke(event);
+            if (!(Boolean) SUPPORT.shouldCommit.invoke(event)) {
+                return;
+            }
+            set(PATH, path);
+            set(BYTES, bytes);
+            set(RESOLVE_DURATION, resolveNanos);
+            set(DECODE_DURATION, decodeNanos);
+            set(WRITE_DURATION, writeNanos);
+            set(STRATEGY, strategy);
+            set(RESULT, result);
+            SUPPORT.commit.invoke(event);
+        } catch (Exception e) {
+            log.debug("Unable to commit flight recorder event", e);
+        }
+    }
+
+    private void set(int index, Object value) throws Exception {
+        SUPPORT.set.invoke(event, index, value);
+    }
+
+    /**
+     * Reflective handles of the flight recorder API.
+     */
+    private static final class Support {
+        private final Object factory;
+        private final Object probe;
+        private final Method newEvent;
+        private final Method isEnabled;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+
+        private Support(Class<?> factoryClass, Class<?> eventClass, Object factory) throws Exception {
+            this.factory = factory;
+            this.newEvent = factoryClass.getMethod("newEvent");
+            this.isEnabled = eventClass.getMethod("isEnabled");
+            this.begin = eventClass.getMethod("begin");
+            this.end = eventClass.getMethod("end");
+            this.shouldCommit = eventClass.getMethod("shouldCommit");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+            // never committed, only asked whether any recording has the event enabled
+            this.probe = newEvent.invoke(factory);
+        }
+
+        /**
+         * False while no recording is running, so that the common case costs a single volatile read.
+         */
+        private volatile boolean recording = true;
+
+        private boolean isEnabled() {
+            if (!recording) {
+                return false;
+            }
+            try {
+                return (Boolean) isEnabled.invoke(probe);
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        /**
+         * Tracks whether any recording is running with a <code>jdk.jfr.FlightRecorderListener</code>.
+         * If that fails, the event is asked on every mediation instead.
+         */
+        private void trackRecordings() {
+            try {
+                final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+                final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+                Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+                final Object running = Class.forName("jdk.jfr.RecordingState").getField("RUNNING").get(null);
+                final Method getState = recordingClass.getMethod("getState");
+                Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[]{listenerClass}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("recordingStateChanged".equals(method.getName())) {
+                            recording = anyRunning(recorderClass, getState, running);
+                            return null;
+                        }
+                        if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("toString".equals(method.getName())) {
+                            return WriteEvent.class.getName() + " recording listener";
+                        }
+                        return null;
+                    }
+                });
+                recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+                if (!(Boolean) recorderClass.getMethod("isInitialized").invoke(null)) {
+                    // recordings started later are reported to the listener
+                    recording = false;
+                } else {
+                    recording = anyRunning(recorderClass, getState, running);
+                }
+            } catch (Exception e) {
+                log.debug("Unable to track flight recordings, checking write event state on every mediation", e);
+            }
+        }
+
+        private static boolean anyRunning(Class<?> recorderClass, Method getState, Object running) throws Exception {
+            Object recorder = recorderClass.getMethod("getFlightRecorder").invoke(null);
+            for (Object recording : (List<?>) recorderClass.getMethod("getRecordings").invoke(recorder)) {
+                if (getState.invoke(recording) == running) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Support lookup() {
+            try {
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+                Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+
+                List<Object> eventAnnotations = Arrays.asList(
+                        annotation.newInstance(jfrAnnotation("Name"), NAME),
+                        annotation.newInstance(jfrAnnotation("Label"), "Write Binary File"),
+                        annotation.newInstance(jfrAnnotation("Description"), "Binary content written to a file by the write binary file mediator"),
+                        annotation.newInstance(jfrAnnotation("Category"), new String[]{"WSO2 ESB", "Mediators"}),
+                        annotation.newInstance(jfrAnnotation("StackTrace"), Boolean.FALSE));
+
+                List<Object> fields = new ArrayList<Object>();
+                fields.add(field(descriptor, annotation, String.class, "path", "Path", null, null));
+                fields.add(field(descriptor, annotation, long.class, "bytes", "Bytes", "DataAmount", "BYTES"));
+                fields.add(field(descriptor, annotation, long.class, "resolveDuration", "Resolve Duration", "Timespan", "NANOSECONDS"));
+                fields.add(field(descriptor, annotation, long.class, "decodeDuration", "Decode Duration", "Timespan", "NANOSECONDS"));
+                fields.add(field(descriptor, annotation, long.class, "writeDuration", "Write Duration", "Timespan", "NANOSECONDS"));
+                fields.add(field(descriptor, annotation, String.class, "strategy", "Strategy", null, null));
+                fields.add(field(descriptor, annotation, String.class, "result", "Result", null, null));
+
+                Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, eventAnnotations, fields);
+                Support support = new Support(factoryClass, eventClass, factory);
+                support.trackRecordings();
+                return support;
+            } catch (ClassNotFoundException e) {
+                log.debug("Flight recorder not available, write events disabled");
+                return null;
+            } catch (Exception e) {
+                log.debug("Unable to define flight recorder events, write events disabled", e);
+                return null;
+            } catch (LinkageError e) {
+                log.debug("Unable to define flight recorder events, write events disabled", e);
+                return null;
+            }
+        }
+
+        private static Object field(Constructor<?> descriptor, Constructor<?> annotation, Class<?> type, String name, String label,
+                                    String unitAnnotation, String unit) throws Exception {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(jfrAnnotation("Label"), label));
+            if (unitAnnotation != null) {
+                annotations.add(annotation.newInstance(jfrAnnotation(unitAnnotation), unit));
+            }
+            return descriptor.newInstance(type, name, Collections.unmodifiableList(annotations));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> jfrAnnotation(String simpleName) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName("jdk.jfr." + simpleName);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * How decoded binary content is transferred to the output file.
+ */
+public enum WriteStrategy {
+    /**
+     * Let the DataHandler write to a stream of the file channel. Lowest overhead for small content.
+     */
+    STREAM {
+        @Override
+        public void write(DataHandler dataHandler, Path file, SeekableByteChannel channel) throws IOException {
+            // not closed, closing the stream would close the channel
+            dataHandler.writeTo(Channels.newOutputStream(channel));
+        }
+    },
+    /**
+     * Read decoded content in large chunks through a per-thread buffer and write
+     * them to the file channel. Keeps system calls per byte low for large content.
+     */
+    CHANNEL {
+        @Override
+        public void write(DataHandler dataHandler, Path file, SeekableByteChannel channel) throws IOException {
+            InputStream in = dataHandler.getInputStream();
+            try {
+                transfer(in, channel);
+            } finally {
+                in.close();
+            }
+        }
+    },
+    /**
+     * Write past the page cache with direct I/O where supported, otherwise force the
+     * written content to disk periodically. Keeps multi-gigabyte files from evicting
+     * the page cache of everything else on the host; see {@link DirectFileWriter}. Files
+     * of file systems without file channels are written like with {@link #CHANNEL}.
+     */
+    DIRECT {
+        @Override
+        public void write(DataHandler dataHandler, Path file, SeekableByteChannel channel) throws IOException {
+            InputStream in = dataHandler.getInputStream();
+            try {
+                DirectFileWriter.write(in, file, channel);
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    private static final int CHANNEL_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<byte[]> CHANNEL_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHANNEL_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Writes the content of given DataHandler to given file through the channel opened for it.
+     * The channel is not closed.
+     */
+    public abstract void write(DataHandler dataHandler, Path file, SeekableByteChannel channel) throws IOException;
+
+    static byte[] transferBuffer() {
+        return CHANNEL_BUFFER.get();
+    }
+
+    static void transfer(InputStream in, WritableByteChannel channel) throws IOException {
+        byte[] buffer = CHANNEL_BUFFER.get();
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+    }
+
+    static void transfer(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = CHANNEL_BUFFER.get();
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    public static WriteStrategy fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Abandons file writes that do not complete within their deadline.
+ * <p/>
+ * A write registers its file channel with {@link #start(Channel, File, long)} and
+ * calls {@link Deadline#stop()} when done. A single daemon thread checks the running
+ * writes every {@value #CHECK_INTERVAL} milliseconds and closes the channel of an
+ * expired write. A thread blocked in a channel write returns immediately with an
+ * <code>AsynchronousCloseException</code>, while a thread writing through a stream
+ * on top of the channel fails on its next write. A thread stuck inside the operating
+ * system, e.g. on a hard mounted NFS share, returns only when the system call does;
+ * such writes are counted by {@link #getBlockedWriteCount()}. A write that opens a
+ * second channel to its file, e.g. for direct I/O, ties it to the watched channel with
+ * {@link #closeWithWatchedWrite(Channel, Channel)}.
+ * <p/>
+ * Operations that have no channel to close yet, e.g. opening, creating or closing a
+ * file, are run with {@link #call(Operation, Path, long)} on one of at most
+ * {@value #MAX_OPERATION_THREADS} daemon threads while the writing thread waits for
+ * them until the deadline. An operation still running then is abandoned and counted
+ * like an expired write; whatever it opened or created when it eventually returns is
+ * undone by the operation itself. When all threads are busy the writing thread runs
+ * the operation without a deadline.
+ * <p/>
+ * One watchdog is shared by all mediators of the JVM and registered as an MBean in
+ * category {@value #MBEAN_CATEGORY}.
+ */
+public final class WriteWatchdog implements WriteWatchdogMBean {
+
+    public static final String MBEAN_CATEGORY = "WriteBinaryFileWatchdog";
+    static final long CHECK_INTERVAL = 100L;
+    static final int MAX_OPERATION_THREADS = 64;
+
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int EXPIRED = 2;
+    private static final int EXPIRED_RETURNED = 3;
+
+    private static final Log log = LogFactory.getLog(WriteWatchdog.class);
+
+    private static WriteWatchdog instance;
+
+    // bounded by the number of threads writing, so checking all of them is cheap
+    private final Set<Deadline> running = Collections.newSetFromMap(new ConcurrentHashMap<Deadline, Boolean>());
+    private final AtomicLong stalledWrites = new AtomicLong();
+    private final AtomicInteger blockedWrites = new AtomicInteger();
+    private final ScheduledExecutorService timer;
+    private final ThreadPoolExecutor operations;
+
+    WriteWatchdog() {
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WriteBinaryFileWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireOverdue(System.nanoTime());
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        operations = new ThreadPoolExecutor(0, MAX_OPERATION_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WriteBinaryFileOperation-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the watchdog shared by all mediators, starting it on first use.
+     */
+    public static synchronized WriteWatchdog getInstance() {
+        if (instance == null) {
+            instance = new WriteWatchdog();
+            try {
+                MBeanRegistrar.getInstance().registerMBean(instance, MBEAN_CATEGORY, "writes");
+            } catch (RuntimeException e) {
+                log.warn("Unable to register write watchdog MBean", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Starts watching a write to given channel.
+     *
+     * @param timeout deadline in milliseconds from now
+     */
+    public Deadline start(Channel channel, File file, long timeout) {
+        return start(channel, file.getPath(), timeout);
+    }
+
+    /**
+     * Starts watching a write to a file of any file system.
+     */
+    public Deadline start(Channel channel, Path path, long timeout) {
+        return start(channel, path.toString(), timeout);
+    }
+
+    private Deadline start(Channel channel, String target, long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        Deadline deadline = new Deadline(channel, target, timeout, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        running.add(deadline);
+        return deadline;
+    }
+
+    /**
+     * Makes the watched write to given channel close also the dependent channel when
+     * its deadline expires. Closes the dependent channel right away if the deadline has
+     * already expired. Does nothing if no write to the channel is watched.
+     */
+    static void closeWithWatchedWrite(Channel watched, Channel dependent) throws IOException {
+        WriteWatchdog watchdog;
+        synchronized (WriteWatchdog.class) {
+            watchdog = instance;
+        }
+        if (watchdog != null) {
+            watchdog.closeWith(watched, dependent);
+        }
+    }
+
+    void closeWith(Channel watched, Channel dependent) throws IOException {
+        for (Deadline deadline : running) {
+            if (deadline.channel == watched) {
+                deadline.closeWith(dependent);
+                return;
+            }
+        }
+        if (!watched.isOpen()) {
+            // expired and removed already
+            dependent.close();
+        }
+    }
+
+    /**
+     * Runs a file operation that cannot be aborted by closing a channel, e.g. opening a
+     * file on a dead NFS mount, and waits for it at most until given deadline.
+     *
+     * @param deadline {@link System#nanoTime()} by which the operation must complete
+     * @return result of the operation
+     * @throws WriteTimeoutException if the operation did not complete by the deadline
+     */
+    public <T> T call(Operation<T> operation, Path path, long deadline) throws IOException {
+        return call(operation, path.toString(), deadline);
+    }
+
+    private <T> T call(final Operation<T> operation, String target, long deadline) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new WriteTimeoutException("Write to " + target + " did not complete in time, not starting further operations");
+        }
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        Future<T> future;
+        try {
+            future = operations.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    T result = operation.run();
+                    if (!state.compareAndSet(RUNNING, COMPLETED)) {
+                        blockedWrites.decrementAndGet();
+                        operation.abandoned(result);
+                    }
+                    return result;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("All " + MAX_OPERATION_THREADS + " operation threads busy, running operation on " + target + " without a deadline");
+            return operation.run();
+        }
+        try {
+            return future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (!state.compareAndSet(RUNNING, EXPIRED)) {
+                // completed just now
+                return result(future);
+            }
+            stalledWrites.incrementAndGet();
+            blockedWrites.incrementAndGet();
+            log.warn("Operation on " + target + " did not complete in time, abandoning it");
+            throw new WriteTimeoutException("Write to " + target + " did not complete in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (state.compareAndSet(RUNNING, EXPIRED)) {
+                blockedWrites.incrementAndGet();
+            }
+            throw new InterruptedIOException("Interrupted while waiting for an operation on " + target);
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+    }
+
+    private static <T> T result(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a completed operation");
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+    }
+
+    private static IOException failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    void expireOverdue(long now) {
+        Iterator<Deadline> iterator = running.iterator();
+        while (iterator.hasNext()) {
+            Deadline deadline = iterator.next();
+            if (now - deadline.expiresAt >= 0 && deadline.expire()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        operations.shutdownNow();
+    }
+
+    @Override
+    public int getActiveWriteCount() {
+        return running.size();
+    }
+
+    @Override
+    public long getStalledWriteCount() {
+        return stalledWrites.get();
+    }
+
+    @Override
+    public int getBlockedWriteCount() {
+        return blockedWrites.get();
+    }
+
+    /**
+     * Deadline of a single write.
+     */
+    public final class Deadline {
+        private final Channel channel;
+        private final String target;
+        private final long timeout;
+        private final long expiresAt;
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private final List<Channel> dependents = new ArrayList<Channel>(1);
+        private boolean closed;
+
+        private Deadline(Channel channel, String target, long timeout, long expiresAt) {
+            this.channel = channel;
+            this.target = target;
+            this.timeout = timeout;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean expire() {
+            if (!state.compareAndSet(RUNNING, EXPIRED)) {
+                return false;
+            }
+            stalledWrites.incrementAndGet();
+            blockedWrites.incrementAndGet();
+            log.warn("Write to " + target + " did not complete within " + timeout + " ms, abandoning it");
+            close(channel);
+            synchronized (this) {
+                closed = true;
+                for (Channel dependent : dependents) {
+                    close(dependent);
+                }
+                dependents.clear();
+            }
+            return true;
+        }
+
+        private void close(Channel closing) {
+            try {
+                closing.close();
+            } catch (IOException e) {
+                log.warn("Unable to close channel of stalled write to " + target, e);
+            }
+        }
+
+        private void closeWith(Channel dependent) throws IOException {
+            synchronized (this) {
+                if (!closed) {
+                    dependents.add(dependent);
+                    return;
+                }
+            }
+            dependent.close();
+        }
+
+        /**
+         * Stops watching the write. May be called several times.
+         *
+         * @return true if the deadline expired and the write has been abandoned
+         */
+        public boolean stop() {
+            if (state.compareAndSet(RUNNING, COMPLETED)) {
+                running.remove(this);
+                return false;
+            }
+            if (state.compareAndSet(EXPIRED, EXPIRED_RETURNED)) {
+                blockedWrites.decrementAndGet();
+            }
+            return state.get() != COMPLETED;
+        }
+
+        /**
+         * @return exception telling the write was abandoned, caused by the failure the write ended with if any
+         */
+        public WriteTimeoutException timeout(IOException cause) {
+            WriteTimeoutException exception = new WriteTimeoutException("Write to " + target + " did not complete within " + timeout + " ms");
+            if (cause != null) {
+                exception.initCause(cause);
+            }
+            return exception;
+        }
+    }
+
+    /**
+     * File operation run by {@link #call(Operation, Path, long)}.
+     */
+    public abstract static class Operation<T> {
+
+        /**
+         * Runs the operation, possibly blocking in storage.
+         */
+        public abstract T run() throws IOException;
+
+        /**
+         * Undoes the result of the operation completing after it was abandoned, e.g. closes
+         * the opened channel. Does nothing by default.
+         */
+        public void abandoned(T result) {
+        }
+    }
+
+    /**
+     * Thrown when a write has been abandoned because its deadline expired.
+     */
+    public static final class WriteTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public WriteTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+/**
+ * JMX view of the {@link WriteWatchdog}.
+ */
+public interface WriteWatchdogMBean {
+
+    /**
+     * @return number of writes currently running with a deadline
+     */
+    int getActiveWriteCount();
+
+    /**
+     * @return number of writes whose deadline expired since startup
+     */
+    long getStalledWriteCount();
+
+    /**
+     * @return number of writes whose deadline expired but whose thread has not returned yet,
+     *         i.e. worker threads still blocked in storage despite the cancellation
+     */
+    int getBlockedWriteCount();
+}
@@ -16,8 +16,30 @@
 
 package fi.mystes.synapse.mediator.factory;
 
+import fi.mystes.synapse.mediator.ChunkedUploadAssembler;
+import fi.mystes.synapse.mediator.CoalesceMode;
+import fi.mystes.synapse.mediator.CollisionPolicy;
+import fi.mystes.synapse.mediator.DirectoryCircuitBreaker;
+import fi.mystes.synapse.mediator.FanOutPolicy;
+import fi.mystes.synapse.mediator.FanOutTarget;
+import fi.mystes.synapse.mediator.FileEncryption;
+import fi.mystes.synapse.mediator.FileManifest;
+import fi.mystes.synapse.mediator.FileNameTemplate;
+import fi.mystes.synapse.mediator.IdempotencyCache;
+import fi.mystes.synapse.mediator.JsonPath;
+import fi.mystes.synapse.mediator.MemoryBudget;
+import fi.mystes.synapse.mediator.OutputMode;
+import fi.mystes.synapse.mediator.RetentionJanitor;
+import fi.mystes.synapse.mediator.SizeTier;
+import fi.mystes.synapse.mediator.SpoolDirectory;
+import fi.mystes.synapse.mediator.StandardBase64Decoder;
+import fi.mystes.synapse.mediator.StripePolicy;
+import fi.mystes.synapse.mediator.StripedTarget;
+import fi.mystes.synapse.mediator.TargetFileSystem;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediator;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediatorConfigConstants;
+import fi.mystes.synapse.mediator.WriteMode;
+import fi.mystes.synapse.mediator.WriteStrategy;
 import org.apache.axiom.om.OMElement;
 import org.apache.synapse.Mediator;
 import org.apache.synapse.config.xml.AbstractMediatorFactory;
@@ -25,12 +47,23 @@ import org.apache.synapse.util.xpath.SynapseXPath;
 import org.jaxen.JaxenException;
 
 import javax.xml.namespace.QName;
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 /**
  * Created by esa on 10.2.2015.
  */
 public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
+    private static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    private static final int DEFAULT_MINIMUM_CALLS = 10;
+    private static final long DEFAULT_COOLDOWN = 30000L;
+    private static final int DEFAULT_MOVER_THREADS = 2;
+    private static final int DEFAULT_TIER_CONCURRENCY = Integer.MAX_VALUE;
+
     @Override
     protected Mediator createSpecificMediator(OMElement omElement, Properties properties) {
         WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
@@ -38,9 +71,29 @@ public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
 
         configureBinaryElementXPath(omElement, mediator);
         configureTargetDirectory(omElement, mediator);
+        configureAdditionalTargetDirectories(omElement, mediator);
+        configureFanOutPolicy(omElement, mediator);
         configureTargetFileName(omElement, mediator);
         configureForceUniqueFileName(omElement, mediator);
         configureAllowOverwrite(omElement, mediator);
+        configureOnCollision(omElement, mediator);
+        configureCircuitBreaker(omElement, mediator);
+        configureSpool(omElement, mediator);
+        configureSizeTiers(omElement, mediator);
+        configureEncryption(omElement, mediator);
+        configureChunkedUpload(omElement, mediator);
+        configureMode(omElement, mediator);
+        configureBase64Decoder(omElement, mediator);
+        configureBinaryJsonPath(omElement, mediator);
+        configureWriteTimeout(omElement, mediator);
+        configureManifest(omElement, mediator);
+        configureRetention(omElement, mediator);
+        configureCoalesce(omElement, mediator);
+        configureOutput(omElement, mediator);
+        configureStripe(omElement, mediator);
+        configureIdempotency(omElement, mediator);
+        configureMemoryBudget(omElement, mediator);
+        configureFileSystem(omElement, mediator);
 
         return mediator;
     }
@@ -52,12 +105,19 @@ public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
 
     private void configureTargetDirectory(OMElement omElement, WriteBinaryFileMediator mediator) {
         OMElement targetDirectoryElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        if (targetDirectoryElement == null && omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.STRIPE_TAG) != null) {
+            // the stripe replaces the target directory
+            return;
+        }
         if (targetDirectoryElement == null) {
             handleException(errorMessageForMissingMandatoryConfigurationElement(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG));
         }
         String valueAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+        String templateAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE);
         if (valueAttribute != null) {
             mediator.setTargetDirectory(valueAttribute);
+        } else if (templateAttribute != null) {
+            mediator.setTargetDirectoryTemplate(compileTemplate(templateAttribute, targetDirectoryElement));
         } else {
             String expressionAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_EXPRESSION);
             try {
@@ -70,14 +130,65 @@ public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
         }
     }
 
+    private void configureAdditionalTargetDirectories(OMElement omElement, WriteBinaryFileMediator mediator) {
+        List<FanOutTarget> targets = new ArrayList<FanOutTarget>();
+        Iterator<?> targetDirectoryElements = omElement.getChildrenWithName(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        if (!targetDirectoryElements.hasNext()) {
+            return;
+        }
+        // the first targetDirectory element is the primary target
+        targetDirectoryElements.next();
+
+        while (targetDirectoryElements.hasNext()) {
+            OMElement targetDirectoryElement = (OMElement) targetDirectoryElements.next();
+            String valueAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            String templateAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE);
+            String expressionAttribute = targetDirectoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_EXPRESSION);
+            if (valueAttribute != null) {
+                targets.add(FanOutTarget.value(valueAttribute));
+            } else if (templateAttribute != null) {
+                targets.add(FanOutTarget.template(compileTemplate(templateAttribute, targetDirectoryElement)));
+            } else if (expressionAttribute != null) {
+                try {
+                    SynapseXPath expression = new SynapseXPath(expressionAttribute);
+                    expression.addNamespaces(targetDirectoryElement);
+                    targets.add(FanOutTarget.expression(expression));
+                } catch (JaxenException e) {
+                    handleException("Invalid additional target directory XPath in mediator configuration", e);
+                }
+            } else {
+                handleException("Missing value, template or expression in additional target directory in mediator configuration");
+            }
+        }
+        if (!targets.isEmpty()) {
+            mediator.setAdditionalTargetDirectories(targets);
+        }
+    }
+
+    private void configureFanOutPolicy(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement fanOutPolicyElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.FAN_OUT_POLICY_TAG);
+
+        if (fanOutPolicyElement != null) {
+            String valueAttribute = fanOutPolicyElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            try {
+                mediator.setFanOutPolicy(FanOutPolicy.fromString(valueAttribute));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid fanOutPolicy value " + valueAttribute + " in mediator configuration, expected all or any", e);
+            }
+        }
+    }
+
     private void configureTargetFileName(OMElement omElement, WriteBinaryFileMediator mediator) {
         OMElement targetFileNameElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.TARGET_FILE_NAME_TAG);
         if (targetFileNameElement == null) {
             handleException(errorMessageForMissingMandatoryConfigurationElement(WriteBinaryFileMediatorConfigConstants.TARGET_FILE_NAME_TAG));
         }
         String valueAttribute = targetFileNameElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+        String templateAttribute = targetFileNameElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE);
         if (valueAttribute != null) {
             mediator.setTargetFileName(valueAttribute);
+        } else if (templateAttribute != null) {
+            mediator.setTargetFileNameTemplate(compileTemplate(templateAttribute, targetFileNameElement));
         } else {
             String expressionAttribute = targetFileNameElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_EXPRESSION);
             try {
@@ -93,6 +204,9 @@ public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
     private void configureBinaryElementXPath(OMElement omElement, WriteBinaryFileMediator mediator) {
         OMElement binaryElementXPathElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.BINARY_ELEMENT_XPATH_TAG);
         if (binaryElementXPathElement == null) {
+            if (omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG) != null) {
+                return;
+            }
             handleException(errorMessageForMissingMandatoryConfigurationElement(WriteBinaryFileMediatorConfigConstants.BINARY_ELEMENT_XPATH_TAG));
         }
         String valueAttribute = binaryElementXPathElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
@@ -125,6 +239,430 @@ public class WriteBinaryFileMediatorFactory extends AbstractMediatorFactory {
         }
     }
 
+    private void configureOnCollision(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement onCollisionElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.ON_COLLISION_TAG);
+
+        if (onCollisionElement != null) {
+            String valueAttribute = onCollisionElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            try {
+                mediator.setCollisionPolicy(CollisionPolicy.fromString(valueAttribute));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid onCollision value " + valueAttribute + " in mediator configuration, expected one of fail, skip or suffix", e);
+            }
+        }
+    }
+
+    private void configureCircuitBreaker(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement circuitBreakerElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+
+        if (circuitBreakerElement != null) {
+            try {
+                int failureRateThreshold = parseIntAttribute(circuitBreakerElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FAILURE_RATE_THRESHOLD, DEFAULT_FAILURE_RATE_THRESHOLD);
+                int minimumCalls = parseIntAttribute(circuitBreakerElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MINIMUM_CALLS, DEFAULT_MINIMUM_CALLS);
+                long cooldown = parseLongAttribute(circuitBreakerElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_COOLDOWN, DEFAULT_COOLDOWN);
+                mediator.setCircuitBreakerSettings(new DirectoryCircuitBreaker.Settings(failureRateThreshold, minimumCalls, cooldown));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid circuit breaker configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureSpool(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement spoolElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+
+        if (spoolElement != null) {
+            String directory = spoolElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY);
+            if (directory == null) {
+                handleException("Missing spool directory in mediator configuration");
+            }
+            if (Boolean.FALSE.toString().equalsIgnoreCase(mediator.getAllowOverWrite())) {
+                handleException("Spool cannot be used when overwriting is disabled, as collisions are only detected when files are moved");
+            }
+            String interimPath = spoolElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_INTERIM_PATH);
+            if (interimPath != null && !WriteBinaryFileMediatorConfigConstants.INTERIM_PATH_FINAL.equals(interimPath)
+                    && !WriteBinaryFileMediatorConfigConstants.INTERIM_PATH_SPOOL.equals(interimPath)) {
+                handleException("Invalid spool interimPath " + interimPath + " in mediator configuration, expected final or spool");
+            }
+            try {
+                int moverThreads = parseIntAttribute(spoolElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MOVER_THREADS, DEFAULT_MOVER_THREADS);
+                int maxAttempts = parseIntAttribute(spoolElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ATTEMPTS,
+                        SpoolDirectory.Settings.DEFAULT_MAX_ATTEMPTS);
+                mediator.setSpoolSettings(new SpoolDirectory.Settings(new File(directory), moverThreads,
+                        WriteBinaryFileMediatorConfigConstants.INTERIM_PATH_SPOOL.equals(interimPath), maxAttempts));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid spool configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    /**
+     * A tier without <code>timeout</code> waits {@link SizeTier#DEFAULT_QUEUE_TIMEOUT} ms for a
+     * free lane. Earlier versions failed at once by default; <code>timeout="0"</code> keeps that.
+     */
+    private void configureSizeTiers(OMElement omElement, WriteBinaryFileMediator mediator) {
+        List<SizeTier> tiers = new ArrayList<SizeTier>();
+        Iterator<?> sizeTierElements = omElement.getChildrenWithName(WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+
+        while (sizeTierElements.hasNext()) {
+            OMElement sizeTierElement = (OMElement) sizeTierElements.next();
+            String strategy = sizeTierElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_STRATEGY);
+            try {
+                long maxSize = parseLongAttribute(sizeTierElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE, SizeTier.UNBOUNDED);
+                int concurrency = parseIntAttribute(sizeTierElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CONCURRENCY, DEFAULT_TIER_CONCURRENCY);
+                long queueTimeout = parseLongAttribute(sizeTierElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, SizeTier.DEFAULT_QUEUE_TIMEOUT);
+                tiers.add(new SizeTier(maxSize,
+                        sizeTierElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TARGET_DIRECTORY),
+                        strategy == null ? null : WriteStrategy.fromString(strategy), concurrency, queueTimeout));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid size tier configuration in mediator configuration", e);
+            }
+        }
+        if (!tiers.isEmpty()) {
+            mediator.setSizeTiers(tiers);
+        }
+    }
+
+    private void configureEncryption(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement encryptionElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+
+        if (encryptionElement != null) {
+            String key = encryptionElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY);
+            String keyExpressionAttribute = encryptionElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION);
+            SynapseXPath keyExpression = null;
+            if (keyExpressionAttribute != null) {
+                try {
+                    keyExpression = new SynapseXPath(keyExpressionAttribute);
+                    keyExpression.addNamespaces(encryptionElement);
+                } catch (JaxenException e) {
+                    handleException("Invalid encryption key expression in mediator configuration", e);
+                }
+            }
+            try {
+                int chunkSize = parseIntAttribute(encryptionElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE, FileEncryption.DEFAULT_CHUNK_SIZE);
+                mediator.setEncryptionSettings(new FileEncryption.Settings(key, keyExpression, chunkSize));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid encryption configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureChunkedUpload(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement chunkedUploadElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.CHUNKED_UPLOAD_TAG);
+
+        if (chunkedUploadElement != null) {
+            String directory = chunkedUploadElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY);
+            if (directory == null) {
+                handleException("Missing chunked upload directory in mediator configuration");
+            }
+            if (mediator.getSpoolSettings() != null || mediator.getEncryptionSettings() != null || mediator.getAdditionalTargetDirectories() != null) {
+                handleException("Chunked upload cannot be combined with spool, encryption or several target directories");
+            }
+            if (Boolean.FALSE.toString().equalsIgnoreCase(mediator.getAllowOverWrite())) {
+                handleException("Chunked upload cannot be used when overwriting is disabled, as assembled files replace existing ones");
+            }
+            try {
+                String chunkSize = chunkedUploadElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE);
+                if (chunkSize == null) {
+                    handleException("Missing chunked upload chunkSize in mediator configuration");
+                }
+                int maxChunks = parseIntAttribute(chunkedUploadElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_CHUNKS, ChunkedUploadAssembler.Settings.DEFAULT_MAX_CHUNKS);
+                long idleTimeout = parseLongAttribute(chunkedUploadElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_IDLE_TIMEOUT, ChunkedUploadAssembler.Settings.DEFAULT_IDLE_TIMEOUT);
+                mediator.setChunkedUploadSettings(new ChunkedUploadAssembler.Settings(new File(directory), Integer.parseInt(chunkSize.trim()),
+                        createExpression(chunkedUploadElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_UPLOAD_ID),
+                        createExpression(chunkedUploadElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_INDEX),
+                        createExpression(chunkedUploadElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TOTAL_CHUNKS), maxChunks, idleTimeout));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid chunked upload configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureMode(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement modeElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.MODE_TAG);
+
+        if (modeElement != null) {
+            String valueAttribute = modeElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            WriteMode mode = null;
+            try {
+                mode = WriteMode.fromString(valueAttribute);
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid mode value " + valueAttribute + " in mediator configuration, expected create or append", e);
+            }
+            if (mode == WriteMode.APPEND) {
+                if (mediator.getSpoolSettings() != null || mediator.getEncryptionSettings() != null || mediator.getChunkedUploadSettings() != null) {
+                    handleException("Append mode cannot be combined with spool, encryption or chunked upload");
+                }
+                if (Boolean.FALSE.toString().equalsIgnoreCase(mediator.getAllowOverWrite())) {
+                    handleException("Append mode cannot be used when overwriting is disabled, as appending always modifies existing files");
+                }
+            }
+            mediator.setMode(mode);
+        }
+    }
+
+    private void configureBase64Decoder(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement decoderElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG);
+
+        if (decoderElement != null) {
+            String valueAttribute = decoderElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            if (valueAttribute == null) {
+                handleException("Missing base64Decoder value in mediator configuration");
+            }
+            try {
+                mediator.setBase64Decoder(StandardBase64Decoder.forName(valueAttribute));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid base64Decoder value " + valueAttribute + " in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureBinaryJsonPath(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement binaryJsonPathElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG);
+
+        if (binaryJsonPathElement != null) {
+            String valueAttribute = binaryJsonPathElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            if (valueAttribute == null) {
+                handleException("Missing binaryJsonPath value in mediator configuration");
+            }
+            if (omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.BINARY_ELEMENT_XPATH_TAG) != null) {
+                handleException("Only one of binaryElementXPath and binaryJsonPath can be configured");
+            }
+            if (mediator.getAdditionalTargetDirectories() != null || mediator.getSizeTiers() != null) {
+                handleException("Binary JSON path cannot be combined with several target directories or size tiers, as the field is decoded while it is streamed");
+            }
+            try {
+                mediator.setBinaryJsonPath(JsonPath.compile(valueAttribute));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid binary JSON path " + valueAttribute + " in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureWriteTimeout(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement writeTimeoutElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG);
+
+        if (writeTimeoutElement != null) {
+            String valueAttribute = writeTimeoutElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            if (valueAttribute == null) {
+                handleException("Missing writeTimeout value in mediator configuration");
+            }
+            long writeTimeout = 0;
+            try {
+                writeTimeout = Long.parseLong(valueAttribute.trim());
+            } catch (NumberFormatException e) {
+                handleException("Invalid writeTimeout value " + valueAttribute + " in mediator configuration", e);
+            }
+            if (writeTimeout <= 0) {
+                handleException("writeTimeout must be a positive number of milliseconds");
+            }
+            mediator.setWriteTimeout(writeTimeout);
+        }
+    }
+
+    private void configureManifest(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement manifestElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+
+        if (manifestElement != null) {
+            if (mediator.getSpoolSettings() != null) {
+                handleException("Manifest cannot be combined with spool, as spooled files are complete only after they have been moved");
+            }
+            String file = manifestElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE);
+            String name = manifestElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME);
+            try {
+                int batchSize = parseIntAttribute(manifestElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BATCH_SIZE, FileManifest.Settings.DEFAULT_BATCH_SIZE);
+                long flushInterval = parseLongAttribute(manifestElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FLUSH_INTERVAL, FileManifest.Settings.DEFAULT_FLUSH_INTERVAL);
+                long maxSize = parseLongAttribute(manifestElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE, FileManifest.Settings.DEFAULT_MAX_SIZE);
+                int maxFiles = parseIntAttribute(manifestElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_FILES, FileManifest.Settings.DEFAULT_MAX_FILES);
+                mediator.setManifestSettings(new FileManifest.Settings(file == null ? null : new File(file), name, batchSize, flushInterval, maxSize, maxFiles));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid manifest configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureRetention(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement retentionElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+
+        if (retentionElement != null) {
+            if (retentionElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_AGE) == null) {
+                handleException("Missing retention maxAge in mediator configuration");
+            }
+            if (mediator.getSpoolSettings() != null) {
+                handleException("Retention cannot be combined with spool, as spooled files are complete only after they have been moved");
+            }
+            try {
+                long maxAge = parseLongAttribute(retentionElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_AGE, 0);
+                long bucket = parseLongAttribute(retentionElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BUCKET, RetentionJanitor.Settings.DEFAULT_BUCKET);
+                int deletesPerSecond = parseIntAttribute(retentionElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DELETES_PER_SECOND,
+                        RetentionJanitor.Settings.DEFAULT_DELETES_PER_SECOND);
+                mediator.setRetentionSettings(new RetentionJanitor.Settings(maxAge, bucket, deletesPerSecond));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid retention configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureCoalesce(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement coalesceElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.COALESCE_TAG);
+
+        if (coalesceElement != null) {
+            String valueAttribute = coalesceElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            try {
+                mediator.setCoalesceMode(CoalesceMode.fromString(valueAttribute));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid coalesce value " + valueAttribute + " in mediator configuration, expected serialize or supersede", e);
+            }
+            if (Boolean.FALSE.toString().equalsIgnoreCase(mediator.getAllowOverWrite())) {
+                handleException("Coalesce cannot be used when overwriting is disabled, as concurrent messages then never write the same file");
+            }
+            if (mediator.getSpoolSettings() != null || mediator.getChunkedUploadSettings() != null || mediator.getMode() == WriteMode.APPEND) {
+                handleException("Coalesce cannot be combined with spool, chunked upload or append mode");
+            }
+        }
+    }
+
+    private void configureOutput(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement outputElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG);
+
+        if (outputElement != null) {
+            String valueAttribute = outputElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE);
+            String nameAttribute = outputElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME);
+            OutputMode mode = null;
+            try {
+                mode = OutputMode.fromString(valueAttribute);
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid output value " + valueAttribute + " in mediator configuration, expected one of replace, remove, attribute or property", e);
+            }
+            if (mode.isNamed() && (nameAttribute == null || nameAttribute.trim().length() == 0)) {
+                handleException("Output " + mode + " requires the name attribute in mediator configuration");
+            }
+            if (mode != OutputMode.REPLACE && mediator.getBinaryJsonPath() != null) {
+                handleException("Output " + mode + " cannot be combined with binaryJsonPath, the JSON field value is always replaced with the path");
+            }
+            mediator.setOutputMode(mode);
+            mediator.setOutputName(mode.isNamed() ? nameAttribute.trim() : null);
+        }
+    }
+
+    private void configureStripe(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement stripeElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.STRIPE_TAG);
+
+        if (stripeElement != null) {
+            if (omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG) != null) {
+                handleException("Only one of targetDirectory and stripe can be configured");
+            }
+            if (mediator.getChunkedUploadSettings() != null) {
+                handleException("Stripe cannot be combined with chunked upload");
+            }
+            if (mediator.getSizeTiers() != null) {
+                for (SizeTier tier : mediator.getSizeTiers()) {
+                    if (tier.getTargetDirectory() != null) {
+                        handleException("Stripe cannot be combined with size tiers having their own target directory");
+                    }
+                }
+            }
+            String policyAttribute = stripeElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_POLICY);
+            List<StripedTarget.Member> members = new ArrayList<StripedTarget.Member>();
+            Iterator<?> directoryElements = stripeElement.getChildrenWithName(WriteBinaryFileMediatorConfigConstants.DIRECTORY_TAG);
+            try {
+                StripePolicy policy = StripePolicy.fromString(policyAttribute);
+                while (directoryElements.hasNext()) {
+                    OMElement directoryElement = (OMElement) directoryElements.next();
+                    members.add(new StripedTarget.Member(directoryElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE),
+                            parseIntAttribute(directoryElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_WEIGHT, 1)));
+                }
+                mediator.setStripedTarget(new StripedTarget(policy, members));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid stripe configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureIdempotency(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement idempotencyElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.IDEMPOTENCY_TAG);
+
+        if (idempotencyElement != null) {
+            if (mediator.getChunkedUploadSettings() != null) {
+                handleException("Idempotency cannot be combined with chunked upload, which recognizes repeated chunks itself");
+            }
+            SynapseXPath keyExpression = createExpression(idempotencyElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION);
+            String file = idempotencyElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE);
+            try {
+                int maxEntries = parseIntAttribute(idempotencyElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ENTRIES, IdempotencyCache.Settings.DEFAULT_MAX_ENTRIES);
+                mediator.setIdempotencySettings(new IdempotencyCache.Settings(keyExpression, maxEntries, file == null ? null : new File(file)));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid idempotency configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureMemoryBudget(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement memoryBudgetElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+
+        if (memoryBudgetElement != null) {
+            if (mediator.getBinaryJsonPath() != null) {
+                handleException("Memory budget cannot be combined with binaryJsonPath, JSON fields are decoded while streaming");
+            }
+            try {
+                long timeout = parseLongAttribute(memoryBudgetElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, 0);
+                mediator.setMemoryBudgetSettings(new MemoryBudget.Settings(timeout));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid memory budget configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private void configureFileSystem(OMElement omElement, WriteBinaryFileMediator mediator) {
+        OMElement fileSystemElement = omElement.getFirstChildWithName(WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+
+        if (fileSystemElement != null) {
+            String uri = fileSystemElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI);
+            if (uri == null) {
+                handleException("Missing fileSystem uri in mediator configuration");
+            }
+            String provider = fileSystemElement.getAttributeValue(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_PROVIDER);
+            try {
+                mediator.setFileSystemSettings(new TargetFileSystem.Settings(URI.create(uri.trim()), provider));
+            } catch (IllegalArgumentException e) {
+                handleException("Invalid file system configuration in mediator configuration", e);
+            }
+        }
+    }
+
+    private SynapseXPath createExpression(OMElement element, QName attributeQName) {
+        String value = element.getAttributeValue(attributeQName);
+        if (value == null) {
+            return null;
+        }
+        try {
+            SynapseXPath expression = new SynapseXPath(value);
+            expression.addNamespaces(element);
+            return expression;
+        } catch (JaxenException e) {
+            handleException("Invalid " + attributeQName.getLocalPart() + " XPath in mediator configuration", e);
+            return null;
+        }
+    }
+
+    private int parseIntAttribute(OMElement element, QName attributeQName, int defaultValue) {
+        String value = element.getAttributeValue(attributeQName);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private long parseLongAttribute(OMElement element, QName attributeQName, long defaultValue) {
+        String value = element.getAttributeValue(attributeQName);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private FileNameTemplate compileTemplate(String pattern, OMElement configElement) {
+        try {
+            return FileNameTemplate.compile(pattern, configElement);
+        } catch (IllegalArgumentException e) {
+            handleException("Invalid template " + pattern + " in mediator configuration", e);
+            return null;
+        }
+    }
+
     private String errorMessageForMissingMandatoryConfigurationElement(QName elementQName) {
         return String.format("Missing mandatory configuration element %1$s in %2$s mediator configuration",
                 elementQName.getLocalPart(), WriteBinaryFileMediatorConfigConstants.ROOT_TAG_NAME);
@@ -16,6 +16,20 @@
 
 package fi.mystes.synapse.mediator.serializer;
 
+import fi.mystes.synapse.mediator.ChunkedUploadAssembler;
+import fi.mystes.synapse.mediator.DirectoryCircuitBreaker;
+import fi.mystes.synapse.mediator.FanOutTarget;
+import fi.mystes.synapse.mediator.FileEncryption;
+import fi.mystes.synapse.mediator.FileManifest;
+import fi.mystes.synapse.mediator.FileNameTemplate;
+import fi.mystes.synapse.mediator.IdempotencyCache;
+import fi.mystes.synapse.mediator.MemoryBudget;
+import fi.mystes.synapse.mediator.RetentionJanitor;
+import fi.mystes.synapse.mediator.SizeTier;
+import fi.mystes.synapse.mediator.SpoolDirectory;
+import fi.mystes.synapse.mediator.StandardBase64Decoder;
+import fi.mystes.synapse.mediator.StripedTarget;
+import fi.mystes.synapse.mediator.TargetFileSystem;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediator;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediatorConfigConstants;
 import org.apache.axiom.om.OMElement;
@@ -37,10 +51,38 @@ public class WriteBinaryFileMediatorSerializer extends AbstractMediatorSerialize
         OMElement rootElement = fac.createOMElement(WriteBinaryFileMediatorConfigConstants.ROOT_TAG_NAME, synNS);
 
         addConfigElement(rootElement, serializeBinaryElementXPath(mediator));
+        addConfigElement(rootElement, serializeBinaryJsonPath(mediator));
         addConfigElement(rootElement, serializeTargetDirectory(mediator));
+        if (mediator.getAdditionalTargetDirectories() != null) {
+            for (FanOutTarget target : mediator.getAdditionalTargetDirectories()) {
+                addConfigElement(rootElement, serializeAdditionalTargetDirectory(target));
+            }
+        }
+        addConfigElement(rootElement, serializeFanOutPolicy(mediator));
         addConfigElement(rootElement, serializeTargetFileName(mediator));
         addConfigElement(rootElement, serializeForceUniqueFileName(mediator));
         addConfigElement(rootElement, serializeAllowOverwrite(mediator));
+        addConfigElement(rootElement, serializeOnCollision(mediator));
+        addConfigElement(rootElement, serializeCircuitBreaker(mediator));
+        addConfigElement(rootElement, serializeSpool(mediator));
+        addConfigElement(rootElement, serializeEncryption(mediator));
+        addConfigElement(rootElement, serializeChunkedUpload(mediator));
+        addConfigElement(rootElement, serializeMode(mediator));
+        addConfigElement(rootElement, serializeBase64Decoder(mediator));
+        addConfigElement(rootElement, serializeWriteTimeout(mediator));
+        addConfigElement(rootElement, serializeManifest(mediator));
+        addConfigElement(rootElement, serializeRetention(mediator));
+        addConfigElement(rootElement, serializeCoalesce(mediator));
+        addConfigElement(rootElement, serializeOutput(mediator));
+        addConfigElement(rootElement, serializeStripe(mediator));
+        addConfigElement(rootElement, serializeIdempotency(mediator));
+        addConfigElement(rootElement, serializeMemoryBudget(mediator));
+        addConfigElement(rootElement, serializeFileSystem(mediator));
+        if (mediator.getSizeTiers() != null) {
+            for (SizeTier tier : mediator.getSizeTiers()) {
+                addConfigElement(rootElement, serializeSizeTier(tier));
+            }
+        }
 
         saveTracingState(rootElement, mediator);
 
@@ -59,6 +101,9 @@ public class WriteBinaryFileMediatorSerializer extends AbstractMediatorSerialize
     }
 
     private OMElement serializeBinaryElementXPath(WriteBinaryFileMediator mediator) {
+        if (mediator.getBinaryElementXPath() == null && mediator.getBinaryJsonPath() != null) {
+            return null;
+        }
         OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.BINARY_ELEMENT_XPATH_TAG);
 
         if (mediator.getBinaryElementXPath() != null) {
@@ -69,11 +114,27 @@ public class WriteBinaryFileMediatorSerializer extends AbstractMediatorSerialize
         return element;
     }
 
+    private OMElement serializeBinaryJsonPath(WriteBinaryFileMediator mediator) {
+        if (mediator.getBinaryJsonPath() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG);
+            addValueAttribute(element, mediator.getBinaryJsonPath().toString());
+            return element;
+        }
+
+        return null;
+    }
+
     private OMElement serializeTargetDirectory(WriteBinaryFileMediator mediator) {
+        if (mediator.getStripedTarget() != null && mediator.getTargetDirectory() == null
+                && mediator.getTargetDirectoryTemplate() == null && mediator.getTargetDirectoryExpression() == null) {
+            return null;
+        }
         OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
 
         if (mediator.getTargetDirectory() != null) {
             addValueAttribute(element, mediator.getTargetDirectory());
+        } else if (mediator.getTargetDirectoryTemplate() != null) {
+            addTemplateAttribute(element, mediator.getTargetDirectoryTemplate());
         } else if (mediator.getTargetDirectoryExpression() != null) {
             addExpressionAttribute(element, mediator.getTargetDirectoryExpression());
         }
@@ -81,11 +142,37 @@ public class WriteBinaryFileMediatorSerializer extends AbstractMediatorSerialize
         return element;
     }
 
+    private OMElement serializeAdditionalTargetDirectory(FanOutTarget target) {
+        OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+
+        if (target.getValue() != null) {
+            addValueAttribute(element, target.getValue());
+        } else if (target.getTemplate() != null) {
+            addTemplateAttribute(element, target.getTemplate());
+        } else {
+            addExpressionAttribute(element, target.getExpression());
+        }
+
+        return element;
+    }
+
+    private OMElement serializeFanOutPolicy(WriteBinaryFileMediator mediator) {
+        if (mediator.getFanOutPolicy() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.FAN_OUT_POLICY_TAG);
+            addValueAttribute(element, mediator.getFanOutPolicy().toString());
+            return element;
+        }
+
+        return null;
+    }
+
     private OMElement serializeTargetFileName(WriteBinaryFileMediator mediator) {
         OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.TARGET_FILE_NAME_TAG);
 
         if (mediator.getTargetFileName() != null) {
             addValueAttribute(element, mediator.getTargetFileName());
+        } else if (mediator.getTargetFileNameTemplate() != null) {
+            addTemplateAttribute(element, mediator.getTargetFileNameTemplate());
         } else if (mediator.getTargetFileNameExpression() != null) {
             addExpressionAttribute(element, mediator.getTargetFileNameExpression());
         }
@@ -113,12 +200,268 @@ public class WriteBinaryFileMediatorSerializer extends AbstractMediatorSerialize
         return null;
     }
 
+    private OMElement serializeOnCollision(WriteBinaryFileMediator mediator) {
+        if (mediator.getCollisionPolicy() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.ON_COLLISION_TAG);
+            addValueAttribute(element, mediator.getCollisionPolicy().toString());
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeMode(WriteBinaryFileMediator mediator) {
+        if (mediator.getMode() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.MODE_TAG);
+            addValueAttribute(element, mediator.getMode().toString());
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeCoalesce(WriteBinaryFileMediator mediator) {
+        if (mediator.getCoalesceMode() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.COALESCE_TAG);
+            addValueAttribute(element, mediator.getCoalesceMode().toString());
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeOutput(WriteBinaryFileMediator mediator) {
+        if (mediator.getOutputMode() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG);
+            addValueAttribute(element, mediator.getOutputMode().toString());
+            if (mediator.getOutputName() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME, mediator.getOutputName());
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeStripe(WriteBinaryFileMediator mediator) {
+        StripedTarget stripedTarget = mediator.getStripedTarget();
+        if (stripedTarget != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.STRIPE_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_POLICY, stripedTarget.getPolicy().toString());
+            for (StripedTarget.Member member : stripedTarget.getMembers()) {
+                OMElement directoryElement = createConfigElement(WriteBinaryFileMediatorConfigConstants.DIRECTORY_TAG);
+                addValueAttribute(directoryElement, member.getDirectory());
+                addAttribute(directoryElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_WEIGHT, String.valueOf(member.getWeight()));
+                element.addChild(directoryElement);
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeIdempotency(WriteBinaryFileMediator mediator) {
+        IdempotencyCache.Settings settings = mediator.getIdempotencySettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.IDEMPOTENCY_TAG);
+            if (settings.getKeyExpression() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION, settings.getKeyExpression().toString());
+                serializeNamespaces(element, settings.getKeyExpression());
+            }
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ENTRIES, String.valueOf(settings.getMaxEntries()));
+            if (settings.getFile() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE, settings.getFile().getPath());
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeMemoryBudget(WriteBinaryFileMediator mediator) {
+        MemoryBudget.Settings settings = mediator.getMemoryBudgetSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, String.valueOf(settings.getTimeout()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeFileSystem(WriteBinaryFileMediator mediator) {
+        TargetFileSystem.Settings settings = mediator.getFileSystemSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI, settings.getUri().toString());
+            if (settings.getProviderClass() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_PROVIDER, settings.getProviderClass());
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeBase64Decoder(WriteBinaryFileMediator mediator) {
+        if (mediator.getBase64Decoder() != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG);
+            addValueAttribute(element, StandardBase64Decoder.nameOf(mediator.getBase64Decoder()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeWriteTimeout(WriteBinaryFileMediator mediator) {
+        if (mediator.getWriteTimeout() > 0) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG);
+            addValueAttribute(element, String.valueOf(mediator.getWriteTimeout()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeCircuitBreaker(WriteBinaryFileMediator mediator) {
+        DirectoryCircuitBreaker.Settings settings = mediator.getCircuitBreakerSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FAILURE_RATE_THRESHOLD, String.valueOf(settings.getFailureRateThreshold()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MINIMUM_CALLS, String.valueOf(settings.getMinimumCalls()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_COOLDOWN, String.valueOf(settings.getCooldown()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeSpool(WriteBinaryFileMediator mediator) {
+        SpoolDirectory.Settings settings = mediator.getSpoolSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY, settings.getDirectory().getPath());
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MOVER_THREADS, String.valueOf(settings.getMoverThreads()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_INTERIM_PATH, settings.isReturnSpoolPath()
+                    ? WriteBinaryFileMediatorConfigConstants.INTERIM_PATH_SPOOL : WriteBinaryFileMediatorConfigConstants.INTERIM_PATH_FINAL);
+            if (settings.getMaxAttempts() != SpoolDirectory.Settings.DEFAULT_MAX_ATTEMPTS) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ATTEMPTS, String.valueOf(settings.getMaxAttempts()));
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeManifest(WriteBinaryFileMediator mediator) {
+        FileManifest.Settings settings = mediator.getManifestSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+            if (settings.getFile() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE, settings.getFile().getPath());
+            } else {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME, settings.getName());
+            }
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BATCH_SIZE, String.valueOf(settings.getBatchSize()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FLUSH_INTERVAL, String.valueOf(settings.getFlushInterval()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE, String.valueOf(settings.getMaxSize()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_FILES, String.valueOf(settings.getMaxFiles()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeRetention(WriteBinaryFileMediator mediator) {
+        RetentionJanitor.Settings settings = mediator.getRetentionSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_AGE, String.valueOf(settings.getMaxAge()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BUCKET, String.valueOf(settings.getBucket()));
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DELETES_PER_SECOND, String.valueOf(settings.getDeletesPerSecond()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeEncryption(WriteBinaryFileMediator mediator) {
+        FileEncryption.Settings settings = mediator.getEncryptionSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+            if (settings.getKeyEntry() != null) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY, settings.getKeyEntry());
+            } else {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION, settings.getKeyExpression().toString());
+                serializeNamespaces(element, settings.getKeyExpression());
+            }
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE, String.valueOf(settings.getChunkSize()));
+            return element;
+        }
+
+        return null;
+    }
+
+    private OMElement serializeChunkedUpload(WriteBinaryFileMediator mediator) {
+        ChunkedUploadAssembler.Settings settings = mediator.getChunkedUploadSettings();
+        if (settings != null) {
+            OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.CHUNKED_UPLOAD_TAG);
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY, settings.getDirectory().getPath());
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE, String.valueOf(settings.getChunkSize()));
+            addExpressionAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_UPLOAD_ID, settings.getUploadIdExpression());
+            addExpressionAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_INDEX, settings.getChunkIndexExpression());
+            addExpressionAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TOTAL_CHUNKS, settings.getTotalChunksExpression());
+            if (settings.getMaxChunks() != ChunkedUploadAssembler.Settings.DEFAULT_MAX_CHUNKS) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_CHUNKS, String.valueOf(settings.getMaxChunks()));
+            }
+            if (settings.getIdleTimeout() != ChunkedUploadAssembler.Settings.DEFAULT_IDLE_TIMEOUT) {
+                addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_IDLE_TIMEOUT, String.valueOf(settings.getIdleTimeout()));
+            }
+            return element;
+        }
+
+        return null;
+    }
+
+    private void addExpressionAttribute(OMElement element, QName attributeQName, SynapseXPath expression) {
+        addAttribute(element, attributeQName, expression.toString());
+        serializeNamespaces(element, expression);
+    }
+
+    private OMElement serializeSizeTier(SizeTier tier) {
+        OMElement element = createConfigElement(WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        if (tier.getMaxSize() != SizeTier.UNBOUNDED) {
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE, String.valueOf(tier.getMaxSize()));
+        }
+        if (tier.getTargetDirectory() != null) {
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TARGET_DIRECTORY, tier.getTargetDirectory());
+        }
+        addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_STRATEGY, tier.getStrategy().toString());
+        if (tier.getConcurrency() != Integer.MAX_VALUE) {
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CONCURRENCY, String.valueOf(tier.getConcurrency()));
+        }
+        if (tier.getQueueTimeout() != SizeTier.DEFAULT_QUEUE_TIMEOUT) {
+            addAttribute(element, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, String.valueOf(tier.getQueueTimeout()));
+        }
+        return element;
+    }
+
+    private void addAttribute(OMElement element, QName attributeQName, String attributeValue) {
+        element.addAttribute(attributeQName.getLocalPart(), attributeValue, null);
+    }
 
     private void addExpressionAttribute(OMElement element, SynapseXPath expression) {
         element.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_EXPRESSION.getLocalPart(), expression.toString(), null);
         serializeNamespaces(element, expression);
     }
 
+    private void addTemplateAttribute(OMElement element, FileNameTemplate template) {
+        element.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE.getLocalPart(), template.getPattern(), null);
+        for (SynapseXPath expression : template.getExpressions()) {
+            serializeNamespaces(element, expression);
+        }
+    }
+
     private void addValueAttribute(OMElement element, String attributeValue) {
         element.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE.getLocalPart(), attributeValue, null);
     }
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AppendingWriterTest {
+
+    private static final int RECORD_SIZE = 1000;
+
+    private File directory;
+    private AppendingWriter writer;
+
+    @Before
+    public void createDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-append");
+        assertTrue(directory.mkdirs());
+        writer = new AppendingWriter(2);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        writer.closeIdle();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void appendsConcurrentRecordsWithoutInterleaving() throws Exception {
+        final File file = new File(directory, "records.log");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < 40; i++) {
+            final byte value = (byte) ('a' + i % 26);
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return writer.append(file, new ByteArrayInputStream(record(value)));
+                }
+            }));
+        }
+        for (Future<Long> result : results) {
+            assertEquals(RECORD_SIZE, result.get().longValue());
+        }
+        executor.shutdown();
+
+        byte[] content = FileUtils.readFileToByteArray(file);
+        assertEquals(40 * RECORD_SIZE, content.length);
+        for (int record = 0; record < 40; record++) {
+            for (int i = 1; i < RECORD_SIZE; i++) {
+                assertEquals("Record " + record + " interleaved", content[record * RECORD_SIZE], content[record * RECORD_SIZE + i]);
+            }
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedChannels() throws IOException {
+        File first = new File(directory, "first.log");
+        File second = new File(directory, "second.log");
+        File third = new File(directory, "third.log");
+
+        writer.append(first, new ByteArrayInputStream(record((byte) '1')));
+        writer.append(second, new ByteArrayInputStream(record((byte) '2')));
+        writer.append(first, new ByteArrayInputStream(record((byte) '1')));
+        writer.append(third, new ByteArrayInputStream(record((byte) '3')));
+
+        assertEquals(2, writer.getOpenFileCount());
+        writer.append(second, new ByteArrayInputStream(record((byte) '2')));
+        assertEquals(2 * RECORD_SIZE, first.length());
+        assertEquals(2 * RECORD_SIZE, second.length());
+        assertEquals(RECORD_SIZE, third.length());
+    }
+
+    @Test
+    public void reopensFileReplacedByOthers() throws IOException {
+        writer = new AppendingWriter(2, 0);
+        File file = new File(directory, "rotated.log");
+        writer.append(file, new ByteArrayInputStream(record((byte) 'a')));
+        assertTrue(file.renameTo(new File(directory, "rotated.log.1")));
+
+        writer.append(file, new ByteArrayInputStream(record((byte) 'b')));
+
+        assertEquals(RECORD_SIZE, file.length());
+        assertEquals('b', FileUtils.readFileToByteArray(file)[0]);
+    }
+
+    @Test
+    public void reopensFileReplacedWithSameSize() throws IOException {
+        writer = new AppendingWriter(2, 0);
+        File file = new File(directory, "replaced.log");
+        writer.append(file, new ByteArrayInputStream(record((byte) 'a')));
+        File replacement = new File(directory, "replacement.log");
+        FileUtils.writeByteArrayToFile(replacement, record((byte) 'x'));
+        assertTrue(file.delete());
+        assertTrue(replacement.renameTo(file));
+
+        writer.append(file, new ByteArrayInputStream(record((byte) 'b')));
+
+        byte[] content = FileUtils.readFileToByteArray(file);
+        assertEquals(2 * RECORD_SIZE, content.length);
+        assertEquals('x', content[0]);
+        assertEquals('b', content[RECORD_SIZE]);
+    }
+
+    @Test
+    public void checksForRotationOncePerInterval() throws IOException {
+        writer = new AppendingWriter(2, 60000);
+        File file = new File(directory, "rotated.log");
+        File rotated = new File(directory, "rotated.log.1");
+        writer.append(file, new ByteArrayInputStream(record((byte) 'a')));
+        assertTrue(file.renameTo(rotated));
+
+        writer.append(file, new ByteArrayInputStream(record((byte) 'b')));
+        assertEquals("Append within the interval should go to the cached channel", 2 * RECORD_SIZE, rotated.length());
+
+        writer.closeIdle();
+        writer.append(file, new ByteArrayInputStream(record((byte) 'c')));
+        assertEquals(RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void removesPartiallyAppendedContentOnFailure() throws IOException {
+        File file = new File(directory, "partial.log");
+        writer.append(file, new ByteArrayInputStream(record((byte) 'a')));
+
+        try {
+            writer.append(file, new FailingInputStream(record((byte) 'b')));
+            fail("Append should have failed");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertEquals(RECORD_SIZE, file.length());
+    }
+
+    private static byte[] record(byte value) {
+        byte[] record = new byte[RECORD_SIZE];
+        Arrays.fill(record, value);
+        return record;
+    }
+
+    private static final class FailingInputStream extends InputStream {
+        private final InputStream content;
+
+        private FailingInputStream(byte[] content) {
+            this.content = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = content.read();
+            if (read < 0) {
+                throw new IOException("Connection reset");
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = content.read(buffer, offset, length);
+            if (read < 0) {
+                throw new IOException("Connection reset");
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMText;
+import org.apache.axiom.util.base64.Base64Utils;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares throughput of the base64 decoders, including writing the decoded content to a
+ * discarding stream. Not run as part of the test suite, start with
+ * <pre>
+ * java -Xmx8g -cp target/classes:target/test-classes:&lt;dependencies&gt; fi.mystes.synapse.mediator.Base64DecoderBenchmark [sizesInMegabytes] [decoders]
+ * </pre>
+ * e.g. <code>1,16,256,1024 axiom,table</code>. The base64 text of a 1 GB payload alone takes
+ * 1.3-2.7 GB of heap depending on the JDK, and the Axiom decoder needs twice the payload on top.
+ */
+public final class Base64DecoderBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    // small sizes need more rounds before the decoding loops are compiled
+    private static final long WARMUP_SIZE = 256L * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    private Base64DecoderBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] sizes = (args.length > 0 ? args[0] : "1,16,256").split(",");
+        String[] decoderNames = (args.length > 1 ? args[1] : "axiom,table").split(",");
+        Base64Decoder[] decoders = new Base64Decoder[decoderNames.length];
+        for (int i = 0; i < decoderNames.length; i++) {
+            decoders[i] = StandardBase64Decoder.forName(decoderNames[i]);
+        }
+
+        for (String size : sizes) {
+            long megabytes = Long.parseLong(size.trim());
+            OMText text = createText((int) (megabytes * 1024 * 1024));
+            int warmupRounds = (int) Math.max(WARMUP_ROUNDS, WARMUP_SIZE / (megabytes * 1024 * 1024));
+            for (int round = 1 - warmupRounds; round <= ROUNDS; round++) {
+                StringBuilder line = new StringBuilder(String.format("%d MB round %d:", megabytes, round));
+                for (Base64Decoder decoder : decoders) {
+                    long nanos = decode(decoder, text);
+                    line.append(String.format(" %s %.1f MB/s", StandardBase64Decoder.nameOf(decoder), megabytes / (nanos / 1e9)));
+                }
+                if (round > 0) {
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+
+    private static OMText createText(int size) {
+        byte[] content = new byte[size];
+        new Random(1).nextBytes(content);
+        OMText text = OMAbstractFactory.getOMFactory().createOMText(Base64Utils.encode(content));
+        text.setBinary(true);
+        return text;
+    }
+
+    private static long decode(Base64Decoder decoder, OMText text) throws IOException {
+        long start = System.nanoTime();
+        DataHandler dataHandler = decoder.decode(text);
+        dataHandler.writeTo(new DiscardingOutputStream());
+        return System.nanoTime() - start;
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+    }
+}
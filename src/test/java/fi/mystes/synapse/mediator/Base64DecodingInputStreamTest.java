@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.util.base64.Base64Utils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Base64DecodingInputStreamTest {
+
+    @Test
+    public void decodesAnyLengthWithAnyReadSize() throws IOException {
+        Random random = new Random(3);
+        for (int length = 0; length < 70; length++) {
+            byte[] content = new byte[length];
+            random.nextBytes(content);
+            String base64 = Base64Utils.encode(content);
+            for (int readSize : new int[]{1, 2, 3, 7, 8192}) {
+                assertArrayEquals("length " + length + ", read size " + readSize, content, decode(base64, readSize));
+            }
+        }
+    }
+
+    @Test
+    public void decodesAcrossCharacterBufferBoundaries() throws IOException {
+        byte[] content = new byte[100000];
+        new Random(5).nextBytes(content);
+        assertArrayEquals(content, decode(Base64Utils.encode(content), 4096));
+    }
+
+    @Test
+    public void skipsLineBreaksAndWhitespace() throws IOException {
+        byte[] content = new byte[200];
+        new Random(7).nextBytes(content);
+        String base64 = Base64Utils.encode(content);
+        StringBuilder wrapped = new StringBuilder("\n  ");
+        for (int i = 0; i < base64.length(); i += 76) {
+            wrapped.append(base64, i, Math.min(base64.length(), i + 76)).append("\r\n\t");
+        }
+        assertArrayEquals(content, decode(wrapped.toString(), 8192));
+    }
+
+    @Test
+    public void decodesUnpaddedContent() throws IOException {
+        assertArrayEquals("ab".getBytes("US-ASCII"), decode("YWI", 8192));
+        assertArrayEquals("a".getBytes("US-ASCII"), decode("YQ", 8192));
+    }
+
+    @Test(expected = Base64DecodingInputStream.MalformedBase64Exception.class)
+    public void failsOnCharacterOutsideAlphabet() throws IOException {
+        decode("YW*i", 8192);
+    }
+
+    @Test(expected = Base64DecodingInputStream.MalformedBase64Exception.class)
+    public void failsOnDataAfterPadding() throws IOException {
+        decode("YQ==YWJj", 8192);
+    }
+
+    @Test(expected = Base64DecodingInputStream.MalformedBase64Exception.class)
+    public void failsOnTruncatedQuantum() throws IOException {
+        decode("YWJjZ", 8192);
+    }
+
+    @Test
+    public void readsSingleBytes() throws IOException {
+        InputStream in = new Base64DecodingInputStream(new StringReader("/+8="));
+        assertEquals(0xff, in.read());
+        assertEquals(0xef, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    private static byte[] decode(String base64, int readSize) throws IOException {
+        InputStream in = new Base64DecodingInputStream(new StringReader(base64));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[readSize];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import fi.mystes.synapse.mediator.fs.FaultInjectingFileSystem;
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.activation.DataHandler;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BinaryFileWriterTest {
+
+    private static final byte[] CONTENT = "binary content".getBytes();
+
+    private File directory;
+    private BinaryFileWriter writer;
+
+    @Before
+    public void initDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-engine");
+        assertTrue(directory.mkdirs());
+        writer = new BinaryFileWriter();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void writesBufferToSeveralFilesWithoutConsumingIt() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(CONTENT);
+        BinaryContent content = BinaryContent.fromByteBuffer(buffer);
+
+        BinaryFileWriter.Result first = writer.write(content, new File(directory, "first.bin"));
+        BinaryFileWriter.Result second = writer.write(content, new File(directory, "second.bin"));
+
+        assertEquals(BinaryFileWriter.Outcome.WRITTEN, first.getOutcome());
+        assertEquals(CONTENT.length, first.getSize());
+        assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(first.getFile()));
+        assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(second.getFile()));
+        assertEquals("Buffer position should not change", 0, buffer.position());
+        assertEquals(CONTENT.length, content.estimateSize());
+    }
+
+    @Test
+    public void writesStreamOnlyOnce() throws IOException {
+        BinaryContent content = BinaryContent.fromStream(new ByteArrayInputStream(CONTENT));
+        writer.write(content, new File(directory, "first.bin"));
+        try {
+            writer.write(content, new File(directory, "second.bin"));
+            fail("Stream should be readable only once");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesDataHandlerIntoMissingDirectories() throws IOException {
+        writer.setCreateDirectories(true);
+        File file = new File(new File(directory, "sub"), "file.bin");
+
+        writer.write(BinaryContent.fromDataHandler(new DataHandler(new SingleReadDataSource(new ByteArrayInputStream(CONTENT)))), file);
+
+        assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void appliesCollisionPolicyWhenOverwriteNotAllowed() throws IOException {
+        File file = new File(directory, "file.bin");
+        FileUtils.write(file, "existing");
+        writer.setAllowOverwrite(false);
+        BinaryContent content = BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT));
+
+        assertEquals(BinaryFileWriter.Outcome.SKIPPED, writer.write(content, file).getOutcome());
+        assertEquals("existing", FileUtils.readFileToString(file));
+
+        BinaryFileWriter.Result renamed = writer.write(content, file, null, null, CollisionPolicy.SUFFIX);
+        assertEquals(BinaryFileWriter.Outcome.RENAMED, renamed.getOutcome());
+        assertEquals("file-1.bin", renamed.getFile().getName());
+        assertArrayEquals(CONTENT, FileUtils.readFileToByteArray(renamed.getFile()));
+
+        try {
+            writer.write(content, file, null, null, CollisionPolicy.FAIL);
+            fail("Existing file should fail the write");
+        } catch (BinaryFileWriter.CollisionException expected) {
+            assertEquals("existing", FileUtils.readFileToString(file));
+        }
+    }
+
+    @Test
+    public void selectsSizeTierByContentSize() throws IOException {
+        SizeTier small = new SizeTier(CONTENT.length, null, WriteStrategy.STREAM, 1);
+        writer.setSizeTiers(Arrays.asList(small));
+
+        assertSame(small, writer.selectTier(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT))));
+        try {
+            writer.selectTier(BinaryContent.fromByteBuffer(ByteBuffer.allocate(CONTENT.length + 1)));
+            fail("Content larger than any tier should be refused");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesToInMemoryFileSystem() throws IOException {
+        writer.setCreateDirectories(true);
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("writer");
+        Path file = fileSystem.getPath("/out/sub/file.bin");
+
+        BinaryFileWriter.Result result = writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+
+        assertEquals(BinaryFileWriter.Outcome.WRITTEN, result.getOutcome());
+        assertEquals(CONTENT.length, result.getSize());
+        assertEquals(file, result.getPath());
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void appliesSizeTierStrategyAndAppendModeOnInMemoryFileSystem() throws IOException {
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("writer");
+        Path file = fileSystem.getPath("/file.bin");
+        writer.setSizeTiers(Arrays.asList(new SizeTier(CONTENT.length, null, WriteStrategy.DIRECT, 1)));
+
+        writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+
+        writer.setMode(WriteMode.APPEND);
+        BinaryFileWriter.Result appended = writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+        assertEquals(CONTENT.length, appended.getSize());
+        assertEquals(2 * CONTENT.length, Files.size(file));
+    }
+
+    @Test
+    public void appliesCollisionPolicyOnInMemoryFileSystem() throws IOException {
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("writer");
+        Path file = Files.write(fileSystem.getPath("/file.bin"), "existing".getBytes());
+        writer.setAllowOverwrite(false);
+        BinaryContent content = BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT));
+
+        assertEquals(BinaryFileWriter.Outcome.SKIPPED, writer.write(content, file).getOutcome());
+
+        BinaryFileWriter.Result renamed = writer.write(content, file, null, null, CollisionPolicy.SUFFIX);
+        assertEquals(BinaryFileWriter.Outcome.RENAMED, renamed.getOutcome());
+        assertEquals("/file-1.bin", renamed.getPath().toString());
+        assertArrayEquals(CONTENT, Files.readAllBytes(renamed.getPath()));
+        assertArrayEquals("existing".getBytes(), Files.readAllBytes(file));
+    }
+
+    @Test
+    public void completesPartialWrites() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("short", MemoryFileSystem.create("writer").getPath("/"));
+        fileSystem.setMaxBytesPerWrite(3);
+        Path file = fileSystem.getPath("/file.bin");
+
+        writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void removesExclusivelyCreatedFileWhenStorageIsFull() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("full", MemoryFileSystem.create("writer").getPath("/"));
+        fileSystem.setFreeSpace(4);
+        writer.setAllowOverwrite(false);
+        Path file = fileSystem.getPath("/file.bin");
+
+        try {
+            writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+            fail("Write should fail when the storage is full");
+        } catch (IOException expected) {
+            assertEquals(FaultInjectingFileSystem.NO_SPACE_LEFT, expected.getMessage());
+        }
+        assertEquals(4, fileSystem.getWrittenBytes());
+        assertFalse("Partial file should have been removed", Files.exists(file));
+    }
+
+    @Test
+    public void truncatesAppendFailingOnFullStorage() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("full", MemoryFileSystem.create("writer").getPath("/"));
+        writer.setMode(WriteMode.APPEND);
+        Path file = fileSystem.getPath("/file.log");
+        assertEquals(BinaryFileWriter.Outcome.APPENDED, writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file).getOutcome());
+
+        fileSystem.setFreeSpace(4);
+        try {
+            writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+            fail("Append should fail when the storage is full");
+        } catch (IOException expected) {
+            assertEquals(FaultInjectingFileSystem.NO_SPACE_LEFT, expected.getMessage());
+        }
+        assertArrayEquals("Partially appended content should have been removed", CONTENT, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void abandonsWriteToSlowStorage() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("slow", MemoryFileSystem.create("writer").getPath("/"));
+        fileSystem.setWriteLatency(5 * WriteWatchdog.CHECK_INTERVAL);
+        writer.setWriteTimeout(WriteWatchdog.CHECK_INTERVAL);
+        Path file = fileSystem.getPath("/file.bin");
+
+        try {
+            writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+            fail("Write should have been abandoned");
+        } catch (WriteWatchdog.WriteTimeoutException expected) {
+            // expected
+        }
+        assertFalse("Partial file should have been removed", Files.exists(file));
+    }
+
+    @Test
+    public void abandonsWriteStalledInOpeningFile() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("dead", MemoryFileSystem.create("writer").getPath("/"));
+        fileSystem.setOpenLatency(10 * WriteWatchdog.CHECK_INTERVAL);
+        writer.setWriteTimeout(WriteWatchdog.CHECK_INTERVAL);
+        Path file = fileSystem.getPath("/file.bin");
+
+        long started = System.nanoTime();
+        try {
+            writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+            fail("Write should have been abandoned");
+        } catch (WriteWatchdog.WriteTimeoutException expected) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("Write took " + elapsed + " ms", elapsed < 5 * WriteWatchdog.CHECK_INTERVAL);
+    }
+
+    @Test
+    public void abandonsExclusiveCreateStalledInOpeningFile() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("dead", MemoryFileSystem.create("writer").getPath("/"));
+        fileSystem.setOpenLatency(10 * WriteWatchdog.CHECK_INTERVAL);
+        writer.setWriteTimeout(WriteWatchdog.CHECK_INTERVAL);
+        writer.setAllowOverwrite(false);
+        Path file = fileSystem.getPath("/file.bin");
+
+        long started = System.nanoTime();
+        try {
+            writer.write(BinaryContent.fromByteBuffer(ByteBuffer.wrap(CONTENT)), file);
+            fail("Write should have been abandoned");
+        } catch (WriteWatchdog.WriteTimeoutException expected) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("Write took " + elapsed + " ms", elapsed < 5 * WriteWatchdog.CHECK_INTERVAL);
+    }
+}
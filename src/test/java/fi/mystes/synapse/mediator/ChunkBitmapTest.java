@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChunkBitmapTest {
+
+    @Test
+    public void setReturnsCardinalityOnlyForNewBits() {
+        ChunkBitmap bitmap = new ChunkBitmap(130);
+
+        assertEquals(1, bitmap.set(129));
+        assertEquals(2, bitmap.set(0));
+        assertEquals(-1, bitmap.set(129));
+        assertTrue(bitmap.get(0));
+        assertFalse(bitmap.get(64));
+        assertEquals(2, bitmap.cardinality());
+    }
+
+    @Test
+    public void isCompleteWhenAllBitsSet() {
+        ChunkBitmap bitmap = new ChunkBitmap(3);
+        bitmap.set(2);
+        bitmap.set(0);
+        assertFalse(bitmap.isComplete());
+        bitmap.set(1);
+        assertTrue(bitmap.isComplete());
+    }
+
+    @Test
+    public void restoresSavedWordsIgnoringBitsBeyondSize() {
+        ChunkBitmap bitmap = new ChunkBitmap(66);
+
+        bitmap.restoreWord(0, -1L);
+        bitmap.restoreWord(1, -1L);
+
+        assertEquals(66, bitmap.cardinality());
+        assertTrue(bitmap.isComplete());
+    }
+
+    @Test
+    public void exactlyOneConcurrentWriterCompletesTheBitmap() throws InterruptedException {
+        final int size = 10000;
+        final ChunkBitmap bitmap = new ChunkBitmap(size);
+        final AtomicInteger completions = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < size; i++) {
+                        if (bitmap.set(i) == size) {
+                            completions.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(size, bitmap.cardinality());
+        assertEquals(1, completions.get());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexOutsideBitmap() {
+        new ChunkBitmap(10).set(10);
+    }
+}
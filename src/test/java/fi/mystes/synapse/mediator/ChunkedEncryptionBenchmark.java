@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares throughput of plain file writes with encrypted writes. Not run as part of
+ * the test suite, start with
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; fi.mystes.synapse.mediator.ChunkedEncryptionBenchmark [sizeInMegabytes] [chunkSize]
+ * </pre>
+ */
+public final class ChunkedEncryptionBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    // small sizes need more rounds before the AES intrinsics are compiled
+    private static final long WARMUP_SIZE = 512L * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private ChunkedEncryptionBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256L) * 1024 * 1024;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : FileEncryption.DEFAULT_CHUNK_SIZE;
+        SecretKey key = FileEncryption.toKey("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=");
+        byte[] data = new byte[WRITE_SIZE];
+        new Random(1).nextBytes(data);
+        File file = File.createTempFile("encryption-benchmark", ".bin");
+        try {
+            int warmupRounds = (int) Math.max(WARMUP_ROUNDS, WARMUP_SIZE / size);
+            for (int round = 1 - warmupRounds; round <= ROUNDS; round++) {
+                long plain = write(new FileOutputStream(file), data, size);
+                long encrypted = write(new ChunkedEncryptingOutputStream(new FileOutputStream(file), key, chunkSize), data, size);
+                if (round > 0) {
+                    System.out.println(String.format("round %d: plain %.1f MB/s, encrypted %.1f MB/s, overhead %.1f %%",
+                            round, throughput(size, plain), throughput(size, encrypted), (encrypted - plain) * 100.0 / plain));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long write(OutputStream out, byte[] data, long size) throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (long written = 0; written < size; written += data.length) {
+                out.write(data, 0, (int) Math.min(data.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static double throughput(long size, long nanos) {
+        return size / 1048576.0 / (nanos / 1e9);
+    }
+}
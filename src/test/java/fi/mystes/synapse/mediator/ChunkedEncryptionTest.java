@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkedEncryptionTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final SecretKey KEY = FileEncryption.toKey("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=");
+    private static final SecretKey OTHER_KEY = FileEncryption.toKey("HxwdHhsaGRgXFhUUExIREA8ODQwLCgkIBwYFBAMCAQA=");
+
+    @Test
+    public void decryptsWhatWasEncrypted() throws IOException {
+        for (int size : new int[]{0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE, 3 * CHUNK_SIZE + 17}) {
+            byte[] plaintext = randomBytes(size);
+            byte[] encrypted = encrypt(plaintext);
+
+            assertEquals("Unexpected encrypted size for " + size + " bytes", FileEncryption.encryptedSize(size, CHUNK_SIZE), encrypted.length);
+            assertArrayEquals("Round trip failed for " + size + " bytes", plaintext, decrypt(encrypted, KEY));
+        }
+    }
+
+    @Test
+    public void encryptsSameContentDifferentlyEachTime() throws IOException {
+        byte[] plaintext = randomBytes(100);
+
+        assertFalse(Arrays.equals(encrypt(plaintext), encrypt(plaintext)));
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsModifiedContent() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(2 * CHUNK_SIZE));
+        encrypted[FileEncryption.HEADER_LENGTH + CHUNK_SIZE + 20] ^= 1;
+
+        decrypt(encrypted, KEY);
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsTruncationAtChunkBoundary() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE));
+
+        decrypt(Arrays.copyOf(encrypted, FileEncryption.HEADER_LENGTH + 2 * (CHUNK_SIZE + FileEncryption.TAG_LENGTH)), KEY);
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsReorderedChunks() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE));
+        int record = CHUNK_SIZE + FileEncryption.TAG_LENGTH;
+        byte[] first = Arrays.copyOfRange(encrypted, FileEncryption.HEADER_LENGTH, FileEncryption.HEADER_LENGTH + record);
+        System.arraycopy(encrypted, FileEncryption.HEADER_LENGTH + record, encrypted, FileEncryption.HEADER_LENGTH, record);
+        System.arraycopy(first, 0, encrypted, FileEncryption.HEADER_LENGTH + record, record);
+
+        decrypt(encrypted, KEY);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithWrongKey() throws IOException {
+        decrypt(encrypt(randomBytes(10)), OTHER_KEY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeysOfInvalidLength() {
+        FileEncryption.toKey("AAECAwQ=");
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        OutputStream out = new ChunkedEncryptingOutputStream(encrypted, KEY, CHUNK_SIZE);
+        // uneven writes to cross chunk boundaries
+        int position = 0;
+        while (position < plaintext.length) {
+            int count = Math.min(333, plaintext.length - position);
+            out.write(plaintext, position, count);
+            position += count;
+        }
+        out.close();
+        return encrypted.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted, SecretKey key) throws IOException {
+        InputStream in = new ChunkedDecryptingInputStream(new ByteArrayInputStream(encrypted), key);
+        try {
+            ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+            byte[] buffer = new byte[500];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                plaintext.write(buffer, 0, read);
+            }
+            return plaintext.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
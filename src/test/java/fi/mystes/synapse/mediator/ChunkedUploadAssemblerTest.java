@@ -0,0 +1,187 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ChunkedUploadAssemblerTest {
+
+    private static final int CHUNK_SIZE = 100;
+
+    private File directory;
+    private File targetFile;
+    private ChunkedUploadAssembler assembler;
+
+    @Before
+    public void acquireAssembler() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-assembly");
+        targetFile = new File(directory, "target" + File.separator + "assembled.bin");
+        assembler = ChunkedUploadAssembler.acquire(directory);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        assembler.release();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void assemblesChunksWrittenConcurrentlyInRandomOrder() throws Exception {
+        final byte[] content = randomBytes(37 * CHUNK_SIZE + 42);
+        final int totalChunks = 38;
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < totalChunks; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<ChunkedUploadAssembler.ChunkResult>> results = new ArrayList<Future<ChunkedUploadAssembler.ChunkResult>>();
+        for (final int chunkIndex : order) {
+            results.add(executor.submit(new Callable<ChunkedUploadAssembler.ChunkResult>() {
+                @Override
+                public ChunkedUploadAssembler.ChunkResult call() throws IOException {
+                    return writeChunk("concurrent", content, chunkIndex, totalChunks);
+                }
+            }));
+        }
+        int completions = 0;
+        for (Future<ChunkedUploadAssembler.ChunkResult> result : results) {
+            if (result.get().isCompleted()) {
+                completions++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals("Exactly one chunk should complete the upload", 1, completions);
+        assembler.publish("concurrent", targetFile);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(targetFile));
+        assertFalse("Assembly file should have been moved", assembler.getDataFile("concurrent").exists());
+        assertFalse("Bitmap should have been removed", new File(directory, "concurrent" + ChunkedUploadAssembler.BITMAP_SUFFIX).exists());
+    }
+
+    @Test
+    public void preallocatesFileForAllChunks() throws IOException {
+        writeChunk("preallocated", randomBytes(CHUNK_SIZE), 0, 5);
+
+        assertEquals(5 * CHUNK_SIZE, assembler.getDataFile("preallocated").length());
+    }
+
+    @Test
+    public void rewritingChunkDoesNotCountTwice() throws IOException {
+        byte[] content = randomBytes(2 * CHUNK_SIZE);
+
+        assertEquals(1, writeChunk("duplicate", content, 0, 2).getReceivedChunks());
+        assertEquals(1, writeChunk("duplicate", content, 0, 2).getReceivedChunks());
+        assertTrue(writeChunk("duplicate", content, 1, 2).isCompleted());
+    }
+
+    @Test
+    public void continuesUploadAfterRestart() throws IOException {
+        byte[] content = randomBytes(3 * CHUNK_SIZE);
+        writeChunk("restart", content, 2, 3);
+        writeChunk("restart", content, 0, 3);
+        assembler.release();
+        assembler = ChunkedUploadAssembler.acquire(directory);
+
+        ChunkedUploadAssembler.ChunkResult result = writeChunk("restart", content, 1, 3);
+
+        assertTrue(result.isCompleted());
+        assembler.publish("restart", targetFile);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(targetFile));
+    }
+
+    @Test
+    public void removesUploadsIdleForTimeout() throws IOException {
+        writeChunk("idle", randomBytes(2 * CHUNK_SIZE), 0, 2);
+
+        assertEquals("Recently written upload should not be idle", 0, assembler.expireIdleUploads(System.currentTimeMillis()));
+        assertEquals(1, assembler.expireIdleUploads(System.currentTimeMillis() + ChunkedUploadAssembler.Settings.DEFAULT_IDLE_TIMEOUT));
+
+        assertFalse("Data file should have been removed", assembler.getDataFile("idle").exists());
+        assertFalse("Bitmap should have been removed", new File(directory, "idle" + ChunkedUploadAssembler.BITMAP_SUFFIX).exists());
+        assertEquals("Chunk after removal should start a new upload", 1, writeChunk("idle", randomBytes(2 * CHUNK_SIZE), 1, 2).getReceivedChunks());
+    }
+
+    @Test
+    public void removesIdleUploadsLeftFromPreviousRun() throws IOException {
+        writeChunk("left", randomBytes(2 * CHUNK_SIZE), 0, 2);
+        assembler.release();
+        assembler = ChunkedUploadAssembler.acquire(directory);
+
+        assertEquals(1, assembler.expireIdleUploads(System.currentTimeMillis() + ChunkedUploadAssembler.Settings.DEFAULT_IDLE_TIMEOUT));
+
+        assertFalse("Data file should have been removed", assembler.getDataFile("left").exists());
+        assertFalse("Bitmap should have been removed", new File(directory, "left" + ChunkedUploadAssembler.BITMAP_SUFFIX).exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesIdleTimeoutDifferentFromSharedAssembler() throws IOException {
+        ChunkedUploadAssembler.acquire(directory, 1000);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsShortChunkBeforeLastChunk() throws IOException {
+        assembler.writeChunk("short", 0, 2, CHUNK_SIZE, new ByteArrayInputStream(new byte[CHUNK_SIZE - 1]));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkLargerThanChunkSize() throws IOException {
+        assembler.writeChunk("large", 1, 2, CHUNK_SIZE, new ByteArrayInputStream(new byte[CHUNK_SIZE + 1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUploadIdsThatAreNotPlainFileNames() throws IOException {
+        assembler.writeChunk("../escape", 0, 1, CHUNK_SIZE, new ByteArrayInputStream(new byte[1]));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkCountDifferentFromStartedUpload() throws IOException {
+        writeChunk("mismatch", randomBytes(CHUNK_SIZE), 0, 3);
+        writeChunk("mismatch", randomBytes(CHUNK_SIZE), 0, 4);
+    }
+
+    private ChunkedUploadAssembler.ChunkResult writeChunk(String uploadId, byte[] content, int chunkIndex, int totalChunks) throws IOException {
+        int start = chunkIndex * CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(content, start, Math.min(content.length, start + CHUNK_SIZE));
+        return assembler.writeChunk(uploadId, chunkIndex, totalChunks, CHUNK_SIZE, new ByteArrayInputStream(chunk));
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DirectFileWriterTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-direct");
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void writesExactContentOfSizesNotMatchingBlocks() throws IOException {
+        int[] sizes = {0, 1, 4095, 4096, 4097, DirectFileWriter.BUFFER_SIZE, DirectFileWriter.BUFFER_SIZE * 3 + 17};
+        for (int size : sizes) {
+            byte[] content = content(size);
+            File file = new File(directory, size + ".bin");
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                DirectFileWriter.write(new ByteArrayInputStream(content), file.toPath(), out.getChannel());
+            } finally {
+                out.close();
+            }
+            assertTrue("Unexpected content with " + size + " bytes", Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+        }
+    }
+
+    @Test
+    public void writesExactContentWithForcedWrites() throws IOException {
+        byte[] content = content((int) DirectFileWriter.FORCE_INTERVAL * 2 + 5);
+        File file = new File(directory, "forced.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            DirectFileWriter.writeWithForce(new ByteArrayInputStream(content), out.getChannel());
+        } finally {
+            out.close();
+        }
+        assertTrue("Unexpected content", Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+    }
+
+    @Test(expected = IOException.class)
+    public void abortsWhenStreamChannelIsClosed() throws IOException {
+        File file = new File(directory, "closed.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.getChannel().close();
+        DirectFileWriter.write(new ByteArrayInputStream(content(DirectFileWriter.BUFFER_SIZE * 2)), file.toPath(), out.getChannel());
+    }
+
+    @Test
+    public void keepsAtMostMaxBuffersAndReleasesThem() throws IOException {
+        for (int i = 0; i < DirectFileWriter.MAX_BUFFERS + 2; i++) {
+            File file = new File(directory, i + ".bin");
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                DirectFileWriter.write(new ByteArrayInputStream(content(4097)), file.toPath(), out.getChannel());
+            } finally {
+                out.close();
+            }
+        }
+        assertTrue("Too many direct buffers", DirectFileWriter.getAllocatedBufferCount() <= DirectFileWriter.MAX_BUFFERS);
+
+        DirectFileWriter.releaseBuffers();
+
+        assertEquals(0, DirectFileWriter.getAllocatedBufferCount());
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
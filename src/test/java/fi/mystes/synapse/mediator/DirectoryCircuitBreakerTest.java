@@ -0,0 +1,135 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryCircuitBreakerTest {
+
+    private static final long LONG_COOLDOWN = 60000L;
+
+    @Test
+    public void staysClosedUntilMinimumCallsReached() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(50, 4, LONG_COOLDOWN));
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals("CLOSED", breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void opensWhenFailureRateReachesThreshold() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(50, 4, LONG_COOLDOWN));
+        breaker.recordSuccess();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals("OPEN", breaker.getState());
+        assertFalse("Open breaker should reject requests", breaker.allowRequest());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void forgetsOutcomesOutsideWindow() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(75, 4, LONG_COOLDOWN));
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordSuccess();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals("Window should hold the last four outcomes only", 25, breaker.getFailureRate());
+    }
+
+    @Test
+    public void letsSingleProbeThroughAfterCooldownAndClosesOnSuccess() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(100, 1, 0L));
+        breaker.recordFailure();
+        assertEquals("OPEN", breaker.getState());
+
+        assertTrue("Probe should be allowed after cooldown", breaker.allowRequest());
+        assertEquals("HALF_OPEN", breaker.getState());
+        assertFalse("Only one probe should be allowed at a time", breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals("CLOSED", breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void reopensWhenProbeFails() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(100, 1, 0L));
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals("OPEN", breaker.getState());
+    }
+
+    @Test
+    public void releasedProbeAllowsNextProbe() {
+        DirectoryCircuitBreaker breaker = new DirectoryCircuitBreaker("/tmp", new DirectoryCircuitBreaker.Settings(100, 1, 0L));
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.releaseProbe();
+        assertTrue("Released probe permit should be available again", breaker.allowRequest());
+    }
+
+    @Test
+    public void dropsIdleClosedBreakersButKeepsOpenOnes() {
+        DirectoryCircuitBreaker.Settings settings = new DirectoryCircuitBreaker.Settings(100, 1, LONG_COOLDOWN);
+        DirectoryCircuitBreaker idle = DirectoryCircuitBreaker.forDirectory("/tmp/idle-breaker", settings);
+        DirectoryCircuitBreaker open = DirectoryCircuitBreaker.forDirectory("/tmp/open-breaker", settings);
+        open.recordFailure();
+
+        assertTrue(DirectoryCircuitBreaker.evictIdleBreakers(System.currentTimeMillis() + DirectoryCircuitBreaker.IDLE_TIMEOUT * 2) >= 1);
+
+        assertNotSame("Idle breaker should have been dropped", idle, DirectoryCircuitBreaker.forDirectory("/tmp/idle-breaker", settings));
+        assertSame("Open breaker should have been kept", open, DirectoryCircuitBreaker.forDirectory("/tmp/open-breaker", settings));
+    }
+
+    @Test
+    public void neverReturnsBreakerBeingEvicted() {
+        DirectoryCircuitBreaker.Settings settings = new DirectoryCircuitBreaker.Settings(100, 1, LONG_COOLDOWN);
+        DirectoryCircuitBreaker evicted = DirectoryCircuitBreaker.forDirectory("/tmp/evicted-breaker", settings);
+
+        // as if the eviction had just decided to drop it
+        assertTrue(evicted.evictIfIdle(System.currentTimeMillis() + DirectoryCircuitBreaker.IDLE_TIMEOUT * 2));
+
+        DirectoryCircuitBreaker replacement = DirectoryCircuitBreaker.forDirectory("/tmp/evicted-breaker", settings);
+        assertNotSame("Breaker being evicted should have been replaced", evicted, replacement);
+        assertSame(replacement, DirectoryCircuitBreaker.forDirectory("/tmp/evicted-breaker", settings));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDifferentSettingsForSameDirectory() {
+        DirectoryCircuitBreaker.forDirectory("/tmp/shared-breaker", new DirectoryCircuitBreaker.Settings(50, 10, LONG_COOLDOWN));
+        DirectoryCircuitBreaker.forDirectory("/tmp/shared-breaker", new DirectoryCircuitBreaker.Settings(50, 20, LONG_COOLDOWN));
+    }
+
+    @Test
+    public void sanitizesMBeanIdentifier() {
+        assertEquals("C_\\data_x", DirectoryCircuitBreaker.mbeanId("C:\\data,x"));
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileManifestTest {
+
+    private File directory;
+    private File manifestFile;
+
+    @Before
+    public void createDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-manifest");
+        assertTrue(directory.mkdirs());
+        manifestFile = new File(directory, "manifest.log");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void writesRecordsOnlyWhenBatchIsFull() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(2, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        try {
+            manifest.record("/data/first.bin", 10, null, "urn:uuid:1");
+            assertEquals("Single record should still be buffered", 0, manifestFile.length());
+
+            manifest.record("/data/second.bin", 20, "abc", "urn:uuid:2");
+
+            awaitContent();
+            List<String> lines = readRecords();
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0), lines.get(0).matches("\\d+\t/data/first.bin\t10\t\turn:uuid:1"));
+            assertTrue(lines.get(1), lines.get(1).matches("\\d+\t/data/second.bin\t20\tabc\turn:uuid:2"));
+        } finally {
+            manifest.release();
+        }
+    }
+
+    @Test
+    public void writesPendingRecordsPeriodically() throws IOException, InterruptedException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(100, 50, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        try {
+            manifest.record("/data/file.bin", 1, null, null);
+            awaitContent();
+            assertEquals(1, readRecords().size());
+        } finally {
+            manifest.release();
+        }
+    }
+
+    @Test
+    public void writesPendingRecordsWhenReleased() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        manifest.record("/data/file.bin", 1, null, null);
+        manifest.release();
+
+        assertEquals(1, readRecords().size());
+    }
+
+    @Test
+    public void escapesSeparatorsInValues() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(1, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        try {
+            manifest.record("/data/odd\tname\n.bin", 1, null, "back\\slash");
+        } finally {
+            manifest.release();
+        }
+
+        List<String> lines = readRecords();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("\t/data/odd\\tname\\n.bin\t1\t\tback\\\\slash"));
+    }
+
+    @Test
+    public void rotatesFullManifestAndKeepsNewestRotatedFiles() throws IOException {
+        // room for a single record per manifest
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(1, 60000, 60, 2));
+        try {
+            for (int i = 0; i < 10; i++) {
+                manifest.record("/data/file-" + i + ".bin", 1000, null, "urn:uuid:" + i);
+                // one record per flush, the flusher thread may otherwise write several at once
+                manifest.flush();
+            }
+        } finally {
+            manifest.release();
+        }
+
+        assertTrue("Current manifest should exist", manifestFile.exists());
+        assertEquals("Current manifest should contain the last record only", 1, readRecords().size());
+        int rotated = 0;
+        for (String name : directory.list()) {
+            if (name.startsWith(manifestFile.getName() + ".")) {
+                rotated++;
+            }
+        }
+        assertEquals("Only newest rotated manifests should be kept", 2, rotated);
+        assertTrue("Newest rotated manifest should exist", new File(directory, manifestFile.getName() + ".9").exists());
+    }
+
+    @Test
+    public void continuesRotationNumberingAfterRestart() throws IOException {
+        FileUtils.write(new File(directory, manifestFile.getName() + ".7"), "old\n");
+        FileUtils.write(manifestFile, "0123456789012345678901234567890123456789012345678901234567890123456789012345678901234567890123456789\n");
+
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(1, 60000, 100, 5));
+        try {
+            manifest.record("/data/file.bin", 1, null, null);
+        } finally {
+            manifest.release();
+        }
+
+        assertTrue("Full manifest should have been rotated after existing ones", new File(directory, manifestFile.getName() + ".8").exists());
+        assertEquals(1, readRecords().size());
+    }
+
+    @Test
+    public void readsRecordsOfRotatedManifestsOldestFirst() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(1, 60000, 60, 5));
+        try {
+            for (int i = 0; i < 4; i++) {
+                manifest.record("/data/file-" + i + "\t.bin", i, null, "urn:uuid:" + i);
+                manifest.flush();
+            }
+        } finally {
+            manifest.release();
+        }
+        // a crash in the middle of a write
+        FileUtils.write(manifestFile, FileUtils.readFileToString(manifestFile) + "1\t/data/incomplete");
+
+        final List<String> paths = new ArrayList<String>();
+        FileManifest.read(manifestFile, new FileManifest.RecordHandler() {
+            @Override
+            public void handle(long time, String path, long size, String checksum, String messageId) {
+                assertNull(checksum);
+                assertEquals("urn:uuid:" + size, messageId);
+                paths.add(path);
+            }
+        });
+
+        assertEquals(Arrays.asList("/data/file-0\t.bin", "/data/file-1\t.bin", "/data/file-2\t.bin", "/data/file-3\t.bin"), paths);
+    }
+
+    @Test
+    public void refusesRecordsAfterLastRelease() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        FileManifest shared = FileManifest.acquire(manifestFile, settings(100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        manifest.release();
+        assertTrue("Manifest still in use should accept records", shared.record("/data/first.bin", 1, null, null));
+
+        shared.release();
+
+        assertFalse("Released manifest should refuse records", shared.record("/data/second.bin", 1, null, null));
+        assertEquals(1, readRecords().size());
+    }
+
+    @Test
+    public void rejectsDifferentSettingsForSameManifest() throws IOException {
+        FileManifest manifest = FileManifest.acquire(manifestFile, settings(100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        try {
+            FileManifest.acquire(manifestFile, settings(10, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+            fail("Manifest in use should not be shared with different settings");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        } finally {
+            manifest.release();
+        }
+    }
+
+    private void awaitContent() throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manifestFile.length() == 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private List<String> readRecords() throws IOException {
+        String content = FileUtils.readFileToString(manifestFile);
+        return content.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(content.split("\n"));
+    }
+
+    private FileManifest.Settings settings(int batchSize, long flushInterval, long maxSize, int maxFiles) {
+        return new FileManifest.Settings(manifestFile, null, batchSize, flushInterval, maxSize, maxFiles);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.synapse.MessageContext;
+import org.jaxen.JaxenException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class FileNameTemplateTest {
+
+    @Mock
+    private MessageContext messageContext;
+
+    @Before
+    public void initMocks() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void resolvesLiteralTemplateAsIs() throws JaxenException {
+        assertEquals("foo.zip", FileNameTemplate.compile("foo.zip", null).resolve(messageContext));
+    }
+
+    @Test
+    public void resolvesPropertyPlaceholderFromMessageContext() throws JaxenException {
+        when(messageContext.getProperty("customerId")).thenReturn("acme");
+        assertEquals("acme.zip", FileNameTemplate.compile("{property:customerId}.zip", null).resolve(messageContext));
+    }
+
+    @Test
+    public void incrementsSequenceForEachResolution() throws JaxenException {
+        FileNameTemplate template = FileNameTemplate.compile("file_{seq}", null);
+        assertEquals("file_1", template.resolve(messageContext));
+        assertEquals("file_2", template.resolve(messageContext));
+    }
+
+    @Test
+    public void zeroPadsTimePlaceholders() throws JaxenException {
+        String resolved = FileNameTemplate.compile("{yyyy}/{MM}/{dd}", null).resolve(messageContext);
+        assertTrue("Unexpected date path " + resolved, resolved.matches("\\d{4}/\\d{2}/\\d{2}"));
+        assertEquals("Year should match current year", String.valueOf(Calendar.getInstance().get(Calendar.YEAR)), resolved.substring(0, 4));
+    }
+
+    @Test
+    public void stripsUrnPrefixFromMessageId() throws JaxenException {
+        when(messageContext.getMessageID()).thenReturn("urn:uuid:fa5ea72d-1bba-4edf-9799-4131ed17f8e1");
+        assertEquals("fa5ea72d-1bba-4edf-9799-4131ed17f8e1.bin", FileNameTemplate.compile("{msgid}.bin", null).resolve(messageContext));
+    }
+
+    @Test
+    public void resolvesExtensionFromFileNameProperty() throws JaxenException {
+        when(messageContext.getProperty("FILE_NAME")).thenReturn("scan.tiff");
+        assertEquals("out.tiff", FileNameTemplate.compile("out.{ext}", null).resolve(messageContext));
+    }
+
+    @Test
+    public void usesDefaultExtensionWhenFileNamePropertyMissing() throws JaxenException {
+        assertEquals("out.bin", FileNameTemplate.compile("out.{ext}", null).resolve(messageContext));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnterminatedPlaceholder() {
+        FileNameTemplate.compile("out_{seq.bin", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnknownPlaceholder() {
+        FileNameTemplate.compile("out_{foo}.bin", null);
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class IdempotencyCacheTest {
+
+    private File directory;
+    private File written;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-idempotency");
+        assertTrue(directory.mkdirs());
+        written = new File(directory, "written.bin");
+        FileUtils.writeByteArrayToFile(written, new byte[]{1});
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void returnsPathOfCompletedWriteAndCountsHits() {
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 10, null), "test");
+
+        assertNull(cache.lookup("urn:uuid:1"));
+        cache.record("urn:uuid:1", written.getPath());
+        assertEquals(written.getPath(), cache.lookup("urn:uuid:1"));
+        assertEquals(written.getPath(), cache.lookup("urn:uuid:1"));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(66, cache.getHitRate());
+    }
+
+    @Test
+    public void forgetsWriteWhoseFileNoLongerExists() {
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 10, null), "test");
+        cache.record("urn:uuid:1", written.getPath());
+
+        assertTrue(written.delete());
+
+        assertNull(cache.lookup("urn:uuid:1"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void checksWrittenFileOnTargetFileSystem() throws IOException {
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("idempotency");
+        Path file = fileSystem.getPath("/written.bin");
+        Files.write(file, new byte[]{1});
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 10, null), "test", fileSystem);
+        cache.record("urn:uuid:1", file.toString());
+        cache.record("urn:uuid:2", "/missing.bin");
+
+        assertEquals("/written.bin", cache.lookup("urn:uuid:1"));
+        assertNull(cache.lookup("urn:uuid:2"));
+    }
+
+    @Test
+    public void reservesKeyForOneWriterAtATime() throws IOException {
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 10, null), "test");
+
+        assertNull("First message should get the reservation", cache.reserve("urn:uuid:1"));
+        try {
+            cache.reserve("urn:uuid:1");
+            fail("Message with a reserved key should not write");
+        } catch (IdempotencyCache.InProgressException expected) {
+            // expected
+        }
+        cache.cancel("urn:uuid:1");
+        assertNull("Cancelled reservation should let the next message write", cache.reserve("urn:uuid:1"));
+        cache.record("urn:uuid:1", written.getPath());
+
+        assertEquals(written.getPath(), cache.reserve("urn:uuid:1"));
+    }
+
+    @Test
+    public void keepsReservationWhenFull() throws IOException {
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 2, null), "test");
+
+        assertNull(cache.reserve("urn:uuid:1"));
+        for (int i = 2; i <= 5; i++) {
+            assertNull(cache.reserve("urn:uuid:" + i));
+            cache.record("urn:uuid:" + i, written.getPath());
+        }
+
+        try {
+            cache.reserve("urn:uuid:1");
+            fail("Reservation should not have been dropped by later writes");
+        } catch (IdempotencyCache.InProgressException expected) {
+            // expected
+        }
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void recognizesSpooledWriteBeforeAndAfterItsMove() throws IOException {
+        File journal = new File(directory, "idempotency.log");
+        File spooled = new File(directory, "spooled.bin");
+        File moved = new File(directory, "moved.bin");
+        FileUtils.writeByteArrayToFile(spooled, new byte[]{1});
+        IdempotencyCache cache = IdempotencyCache.open(new IdempotencyCache.Settings(null, 10, journal), "test");
+        try {
+            assertNull(cache.reserve("urn:uuid:1"));
+            cache.record("urn:uuid:1", moved.getPath(), spooled);
+
+            assertEquals("Spooled write should count before the move", moved.getPath(), cache.reserve("urn:uuid:1"));
+            assertTrue(spooled.renameTo(moved));
+            assertEquals(moved.getPath(), cache.reserve("urn:uuid:1"));
+        } finally {
+            cache.close();
+        }
+
+        IdempotencyCache restored = IdempotencyCache.open(new IdempotencyCache.Settings(null, 10, journal), "test");
+        try {
+            assertEquals(moved.getPath(), restored.lookup("urn:uuid:1"));
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsedWriteWhenFull() {
+        IdempotencyCache cache = new IdempotencyCache(new IdempotencyCache.Settings(null, 2, null), "test");
+        cache.record("first", written.getPath());
+        cache.record("second", written.getPath());
+        cache.lookup("first");
+
+        cache.record("third", written.getPath());
+
+        assertEquals(2, cache.getSize());
+        assertNotNull(cache.lookup("first"));
+        assertNull("Least recently used write should have been dropped", cache.lookup("second"));
+    }
+
+    @Test
+    public void restoresCompletedWritesFromJournal() throws IOException {
+        File journal = new File(directory, "idempotency.log");
+        IdempotencyCache cache = IdempotencyCache.open(new IdempotencyCache.Settings(null, 10, journal), "test");
+        cache.record("key\twith tab", written.getPath());
+        cache.close();
+
+        IdempotencyCache restored = IdempotencyCache.open(new IdempotencyCache.Settings(null, 10, journal), "test");
+        try {
+            assertEquals(written.getPath(), restored.lookup("key\twith tab"));
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void compactsJournalToCurrentWrites() throws IOException {
+        File journal = new File(directory, "idempotency.log");
+        IdempotencyCache cache = IdempotencyCache.open(new IdempotencyCache.Settings(null, 2, journal), "test");
+        for (int i = 0; i < 10; i++) {
+            cache.record("urn:uuid:" + i, written.getPath());
+        }
+        cache.close();
+
+        int records = FileUtils.readFileToString(journal).split("\n").length;
+        assertTrue("Journal should have been compacted, has " + records + " records", records <= 4);
+        IdempotencyCache restored = IdempotencyCache.open(new IdempotencyCache.Settings(null, 2, journal), "test");
+        try {
+            assertEquals(2, restored.getSize());
+            assertNotNull(restored.lookup("urn:uuid:9"));
+            assertNotNull(restored.lookup("urn:uuid:8"));
+        } finally {
+            restored.close();
+        }
+    }
+}
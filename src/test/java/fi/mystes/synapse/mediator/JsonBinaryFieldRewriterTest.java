@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class JsonBinaryFieldRewriterTest {
+
+    @Test
+    public void replacesSelectedValueAndKeepsRestOfDocument() throws IOException {
+        String document = "{ \"id\": 8,\n  \"document\": {\"name\": \"scan.pdf\", \"content\": \"QUJD\\/RA==\"},\n  \"tags\": [\"a\", null, true, -1.5e3] }";
+        RecordingHandler handler = new RecordingHandler("/data/scan.pdf");
+
+        String rewritten = rewrite(document, "$.document.content", handler);
+
+        assertEquals("QUJD/RA==", handler.value);
+        assertEquals("{ \"id\": 8,\n  \"document\": {\"name\": \"scan.pdf\", \"content\": \"/data/scan.pdf\"},\n  \"tags\": [\"a\", null, true, -1.5e3] }", rewritten);
+    }
+
+    @Test
+    public void selectsValueInsideArray() throws IOException {
+        RecordingHandler handler = new RecordingHandler("C:\\out\\b.bin");
+
+        String rewritten = rewrite("{\"files\":[{\"data\":\"YQ==\"},{\"data\":\"Yg==\"}]}", "$.files[1].data", handler);
+
+        assertEquals("Yg==", handler.value);
+        assertEquals("{\"files\":[{\"data\":\"YQ==\"},{\"data\":\"C:\\\\out\\\\b.bin\"}]}", rewritten);
+    }
+
+    @Test
+    public void keepsOriginalValueWhenHandlerDeclines() throws IOException {
+        String document = "{\"content\":\"QUJD\\nRA==\"}";
+        assertEquals(document, rewrite(document, "$['content']", new RecordingHandler(null)));
+    }
+
+    @Test
+    public void reportsMissingValue() throws IOException {
+        RecordingHandler handler = new RecordingHandler("/data/x");
+        String document = "{\"other\":\"QUJD\"}";
+
+        StringWriter out = new StringWriter();
+        assertFalse(JsonBinaryFieldRewriter.rewrite(new StringReader(document), out, JsonPath.compile("$.content"), handler));
+        assertEquals(document, out.toString());
+        assertNull(handler.value);
+    }
+
+    @Test
+    public void streamsLongValuesAcrossBufferBoundaries() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append("QUJD").append(i % 100 == 0 ? "\\r\\n" : "");
+        }
+        RecordingHandler handler = new RecordingHandler("/data/long");
+
+        rewrite("{\"content\":\"" + value + "\",\"after\":1}", "$.content", handler);
+
+        assertEquals(value.toString().replace("\\r\\n", "\r\n"), handler.value);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnInvalidDocument() throws IOException {
+        rewrite("{\"content\" \"QUJD\"}", "$.content", new RecordingHandler("/data/x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnsupportedPath() {
+        JsonPath.compile("$..content");
+    }
+
+    private static String rewrite(String document, String path, RecordingHandler handler) throws IOException {
+        StringWriter out = new StringWriter();
+        assertTrue("Value should have been found", JsonBinaryFieldRewriter.rewrite(new StringReader(document), out, JsonPath.compile(path), handler));
+        return out.toString();
+    }
+
+    private static final class RecordingHandler implements JsonBinaryFieldRewriter.FieldHandler {
+        private final String replacement;
+        private String value;
+
+        private RecordingHandler(String replacement) {
+            this.replacement = replacement;
+        }
+
+        @Override
+        public String handle(Reader value) throws IOException {
+            if (replacement == null) {
+                return null;
+            }
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[100];
+            int read;
+            while ((read = value.read(buffer, 0, buffer.length)) >= 0) {
+                content.append(buffer, 0, read);
+            }
+            this.value = content.toString();
+            return replacement;
+        }
+    }
+}
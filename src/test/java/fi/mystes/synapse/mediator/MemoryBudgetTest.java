@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    private MemoryBudget budget;
+    private ExecutorService executor;
+
+    @Before
+    public void createBudget() {
+        budget = new MemoryBudget(1000);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void reservesAndReleasesEstimatedSize() throws Exception {
+        MemoryBudget.Reservation reservation = budget.acquire(300, 0);
+        assertEquals(300, budget.getUsedBytes());
+
+        reservation.release();
+        reservation.release();
+
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(300, budget.getPeakUsedBytes());
+    }
+
+    @Test
+    public void reservesWholeBudgetForContentLargerThanBudget() throws Exception {
+        MemoryBudget.Reservation reservation = budget.acquire(5000, 0);
+
+        assertEquals(1000, reservation.getBytes());
+        reservation.release();
+    }
+
+    @Test
+    public void failsFastWhenBudgetExhausted() throws Exception {
+        MemoryBudget.Reservation reservation = budget.acquire(800, 0);
+        try {
+            budget.acquire(300, 0);
+            fail("Budget should have been exhausted");
+        } catch (MemoryBudget.ExhaustedException expected) {
+            assertEquals(1, budget.getRejectedCount());
+        }
+        reservation.release();
+    }
+
+    @Test
+    public void waitsUntilBudgetIsReleased() throws Exception {
+        MemoryBudget.Reservation first = budget.acquire(800, 0);
+        Future<MemoryBudget.Reservation> second = acquireInBackground(500);
+
+        assertStillWaiting(second);
+        assertEquals(1, budget.getWaiterCount());
+        first.release();
+
+        assertEquals(500, second.get(5, TimeUnit.SECONDS).getBytes());
+        assertEquals(0, budget.getWaiterCount());
+        assertEquals(500, budget.getUsedBytes());
+    }
+
+    @Test
+    public void servesWaitersInArrivalOrder() throws Exception {
+        MemoryBudget.Reservation first = budget.acquire(600, 0);
+        Future<MemoryBudget.Reservation> large = acquireInBackground(900);
+        assertStillWaiting(large);
+
+        try {
+            budget.acquire(100, 0);
+            fail("Small write should not overtake the waiting large write");
+        } catch (MemoryBudget.ExhaustedException expected) {
+            // queued behind the large write
+        }
+        first.release();
+        assertEquals(900, large.get(5, TimeUnit.SECONDS).getBytes());
+    }
+
+    private Future<MemoryBudget.Reservation> acquireInBackground(final long bytes) {
+        return executor.submit(new Callable<MemoryBudget.Reservation>() {
+            @Override
+            public MemoryBudget.Reservation call() throws Exception {
+                return budget.acquire(bytes, 10000);
+            }
+        });
+    }
+
+    private void assertStillWaiting(Future<MemoryBudget.Reservation> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Write should still be waiting for budget");
+        } catch (TimeoutException expected) {
+            // waiting as expected
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures how much the page cache grows while writing a large file with each write
+ * strategy, using <code>Cached</code> and <code>Dirty</code> of <code>/proc/meminfo</code>
+ * (Linux only). Not run as part of the test suite, start with
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; fi.mystes.synapse.mediator.PageCacheBenchmark [directory] [sizeInMegabytes] [strategies]
+ * </pre>
+ * e.g. <code>/data/out 4096 stream,channel,direct</code>. The figures are system wide, so
+ * run it on an otherwise idle host. The file of each strategy is deleted before the next
+ * one is written, which also drops its pages from the cache.
+ */
+public final class PageCacheBenchmark {
+
+    private static final int CHUNK = 64 * 1024;
+
+    private PageCacheBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long megabytes = args.length > 1 ? Long.parseLong(args[1]) : 1024;
+        String[] strategies = (args.length > 2 ? args[2] : "stream,channel,direct").split(",");
+
+        System.out.println("direct I/O supported by the JDK: " + DirectFileWriter.isDirectSupported());
+        for (String name : strategies) {
+            WriteStrategy strategy = WriteStrategy.fromString(name);
+            File file = new File(directory, "page-cache-benchmark-" + strategy + ".bin");
+            long cachedBefore = meminfo("Cached");
+            long start = System.nanoTime();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                strategy.write(new DataHandler(new GeneratedDataSource(megabytes * 1024 * 1024)), file.toPath(), out.getChannel());
+            } finally {
+                out.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long cachedGrowth = meminfo("Cached") - cachedBefore;
+            long dirty = meminfo("Dirty");
+            System.out.println(String.format("%s: %d MB in %.1f s (%.0f MB/s), page cache grew %d MB, dirty %d MB",
+                    strategy, megabytes, seconds, megabytes / seconds, cachedGrowth / 1024, dirty / 1024));
+            if (!file.delete()) {
+                System.out.println("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return value of given /proc/meminfo field in kilobytes
+     */
+    private static long meminfo(String field) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+                }
+            }
+            throw new IOException("No " + field + " in /proc/meminfo");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static final class GeneratedDataSource implements DataSource {
+        private final long size;
+
+        private GeneratedDataSource(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private long remaining = size;
+
+                @Override
+                public int read() {
+                    return remaining-- > 0 ? (int) (remaining & 0x7f) : -1;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int count = (int) Math.min(Math.min(length, CHUNK), remaining);
+                    for (int i = 0; i < count; i++) {
+                        buffer[offset + i] = (byte) (remaining - i);
+                    }
+                    remaining -= count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "generated";
+        }
+    }
+}
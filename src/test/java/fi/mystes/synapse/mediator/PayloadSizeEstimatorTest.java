@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PayloadSizeEstimatorTest {
+
+    @Test
+    public void estimatesDecodedSizeFromBase64Length() {
+        assertEquals(0, PayloadSizeEstimator.estimateDecodedSize(""));
+        assertEquals(3, PayloadSizeEstimator.estimateDecodedSize("YWJj"));
+        assertEquals(2, PayloadSizeEstimator.estimateDecodedSize("YWI="));
+        assertEquals(1, PayloadSizeEstimator.estimateDecodedSize("YQ=="));
+    }
+
+    @Test
+    public void ignoresTrailingWhitespaceAfterPadding() {
+        assertEquals(1, PayloadSizeEstimator.estimateDecodedSize("YQ==\n"));
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RetentionJanitorTest {
+
+    private static final long MAX_AGE = 3600000L;
+    private static final long BUCKET = 60000L;
+
+    private File directory;
+    private long now;
+
+    @Before
+    public void createDirectory() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mediator-retention");
+        assertTrue(directory.mkdirs());
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void deletesFilesOfExpiredBucketsOnly() throws IOException {
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100));
+        File old = writtenFile("old.bin", now);
+        File recent = writtenFile("recent.bin", now);
+        janitor.record(old.getPath(), now);
+        janitor.record(recent.getPath(), now + BUCKET * 10);
+
+        assertEquals(0, janitor.deleteExpired(now + MAX_AGE - 1));
+        assertEquals(1, janitor.deleteExpired(now + MAX_AGE + BUCKET));
+
+        assertFalse("Expired file should have been deleted", old.exists());
+        assertTrue("Recent file should have been kept", recent.exists());
+        assertEquals(1, janitor.getPendingCount());
+        assertEquals(1, janitor.getDeletedCount());
+    }
+
+    @Test
+    public void deletesAtMostRateLimitPerRound() throws IOException {
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 3));
+        for (int i = 0; i < 5; i++) {
+            janitor.record(writtenFile(i + ".bin", now).getPath(), now);
+        }
+
+        assertEquals(3, janitor.deleteExpired(now + MAX_AGE + BUCKET));
+        assertEquals(2, janitor.deleteExpired(now + MAX_AGE + BUCKET));
+        assertEquals(0, janitor.getPendingCount());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void keepsFileRewrittenAfterItWasRecorded() throws IOException {
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100));
+        File file = writtenFile("rewritten.bin", now + BUCKET);
+        janitor.record(file.getPath(), now);
+
+        assertEquals(0, janitor.deleteExpired(now + MAX_AGE + BUCKET));
+        assertTrue("File rewritten after the record should have been kept", file.exists());
+    }
+
+    @Test
+    public void restoresRecordsFromManifest() throws IOException {
+        File file = writtenFile("restored.bin", now);
+        File manifestFile = new File(directory, "manifest.log");
+        FileManifest manifest = FileManifest.acquire(manifestFile, new FileManifest.Settings(manifestFile, null, 100, 60000, 1024, 1));
+        manifest.record(file.getPath(), 1, null, null);
+        manifest.release();
+
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100));
+        janitor.restore(manifestFile, null);
+
+        assertEquals(1, janitor.getPendingCount());
+        assertEquals(1, janitor.deleteExpired(System.currentTimeMillis() + MAX_AGE + BUCKET));
+        assertFalse("Restored file should have been deleted", file.exists());
+    }
+
+    @Test
+    public void restoresAndDeletesFilesOnManifestFileSystem() throws IOException {
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("retention");
+        Path file = Files.write(Files.createDirectories(fileSystem.getPath("/data")).resolve("restored.bin"), new byte[]{1});
+        Path manifestFile = fileSystem.getPath("/data/manifest.log");
+        FileManifest manifest = FileManifest.acquire(manifestFile, new FileManifest.Settings(new File(manifestFile.toString()), null, 100, 60000, 1024, 1));
+        manifest.record(file.toString(), 1, null, null);
+        manifest.release();
+
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100));
+        janitor.restore(manifestFile, Collections.singletonList(fileSystem.getPath("/data")));
+
+        assertEquals(1, janitor.getPendingCount());
+        assertEquals(1, janitor.deleteExpired(System.currentTimeMillis() + MAX_AGE + BUCKET));
+        assertFalse("Restored file should have been deleted", Files.exists(file));
+    }
+
+    @Test
+    public void restoresOnlyFilesOfGivenDirectories() throws IOException {
+        File own = writtenFile("own/restored.bin", now);
+        File other = writtenFile("other/restored.bin", now);
+        File manifestFile = new File(directory, "manifest.log");
+        FileManifest manifest = FileManifest.acquire(manifestFile, new FileManifest.Settings(manifestFile, null, 100, 60000, 1024 * 1024, 1));
+        manifest.record(own.getPath(), 1, null, null);
+        manifest.record(other.getPath(), 1, null, null);
+        manifest.release();
+
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100));
+        janitor.restore(manifestFile, Collections.singletonList(own.getParentFile().toPath()));
+
+        assertEquals(1, janitor.getPendingCount());
+        assertEquals(1, janitor.deleteExpired(System.currentTimeMillis() + MAX_AGE + BUCKET));
+        assertFalse("Restored file should have been deleted", own.exists());
+        assertTrue("File of another directory should have been kept", other.exists());
+    }
+
+    @Test
+    public void restoresRecordsInBatchesOnceEarlierOnesAreDeleted() throws IOException {
+        File manifestFile = new File(directory, "manifest.log");
+        FileManifest manifest = FileManifest.acquire(manifestFile, new FileManifest.Settings(manifestFile, null, 100, 60000, 1024 * 1024, 1));
+        for (int i = 0; i < 5; i++) {
+            manifest.record(writtenFile("data/" + i + ".bin", now).getPath(), 1, null, null);
+        }
+        manifest.release();
+
+        RetentionJanitor janitor = new RetentionJanitor(new RetentionJanitor.Settings(MAX_AGE, BUCKET, 100), 2);
+        janitor.restore(manifestFile, Collections.singletonList(new File(directory, "data").toPath()));
+        assertEquals("Only the first batch should be in memory", 2, janitor.getPendingCount());
+
+        long expired = System.currentTimeMillis() + MAX_AGE + BUCKET;
+        int deleted = 0;
+        for (int round = 0; round < 5; round++) {
+            deleted += janitor.deleteExpired(expired);
+        }
+
+        assertEquals(5, deleted);
+        assertEquals(0, janitor.getPendingCount());
+        assertEquals(0, new File(directory, "data").list().length);
+    }
+
+    private File writtenFile(String name, long modified) throws IOException {
+        File file = new File(directory, name);
+        FileUtils.writeByteArrayToFile(file, new byte[]{1});
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+}
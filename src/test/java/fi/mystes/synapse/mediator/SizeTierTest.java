@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SizeTierTest {
+
+    private final SizeTier small = new SizeTier(1024, "/small", null, 8);
+    private final SizeTier medium = new SizeTier(1024 * 1024, "/medium", WriteStrategy.STREAM, 4);
+    private final SizeTier large = new SizeTier(SizeTier.UNBOUNDED, "/large", WriteStrategy.CHANNEL, 1);
+
+    @Test
+    public void selectsSmallestTierAcceptingSize() {
+        List<SizeTier> tiers = Arrays.asList(small, medium, large);
+
+        assertSame(small, SizeTier.select(tiers, 0));
+        assertSame(small, SizeTier.select(tiers, 1024));
+        assertSame(medium, SizeTier.select(tiers, 1025));
+        assertSame(large, SizeTier.select(tiers, 10L * 1024 * 1024 * 1024));
+    }
+
+    @Test
+    public void selectsLastTierForUnknownSize() {
+        assertSame(large, SizeTier.select(Arrays.asList(small, medium, large), PayloadSizeEstimator.UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void selectsNothingWhenSizeExceedsAllTiers() {
+        assertNull(SizeTier.select(Arrays.asList(small, medium), 2 * 1024 * 1024));
+        assertNull(SizeTier.select(Collections.<SizeTier>emptyList(), 1));
+    }
+
+    @Test
+    public void sortsByMaxSize() {
+        SizeTier[] tiers = {large, small, medium};
+        Arrays.sort(tiers);
+
+        assertArrayEquals(new SizeTier[]{small, medium, large}, tiers);
+    }
+
+    @Test
+    public void defaultsToStreamStrategy() {
+        assertEquals(WriteStrategy.STREAM, small.getStrategy());
+    }
+
+    @Test
+    public void countsActiveWrites() throws IOException, InterruptedException {
+        large.acquire();
+        assertEquals(1, large.getActiveWrites());
+        large.release();
+        assertEquals(0, large.getActiveWrites());
+    }
+
+    @Test
+    public void failsWhenNoLaneIsFreedWithinQueueTimeout() throws IOException, InterruptedException {
+        SizeTier tier = new SizeTier(SizeTier.UNBOUNDED, null, null, 1, 50);
+        tier.acquire();
+        long started = System.currentTimeMillis();
+        try {
+            tier.acquire();
+            fail("Second write should not have found a free lane");
+        } catch (SizeTier.BusyException expected) {
+            assertTrue("Write should have waited for the queue timeout", System.currentTimeMillis() - started >= 50);
+        }
+        assertEquals(1, tier.getActiveWrites());
+        tier.release();
+        tier.acquire();
+        assertEquals(1, tier.getActiveWrites());
+    }
+
+    @Test
+    public void waitsForLaneByDefault() throws IOException, InterruptedException {
+        final SizeTier tier = new SizeTier(SizeTier.UNBOUNDED, null, null, 1);
+        tier.acquire();
+        Thread releasing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                tier.release();
+            }
+        });
+        releasing.start();
+
+        tier.acquire();
+
+        assertEquals(1, tier.getActiveWrites());
+        releasing.join();
+        tier.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeQueueTimeout() {
+        new SizeTier(1, null, null, 1, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveConcurrency() {
+        new SizeTier(1, null, null, 0);
+    }
+}
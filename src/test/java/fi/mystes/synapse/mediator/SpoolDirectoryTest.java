@@ -0,0 +1,205 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import fi.mystes.synapse.mediator.fs.FaultInjectingFileSystem;
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpoolDirectoryTest {
+
+    private File rootDir;
+    private File spoolDir;
+    private File finalDir;
+
+    @Before
+    public void initDirectories() {
+        rootDir = new File(System.getProperty("java.io.tmpdir"), "mediator-spool");
+        spoolDir = new File(rootDir, "spool");
+        finalDir = new File(rootDir, "final");
+        assert finalDir.mkdirs();
+    }
+
+    @After
+    public void deleteDirectories() throws IOException {
+        FileUtils.deleteDirectory(rootDir);
+    }
+
+    @Test
+    public void movesPublishedFilesToFinalLocation() throws IOException, InterruptedException {
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 2, false));
+        try {
+            File finalFile = new File(new File(finalDir, "sub"), "out.bin");
+            File partFile = spool.newPartFile();
+            FileUtils.write(partFile, "content");
+            File spooledFile = spool.publish(partFile, finalFile);
+
+            assertTrue("Spooled file should end with data suffix", spooledFile.getName().endsWith(SpoolDirectory.DATA_SUFFIX));
+            assertTrue("Spooled file was not moved in time", spool.awaitMoved(10, TimeUnit.SECONDS));
+            assertEquals("content", FileUtils.readFileToString(finalFile));
+            assertEquals("Spool directory should be empty after move", 0, spoolDir.list().length);
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void movesPublishedFilesToOtherFileSystem() throws IOException, InterruptedException {
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("spool");
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 2, false), fileSystem);
+        try {
+            Path finalFile = fileSystem.getPath("/final/sub/out.bin");
+            File partFile = spool.newPartFile();
+            FileUtils.write(partFile, "content");
+            spool.publish(partFile, finalFile);
+
+            assertTrue("Spooled file was not moved in time", spool.awaitMoved(10, TimeUnit.SECONDS));
+            assertEquals("content", new String(Files.readAllBytes(finalFile)));
+            assertEquals("Only the moved file should be in the final directory", 1, countFiles(finalFile.getParent()));
+            assertEquals("Spool directory should be empty after move", 0, spoolDir.list().length);
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void removesPartialCopyWhenMoveToOtherFileSystemFails() throws IOException {
+        FaultInjectingFileSystem fileSystem = FaultInjectingFileSystem.wrap("full", MemoryFileSystem.create("spool").getPath("/"));
+        fileSystem.setFreeSpace(4);
+        File source = new File(spoolDir, "large.bin");
+        FileUtils.write(source, "more than four bytes");
+        Path finalFile = fileSystem.getPath("/final/out.bin");
+
+        try {
+            SpoolDirectory.move(source.toPath(), finalFile);
+            fail("Move should fail when the target is full");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertEquals("Partial copy should have been removed", 0, countFiles(finalFile.getParent()));
+        assertTrue("Source should be kept for a retry", source.exists());
+    }
+
+    @Test
+    public void keepsFileThatCannotBeMovedInFailedDirectory() throws IOException, InterruptedException {
+        // a regular file where the target directory should be
+        File blocked = new File(finalDir, "blocked");
+        FileUtils.write(blocked, "not a directory");
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 1, false, 3), FileSystems.getDefault(), 1);
+        try {
+            File partFile = spool.newPartFile();
+            FileUtils.write(partFile, "content");
+            File spooledFile = spool.publish(partFile, new File(blocked, "out.bin"));
+
+            assertTrue("Failing file should have been given up in time", spool.awaitMoved(10, TimeUnit.SECONDS));
+            File failed = new File(spoolDir, SpoolDirectory.FAILED_DIRECTORY);
+            assertTrue("Data file should have been kept", new File(failed, spooledFile.getName()).exists());
+            assertEquals("Data file and marker should have been kept", 2, failed.list().length);
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void keepsMovingOtherFilesWhileRetryingFailedMove() throws IOException, InterruptedException {
+        File blocked = new File(finalDir, "blocked");
+        FileUtils.write(blocked, "not a directory");
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 1, false), FileSystems.getDefault(), 60000);
+        try {
+            File failingPart = spool.newPartFile();
+            FileUtils.write(failingPart, "failing");
+            spool.publish(failingPart, new File(blocked, "out.bin"));
+            File partFile = spool.newPartFile();
+            FileUtils.write(partFile, "content");
+            File finalFile = new File(finalDir, "out.bin");
+            spool.publish(partFile, finalFile);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!finalFile.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("content", FileUtils.readFileToString(finalFile));
+            assertEquals("Failing file should still be retried", 1, spool.getPendingCount());
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void movesFilesWithSameFinalPathInWriteOrder() throws IOException, InterruptedException {
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 4, false));
+        try {
+            File finalFile = new File(finalDir, "out.bin");
+            for (int i = 0; i < 20; i++) {
+                File partFile = spool.newPartFile();
+                FileUtils.write(partFile, "content" + i);
+                spool.publish(partFile, finalFile);
+            }
+            assertTrue("Spooled files were not moved in time", spool.awaitMoved(10, TimeUnit.SECONDS));
+            assertEquals("Last written file should win", "content19", FileUtils.readFileToString(finalFile));
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void resumesFilesLeftFromPreviousRunAndDropsIncompleteOnes() throws IOException, InterruptedException {
+        assert spoolDir.mkdirs();
+        File finalFile = new File(finalDir, "left.bin");
+        FileUtils.write(new File(spoolDir, "left" + SpoolDirectory.DATA_SUFFIX), "left over");
+        FileUtils.write(new File(spoolDir, "left" + SpoolDirectory.TARGET_SUFFIX), finalFile.getAbsolutePath());
+        FileUtils.write(new File(spoolDir, "broken" + SpoolDirectory.PART_SUFFIX), "incomplete");
+
+        SpoolDirectory spool = SpoolDirectory.acquire(new SpoolDirectory.Settings(spoolDir, 1, false));
+        try {
+            assertTrue("Resumed file was not moved in time", spool.awaitMoved(10, TimeUnit.SECONDS));
+            assertEquals("left over", FileUtils.readFileToString(finalFile));
+            assertEquals("Spool directory should be empty after resume", 0, spoolDir.list().length);
+        } finally {
+            spool.release();
+        }
+    }
+
+    private static int countFiles(Path directory) throws IOException {
+        int count = 0;
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path ignored : files) {
+                count++;
+            }
+        } finally {
+            files.close();
+        }
+        return count;
+    }
+}
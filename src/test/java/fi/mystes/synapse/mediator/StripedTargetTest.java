@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StripedTargetTest {
+
+    private static final String TEMP_DIRECTORY = System.getProperty("java.io.tmpdir");
+
+    @Test
+    public void takesTurnsInProportionToWeights() {
+        StripedTarget target = new StripedTarget(StripePolicy.ROUND_ROBIN, Arrays.asList(
+                new StripedTarget.Member("/data1", 2), new StripedTarget.Member("/data2", 1)));
+
+        List<String> chosen = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            StripedTarget.Member member = target.select();
+            chosen.add(member.getDirectory());
+            member.finish(0, 0);
+        }
+
+        assertEquals(Arrays.asList("/data1", "/data2", "/data1", "/data1", "/data2", "/data1"), chosen);
+    }
+
+    @Test
+    public void choosesDirectoryWithMostWeightedFreeSpace() {
+        String missing = new File(TEMP_DIRECTORY, "missing-stripe-directory").getPath();
+        StripedTarget target = new StripedTarget(StripePolicy.FREE_SPACE, Arrays.asList(
+                new StripedTarget.Member(missing, 1), new StripedTarget.Member(TEMP_DIRECTORY, 1), new StripedTarget.Member(TEMP_DIRECTORY, 3)));
+
+        StripedTarget.Member member = target.select();
+
+        assertSame("Directory with most weighted free space should have been chosen", target.getMembers().get(2), member);
+        assertEquals(1, member.getInFlightCount());
+        member.finish(0, 0);
+        assertEquals(0, member.getInFlightCount());
+    }
+
+    @Test
+    public void avoidsDirectoryWithHigherLatency() {
+        StripedTarget target = new StripedTarget(StripePolicy.LATENCY, Arrays.asList(
+                new StripedTarget.Member("/slow", 1), new StripedTarget.Member("/fast", 1)));
+
+        List<String> chosen = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            StripedTarget.Member member = target.select();
+            chosen.add(member.getDirectory());
+            member.finish(1024 * 1024, "/slow".equals(member.getDirectory()) ? 100000000L : 10000000L);
+        }
+
+        // both directories are tried once before their latency is known
+        assertEquals(Arrays.asList("/fast", "/fast", "/fast", "/fast"), chosen.subList(2, 6));
+    }
+
+    @Test
+    public void spreadsWritesInProgressByLatency() {
+        StripedTarget target = new StripedTarget(StripePolicy.LATENCY, Arrays.asList(
+                new StripedTarget.Member("/data1", 1), new StripedTarget.Member("/data2", 1)));
+        target.select().finish(1024 * 1024, 10000000L);
+        target.select().finish(1024 * 1024, 15000000L);
+
+        StripedTarget.Member first = target.select();
+        StripedTarget.Member second = target.select();
+
+        assertEquals("/data1", first.getDirectory());
+        assertEquals("Second write should go to the other directory while the first is in progress", "/data2", second.getDirectory());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTargetWithoutDirectories() {
+        new StripedTarget(StripePolicy.ROUND_ROBIN, Collections.<StripedTarget.Member>emptyList());
+    }
+}
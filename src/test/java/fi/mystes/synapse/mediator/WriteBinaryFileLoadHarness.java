@@ -0,0 +1,465 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import fi.mystes.synapse.mediator.fs.FaultInjectingFileSystem;
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.util.base64.Base64Utils;
+import org.apache.commons.io.FileUtils;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.config.SynapseConfiguration;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.util.xpath.SynapseXPath;
+import org.jaxen.JaxenException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * End-to-end load test of the mediator. Not run as part of the test suite, start with
+ * <pre>
+ * java -Xmx2g -cp target/classes:target/test-classes:&lt;dependencies&gt; fi.mystes.synapse.mediator.WriteBinaryFileLoadHarness [name=value...]
+ * </pre>
+ * Options, with defaults:
+ * <ul>
+ * <li><code>minutes=5</code> - duration of each phase</li>
+ * <li><code>warmupSeconds=30</code> - unmeasured load before the first phase</li>
+ * <li><code>threads=1,8,32</code> - one phase per thread count</li>
+ * <li><code>sizes=4096:70,1048576:25,16777216:5</code> - decoded payload sizes in bytes with relative weights</li>
+ * <li><code>naming=fixed:1,expression:1,unique:1,generated:1,template:1</code> - file naming modes with relative weights</li>
+ * <li><code>directory=&lt;java.io.tmpdir&gt;/mediator-load</code> - target directory, removed afterwards</li>
+ * <li><code>storage=disk</code> - <code>disk</code> for the target directory, <code>memory</code> for an in-memory
+ * file system taking the disk out of the figures</li>
+ * <li><code>writeLatency=0</code> - milliseconds added to every write of the storage, e.g. to simulate NFS</li>
+ * <li><code>output=</code> - file to write the summary to in addition to standard output</li>
+ * </ul>
+ * Each message is mediated on a lightweight Synapse message context with the same envelope
+ * and body shape as in {@link WriteBinaryFileMediatorTest}; the Mockito mocks used there
+ * record every invocation and would distort the GC figures. Written files are removed outside
+ * the measured time, except in <code>fixed</code> mode where all threads overwrite one file.
+ * <p/>
+ * The summary is printed as JSON. Latencies are in microseconds with a precision of about 1 %.
+ * GC figures are collection counts and accumulated collection times of all collectors during
+ * the phase, which for concurrent collectors include work not done in pauses. Peak heap is
+ * the sum of the peak usage of all heap pools during the phase.
+ */
+public final class WriteBinaryFileLoadHarness {
+
+    private static final String IMAGE_ELEMENT = "image";
+    private static final String FILE_NAME_PROPERTY = "loadTestFileName";
+
+    private final Map<String, String> options;
+    private final File directory;
+    private final FileSystem fileSystem;
+    private final long[] sizes;
+    private final int[] sizeWeights;
+    private final String[] base64Payloads;
+    private final String[] namingModes;
+    private final int[] namingWeights;
+    private final WriteBinaryFileMediator[] mediators;
+
+    private WriteBinaryFileLoadHarness(Map<String, String> options) throws JaxenException {
+        this.options = options;
+        this.directory = new File(option("directory", new File(System.getProperty("java.io.tmpdir"), "mediator-load").getPath()));
+        this.fileSystem = createFileSystem(option("storage", "disk"), Long.parseLong(option("writeLatency", "0")));
+
+        Map<String, Integer> sizeMix = parseMix(option("sizes", "4096:70,1048576:25,16777216:5"));
+        sizes = new long[sizeMix.size()];
+        sizeWeights = new int[sizeMix.size()];
+        base64Payloads = new String[sizeMix.size()];
+        Random random = new Random(1);
+        int i = 0;
+        for (Map.Entry<String, Integer> size : sizeMix.entrySet()) {
+            byte[] content = new byte[Integer.parseInt(size.getKey())];
+            random.nextBytes(content);
+            sizes[i] = content.length;
+            sizeWeights[i] = size.getValue();
+            base64Payloads[i++] = Base64Utils.encode(content);
+        }
+
+        Map<String, Integer> namingMix = parseMix(option("naming", "fixed:1,expression:1,unique:1,generated:1,template:1"));
+        namingModes = namingMix.keySet().toArray(new String[namingMix.size()]);
+        namingWeights = new int[namingModes.length];
+        mediators = new WriteBinaryFileMediator[namingModes.length];
+        for (i = 0; i < namingModes.length; i++) {
+            namingWeights[i] = namingMix.get(namingModes[i]);
+            mediators[i] = createMediator(namingModes[i]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new WriteBinaryFileLoadHarness(options).run();
+    }
+
+    private void run() throws Exception {
+        long phaseNanos = TimeUnit.SECONDS.toNanos((long) (Double.parseDouble(option("minutes", "5")) * 60));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmupSeconds", "30")));
+        String[] threadCounts = option("threads", "1,8,32").split(",");
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        StringBuilder summary = new StringBuilder();
+        try {
+            runPhase(Integer.parseInt(threadCounts[threadCounts.length - 1].trim()), warmupNanos);
+            summary.append("{\"minutesPerPhase\":").append(option("minutes", "5"))
+                    .append(",\"sizes\":\"").append(option("sizes", "4096:70,1048576:25,16777216:5"))
+                    .append("\",\"naming\":\"").append(option("naming", "fixed:1,expression:1,unique:1,generated:1,template:1"))
+                    .append("\",\"storage\":\"").append(option("storage", "disk"))
+                    .append("\",\"writeLatency\":").append(option("writeLatency", "0"))
+                    .append(",\"maxHeapBytes\":").append(Runtime.getRuntime().maxMemory())
+                    .append(",\"phases\":[");
+            for (int i = 0; i < threadCounts.length; i++) {
+                summary.append(i > 0 ? "," : "").append(runPhase(Integer.parseInt(threadCounts[i].trim()), phaseNanos).toJson());
+            }
+            summary.append("]}");
+        } finally {
+            for (WriteBinaryFileMediator mediator : mediators) {
+                mediator.destroy();
+            }
+            FileUtils.deleteDirectory(directory);
+        }
+
+        System.out.println(summary);
+        String output = options.get("output");
+        if (output != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+            try {
+                writer.write(summary.toString());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private PhaseResult runPhase(int threads, long durationNanos) throws InterruptedException {
+        final PhaseResult result = new PhaseResult(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        generateLoad(new Random(seed), result);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "WriteBinaryFileLoad-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        System.gc();
+        GcSnapshot gcBefore = GcSnapshot.take();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long started = System.nanoTime();
+        result.deadline = started + durationNanos;
+        start.countDown();
+        done.await();
+        result.elapsedNanos = System.nanoTime() - started;
+        GcSnapshot gcAfter = GcSnapshot.take();
+        result.gcCount = gcAfter.count - gcBefore.count;
+        result.gcMillis = gcAfter.millis - gcBefore.millis;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                result.peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    private void generateLoad(Random random, PhaseResult result) {
+        while (System.nanoTime() < result.deadline) {
+            int size = pick(sizeWeights, random);
+            int naming = pick(namingWeights, random);
+            MessageContext messageContext;
+            try {
+                messageContext = createMessageContext(base64Payloads[size]);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create message context", e);
+            }
+
+            long started = System.nanoTime();
+            boolean failed = false;
+            try {
+                mediators[naming].mediate(messageContext);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            long latency = System.nanoTime() - started;
+
+            if (failed) {
+                result.failures.incrementAndGet();
+            } else {
+                result.latencies.record(latency);
+                result.bytes.addAndGet(sizes[size]);
+            }
+            Object path = messageContext.getProperty(WriteBinaryFileMediator.PATH_PROPERTY);
+            if (path != null && !"fixed".equals(namingModes[naming])) {
+                delete(path.toString());
+            }
+        }
+    }
+
+    private void delete(String path) {
+        if (fileSystem == null) {
+            new File(path).delete();
+            return;
+        }
+        try {
+            Files.deleteIfExists(fileSystem.getPath(path));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to remove " + path, e);
+        }
+    }
+
+    /**
+     * @return the file system to write to, or null to write to the target directory directly
+     */
+    private FileSystem createFileSystem(String storage, long writeLatency) {
+        Path root;
+        if ("memory".equals(storage)) {
+            root = MemoryFileSystem.create("load").getPath("/");
+        } else if ("disk".equals(storage)) {
+            root = writeLatency > 0 ? directory.toPath() : null;
+        } else {
+            throw new IllegalArgumentException("Unknown storage " + storage + ", expected disk or memory");
+        }
+        if (writeLatency > 0) {
+            FaultInjectingFileSystem faulty = FaultInjectingFileSystem.wrap("load", root);
+            faulty.setWriteLatency(writeLatency);
+            return faulty;
+        }
+        return root != null ? root.getFileSystem() : null;
+    }
+
+    private MessageContext createMessageContext(String base64) throws IOException {
+        OMFactory factory = OMAbstractFactory.getOMFactory();
+        OMElement payload = factory.createOMElement("Entry", null);
+        OMElement image = factory.createOMElement(IMAGE_ELEMENT, null);
+        factory.createOMText(image, base64);
+        payload.addChild(image);
+
+        SOAPEnvelope envelope = OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope();
+        envelope.getBody().addChild(payload);
+        Axis2MessageContext messageContext = new Axis2MessageContext(new org.apache.axis2.context.MessageContext(), new SynapseConfiguration(), null);
+        messageContext.setEnvelope(envelope);
+        String id = UniqueFileNameGenerator.getInstance().next();
+        messageContext.setMessageID(id);
+        messageContext.setProperty(FILE_NAME_PROPERTY, id + ".bin");
+        return messageContext;
+    }
+
+    private WriteBinaryFileMediator createMediator(String naming) throws JaxenException {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setBinaryElementXPath(new SynapseXPath("//" + IMAGE_ELEMENT));
+        mediator.setTargetDirectory(fileSystem != null ? "/" : directory.getAbsolutePath());
+        mediator.setTargetFileSystem(fileSystem);
+        if ("fixed".equals(naming)) {
+            mediator.setTargetFileName("fixed.bin");
+        } else if ("expression".equals(naming)) {
+            mediator.setTargetFileNameExpression(new SynapseXPath("$ctx:" + FILE_NAME_PROPERTY));
+        } else if ("unique".equals(naming)) {
+            mediator.setTargetFileName("unique.bin");
+            mediator.setForceUniqueFileName(Boolean.TRUE.toString());
+        } else if ("generated".equals(naming)) {
+            mediator.setTargetFileName("generated.bin");
+            mediator.setForceUniqueFileName("generated");
+        } else if ("template".equals(naming)) {
+            mediator.setTargetFileNameTemplate(FileNameTemplate.compile("{yyyy}{MM}{dd}_{seq}_{uuid}.bin", null));
+        } else {
+            throw new IllegalArgumentException("Unknown naming mode " + naming + ", expected fixed, expression, unique, generated or template");
+        }
+        return mediator;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            weights.put(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+        return weights;
+    }
+
+    private static int pick(int[] weights, Random random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            value -= weights[i];
+            if (value < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static final class PhaseResult {
+        private final int threads;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long deadline;
+        private long elapsedNanos;
+        private long gcCount;
+        private long gcMillis;
+        private long peakHeapBytes;
+
+        private PhaseResult(int threads) {
+            this.threads = threads;
+        }
+
+        private String toJson() {
+            double seconds = elapsedNanos / 1e9;
+            long messages = latencies.getCount();
+            return String.format(Locale.ROOT, "{\"threads\":%d,\"seconds\":%.1f,\"messages\":%d,\"failures\":%d,"
+                            + "\"messagesPerSecond\":%.1f,\"megabytesPerSecond\":%.1f,"
+                            + "\"latencyMicros\":{\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d},"
+                            + "\"gcCount\":%d,\"gcMillis\":%d,\"peakHeapBytes\":%d}",
+                    threads, seconds, messages, failures.get(),
+                    messages / seconds, bytes.get() / 1048576.0 / seconds,
+                    latencies.percentile(0.5) / 1000, latencies.percentile(0.99) / 1000,
+                    latencies.percentile(0.999) / 1000, latencies.getMax() / 1000,
+                    gcCount, gcMillis, peakHeapBytes);
+        }
+    }
+
+    private static final class GcSnapshot {
+        private long count;
+        private long millis;
+
+        private static GcSnapshot take() {
+            GcSnapshot snapshot = new GcSnapshot();
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                snapshot.count += Math.max(0, collector.getCollectionCount());
+                snapshot.millis += Math.max(0, collector.getCollectionTime());
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Lock-free histogram of nanosecond values. Values below 128 are counted exactly, larger
+     * values in 64 buckets per power of two.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+            count.incrementAndGet();
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return highest value of the bucket containing given percentile, 0 if nothing is recorded
+         */
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(fraction * count.get());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(highestValue(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        static int index(long value) {
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            if (shift <= 0) {
+                return (int) value;
+            }
+            return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        static long highestValue(int index) {
+            if (index < 2 * HALF_SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / HALF_SUB_BUCKETS - 1;
+            long mantissa = index - shift * HALF_SUB_BUCKETS;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.soap.SOAPBody;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.util.base64.Base64Utils;
+import org.apache.commons.io.FileUtils;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.util.xpath.SynapseXPath;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Guards the bytes allocated by a single <code>mediate()</code> call, so that changes to the
+ * decode and write path cannot silently add copies of the payload.
+ * <p/>
+ * The budget of each test is <code>multiple * payload size + {@value #FIXED_OVERHEAD}</code> bytes.
+ * The fixed part covers XPath evaluation, path strings, opening the file and the invocation
+ * records of the Mockito mocks, which dominate for small payloads. Each call is measured on
+ * the calling thread with <code>com.sun.management.ThreadMXBean</code> after warming up, and
+ * the lowest of {@value #MEASURED_CALLS} calls is compared with the budget: one-off allocations
+ * such as class loading vary between calls, a per-call payload copy shows up in every call.
+ */
+public class WriteBinaryFileMediatorAllocationTest {
+
+    private static final long FIXED_OVERHEAD = 256 * 1024;
+    private static final int WARMUP_CALLS = 10;
+    private static final int MEASURED_CALLS = 5;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private File outputDir;
+    private WriteBinaryFileMediator mediator;
+
+    @Before
+    public void checkAllocationMeasurementSupported() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Allocation measurement not supported by this JVM", bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Before
+    public void initMediator() throws Exception {
+        outputDir = new File(System.getProperty("java.io.tmpdir"), "mediator-allocation");
+        assertTrue(outputDir.mkdir());
+        mediator = new WriteBinaryFileMediator();
+        mediator.setBinaryElementXPath(new SynapseXPath("//image"));
+        mediator.setTargetDirectory(outputDir.getAbsolutePath());
+        mediator.setTargetFileName("allocation.bin");
+    }
+
+    @After
+    public void deleteOutputDir() throws IOException {
+        if (mediator != null) {
+            mediator.destroy();
+        }
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    /**
+     * 1 KB: a small invoice. Budget 3 x payload, effectively the fixed overhead, which
+     * catches per-call buffers such as allocating a new copy buffer for each write.
+     */
+    @Test
+    public void smallPayloadStaysWithinFixedOverhead() throws Exception {
+        assertAllocationWithinBudget(1024, 3);
+    }
+
+    /**
+     * 64 KB. Budget 3 x payload: Axiom decodes the base64 text into an oversized array and
+     * trims it into a second one; streaming the decoded bytes to the file must not copy them.
+     */
+    @Test
+    public void mediumPayloadIsDecodedAtMostTwice() throws Exception {
+        assertAllocationWithinBudget(64 * 1024, 3);
+    }
+
+    /**
+     * 1 MB. Budget 3 x payload, as above; payload sized copies are clearly visible here.
+     */
+    @Test
+    public void largePayloadIsDecodedAtMostTwice() throws Exception {
+        assertAllocationWithinBudget(1024 * 1024, 3);
+    }
+
+    /**
+     * 8 MB: a scanned document. Budget 2.5 x payload, so that a third copy of the
+     * payload fails even with the fixed overhead added.
+     */
+    @Test
+    public void veryLargePayloadIsNotCopiedAfterDecoding() throws Exception {
+        assertAllocationWithinBudget(8 * 1024 * 1024, 2.5);
+    }
+
+    private void assertAllocationWithinBudget(int payloadSize, double multiple) throws Exception {
+        byte[] content = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(content);
+        String base64 = Base64Utils.encode(content);
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            mediator.mediate(createMessageContext(base64));
+        }
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            MessageContext messageContext = createMessageContext(base64);
+            long threadId = Thread.currentThread().getId();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            mediator.mediate(messageContext);
+            lowest = Math.min(lowest, threadBean.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        long budget = (long) (multiple * payloadSize) + FIXED_OVERHEAD;
+        assertTrue("mediate() allocated " + lowest + " bytes for a " + payloadSize + " byte payload, budget is " + budget
+                + " (" + multiple + " x payload + " + FIXED_OVERHEAD + ")", lowest <= budget);
+    }
+
+    private MessageContext createMessageContext(String base64) throws Exception {
+        OMElement payload = AXIOMUtil.stringToOM("<Entry><id>8</id><image>" + base64 + "</image></Entry>");
+        // parse completely now, so that parsing is not measured as part of mediation
+        payload.build();
+
+        MessageContext messageContext = mock(MessageContext.class);
+        SOAPEnvelope envelope = mock(SOAPEnvelope.class);
+        SOAPBody body = mock(SOAPBody.class);
+        when(messageContext.getEnvelope()).thenReturn(envelope);
+        when(envelope.getBody()).thenReturn(body);
+        when(body.getFirstElement()).thenReturn(payload);
+        return messageContext;
+    }
+}
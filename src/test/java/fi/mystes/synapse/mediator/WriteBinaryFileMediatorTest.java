@@ -16,12 +16,17 @@
 
 package fi.mystes.synapse.mediator;
 
+import fi.mystes.synapse.mediator.fs.MemoryFileSystem;
 import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMText;
 import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.util.base64.Base64Utils;
 import org.apache.axiom.soap.SOAPBody;
 import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.util.xpath.SynapseXPath;
 import org.jaxen.JaxenException;
@@ -31,13 +36,24 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -123,6 +139,25 @@ public class WriteBinaryFileMediatorTest {
         assertDefaultOutputFileContent();
     }
 
+    @Test
+    public void writesBinaryContentDecodedWithTableDecoder() throws XMLStreamException, IOException, URISyntaxException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setBase64Decoder(StandardBase64Decoder.TABLE);
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        assertDefaultFilePathGotWrittenToElement(payload.getFirstChildWithName(new QName(null, "image")));
+        assertDefaultOutputFileContent();
+    }
+
+    @Test(expected = SynapseException.class)
+    public void mediationFailsWhenTableDecoderFindsInvalidContent() throws XMLStreamException, JaxenException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithImage("not*base64"), "//image");
+        mediator.setBase64Decoder(StandardBase64Decoder.TABLE);
+
+        mediator.mediate(messageContext);
+    }
+
     @Test
     public void supportsSpecifyingTargetDirectoryAsXpathExpression() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
         OMElement payload = payloadWithNoNamespaces();
@@ -155,6 +190,26 @@ public class WriteBinaryFileMediatorTest {
         assertDefaultOutputFileContent();
     }
 
+    @Test
+    public void supportsSpecifyingTargetFileNameAsTemplate() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        OMElement payload = payloadWithNoNamespaces();
+        when(body.getFirstElement()).thenReturn(payload);
+        when(messageContext.getProperty("customerId")).thenReturn("acme");
+        when(messageContext.getProperty("FILE_NAME")).thenReturn("scan.png");
+
+        WriteBinaryFileMediator mediator = createUnConfiguredMediator();
+        mediator.setTargetDirectory(outputDir.getAbsolutePath());
+        mediator.setTargetFileNameTemplate(FileNameTemplate.compile("{property:customerId}/invoice_{seq}.{ext}", null));
+        mediator.setBinaryElementXPath(new SynapseXPath("//image"));
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        File expectedOutputFile = new File(new File(outputDir, "acme"), "invoice_1.png");
+        assertOutputFileExists(expectedOutputFile);
+        assertOutputFileContent(expectedOutputFile);
+        OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
+        assertFilePathGotWrittenToElement(binaryElement, expectedOutputFile);
+    }
+
     @Test
     public void replacesBinaryContentWithOutputFilePathInPayload() throws XMLStreamException, JaxenException {
         OMElement payload = payloadWithNoNamespaces();
@@ -165,6 +220,144 @@ public class WriteBinaryFileMediatorTest {
         assertDefaultFilePathGotWrittenToElement(binaryElement);
     }
 
+    @Test
+    public void removesBinaryElementFromPayloadInRemoveOutputMode() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setOutputMode(OutputMode.REMOVE);
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        assertNull("Binary element should have been removed", payload.getFirstChildWithName(new QName(null, "image")));
+        assertDefaultOutputFileExists();
+        verify(messageContext).setProperty(WriteBinaryFileMediator.PATH_PROPERTY, defaultOutputFile().getAbsolutePath());
+    }
+
+    @Test
+    public void setsOutputFilePathToAttributeInAttributeOutputMode() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setOutputMode(OutputMode.ATTRIBUTE);
+        mediator.setOutputName("href");
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
+        assertEquals("Binary content should have been removed", "", binaryElement.getText());
+        assertEquals("File path should have been set to attribute", defaultOutputFile().getAbsolutePath(), binaryElement.getAttributeValue(new QName("href")));
+    }
+
+    @Test
+    public void setsOutputFilePathToPropertyInPropertyOutputMode() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setOutputMode(OutputMode.PROPERTY);
+        mediator.setOutputName("imagePath");
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        assertEquals("Binary content should have been removed", "", payload.getFirstChildWithName(new QName(null, "image")).getText());
+        verify(messageContext).setProperty("imagePath", defaultOutputFile().getAbsolutePath());
+    }
+
+    @Test
+    public void writesToDirectoriesOfStripeInTurns() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        File firstDirectory = new File(outputDir, "disk1");
+        File secondDirectory = new File(outputDir, "disk2");
+        assertTrue(firstDirectory.mkdir() && secondDirectory.mkdir());
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setTargetDirectory(null);
+        mediator.setStripedTarget(new StripedTarget(StripePolicy.ROUND_ROBIN, Arrays.asList(
+                new StripedTarget.Member(firstDirectory.getAbsolutePath(), 1), new StripedTarget.Member(secondDirectory.getAbsolutePath(), 1))));
+
+        mediator.mediate(messageContext);
+        when(body.getFirstElement()).thenReturn(payloadWithNoNamespaces());
+        mediator.mediate(messageContext);
+
+        assertOutputFileContent(new File(firstDirectory, DEFAULT_FILE_NAME));
+        assertOutputFileContent(new File(secondDirectory, DEFAULT_FILE_NAME));
+        verify(messageContext).setProperty(WriteBinaryFileMediator.PATH_PROPERTY, new File(secondDirectory, DEFAULT_FILE_NAME).getPath());
+        assertEquals(0, mediator.getStripedTarget().getMembers().get(0).getInFlightCount());
+    }
+
+    @Test
+    public void refusesMessageWhenMemoryBudgetIsExhausted() throws XMLStreamException, JaxenException, InterruptedException, IOException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setMemoryBudgetSettings(new MemoryBudget.Settings(0));
+        MemoryBudget budget = MemoryBudget.getInstance();
+        MemoryBudget.Reservation held = budget.acquire(budget.getMaxBytes(), 0);
+        try {
+            mediator.mediate(messageContext);
+            fail("Message should have been refused");
+        } catch (SynapseException expected) {
+            verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_OVER_BUDGET);
+        } finally {
+            held.release();
+        }
+        assertFalse("Output file should not have been written", new File(outputDir, DEFAULT_FILE_NAME).exists());
+    }
+
+    @Test
+    public void writesWithoutMemoryBudgetWhenDecodingWhileWriting() throws XMLStreamException, JaxenException, InterruptedException, IOException, URISyntaxException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setBase64Decoder(StandardBase64Decoder.TABLE);
+        mediator.setMemoryBudgetSettings(new MemoryBudget.Settings(0));
+        MemoryBudget budget = MemoryBudget.getInstance();
+        MemoryBudget.Reservation held = budget.acquire(budget.getMaxBytes(), 0);
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            held.release();
+        }
+        assertDefaultOutputFileContent();
+    }
+
+    @Test
+    public void releasesMemoryBudgetAfterWrite() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setMemoryBudgetSettings(new MemoryBudget.Settings(1000));
+
+        mediator.mediate(messageContext);
+
+        assertDefaultOutputFileContent();
+        assertEquals(0, MemoryBudget.getInstance().getUsedBytes());
+    }
+
+    @Test
+    public void writesToTargetFileSystem() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        MemoryFileSystem fileSystem = MemoryFileSystem.create("mediator");
+        Path directory = Files.createDirectories(fileSystem.getPath(outputDir.getAbsolutePath()));
+        mediator.setTargetFileSystem(fileSystem);
+
+        mediator.mediate(messageContext);
+
+        Path outputFile = directory.resolve(DEFAULT_FILE_NAME);
+        assertArrayEquals("Unexpected output file content", FileUtils.readFileToByteArray(expectedOutputFile()), Files.readAllBytes(outputFile));
+        assertFalse("Nothing should be written to the default file system", defaultOutputFile().exists());
+        verify(messageContext).setProperty(WriteBinaryFileMediator.PATH_PROPERTY, outputFile.toString());
+    }
+
+    @Test
+    public void answersRetriedMessageWithPreviouslyWrittenPathWithoutDecoding() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setIdempotencySettings(new IdempotencyCache.Settings(null, 100, null));
+        when(messageContext.getMessageID()).thenReturn("urn:uuid:retried");
+        mediator.mediate(messageContext);
+        assertDefaultOutputFileContent();
+
+        OMElement retry = payloadWithNoNamespaces();
+        when(body.getFirstElement()).thenReturn(retry);
+        mediator.setBase64Decoder(new Base64Decoder() {
+            @Override
+            public DataHandler decode(OMText text) {
+                throw new AssertionError("Retried message should not have been decoded");
+            }
+        });
+        mediator.mediate(messageContext);
+
+        assertDefaultFilePathGotWrittenToElement(retry.getFirstChildWithName(new QName(null, "image")));
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_DUPLICATE);
+        mediator.destroy();
+    }
+
     @Test
     public void supportsNamespacesInBinaryElementXPath() throws XMLStreamException, IOException, URISyntaxException, JaxenException {
         OMElement payload = payloadWithNamespaces();
@@ -209,7 +402,7 @@ public class WriteBinaryFileMediatorTest {
         mediator.setForceUniqueFileName("true");
         assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
 
-        File expectedOutputFile = new File(outputDir, messageId + "_" + DEFAULT_FILE_NAME);
+        File expectedOutputFile = new File(outputDir, "urn_uuid_fa5ea72d-1bba-4edf-9799-4131ed17f8e1_" + DEFAULT_FILE_NAME);
         assertOutputFileExists(expectedOutputFile);
         assertOutputFileContent(expectedOutputFile);
         OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
@@ -242,6 +435,460 @@ public class WriteBinaryFileMediatorTest {
         assertEquals("Binary data should not have been overwritten in payload", BINARY_DATA, binaryElement.getText());
     }
 
+    @Test
+    public void reportsSkippedWriteInMessageContextWhenOverwriteDenied() throws XMLStreamException, IOException, JaxenException {
+        FileUtils.write(defaultOutputFile(), "someData");
+
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAllowOverWrite("false");
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_SKIPPED);
+    }
+
+    @Test(expected = SynapseException.class)
+    public void failsMediationOnExistingFileWhenCollisionPolicyIsFail() throws XMLStreamException, IOException, JaxenException {
+        FileUtils.write(defaultOutputFile(), "someData");
+
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAllowOverWrite("false");
+        mediator.setCollisionPolicy(CollisionPolicy.FAIL);
+        mediator.mediate(messageContext);
+    }
+
+    @Test
+    public void writesToSuffixedFileOnExistingFileWhenCollisionPolicyIsSuffix() throws XMLStreamException, IOException, URISyntaxException, JaxenException {
+        FileUtils.write(defaultOutputFile(), "someData");
+
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAllowOverWrite("false");
+        mediator.setCollisionPolicy(CollisionPolicy.SUFFIX);
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        File expectedOutputFile = new File(outputDir, "temp-1.png");
+        assertOutputFileExists(expectedOutputFile);
+        assertOutputFileContent(expectedOutputFile);
+        assertEquals("File content shouldn't have been overwritten", "someData", FileUtils.readFileToString(defaultOutputFile()));
+        OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
+        assertFilePathGotWrittenToElement(binaryElement, expectedOutputFile);
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_RENAMED);
+    }
+
+    @Test
+    public void generatesUniqueOutputFileNameWithoutMessageIdWhenSpecifiedInConfiguration() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setForceUniqueFileName("generated");
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        String[] outputFiles = outputDir.list();
+        assertEquals("Expected exactly one output file", 1, outputFiles.length);
+        assertTrue("Unexpected output file name " + outputFiles[0], outputFiles[0].endsWith("_" + DEFAULT_FILE_NAME));
+        assertFalse("Output file name should not contain colons", outputFiles[0].contains(":"));
+    }
+
+    @Test
+    public void rejectsMessagesWithoutDecodingWhileCircuitBreakerIsOpen() throws XMLStreamException, JaxenException {
+        File missingDirectory = new File(outputDir, "missing-" + System.nanoTime());
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setTargetDirectory(missingDirectory.getAbsolutePath());
+        mediator.setCircuitBreakerSettings(new DirectoryCircuitBreaker.Settings(100, 1, 60000L));
+
+        try {
+            mediator.mediate(messageContext);
+            fail("Writing to a missing directory should have failed");
+        } catch (SynapseException e) {
+            // expected, trips the breaker
+        }
+
+        OMElement secondPayload = payloadWithNoNamespaces();
+        when(body.getFirstElement()).thenReturn(secondPayload);
+        try {
+            mediator.mediate(messageContext);
+            fail("Open circuit breaker should have rejected the message");
+        } catch (SynapseException e) {
+            verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_REJECTED);
+        }
+        OMElement binaryElement = secondPayload.getFirstChildWithName(new QName(null, "image"));
+        assertFalse("Rejected message should not have been decoded", ((OMText) binaryElement.getFirstOMChild()).isBinary());
+    }
+
+    @Test
+    public void writesToSpoolAndMovesFileToTargetDirectoryInBackground() throws XMLStreamException, JaxenException, IOException, URISyntaxException, InterruptedException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSpoolSettings(new SpoolDirectory.Settings(new File(outputDir, "spool"), 1, false));
+        mediator.init(null);
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+            OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
+            assertDefaultFilePathGotWrittenToElement(binaryElement);
+            verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_SPOOLED);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!defaultOutputFile().exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertDefaultOutputFileExists();
+            assertDefaultOutputFileContent();
+        } finally {
+            mediator.destroy();
+        }
+    }
+
+    @Test
+    public void returnsInterimSpoolPathWhenConfigured() throws XMLStreamException, JaxenException {
+        File spoolDir = new File(outputDir, "spool");
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSpoolSettings(new SpoolDirectory.Settings(spoolDir, 1, true));
+        mediator.init(null);
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+            OMElement binaryElement = payload.getFirstChildWithName(new QName(null, "image"));
+            assertTrue("Element should contain spool path, was " + binaryElement.getText(), binaryElement.getText().startsWith(spoolDir.getAbsolutePath()));
+        } finally {
+            mediator.destroy();
+        }
+    }
+
+    @Test
+    public void routesContentToTargetDirectoryOfMatchingSizeTier() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        File smallDir = new File(outputDir, "small");
+        File largeDir = new File(outputDir, "large");
+        assertTrue(smallDir.mkdir() && largeDir.mkdir());
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSizeTiers(Arrays.asList(
+                new SizeTier(SizeTier.UNBOUNDED, largeDir.getAbsolutePath(), WriteStrategy.CHANNEL, 1),
+                new SizeTier(1024, smallDir.getAbsolutePath(), WriteStrategy.STREAM, 4)));
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        File outputFile = new File(smallDir, DEFAULT_FILE_NAME);
+        assertOutputFileExists(outputFile);
+        assertOutputFileContent(outputFile);
+        assertFalse("Large tier should not have been used", new File(largeDir, DEFAULT_FILE_NAME).exists());
+    }
+
+    @Test
+    public void refusesMessageWhenSizeTierHasNoFreeLane() throws XMLStreamException, JaxenException, InterruptedException, IOException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        SizeTier tier = new SizeTier(SizeTier.UNBOUNDED, null, WriteStrategy.STREAM, 1, 10);
+        mediator.setSizeTiers(Collections.singletonList(tier));
+        tier.acquire();
+        try {
+            mediator.mediate(messageContext);
+            fail("Message should have been refused");
+        } catch (SynapseException expected) {
+            verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_BUSY);
+        } finally {
+            tier.release();
+        }
+        assertFalse("Output file should not have been written", new File(outputDir, DEFAULT_FILE_NAME).exists());
+    }
+
+    @Test
+    public void writesIdenticalContentWithChannelStrategy() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSizeTiers(Collections.singletonList(new SizeTier(SizeTier.UNBOUNDED, null, WriteStrategy.CHANNEL, 1)));
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        assertDefaultOutputFileExists();
+        assertDefaultOutputFileContent();
+    }
+
+    @Test
+    public void writesIdenticalContentWithDirectStrategy() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSizeTiers(Collections.singletonList(new SizeTier(SizeTier.UNBOUNDED, null, WriteStrategy.DIRECT, 1)));
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        assertDefaultOutputFileExists();
+        assertDefaultOutputFileContent();
+    }
+
+    @Test(expected = SynapseException.class)
+    public void mediationFailsWhenNoSizeTierAcceptsContent() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setSizeTiers(Collections.singletonList(new SizeTier(10, null, null, 1)));
+
+        mediator.mediate(messageContext);
+    }
+
+    @Test
+    public void encryptsOutputFileWithKeyFromRegistry() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        String encodedKey = "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=";
+        when(messageContext.getEntry("conf:/keys/files")).thenReturn(encodedKey);
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setEncryptionSettings(new FileEncryption.Settings("conf:/keys/files", null, 16));
+
+        assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+
+        assertDefaultOutputFileExists();
+        byte[] expected = FileUtils.readFileToByteArray(expectedOutputFile());
+        assertEquals("Unexpected encrypted file size", FileEncryption.encryptedSize(expected.length, 16), defaultOutputFile().length());
+        InputStream in = new ChunkedDecryptingInputStream(new FileInputStream(defaultOutputFile()), FileEncryption.toKey(encodedKey));
+        try {
+            assertArrayEquals("Decrypted content differs from original", expected, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test(expected = SynapseException.class)
+    public void mediationFailsWhenEncryptionKeyNotFound() throws XMLStreamException, JaxenException {
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setEncryptionSettings(new FileEncryption.Settings("conf:/keys/missing", null, FileEncryption.DEFAULT_CHUNK_SIZE));
+
+        mediator.mediate(messageContext);
+    }
+
+    @Test
+    public void writesToAllTargetDirectoriesAndReturnsPrimaryPath() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        File archiveDir = new File(outputDir, "archive");
+        File processingDir = new File(outputDir, "processing");
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAdditionalTargetDirectories(Arrays.asList(FanOutTarget.value(archiveDir.getAbsolutePath()), FanOutTarget.value(processingDir.getAbsolutePath())));
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            mediator.destroy();
+        }
+
+        assertDefaultFilePathGotWrittenToElement(payload.getFirstChildWithName(new QName(null, "image")));
+        assertDefaultOutputFileContent();
+        assertOutputFileContent(new File(archiveDir, DEFAULT_FILE_NAME));
+        assertOutputFileContent(new File(processingDir, DEFAULT_FILE_NAME));
+        verify(messageContext).setProperty(WriteBinaryFileMediator.ADDITIONAL_PATH_PROPERTY_PREFIX + 1, new File(archiveDir, DEFAULT_FILE_NAME).getAbsolutePath());
+        verify(messageContext).setProperty(WriteBinaryFileMediator.ADDITIONAL_PATH_PROPERTY_PREFIX + 2, new File(processingDir, DEFAULT_FILE_NAME).getAbsolutePath());
+    }
+
+    @Test
+    public void decodesContentOnceForAllTargetDirectories() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        File archiveDir = new File(outputDir, "archive");
+        File processingDir = new File(outputDir, "processing");
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        final CountingDataSource decoding = new CountingDataSource();
+        mediator.setBase64Decoder(new Base64Decoder() {
+            @Override
+            public DataHandler decode(OMText text) throws IOException {
+                decoding.decoded = StandardBase64Decoder.TABLE.decode(text);
+                return new DataHandler(decoding);
+            }
+        });
+        mediator.setAdditionalTargetDirectories(Arrays.asList(FanOutTarget.value(archiveDir.getAbsolutePath()), FanOutTarget.value(processingDir.getAbsolutePath())));
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            mediator.destroy();
+        }
+
+        assertEquals("Content should have been decoded once", 1, decoding.reads);
+        assertDefaultOutputFileContent();
+        assertOutputFileContent(new File(archiveDir, DEFAULT_FILE_NAME));
+        assertOutputFileContent(new File(processingDir, DEFAULT_FILE_NAME));
+    }
+
+    @Test(expected = SynapseException.class)
+    public void failsMediationWhenAnyTargetDirectoryFailsWithPolicyAll() throws XMLStreamException, JaxenException, IOException {
+        File notADirectory = new File(outputDir, "file");
+        FileUtils.write(notADirectory, "blocks directory creation");
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAdditionalTargetDirectories(Collections.singletonList(FanOutTarget.value(notADirectory.getAbsolutePath())));
+
+        try {
+            mediator.mediate(messageContext);
+        } finally {
+            mediator.destroy();
+        }
+    }
+
+    @Test
+    public void succeedsWhenOneTargetDirectoryIsWrittenWithPolicyAny() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        File notADirectory = new File(outputDir, "file");
+        FileUtils.write(notADirectory, "blocks directory creation");
+        OMElement payload = payloadWithNoNamespaces();
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payload, "//image");
+        mediator.setAdditionalTargetDirectories(Collections.singletonList(FanOutTarget.value(notADirectory.getAbsolutePath())));
+        mediator.setFanOutPolicy(FanOutPolicy.ANY);
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            mediator.destroy();
+        }
+
+        assertDefaultOutputFileContent();
+        verify(messageContext).setProperty(WriteBinaryFileMediator.FAILED_TARGETS_PROPERTY, notADirectory.getAbsolutePath());
+    }
+
+    @Test
+    public void assemblesChunksArrivingInAnyOrderAndPublishesOnLastChunk() throws XMLStreamException, JaxenException, IOException, URISyntaxException {
+        int chunkSize = 32;
+        byte[] content = FileUtils.readFileToByteArray(expectedOutputFile());
+        int totalChunks = (content.length + chunkSize - 1) / chunkSize;
+        WriteBinaryFileMediator mediator = createUnConfiguredMediator();
+        configureMediatorWithDefaultFilePaths(mediator);
+        mediator.setBinaryElementXPath(new SynapseXPath("//image"));
+        mediator.setChunkedUploadSettings(new ChunkedUploadAssembler.Settings(new File(outputDir, "uploads"), chunkSize,
+                new SynapseXPath("$ctx:uploadId"), new SynapseXPath("$ctx:chunkIndex"), new SynapseXPath("$ctx:totalChunks")));
+        when(messageContext.getProperty("uploadId")).thenReturn("upload-1");
+        when(messageContext.getProperty("totalChunks")).thenReturn(String.valueOf(totalChunks));
+
+        try {
+            for (int chunkIndex = totalChunks - 1; chunkIndex >= 0; chunkIndex--) {
+                int start = chunkIndex * chunkSize;
+                byte[] chunk = Arrays.copyOfRange(content, start, Math.min(content.length, start + chunkSize));
+                when(body.getFirstElement()).thenReturn(payloadWithImage(Base64Utils.encode(chunk)));
+                when(messageContext.getProperty("chunkIndex")).thenReturn(String.valueOf(chunkIndex));
+
+                assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+                assertEquals("Upload should only be published with the last chunk", chunkIndex == 0, defaultOutputFile().exists());
+            }
+        } finally {
+            mediator.destroy();
+        }
+
+        assertDefaultOutputFileContent();
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_ASSEMBLED);
+    }
+
+    @Test
+    public void appendsContentOfEachMessageToSameFile() throws XMLStreamException, JaxenException, IOException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithImage(Base64Utils.encode("first\n".getBytes())), "//image");
+        mediator.setMode(WriteMode.APPEND);
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+            when(body.getFirstElement()).thenReturn(payloadWithImage(Base64Utils.encode("second\n".getBytes())));
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            mediator.destroy();
+            AppendingWriter.getInstance().closeIdle();
+        }
+
+        assertEquals("Unexpected output file content", "first\nsecond\n", FileUtils.readFileToString(defaultOutputFile()));
+        verify(messageContext, times(2)).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_APPENDED);
+    }
+
+    @Test
+    public void recordsWrittenFileInManifestOfItsDirectory() throws XMLStreamException, JaxenException, IOException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setManifestSettings(new FileManifest.Settings(null, ".manifest", 100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+        when(messageContext.getMessageID()).thenReturn("urn:uuid:1");
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+        } finally {
+            // writes the pending record
+            mediator.destroy();
+        }
+
+        String record = FileUtils.readFileToString(new File(outputDir, ".manifest"));
+        String expected = "\t" + defaultOutputFile().getAbsolutePath() + "\t" + defaultOutputFile().length() + "\t\turn:uuid:1\n";
+        assertTrue("Unexpected manifest record " + record, record.endsWith(expected));
+    }
+
+    @Test
+    public void releasesIdleManifestAfterWritingItsRecords() throws XMLStreamException, JaxenException, IOException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setManifestSettings(new FileManifest.Settings(null, ".manifest", 100, 60000, FileManifest.Settings.DEFAULT_MAX_SIZE, 1));
+
+        try {
+            assertTrue("Mediation shouldn't have been terminated", mediator.mediate(messageContext));
+            assertEquals("Recently used manifest should be kept", 0, mediator.releaseIdleManifests(System.currentTimeMillis()));
+
+            assertEquals(1, mediator.releaseIdleManifests(System.currentTimeMillis() + WriteBinaryFileMediator.MANIFEST_IDLE_TIMEOUT));
+
+            assertTrue("Pending record should have been written", FileUtils.readFileToString(new File(outputDir, ".manifest")).contains(defaultOutputFile().getAbsolutePath()));
+        } finally {
+            mediator.destroy();
+        }
+    }
+
+    @Test
+    public void abandonsStalledWriteAndRemovesPartialFile() throws XMLStreamException, JaxenException {
+        WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        mediator.setBase64Decoder(new Base64Decoder() {
+            @Override
+            public DataHandler decode(OMText text) {
+                return new DataHandler(new StallingDataSource());
+            }
+        });
+        mediator.setWriteTimeout(200);
+        long stalledBefore = WriteWatchdog.getInstance().getStalledWriteCount();
+
+        try {
+            mediator.mediate(messageContext);
+            fail("Stalled write should have failed mediation");
+        } catch (SynapseException e) {
+            assertTrue("Expected a write timeout but got " + e.getCause(), e.getCause() instanceof WriteWatchdog.WriteTimeoutException);
+        }
+
+        assertFalse("Partial output file should have been removed", defaultOutputFile().exists());
+        assertEquals("Stalled write should have been counted", stalledBefore + 1, WriteWatchdog.getInstance().getStalledWriteCount());
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_TIMED_OUT);
+        verify(messageContext).setProperty(SynapseConstants.ERROR_CODE, WriteBinaryFileMediator.WRITE_TIMEOUT_ERROR_CODE);
+    }
+
+    @Test
+    public void supersedesWriteInProgressWithLaterMessageToSameFile() throws Exception {
+        final WriteBinaryFileMediator mediator = initializeMediatorForFileWriteTest(payloadWithNoNamespaces(), "//image");
+        final Base64Decoder standardDecoder = StandardBase64Decoder.getDefault();
+        mediator.setBase64Decoder(new Base64Decoder() {
+            private boolean first = true;
+
+            @Override
+            public synchronized DataHandler decode(OMText text) throws IOException {
+                if (first) {
+                    first = false;
+                    return new DataHandler(new StallingDataSource());
+                }
+                return standardDecoder.decode(text);
+            }
+        });
+        mediator.setCoalesceMode(CoalesceMode.SUPERSEDE);
+        final Throwable[] stalledFailure = new Throwable[1];
+        Thread stalled = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mediator.mediate(messageContext);
+                } catch (Throwable e) {
+                    stalledFailure[0] = e;
+                }
+            }
+        });
+        stalled.start();
+        while (!defaultOutputFile().exists()) {
+            Thread.sleep(10);
+        }
+
+        mediator.mediate(messageContext);
+        stalled.join(5000);
+
+        assertFalse("Superseded write should have completed", stalled.isAlive());
+        assertNull("Superseded write should not fail mediation", stalledFailure[0]);
+        assertDefaultOutputFileContent();
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_SUPERSEDED);
+        verify(messageContext).setProperty(WriteBinaryFileMediator.RESULT_PROPERTY, WriteBinaryFileMediator.RESULT_WRITTEN);
+    }
+
     private void assertDefaultFilePathGotWrittenToElement(OMElement element) {
         assertFilePathGotWrittenToElement(element, defaultOutputFile());
     }
@@ -293,6 +940,10 @@ public class WriteBinaryFileMediatorTest {
                 "</Entry>");
     }
 
+    private OMElement payloadWithImage(String base64) throws XMLStreamException {
+        return AXIOMUtil.stringToOM("<Entry><image>" + base64 + "</image></Entry>");
+    }
+
     private OMElement payloadWithNamespaces() throws XMLStreamException {
         return AXIOMUtil.stringToOM("<ns1:Entry xmlns:ns1=\"http://ns1.acme.inc\" xmlns:ns2=\"http://ns2.acme.inc\">\n" +
                 "<ns2:id>8</ns2:id>\n" +
@@ -308,4 +959,71 @@ public class WriteBinaryFileMediatorTest {
         mediator.setTargetFileName(DEFAULT_FILE_NAME);
         mediator.setTargetDirectory(outputDir.getAbsolutePath());
     }
+
+    /**
+     * Content arriving slower and slower without end, like a write to stalled storage.
+     */
+    private static final class CountingDataSource implements DataSource {
+        private DataHandler decoded;
+        private int reads;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            reads++;
+            return decoded.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "counting";
+        }
+    }
+
+    private static final class StallingDataSource implements DataSource {
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0];
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    return Math.min(length, 1024);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "stalling";
+        }
+    }
 }
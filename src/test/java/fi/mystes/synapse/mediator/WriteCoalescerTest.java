@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class WriteCoalescerTest {
+
+    private static final File FILE = new File("coalesced.bin");
+
+    private WriteCoalescer coalescer;
+    private ExecutorService executor;
+
+    @Before
+    public void createCoalescer() {
+        coalescer = new WriteCoalescer();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void letsWritersOfSameFileProceedOneAtATime() throws Exception {
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        Future<WriteCoalescer.Ticket> second = enterInBackground(FILE, CoalesceMode.SERIALIZE);
+
+        assertStillWaiting(second);
+        first.release();
+
+        WriteCoalescer.Ticket secondTicket = second.get(5, TimeUnit.SECONDS);
+        assertFalse(secondTicket.isSuperseded());
+        secondTicket.release();
+    }
+
+    @Test
+    public void doesNotMakeWritersOfDifferentFilesWait() throws Exception {
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        WriteCoalescer.Ticket other = enterInBackground(new File("other.bin"), CoalesceMode.SERIALIZE).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, coalescer.getActivePathCount());
+        other.release();
+        first.release();
+    }
+
+    @Test
+    public void supersedesWriteInProgressByClosingItsChannel() throws Exception {
+        Pipe pipe = Pipe.open();
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        assertTrue(first.attach(pipe.sink()));
+
+        Future<WriteCoalescer.Ticket> second = enterInBackground(FILE, CoalesceMode.SUPERSEDE);
+
+        assertStillWaiting(second);
+        assertTrue(first.isSuperseded());
+        assertFalse("Channel of superseded write should have been closed", pipe.sink().isOpen());
+        first.release();
+        assertFalse(second.get(5, TimeUnit.SECONDS).isSuperseded());
+        pipe.source().close();
+    }
+
+    @Test
+    public void supersedesWaitingWritesWithoutLettingThemStart() throws Exception {
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        Future<WriteCoalescer.Ticket> waiting = enterInBackground(FILE, CoalesceMode.SERIALIZE);
+        assertStillWaiting(waiting);
+
+        Future<WriteCoalescer.Ticket> latest = enterInBackground(FILE, CoalesceMode.SUPERSEDE);
+
+        WriteCoalescer.Ticket waitingTicket = waiting.get(5, TimeUnit.SECONDS);
+        assertTrue("Waiting write should have been superseded", waitingTicket.isSuperseded());
+        assertFalse("Superseded write must not attach a channel", waitingTicket.attach(Pipe.open().sink()));
+        waitingTicket.release();
+        assertStillWaiting(latest);
+
+        first.release();
+        WriteCoalescer.Ticket latestTicket = latest.get(5, TimeUnit.SECONDS);
+        assertFalse(latestTicket.isSuperseded());
+        latestTicket.release();
+        assertEquals(0, coalescer.getActivePathCount());
+    }
+
+    @Test
+    public void completesSupersededWriteOnlyOnceSupersedingWriteSucceeded() throws Exception {
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        Future<WriteCoalescer.Ticket> latest = enterInBackground(FILE, CoalesceMode.SUPERSEDE);
+        assertStillWaiting(latest);
+        first.release();
+        Future<Void> superseded = awaitInBackground(first);
+
+        WriteCoalescer.Ticket latestTicket = latest.get(5, TimeUnit.SECONDS);
+        assertStillWaiting(superseded);
+        latestTicket.succeeded();
+        latestTicket.release();
+
+        superseded.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failsSupersededWriteWithFailedSupersedingWrite() throws Exception {
+        WriteCoalescer.Ticket first = coalescer.enter(FILE, CoalesceMode.SERIALIZE);
+        Future<WriteCoalescer.Ticket> latest = enterInBackground(FILE, CoalesceMode.SUPERSEDE);
+        assertStillWaiting(latest);
+        first.release();
+
+        WriteCoalescer.Ticket latestTicket = latest.get(5, TimeUnit.SECONDS);
+        IOException failure = new IOException("No space left on device");
+        latestTicket.failed(failure);
+        latestTicket.release();
+
+        try {
+            first.awaitSupersedingWrite();
+            fail("Superseded write should have failed with the superseding write");
+        } catch (IOException expected) {
+            assertSame(failure, expected.getCause());
+        }
+    }
+
+    @Test
+    public void forgetsFileWhenLastWriterReleases() throws Exception {
+        WriteCoalescer.Ticket ticket = coalescer.enter(FILE, CoalesceMode.SUPERSEDE);
+        assertEquals(1, coalescer.getActivePathCount());
+
+        ticket.release();
+        ticket.release();
+
+        assertEquals(0, coalescer.getActivePathCount());
+    }
+
+    private Future<WriteCoalescer.Ticket> enterInBackground(final File file, final CoalesceMode mode) {
+        return executor.submit(new Callable<WriteCoalescer.Ticket>() {
+            @Override
+            public WriteCoalescer.Ticket call() throws InterruptedException {
+                return coalescer.enter(file, mode);
+            }
+        });
+    }
+
+    private Future<Void> awaitInBackground(final WriteCoalescer.Ticket ticket) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ticket.awaitSupersedingWrite();
+                return null;
+            }
+        });
+    }
+
+    private void assertStillWaiting(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Writer should still be waiting for its turn");
+        } catch (TimeoutException expected) {
+            // waiting as expected
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class WriteEventTest {
+
+    @Test
+    public void beginReturnsNullWhileNotRecording() {
+        assertNull(WriteEvent.begin());
+    }
+
+    @Test
+    public void beginReturnsEventWhileRecording() throws Exception {
+        assumeTrue(WriteEvent.isAvailable());
+        // the recording API is used reflectively, as tests compile for Java 7 as well
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, WriteEvent.NAME);
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            WriteEvent event = WriteEvent.begin();
+            assertNotNull(event);
+            event.commit("/tmp/file.bin", 1024, 1, 2, 3, "stream", "WRITTEN");
+        } finally {
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("close").invoke(recording);
+        }
+        assertNull(WriteEvent.begin());
+    }
+}
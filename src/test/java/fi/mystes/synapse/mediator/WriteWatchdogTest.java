@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.mystes.synapse.mediator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Pipe;
+
+import static org.junit.Assert.*;
+
+public class WriteWatchdogTest {
+
+    private static final File FILE = new File("stalled.bin");
+
+    private WriteWatchdog watchdog;
+    private Pipe pipe;
+
+    @Before
+    public void createWatchdog() throws IOException {
+        watchdog = new WriteWatchdog();
+        pipe = Pipe.open();
+    }
+
+    @After
+    public void shutdownWatchdog() throws IOException {
+        watchdog.shutdown();
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @Test
+    public void abortsWriteBlockedPastDeadline() throws IOException {
+        WriteWatchdog.Deadline deadline = watchdog.start(pipe.sink(), FILE, 200);
+        long started = System.currentTimeMillis();
+        try {
+            // nobody reads the pipe, so the write blocks as soon as the pipe buffer is full
+            ByteBuffer content = ByteBuffer.allocate(16 * 1024 * 1024);
+            while (content.hasRemaining()) {
+                pipe.sink().write(content);
+            }
+            fail("Write should have been aborted");
+        } catch (AsynchronousCloseException e) {
+            assertTrue("Deadline should have expired", deadline.stop());
+        }
+        assertTrue("Write should have been aborted soon after the deadline", System.currentTimeMillis() - started < 5000);
+        assertEquals(1, watchdog.getStalledWriteCount());
+        assertEquals(0, watchdog.getBlockedWriteCount());
+        assertEquals(0, watchdog.getActiveWriteCount());
+    }
+
+    @Test
+    public void leavesWriteCompletedInTimeUntouched() throws IOException {
+        WriteWatchdog.Deadline deadline = watchdog.start(pipe.sink(), FILE, 60000);
+        assertEquals(1, watchdog.getActiveWriteCount());
+
+        assertFalse("Deadline should not have expired", deadline.stop());
+        watchdog.expireOverdue(System.nanoTime() + 120000000000L);
+
+        assertTrue("Channel should have stayed open", pipe.sink().isOpen());
+        assertEquals(0, watchdog.getStalledWriteCount());
+        assertEquals(0, watchdog.getActiveWriteCount());
+    }
+
+    @Test
+    public void countsExpiredWritesAsBlockedUntilTheyReturn() {
+        WriteWatchdog.Deadline deadline = watchdog.start(pipe.sink(), FILE, 60000);
+
+        watchdog.expireOverdue(System.nanoTime() + 120000000000L);
+
+        assertFalse("Channel should have been closed", pipe.sink().isOpen());
+        assertEquals(1, watchdog.getBlockedWriteCount());
+        assertTrue("Deadline should have expired", deadline.stop());
+        assertTrue("Stopping again should report the same outcome", deadline.stop());
+        assertEquals(0, watchdog.getBlockedWriteCount());
+        assertEquals(1, watchdog.getStalledWriteCount());
+    }
+
+    @Test
+    public void closesDependentChannelWithExpiredWrite() throws IOException {
+        Pipe dependent = Pipe.open();
+        try {
+            WriteWatchdog.Deadline deadline = watchdog.start(pipe.sink(), FILE, 60000);
+            watchdog.closeWith(pipe.sink(), dependent.sink());
+
+            watchdog.expireOverdue(System.nanoTime() + 120000000000L);
+
+            assertFalse("Dependent channel should have been closed", dependent.sink().isOpen());
+            assertTrue("Deadline should have expired", deadline.stop());
+        } finally {
+            dependent.sink().close();
+            dependent.source().close();
+        }
+    }
+
+    @Test
+    public void closesDependentChannelOfWriteExpiredAlready() throws IOException {
+        Pipe dependent = Pipe.open();
+        try {
+            watchdog.start(pipe.sink(), FILE, 60000);
+            watchdog.expireOverdue(System.nanoTime() + 120000000000L);
+
+            watchdog.closeWith(pipe.sink(), dependent.sink());
+
+            assertFalse("Dependent channel should have been closed", dependent.sink().isOpen());
+        } finally {
+            dependent.sink().close();
+            dependent.source().close();
+        }
+    }
+}
@@ -16,8 +16,28 @@
 
 package fi.mystes.synapse.mediator.factory;
 
+import fi.mystes.synapse.mediator.ChunkedUploadAssembler;
+import fi.mystes.synapse.mediator.CoalesceMode;
+import fi.mystes.synapse.mediator.CollisionPolicy;
+import fi.mystes.synapse.mediator.DirectoryCircuitBreaker;
+import fi.mystes.synapse.mediator.FanOutPolicy;
+import fi.mystes.synapse.mediator.FanOutTarget;
+import fi.mystes.synapse.mediator.FileEncryption;
+import fi.mystes.synapse.mediator.FileManifest;
+import fi.mystes.synapse.mediator.IdempotencyCache;
+import fi.mystes.synapse.mediator.MemoryBudget;
+import fi.mystes.synapse.mediator.OutputMode;
+import fi.mystes.synapse.mediator.RetentionJanitor;
+import fi.mystes.synapse.mediator.SizeTier;
+import fi.mystes.synapse.mediator.SpoolDirectory;
+import fi.mystes.synapse.mediator.StandardBase64Decoder;
+import fi.mystes.synapse.mediator.StripePolicy;
+import fi.mystes.synapse.mediator.StripedTarget;
+import fi.mystes.synapse.mediator.TargetFileSystem;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediator;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediatorConfigConstants;
+import fi.mystes.synapse.mediator.WriteMode;
+import fi.mystes.synapse.mediator.WriteStrategy;
 import org.apache.axiom.om.OMAbstractFactory;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMFactory;
@@ -26,10 +46,15 @@ import org.apache.synapse.SynapseException;
 import org.junit.Test;
 
 import javax.xml.namespace.QName;
+import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by esa on 10.2.2015.
@@ -147,6 +172,37 @@ public class WriteBinaryFileMediatorFactoryTest {
         assertDefaultNamespaceDefinitionsExistInXpath(mediator.getTargetFileNameExpression());
     }
 
+    @Test
+    public void configuresTargetDirectoryFromTemplateAttribute() {
+        String targetDirectoryTemplate = "/tmp/{yyyy}/{MM}";
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH).withTargetDirectory(targetDirectoryTemplate, ValueType.TEMPLATE).withTargetFileName(DEFAULT_TARGET_FILE_NAME, ValueType.VALUE).build();
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Target directory not configured properly", targetDirectoryTemplate, mediator.getTargetDirectoryTemplate().getPattern());
+    }
+
+    @Test
+    public void configuresTargetFileNameFromTemplateAttribute() {
+        String targetFileNameTemplate = "{property:customerId}_{seq}_{uuid}.{ext}";
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH).withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE).withTargetFileName(targetFileNameTemplate, ValueType.TEMPLATE).build();
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Target file name not configured properly", targetFileNameTemplate, mediator.getTargetFileNameTemplate().getPattern());
+    }
+
+    @Test
+    public void addsNamespacesFromTargetFileNameElementToTemplateExpressions() {
+        String targetFileNameTemplate = "{xpath://ns1:id}.{ext}";
+        Map<String, String> namespaceDefinitions = defaultNamespaceDefinitionsMap();
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH).withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE).withTargetFileName(targetFileNameTemplate, ValueType.TEMPLATE, namespaceDefinitions).build();
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertDefaultNamespaceDefinitionsExistInXpath(mediator.getTargetFileNameTemplate().getExpressions().get(0));
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnknownTemplatePlaceholder() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH).withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE).withTargetFileName("{unknown}.bin", ValueType.TEMPLATE).build();
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
     @Test
     public void configuresForceUniqueFileNameFromValueAttribute() {
         String forceUniqueFileName = Boolean.TRUE.toString();
@@ -163,6 +219,489 @@ public class WriteBinaryFileMediatorFactoryTest {
         assertEquals("Allow overwrite not configured properly", allowOverwrite, mediator.getAllowOverWrite());
     }
 
+    @Test
+    public void configuresCollisionPolicyFromValueAttribute() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().withOnCollision("suffix").build();
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Collision policy not configured properly", CollisionPolicy.SUFFIX, mediator.getCollisionPolicy());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnknownCollisionPolicy() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().withOnCollision("ignore").build();
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresCircuitBreakerFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement circuitBreakerElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+        circuitBreakerElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FAILURE_RATE_THRESHOLD.getLocalPart(), "25", null);
+        circuitBreakerElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_COOLDOWN.getLocalPart(), "5000", null);
+        mediatorDefinition.addChild(circuitBreakerElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        DirectoryCircuitBreaker.Settings settings = mediator.getCircuitBreakerSettings();
+        assertEquals("Failure rate threshold not configured properly", 25, settings.getFailureRateThreshold());
+        assertEquals("Minimum calls should default to 10", 10, settings.getMinimumCalls());
+        assertEquals("Cooldown not configured properly", 5000L, settings.getCooldown());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithInvalidCircuitBreakerThreshold() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement circuitBreakerElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+        circuitBreakerElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FAILURE_RATE_THRESHOLD.getLocalPart(), "150", null);
+        mediatorDefinition.addChild(circuitBreakerElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresSpoolFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement spoolElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY.getLocalPart(), "/var/spool/esb", null);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MOVER_THREADS.getLocalPart(), "4", null);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_INTERIM_PATH.getLocalPart(), "spool", null);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ATTEMPTS.getLocalPart(), "5", null);
+        mediatorDefinition.addChild(spoolElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        SpoolDirectory.Settings settings = mediator.getSpoolSettings();
+        assertEquals("Spool directory not configured properly", new File("/var/spool/esb"), settings.getDirectory());
+        assertEquals("Mover threads not configured properly", 4, settings.getMoverThreads());
+        assertTrue("Interim path not configured properly", settings.isReturnSpoolPath());
+        assertEquals("Maximum attempts not configured properly", 5, settings.getMaxAttempts());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithSpoolWhenOverwriteDenied() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().withAllowOverwrite("false").build();
+        OMElement spoolElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY.getLocalPart(), "/var/spool/esb", null);
+        mediatorDefinition.addChild(spoolElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresSizeTiersSortedByMaxSize() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement largeTierElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        largeTierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TARGET_DIRECTORY.getLocalPart(), "/data/large", null);
+        largeTierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_STRATEGY.getLocalPart(), "channel", null);
+        largeTierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CONCURRENCY.getLocalPart(), "2", null);
+        largeTierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT.getLocalPart(), "500", null);
+        mediatorDefinition.addChild(largeTierElement);
+        OMElement smallTierElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        smallTierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE.getLocalPart(), "1048576", null);
+        mediatorDefinition.addChild(smallTierElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        List<SizeTier> tiers = mediator.getSizeTiers();
+        assertEquals("Size tiers not configured properly", 2, tiers.size());
+        assertEquals("Small tier max size not configured properly", 1048576L, tiers.get(0).getMaxSize());
+        assertEquals("Small tier should default to stream strategy", WriteStrategy.STREAM, tiers.get(0).getStrategy());
+        assertEquals("Large tier should be unbounded", SizeTier.UNBOUNDED, tiers.get(1).getMaxSize());
+        assertEquals("Large tier directory not configured properly", "/data/large", tiers.get(1).getTargetDirectory());
+        assertEquals("Large tier strategy not configured properly", WriteStrategy.CHANNEL, tiers.get(1).getStrategy());
+        assertEquals("Large tier concurrency not configured properly", 2, tiers.get(1).getConcurrency());
+        assertEquals("Large tier queue timeout not configured properly", 500L, tiers.get(1).getQueueTimeout());
+        assertEquals("Small tier should use the default queue timeout", SizeTier.DEFAULT_QUEUE_TIMEOUT, tiers.get(0).getQueueTimeout());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnknownWriteStrategy() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement tierElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        tierElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_STRATEGY.getLocalPart(), "mmap", null);
+        mediatorDefinition.addChild(tierElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresEncryptionWithKeyExpression() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement encryptionElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+        encryptionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION.getLocalPart(), "get-property('fileKey')", null);
+        encryptionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE.getLocalPart(), "1048576", null);
+        mediatorDefinition.addChild(encryptionElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        FileEncryption.Settings settings = mediator.getEncryptionSettings();
+        assertEquals("Key expression not configured properly", "get-property('fileKey')", settings.getKeyExpression().toString());
+        assertEquals("Chunk size not configured properly", 1048576, settings.getChunkSize());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithEncryptionWithoutKey() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresAdditionalTargetDirectoriesAndFanOutPolicy() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMFactory factory = OMAbstractFactory.getOMFactory();
+        OMElement archiveElement = factory.createOMElement(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        archiveElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE.getLocalPart(), "/archive", null);
+        mediatorDefinition.addChild(archiveElement);
+        OMElement datedElement = factory.createOMElement(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        datedElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE.getLocalPart(), "/processing/{yyyy}", null);
+        mediatorDefinition.addChild(datedElement);
+        OMElement policyElement = factory.createOMElement(WriteBinaryFileMediatorConfigConstants.FAN_OUT_POLICY_TAG);
+        policyElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE.getLocalPart(), "any", null);
+        mediatorDefinition.addChild(policyElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        assertEquals("Primary target directory not configured properly", DEFAULT_TARGET_DIRECTORY, mediator.getTargetDirectory());
+        List<FanOutTarget> targets = mediator.getAdditionalTargetDirectories();
+        assertEquals("Additional target directories not configured properly", 2, targets.size());
+        assertEquals("/archive", targets.get(0).getValue());
+        assertEquals("/processing/{yyyy}", targets.get(1).getTemplate().getPattern());
+        assertEquals("Fan-out policy not configured properly", FanOutPolicy.ANY, mediator.getFanOutPolicy());
+    }
+
+    @Test
+    public void configuresChunkedUploadFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(chunkedUploadElement());
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        ChunkedUploadAssembler.Settings settings = mediator.getChunkedUploadSettings();
+        assertEquals("Assembly directory not configured properly", new File("/var/uploads"), settings.getDirectory());
+        assertEquals("Chunk size not configured properly", 1048576, settings.getChunkSize());
+        assertEquals("Upload ID expression not configured properly", "$ctx:uploadId", settings.getUploadIdExpression().toString());
+        assertEquals("Chunk index expression not configured properly", "$ctx:chunkIndex", settings.getChunkIndexExpression().toString());
+        assertEquals("Total chunks expression not configured properly", "$ctx:totalChunks", settings.getTotalChunksExpression().toString());
+        assertEquals("Maximum chunks should default", ChunkedUploadAssembler.Settings.DEFAULT_MAX_CHUNKS, settings.getMaxChunks());
+        assertEquals("Idle timeout should default", ChunkedUploadAssembler.Settings.DEFAULT_IDLE_TIMEOUT, settings.getIdleTimeout());
+    }
+
+    @Test
+    public void configuresChunkedUploadLimits() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement chunkedUploadElement = chunkedUploadElement();
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_CHUNKS.getLocalPart(), "500", null);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_IDLE_TIMEOUT.getLocalPart(), "3600000", null);
+        mediatorDefinition.addChild(chunkedUploadElement);
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        ChunkedUploadAssembler.Settings settings = mediator.getChunkedUploadSettings();
+        assertEquals("Maximum chunks not configured properly", 500, settings.getMaxChunks());
+        assertEquals("Idle timeout not configured properly", 3600000L, settings.getIdleTimeout());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithChunkedUploadAndEncryption() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement encryptionElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+        encryptionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY.getLocalPart(), "conf:/keys/files", null);
+        mediatorDefinition.addChild(encryptionElement);
+        mediatorDefinition.addChild(chunkedUploadElement());
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresAppendModeFromValueAttribute() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(modeElement("append"));
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Mode not configured properly", WriteMode.APPEND, mediator.getMode());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnknownMode() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(modeElement("prepend"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithAppendModeWhenOverwriteDenied() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().withAllowOverwrite("false").build();
+        mediatorDefinition.addChild(modeElement("append"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresBase64DecoderByName() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG, "table"));
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Base64 decoder not configured properly", StandardBase64Decoder.TABLE, mediator.getBase64Decoder());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnknownBase64Decoder() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG, "com.example.MissingDecoder"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresWriteTimeout() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG, "30000"));
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Write timeout not configured properly", 30000L, mediator.getWriteTimeout());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithNonPositiveWriteTimeout() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG, "0"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresManifestFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement manifestElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+        manifestElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME.getLocalPart(), ".manifest", null);
+        manifestElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BATCH_SIZE.getLocalPart(), "50", null);
+        manifestElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_FILES.getLocalPart(), "3", null);
+        mediatorDefinition.addChild(manifestElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        FileManifest.Settings settings = mediator.getManifestSettings();
+        assertNull("Manifest file should not be configured", settings.getFile());
+        assertEquals("Manifest name not configured properly", ".manifest", settings.getName());
+        assertEquals("Batch size not configured properly", 50, settings.getBatchSize());
+        assertEquals("Flush interval should default", FileManifest.Settings.DEFAULT_FLUSH_INTERVAL, settings.getFlushInterval());
+        assertEquals("Max files not configured properly", 3, settings.getMaxFiles());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithBothManifestFileAndName() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement manifestElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+        manifestElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE.getLocalPart(), "/data/manifest.log", null);
+        manifestElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME.getLocalPart(), ".manifest", null);
+        mediatorDefinition.addChild(manifestElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresRetentionFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement retentionElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+        retentionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_AGE.getLocalPart(), "86400000", null);
+        retentionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DELETES_PER_SECOND.getLocalPart(), "20", null);
+        mediatorDefinition.addChild(retentionElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        RetentionJanitor.Settings settings = mediator.getRetentionSettings();
+        assertEquals("Max age not configured properly", 86400000L, settings.getMaxAge());
+        assertEquals("Bucket should default", RetentionJanitor.Settings.DEFAULT_BUCKET, settings.getBucket());
+        assertEquals("Deletes per second not configured properly", 20, settings.getDeletesPerSecond());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithRetentionWithoutMaxAge() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement retentionElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+        retentionElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BUCKET.getLocalPart(), "60000", null);
+        mediatorDefinition.addChild(retentionElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresCoalesceModeFromValueAttribute() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.COALESCE_TAG, "supersede"));
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Coalesce mode not configured properly", CoalesceMode.SUPERSEDE, mediator.getCoalesceMode());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithCoalesceWhenOverwritingDisabled() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().withAllowOverwrite("false").build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.COALESCE_TAG, "serialize"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresOutputModeAndName() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement outputElement = valueElement(WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG, "attribute");
+        outputElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME.getLocalPart(), "href", null);
+        mediatorDefinition.addChild(outputElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+        assertEquals("Output mode not configured properly", OutputMode.ATTRIBUTE, mediator.getOutputMode());
+        assertEquals("Output name not configured properly", "href", mediator.getOutputName());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithPropertyOutputWithoutName() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG, "property"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresStripeInsteadOfTargetDirectory() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH)
+                .withTargetFileName(DEFAULT_TARGET_FILE_NAME, ValueType.VALUE).build();
+        mediatorDefinition.addChild(stripeElement("freeSpace"));
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        StripedTarget stripedTarget = mediator.getStripedTarget();
+        assertNull("Target directory should not be configured", mediator.getTargetDirectory());
+        assertEquals("Stripe policy not configured properly", StripePolicy.FREE_SPACE, stripedTarget.getPolicy());
+        assertEquals("Stripe directories not configured properly", "/data2", stripedTarget.getMembers().get(1).getDirectory());
+        assertEquals("Stripe weight not configured properly", 2, stripedTarget.getMembers().get(1).getWeight());
+        assertEquals("Stripe weight should default to 1", 1, stripedTarget.getMembers().get(0).getWeight());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithBothTargetDirectoryAndStripe() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(stripeElement(null));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresIdempotencyFromAttributes() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement idempotencyElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.IDEMPOTENCY_TAG);
+        idempotencyElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION.getLocalPart(), "$trp:Idempotency-Key", null);
+        idempotencyElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ENTRIES.getLocalPart(), "500", null);
+        mediatorDefinition.addChild(idempotencyElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        IdempotencyCache.Settings settings = mediator.getIdempotencySettings();
+        assertEquals("Key expression not configured properly", "$trp:Idempotency-Key", settings.getKeyExpression().toString());
+        assertEquals("Max entries not configured properly", 500, settings.getMaxEntries());
+        assertNull("Journal file should not be configured", settings.getFile());
+    }
+
+    @Test
+    public void configuresMemoryBudgetTimeout() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement memoryBudgetElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+        memoryBudgetElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT.getLocalPart(), "5000", null);
+        mediatorDefinition.addChild(memoryBudgetElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        MemoryBudget.Settings settings = mediator.getMemoryBudgetSettings();
+        assertEquals("Memory budget timeout not configured properly", 5000, settings.getTimeout());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithNegativeMemoryBudgetTimeout() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement memoryBudgetElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+        memoryBudgetElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT.getLocalPart(), "-1", null);
+        mediatorDefinition.addChild(memoryBudgetElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresFileSystem() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement fileSystemElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+        fileSystemElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI.getLocalPart(), "memory://test/", null);
+        fileSystemElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_PROVIDER.getLocalPart(), "fi.mystes.synapse.mediator.fs.MemoryFileSystemProvider", null);
+        mediatorDefinition.addChild(fileSystemElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        TargetFileSystem.Settings settings = mediator.getFileSystemSettings();
+        assertEquals("File system URI not configured properly", "memory://test/", settings.getUri().toString());
+        assertEquals("File system provider not configured properly", "fi.mystes.synapse.mediator.fs.MemoryFileSystemProvider", settings.getProviderClass());
+    }
+
+    @Test
+    public void configuresFileSystemWithSpool() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement spoolElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+        spoolElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY.getLocalPart(), "/var/spool/esb", null);
+        mediatorDefinition.addChild(spoolElement);
+        OMElement fileSystemElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+        fileSystemElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI.getLocalPart(), "memory://test/", null);
+        mediatorDefinition.addChild(fileSystemElement);
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        assertNotNull("Spool not configured", mediator.getSpoolSettings());
+        assertNotNull("File system not configured", mediator.getFileSystemSettings());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithFileSystemUriWithoutScheme() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        OMElement fileSystemElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+        fileSystemElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI.getLocalPart(), "/var/data", null);
+        mediatorDefinition.addChild(fileSystemElement);
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test
+    public void configuresBinaryJsonPathInsteadOfBinaryElementXPath() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE)
+                .withTargetFileName(DEFAULT_TARGET_FILE_NAME, ValueType.VALUE).build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG, "$.document.content"));
+
+        WriteBinaryFileMediator mediator = instantiateMediatorUsingFactory(mediatorDefinition);
+
+        assertEquals("Binary JSON path not configured properly", "$.document.content", mediator.getBinaryJsonPath().toString());
+        assertNull("Binary element XPath should not be configured", mediator.getBinaryElementXPath());
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithBothBinaryElementXPathAndBinaryJsonPath() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems().build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG, "$.content"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    @Test(expected = SynapseException.class)
+    public void refusesToInitMediatorWithUnsupportedBinaryJsonPath() {
+        OMElement mediatorDefinition = mediatorDefinitionBuilder().withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE)
+                .withTargetFileName(DEFAULT_TARGET_FILE_NAME, ValueType.VALUE).build();
+        mediatorDefinition.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG, "$.files[*].data"));
+        instantiateMediatorUsingFactory(mediatorDefinition);
+    }
+
+    private OMElement valueElement(QName elementQName, String value) {
+        OMElement element = OMAbstractFactory.getOMFactory().createOMElement(elementQName);
+        element.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE.getLocalPart(), value, null);
+        return element;
+    }
+
+    private OMElement stripeElement(String policy) {
+        OMFactory factory = OMAbstractFactory.getOMFactory();
+        OMElement stripeElement = factory.createOMElement(WriteBinaryFileMediatorConfigConstants.STRIPE_TAG);
+        if (policy != null) {
+            stripeElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_POLICY.getLocalPart(), policy, null);
+        }
+        stripeElement.addChild(valueElement(WriteBinaryFileMediatorConfigConstants.DIRECTORY_TAG, "/data1"));
+        OMElement weightedElement = valueElement(WriteBinaryFileMediatorConfigConstants.DIRECTORY_TAG, "/data2");
+        weightedElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_WEIGHT.getLocalPart(), "2", null);
+        stripeElement.addChild(weightedElement);
+        return stripeElement;
+    }
+
+    private OMElement modeElement(String value) {
+        return valueElement(WriteBinaryFileMediatorConfigConstants.MODE_TAG, value);
+    }
+
+    private OMElement chunkedUploadElement() {
+        OMElement chunkedUploadElement = OMAbstractFactory.getOMFactory().createOMElement(WriteBinaryFileMediatorConfigConstants.CHUNKED_UPLOAD_TAG);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY.getLocalPart(), "/var/uploads", null);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE.getLocalPart(), "1048576", null);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_UPLOAD_ID.getLocalPart(), "$ctx:uploadId", null);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_INDEX.getLocalPart(), "$ctx:chunkIndex", null);
+        chunkedUploadElement.addAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TOTAL_CHUNKS.getLocalPart(), "$ctx:totalChunks", null);
+        return chunkedUploadElement;
+    }
+
     private MediatorDefinitionBuilder mediatorDefinitionBuilderWithDefaultsForMandatoryConfigurationItems() {
         return mediatorDefinitionBuilder().withBinaryElementXPath(DEFAULT_BINARY_ELEMENT_XPATH).withTargetDirectory(DEFAULT_TARGET_DIRECTORY, ValueType.VALUE).withTargetFileName(DEFAULT_TARGET_FILE_NAME, ValueType.VALUE);
     }
@@ -191,7 +730,7 @@ public class WriteBinaryFileMediatorFactoryTest {
         return new MediatorDefinitionBuilderImpl();
     }
 
-    private enum ValueType {VALUE, EXPRESSION}
+    private enum ValueType {VALUE, EXPRESSION, TEMPLATE}
 
     private static interface MediatorDefinitionBuilder {
         MediatorDefinitionBuilder withBinaryElementXPath(String xpath);
@@ -210,6 +749,8 @@ public class WriteBinaryFileMediatorFactoryTest {
 
         MediatorDefinitionBuilder withAllowOverwrite(String value);
 
+        MediatorDefinitionBuilder withOnCollision(String value);
+
         OMElement build();
     }
 
@@ -219,6 +760,7 @@ public class WriteBinaryFileMediatorFactoryTest {
         private ValueHolder targetFileName;
         private ValueHolder forceUniqueFileName;
         private ValueHolder allowOverwrite;
+        private ValueHolder onCollision;
         private Map<String, String> binaryElementXPathNsDefs;
         private Map<String, String> targetDirectoryExpressionNsDefs;
         private Map<String, String> targetFileNameExpressionNsDefs;
@@ -271,6 +813,12 @@ public class WriteBinaryFileMediatorFactoryTest {
             return this;
         }
 
+        @Override
+        public MediatorDefinitionBuilder withOnCollision(String value) {
+            this.onCollision = new ValueHolder(value, ValueType.VALUE);
+            return this;
+        }
+
         @Override
         public OMElement build() {
             OMFactory factory = OMAbstractFactory.getOMFactory();
@@ -280,6 +828,7 @@ public class WriteBinaryFileMediatorFactoryTest {
             addChildElementIfValueSpecified(factory, rootElement, WriteBinaryFileMediatorConfigConstants.TARGET_FILE_NAME_TAG, targetFileName, targetFileNameExpressionNsDefs);
             addChildElementIfValueSpecified(factory, rootElement, WriteBinaryFileMediatorConfigConstants.FORCE_UNIQUE_FILE_NAME_TAG, forceUniqueFileName, null);
             addChildElementIfValueSpecified(factory, rootElement, WriteBinaryFileMediatorConfigConstants.ALLOW_OVERWRITE_TAG, allowOverwrite, null);
+            addChildElementIfValueSpecified(factory, rootElement, WriteBinaryFileMediatorConfigConstants.ON_COLLISION_TAG, onCollision, null);
             return rootElement;
         }
 
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File system storing its files in a directory of another file system and injecting
+ * storage faults into writes, to reproduce slow or failing storage in tests and benchmarks.
+ * <p/>
+ * Faults may be changed at any time and apply to channel opens and writes made after the change:
+ * <ul>
+ * <li>open latency, slept before opening or creating a file like on a dead NFS mount.
+ * The sleep cannot be interrupted</li>
+ * <li>write latency, slept before every channel write like on a slow NFS share. Closing
+ * the channel does not interrupt the sleep, the write then fails like a write blocked
+ * in the operating system returning</li>
+ * <li>maximum bytes per write, making the file system accept only part of each write</li>
+ * <li>free space, shared by all files and never returned by truncating or deleting files.
+ * A write beyond it stores what fits and fails with "No space left on device"</li>
+ * </ul>
+ */
+public final class FaultInjectingFileSystem extends SimpleFileSystem {
+
+    public static final String NO_SPACE_LEFT = "No space left on device";
+
+    private final FaultInjectingFileSystemProvider provider;
+    private final Path root;
+    private final AtomicLong freeSpace = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private volatile long openLatency;
+    private volatile long writeLatency;
+    private volatile int maxBytesPerWrite;
+
+    private FaultInjectingFileSystem(String name, Path root) {
+        super(name);
+        this.provider = new FaultInjectingFileSystemProvider(this);
+        this.root = root;
+    }
+
+    /**
+     * @param root directory of another file system, e.g. the root of a {@link MemoryFileSystem}
+     *             or a temporary directory, containing the files of the created file system
+     */
+    public static FaultInjectingFileSystem wrap(String name, Path root) {
+        return new FaultInjectingFileSystem(name, root);
+    }
+
+    @Override
+    public FaultInjectingFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * @param openLatency milliseconds to wait before every channel open, 0 for none
+     */
+    public void setOpenLatency(long openLatency) {
+        this.openLatency = openLatency;
+    }
+
+    /**
+     * @param writeLatency milliseconds to wait before every write, 0 for none
+     */
+    public void setWriteLatency(long writeLatency) {
+        this.writeLatency = writeLatency;
+    }
+
+    /**
+     * @param maxBytesPerWrite most bytes a single write stores, 0 for no limit
+     */
+    public void setMaxBytesPerWrite(int maxBytesPerWrite) {
+        this.maxBytesPerWrite = maxBytesPerWrite;
+    }
+
+    /**
+     * @param freeSpace bytes that may still be written before writes fail
+     */
+    public void setFreeSpace(long freeSpace) {
+        this.freeSpace.set(freeSpace);
+    }
+
+    /**
+     * @return bytes stored by all writes so far
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return given path in the wrapped file system
+     */
+    Path toDelegate(Path path) {
+        Path delegate = root;
+        for (String name : SimplePath.cast(path).absoluteNames()) {
+            delegate = delegate.resolve(name);
+        }
+        return delegate;
+    }
+
+    /**
+     * @return given path of the wrapped file system in this file system
+     */
+    Path fromDelegate(Path delegate) {
+        Path path = getRoot();
+        for (Path name : root.relativize(delegate)) {
+            path = path.resolve(name.toString());
+        }
+        return path;
+    }
+
+    void delayOpen() {
+        long latency = openLatency;
+        if (latency <= 0) {
+            return;
+        }
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency);
+        boolean interrupted = false;
+        long remaining;
+        while ((remaining = until - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    SeekableByteChannel wrap(SeekableByteChannel channel) {
+        return new FaultyChannel(channel);
+    }
+
+    private int reserveSpace(int requested) {
+        while (true) {
+            long free = freeSpace.get();
+            int granted = (int) Math.min(requested, free);
+            if (freeSpace.compareAndSet(free, free - granted)) {
+                return granted;
+            }
+        }
+    }
+
+    private final class FaultyChannel implements SeekableByteChannel {
+        private final SeekableByteChannel delegate;
+
+        private FaultyChannel(SeekableByteChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (!delegate.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            long latency = writeLatency;
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing");
+                }
+                if (!delegate.isOpen()) {
+                    throw new AsynchronousCloseException();
+                }
+            }
+            int requested = source.remaining();
+            if (maxBytesPerWrite > 0) {
+                requested = Math.min(requested, maxBytesPerWrite);
+            }
+            int granted = reserveSpace(requested);
+            if (granted == 0 && requested > 0) {
+                throw new IOException(NO_SPACE_LEFT);
+            }
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + granted);
+            int written = delegate.write(slice);
+            source.position(source.position() + written);
+            writtenBytes.addAndGet(written);
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return delegate.read(destination);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provider of a single {@link FaultInjectingFileSystem}, forwarding all operations to the
+ * provider of the wrapped file system.
+ */
+public final class FaultInjectingFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "faulty";
+
+    private final FaultInjectingFileSystem fileSystem;
+
+    FaultInjectingFileSystemProvider(FaultInjectingFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    private Path delegate(Path path) {
+        if (SimplePath.cast(path).getFileSystem() != fileSystem) {
+            throw new IllegalArgumentException(path + " is not a path of " + fileSystem.getName());
+        }
+        return fileSystem.toDelegate(path);
+    }
+
+    private static FileSystemProvider provider(Path delegate) {
+        return delegate.getFileSystem().provider();
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> environment) {
+        throw new UnsupportedOperationException("Use FaultInjectingFileSystem.wrap");
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()) || !fileSystem.getName().equals(uri.getAuthority())) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        return getFileSystem(uri).getPath(uri.getPath().isEmpty() ? "/" : uri.getPath());
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException {
+        Path delegate = delegate(path);
+        fileSystem.delayOpen();
+        return fileSystem.wrap(provider(delegate).newByteChannel(delegate, options, attributes));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path directory, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        List<Path> entries = new ArrayList<Path>();
+        DirectoryStream<Path> delegateEntries = Files.newDirectoryStream(delegate(directory));
+        try {
+            for (Path entry : delegateEntries) {
+                entries.add(directory.resolve(fileSystem.fromDelegate(entry).getFileName()));
+            }
+        } finally {
+            delegateEntries.close();
+        }
+        return new FilteredDirectoryStream(entries, filter);
+    }
+
+    @Override
+    public void createDirectory(Path directory, FileAttribute<?>... attributes) throws IOException {
+        Path delegate = delegate(directory);
+        provider(delegate).createDirectory(delegate, attributes);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        Path delegate = delegate(path);
+        provider(delegate).delete(delegate);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        Path delegate = delegate(source);
+        provider(delegate).copy(delegate, delegate(target), options);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        Path delegate = delegate(source);
+        provider(delegate).move(delegate, delegate(target), options);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        Path delegate = delegate(path);
+        return provider(delegate).isSameFile(delegate, delegate(path2));
+    }
+
+    @Override
+    public boolean isHidden(Path path) throws IOException {
+        Path delegate = delegate(path);
+        return provider(delegate).isHidden(delegate);
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        Path delegate = delegate(path);
+        provider(delegate).checkAccess(delegate, modes);
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        Path delegate = delegate(path);
+        return provider(delegate).getFileAttributeView(delegate, type, options);
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        Path delegate = delegate(path);
+        return provider(delegate).readAttributes(delegate, type, options);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        Path delegate = delegate(path);
+        return provider(delegate).readAttributes(delegate, attributes, options);
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        Path delegate = delegate(path);
+        provider(delegate).setAttribute(delegate, attribute, value, options);
+    }
+}
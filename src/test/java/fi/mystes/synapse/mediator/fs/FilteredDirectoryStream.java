@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Directory stream over entries listed up front.
+ */
+final class FilteredDirectoryStream implements DirectoryStream<Path> {
+
+    private final List<Path> entries = new ArrayList<Path>();
+
+    FilteredDirectoryStream(List<Path> entries, Filter<? super Path> filter) {
+        for (Path entry : entries) {
+            try {
+                if (filter == null || filter.accept(entry)) {
+                    this.entries.add(entry);
+                }
+            } catch (IOException e) {
+                throw new DirectoryIteratorException(e);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        return entries.iterator();
+    }
+
+    @Override
+    public void close() {
+    }
+}
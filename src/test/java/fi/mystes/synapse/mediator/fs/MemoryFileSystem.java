@@ -0,0 +1,377 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * File system keeping files and directories in the heap, for tests and benchmarks
+ * that should not depend on the speed or state of a disk.
+ */
+public final class MemoryFileSystem extends SimpleFileSystem {
+
+    private final MemoryFileSystemProvider provider;
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+
+    MemoryFileSystem(MemoryFileSystemProvider provider, String name) {
+        super(name);
+        this.provider = provider;
+        nodes.put("/", new Node(true));
+    }
+
+    /**
+     * Creates a file system not registered with any provider lookup.
+     */
+    public static MemoryFileSystem create(String name) {
+        return new MemoryFileSystemProvider().create(name);
+    }
+
+    @Override
+    public MemoryFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        provider.closed(this);
+    }
+
+    SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options) throws IOException {
+        SimplePath file = SimplePath.cast(path);
+        String key = file.key();
+        boolean write = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+        Node node = nodes.get(key);
+        if (node == null && write && (options.contains(StandardOpenOption.CREATE) || options.contains(StandardOpenOption.CREATE_NEW))) {
+            directory(file.toAbsolutePath().getParent());
+            Node created = new Node(false);
+            node = nodes.putIfAbsent(key, created);
+            if (node == null) {
+                node = created;
+            } else if (options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new FileAlreadyExistsException(key);
+            }
+        } else if (node == null) {
+            throw new NoSuchFileException(key);
+        } else if (write && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(key);
+        }
+        if (node.directory) {
+            throw new IOException(key + " is a directory");
+        }
+        if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            node.truncate(0);
+        }
+        return new NodeChannel(node, !write || options.contains(StandardOpenOption.READ), write, options.contains(StandardOpenOption.APPEND));
+    }
+
+    void createDirectory(Path path) throws IOException {
+        SimplePath directory = SimplePath.cast(path);
+        directory(directory.toAbsolutePath().getParent());
+        if (nodes.putIfAbsent(directory.key(), new Node(true)) != null) {
+            throw new FileAlreadyExistsException(directory.key());
+        }
+    }
+
+    void delete(Path path) throws IOException {
+        String key = SimplePath.cast(path).key();
+        Node node = existing(path);
+        if (node.directory && !list(path).isEmpty()) {
+            throw new DirectoryNotEmptyException(key);
+        }
+        nodes.remove(key, node);
+    }
+
+    void move(Path source, Path target, boolean replace) throws IOException {
+        Node node = existing(source);
+        String targetKey = SimplePath.cast(target).key();
+        directory(target.toAbsolutePath().getParent());
+        if (node.directory && !list(source).isEmpty()) {
+            throw new DirectoryNotEmptyException(source.toString());
+        }
+        if (replace) {
+            nodes.put(targetKey, node);
+        } else if (nodes.putIfAbsent(targetKey, node) != null) {
+            throw new FileAlreadyExistsException(targetKey);
+        }
+        nodes.remove(SimplePath.cast(source).key(), node);
+    }
+
+    /**
+     * @return paths of the entries of given directory
+     */
+    List<Path> list(Path path) throws IOException {
+        SimplePath directory = SimplePath.cast(path);
+        if (!existing(path).directory) {
+            throw new NotDirectoryException(directory.key());
+        }
+        int depth = directory.absoluteNames().length + 1;
+        List<Path> entries = new ArrayList<Path>();
+        for (String key : nodes.keySet()) {
+            SimplePath entry = SimplePath.parse(this, key);
+            if (entry.getNameCount() == depth && entry.startsWith(directory.toAbsolutePath().normalize())) {
+                entries.add(directory.resolve(entry.getFileName()));
+            }
+        }
+        return entries;
+    }
+
+    BasicFileAttributes readAttributes(Path path) throws IOException {
+        return existing(path).attributes();
+    }
+
+    Node existing(Path path) throws NoSuchFileException {
+        String key = SimplePath.cast(path).key();
+        Node node = nodes.get(key);
+        if (node == null) {
+            throw new NoSuchFileException(key);
+        }
+        return node;
+    }
+
+    private void directory(Path path) throws IOException {
+        if (path != null && !existing(path).directory) {
+            throw new NotDirectoryException(path.toString());
+        }
+    }
+
+    /**
+     * File or directory.
+     */
+    static final class Node {
+        private final boolean directory;
+        private byte[] content = new byte[0];
+        private int size;
+        private long lastModified = System.currentTimeMillis();
+
+        Node(boolean directory) {
+            this.directory = directory;
+        }
+
+        synchronized int read(long position, ByteBuffer destination) {
+            if (position >= size) {
+                return -1;
+            }
+            int count = (int) Math.min(destination.remaining(), size - position);
+            destination.put(content, (int) position, count);
+            return count;
+        }
+
+        synchronized int write(long position, ByteBuffer source) {
+            int count = source.remaining();
+            long end = position + count;
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File too large for memory");
+            }
+            if (end > content.length) {
+                content = Arrays.copyOf(content, (int) Math.max(end, Math.min(Integer.MAX_VALUE, content.length * 2L)));
+            }
+            if (position > size) {
+                Arrays.fill(content, size, (int) position, (byte) 0);
+            }
+            source.get(content, (int) position, count);
+            size = (int) Math.max(size, end);
+            lastModified = System.currentTimeMillis();
+            return count;
+        }
+
+        synchronized void truncate(long newSize) {
+            if (newSize < size) {
+                size = (int) newSize;
+                lastModified = System.currentTimeMillis();
+            }
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        synchronized BasicFileAttributes attributes() {
+            return new Attributes(directory, size, lastModified, this);
+        }
+    }
+
+    private static final class NodeChannel implements SeekableByteChannel {
+        private final Node node;
+        private final boolean readable;
+        private final boolean writable;
+        private final boolean append;
+        private long position;
+        private volatile boolean open = true;
+
+        private NodeChannel(Node node, boolean readable, boolean writable, boolean append) {
+            this.node = node;
+            this.readable = readable;
+            this.writable = writable;
+            this.append = append;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer destination) throws IOException {
+            ensureOpen();
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+            int count = node.read(position, destination);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer source) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            synchronized (node) {
+                if (append) {
+                    position = node.size();
+                }
+                int count = node.write(position, source);
+                position += count;
+                return count;
+            }
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return node.size();
+        }
+
+        @Override
+        public synchronized SeekableByteChannel truncate(long size) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            node.truncate(size);
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    private static final class Attributes implements BasicFileAttributes {
+        private final boolean directory;
+        private final long size;
+        private final FileTime lastModified;
+        private final Object key;
+
+        private Attributes(boolean directory, long size, long lastModified, Object key) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = FileTime.fromMillis(lastModified);
+            this.key = key;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return lastModified;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModified;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Provider of {@link MemoryFileSystem}s with URIs <code>memory://&lt;name&gt;/</code>.
+ * <p/>
+ * The provider is not installed, so it has to be named in the mediator configuration,
+ * e.g. <code>&lt;fileSystem uri="memory://test/" provider="fi.mystes.synapse.mediator.fs.MemoryFileSystemProvider"/&gt;</code>.
+ */
+public final class MemoryFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "memory";
+
+    private final ConcurrentMap<String, MemoryFileSystem> fileSystems = new ConcurrentHashMap<String, MemoryFileSystem>();
+
+    MemoryFileSystem create(String name) {
+        MemoryFileSystem fileSystem = new MemoryFileSystem(this, name);
+        if (fileSystems.putIfAbsent(name, fileSystem) != null) {
+            throw new FileSystemAlreadyExistsException(name);
+        }
+        return fileSystem;
+    }
+
+    void closed(MemoryFileSystem fileSystem) {
+        fileSystems.remove(fileSystem.getName(), fileSystem);
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> environment) {
+        return create(name(uri));
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        MemoryFileSystem fileSystem = fileSystems.get(name(uri));
+        if (fileSystem == null) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        return getFileSystem(uri).getPath(uri.getPath().isEmpty() ? "/" : uri.getPath());
+    }
+
+    private static String name(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()) || uri.getAuthority() == null) {
+            throw new IllegalArgumentException("Expected URI memory://<name>/, got " + uri);
+        }
+        return uri.getAuthority();
+    }
+
+    private static MemoryFileSystem fileSystem(Path path) {
+        return (MemoryFileSystem) SimplePath.cast(path).getFileSystem();
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException {
+        return fileSystem(path).newByteChannel(path, options);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path directory, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        return new FilteredDirectoryStream(fileSystem(directory).list(directory), filter);
+    }
+
+    @Override
+    public void createDirectory(Path directory, FileAttribute<?>... attributes) throws IOException {
+        fileSystem(directory).createDirectory(directory);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        fileSystem(path).delete(path);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)) {
+            checkAbsent(target);
+        }
+        InputStream in = newInputStream(source);
+        try {
+            OutputStream out = newOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkAbsent(Path target) throws IOException {
+        try {
+            fileSystem(target).existing(target);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        throw new FileAlreadyExistsException(target.toString());
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        fileSystem(source).move(source, target, Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        fileSystem(path).existing(path);
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        return null;
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (!type.isAssignableFrom(BasicFileAttributes.class)) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+        return type.cast(fileSystem(path).readAttributes(path));
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        return basicAttributes(fileSystem(path).readAttributes(path));
+    }
+
+    static Map<String, Object> basicAttributes(BasicFileAttributes attributes) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("size", attributes.size());
+        values.put("lastModifiedTime", attributes.lastModifiedTime());
+        values.put("isDirectory", attributes.isDirectory());
+        values.put("isRegularFile", attributes.isRegularFile());
+        return values;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new UnsupportedOperationException();
+    }
+}
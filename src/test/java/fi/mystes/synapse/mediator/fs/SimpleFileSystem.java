@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Base of the test file systems, with a single root and unix style {@link SimplePath}s.
+ * File systems are identified by URIs <code>&lt;scheme&gt;://&lt;name&gt;/</code>.
+ */
+abstract class SimpleFileSystem extends FileSystem {
+
+    private final String name;
+    private final SimplePath root;
+    private volatile boolean open = true;
+
+    SimpleFileSystem(String name) {
+        this.name = name;
+        this.root = new SimplePath(this, true, new String[0]);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    SimplePath getRoot() {
+        return root;
+    }
+
+    /**
+     * @return URI of given path of this file system
+     */
+    URI toUri(SimplePath path) {
+        try {
+            return new URI(provider().getScheme(), name, path.toAbsolutePath().toString(), null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more) {
+            path.append('/').append(name);
+        }
+        return SimplePath.parse(this, path.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2016 Mystes Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.mystes.synapse.mediator.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Unix style path of a {@link SimpleFileSystem}. The working directory is the root.
+ */
+final class SimplePath implements Path {
+
+    private final SimpleFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+
+    SimplePath(SimpleFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    static SimplePath parse(SimpleFileSystem fileSystem, String path) {
+        List<String> names = new ArrayList<String>();
+        for (String name : path.split("/")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return new SimplePath(fileSystem, path.startsWith("/"), names.toArray(new String[names.size()]));
+    }
+
+    static SimplePath cast(Path path) {
+        if (!(path instanceof SimplePath)) {
+            throw new ProviderMismatchException();
+        }
+        return (SimplePath) path;
+    }
+
+    /**
+     * @return the names of the absolute, normalized path
+     */
+    String[] absoluteNames() {
+        return ((SimplePath) toAbsolutePath().normalize()).names;
+    }
+
+    /**
+     * @return key of the absolute, normalized path
+     */
+    String key() {
+        return toAbsolutePath().normalize().toString();
+    }
+
+    @Override
+    public SimpleFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? fileSystem.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.length == 0 ? null : new SimplePath(fileSystem, false, new String[]{names[names.length - 1]});
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute)) {
+            return null;
+        }
+        return new SimplePath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException();
+        }
+        return new SimplePath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        SimplePath path = cast(other);
+        if (path.absolute != absolute || path.names.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        SimplePath path = cast(other);
+        if (path.absolute) {
+            return equals(path);
+        }
+        if (path.names.length > names.length) {
+            return false;
+        }
+        for (int i = 1; i <= path.names.length; i++) {
+            if (!path.names[path.names.length - i].equals(names[names.length - i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> normalized = new ArrayList<String>();
+        for (String name : names) {
+            if (name.equals("..") && !normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                normalized.remove(normalized.size() - 1);
+            } else if (name.equals("..") && absolute) {
+                // parent of the root is the root
+                continue;
+            } else if (!name.equals(".")) {
+                normalized.add(name);
+            }
+        }
+        return new SimplePath(fileSystem, absolute, normalized.toArray(new String[normalized.size()]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        SimplePath path = cast(other);
+        if (path.absolute) {
+            return path;
+        }
+        String[] resolved = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, resolved, names.length, path.names.length);
+        return new SimplePath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        SimplePath path = cast(other);
+        if (path.absolute != absolute) {
+            throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+        }
+        int common = 0;
+        while (common < names.length && common < path.names.length && names[common].equals(path.names[common])) {
+            common++;
+        }
+        List<String> relative = new ArrayList<String>();
+        for (int i = common; i < names.length; i++) {
+            relative.add("..");
+        }
+        relative.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new SimplePath(fileSystem, false, relative.toArray(new String[relative.size()]));
+    }
+
+    @Override
+    public URI toUri() {
+        return fileSystem.toUri(this);
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return absolute ? this : fileSystem.getRoot().resolve(this);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path path = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(path);
+        return path;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("Not a path of the default file system: " + this);
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> paths = new ArrayList<Path>();
+        for (int i = 0; i < names.length; i++) {
+            paths.add(getName(i));
+        }
+        return paths.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(cast(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SimplePath && ((SimplePath) other).fileSystem == fileSystem && other.toString().equals(toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder path = new StringBuilder(absolute ? "/" : "");
+        for (int i = 0; i < names.length; i++) {
+            path.append(i > 0 ? "/" : "").append(names[i]);
+        }
+        return path.toString();
+    }
+}
@@ -16,8 +16,30 @@
 
 package fi.mystes.synapse.mediator.serializer;
 
+import fi.mystes.synapse.mediator.CollisionPolicy;
+import fi.mystes.synapse.mediator.ChunkedUploadAssembler;
+import fi.mystes.synapse.mediator.CoalesceMode;
+import fi.mystes.synapse.mediator.DirectoryCircuitBreaker;
+import fi.mystes.synapse.mediator.FanOutPolicy;
+import fi.mystes.synapse.mediator.FanOutTarget;
+import fi.mystes.synapse.mediator.FileEncryption;
+import fi.mystes.synapse.mediator.FileManifest;
+import fi.mystes.synapse.mediator.OutputMode;
+import fi.mystes.synapse.mediator.RetentionJanitor;
+import fi.mystes.synapse.mediator.FileNameTemplate;
+import fi.mystes.synapse.mediator.IdempotencyCache;
+import fi.mystes.synapse.mediator.JsonPath;
+import fi.mystes.synapse.mediator.MemoryBudget;
+import fi.mystes.synapse.mediator.SizeTier;
+import fi.mystes.synapse.mediator.SpoolDirectory;
+import fi.mystes.synapse.mediator.StandardBase64Decoder;
+import fi.mystes.synapse.mediator.StripePolicy;
+import fi.mystes.synapse.mediator.StripedTarget;
+import fi.mystes.synapse.mediator.TargetFileSystem;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediator;
 import fi.mystes.synapse.mediator.WriteBinaryFileMediatorConfigConstants;
+import fi.mystes.synapse.mediator.WriteMode;
+import fi.mystes.synapse.mediator.WriteStrategy;
 import org.apache.axiom.om.OMAttribute;
 import org.apache.axiom.om.OMElement;
 import org.apache.synapse.util.xpath.SynapseXPath;
@@ -25,6 +47,10 @@ import org.jaxen.JaxenException;
 import org.junit.Test;
 
 import javax.xml.namespace.QName;
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import static org.junit.Assert.*;
 
@@ -114,6 +140,33 @@ public class WriteBinaryFileMediatorSerializerTest {
         assertDefaultNamespaceDefinitionsExistInElement(configElement);
     }
 
+    @Test
+    public void serializesTargetDirectoryFromTemplateAttribute() {
+        String targetDirectoryTemplate = "/tmp/{yyyy}/{MM}/{dd}";
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setTargetDirectoryTemplate(FileNameTemplate.compile(targetDirectoryTemplate, null));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE, targetDirectoryTemplate);
+    }
+
+    @Test
+    public void serializesTargetFileNameFromTemplateAttribute() throws JaxenException {
+        String targetFileNameTemplate = "{xpath://m1:id}_{seq}.{ext}";
+        FileNameTemplate template = FileNameTemplate.compile(targetFileNameTemplate, null);
+        addDefaultNamespaceDefinitions(template.getExpressions().get(0));
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setTargetFileNameTemplate(template);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.TARGET_FILE_NAME_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TEMPLATE, targetFileNameTemplate);
+        assertDefaultNamespaceDefinitionsExistInElement(configElement);
+    }
+
     @Test
     public void serializesForceUniqueFileNameFromValueAttribute() {
         String forceUniqueFileName = "true";
@@ -138,12 +191,281 @@ public class WriteBinaryFileMediatorSerializerTest {
         assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, allowOverwrite);
     }
 
+    @Test
+    public void serializesCollisionPolicyFromValueAttribute() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setCollisionPolicy(CollisionPolicy.FAIL);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.ON_COLLISION_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "fail");
+    }
+
+    @Test
+    public void serializesCircuitBreakerSettingsAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setCircuitBreakerSettings(new DirectoryCircuitBreaker.Settings(40, 20, 15000L));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FAILURE_RATE_THRESHOLD, "40");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MINIMUM_CALLS, "20");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_COOLDOWN, "15000");
+    }
+
+    @Test
+    public void serializesSpoolSettingsAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setSpoolSettings(new SpoolDirectory.Settings(new File("/var/spool/esb"), 3, false, 5));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY, new File("/var/spool/esb").getPath());
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MOVER_THREADS, "3");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_INTERIM_PATH, "final");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ATTEMPTS, "5");
+    }
+
+    @Test
+    public void serializesManifestSettingsAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setManifestSettings(new FileManifest.Settings(new File("/data/manifest.log"), null, 50, 500, 1024, 3));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE, new File("/data/manifest.log").getPath());
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BATCH_SIZE, "50");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FLUSH_INTERVAL, "500");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE, "1024");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_FILES, "3");
+    }
+
+    @Test
+    public void serializesRetentionSettingsAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setRetentionSettings(new RetentionJanitor.Settings(86400000L, 30000L, 20));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_AGE, "86400000");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_BUCKET, "30000");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DELETES_PER_SECOND, "20");
+    }
+
+    @Test
+    public void serializesSizeTiersAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setSizeTiers(Arrays.asList(new SizeTier(SizeTier.UNBOUNDED, "/data/large", WriteStrategy.CHANNEL, 2, 500)));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        assertNull("Unbounded tier should not have maxSize", configElement.getAttribute(WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_SIZE));
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TARGET_DIRECTORY, "/data/large");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_STRATEGY, "channel");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CONCURRENCY, "2");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, "500");
+    }
+
+    @Test
+    public void serializesEncryptionSettingsAsAttributes() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setEncryptionSettings(new FileEncryption.Settings("conf:/keys/files", null, 4096));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY, "conf:/keys/files");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE, "4096");
+    }
+
+    @Test
+    public void serializesAdditionalTargetDirectoriesAfterPrimary() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setTargetDirectory("/primary");
+        mediator.setAdditionalTargetDirectories(Arrays.asList(FanOutTarget.value("/archive")));
+        mediator.setFanOutPolicy(FanOutPolicy.ANY);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        Iterator<?> targetDirectoryElements = mediatorDefinition.getChildrenWithName(WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        assertConfigurationAttributeValue((OMElement) targetDirectoryElements.next(), WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "/primary");
+        assertConfigurationAttributeValue((OMElement) targetDirectoryElements.next(), WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "/archive");
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.FAN_OUT_POLICY_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "any");
+    }
+
+    @Test
+    public void serializesChunkedUploadSettingsAsAttributes() throws JaxenException {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setChunkedUploadSettings(new ChunkedUploadAssembler.Settings(new File("/var/uploads"), 4096,
+                new SynapseXPath("$ctx:uploadId"), new SynapseXPath("$ctx:chunkIndex"), new SynapseXPath("$ctx:totalChunks"), 500, 3600000L));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.CHUNKED_UPLOAD_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_DIRECTORY, new File("/var/uploads").getPath());
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_SIZE, "4096");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_UPLOAD_ID, "$ctx:uploadId");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_CHUNK_INDEX, "$ctx:chunkIndex");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TOTAL_CHUNKS, "$ctx:totalChunks");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_CHUNKS, "500");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_IDLE_TIMEOUT, "3600000");
+    }
+
+    @Test
+    public void serializesCoalesceModeFromValueAttribute() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setCoalesceMode(CoalesceMode.SERIALIZE);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.COALESCE_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "serialize");
+    }
+
+    @Test
+    public void serializesOutputModeAndName() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setOutputMode(OutputMode.PROPERTY);
+        mediator.setOutputName("imagePath");
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "property");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_NAME, "imagePath");
+    }
+
+    @Test
+    public void serializesStripeWithDirectoriesInsteadOfTargetDirectory() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setStripedTarget(new StripedTarget(StripePolicy.LATENCY, Arrays.asList(
+                new StripedTarget.Member("/data1", 1), new StripedTarget.Member("/data2", 2))));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.TARGET_DIRECTORY_TAG);
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.STRIPE_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_POLICY, "latency");
+        Iterator<?> directoryElements = configElement.getChildrenWithName(WriteBinaryFileMediatorConfigConstants.DIRECTORY_TAG);
+        assertConfigurationAttributeValue((OMElement) directoryElements.next(), WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "/data1");
+        OMElement weightedElement = (OMElement) directoryElements.next();
+        assertConfigurationAttributeValue(weightedElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "/data2");
+        assertConfigurationAttributeValue(weightedElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_WEIGHT, "2");
+    }
+
+    @Test
+    public void serializesIdempotencySettingsAsAttributes() throws JaxenException {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setIdempotencySettings(new IdempotencyCache.Settings(new SynapseXPath("$ctx:orderId"), 500, new File("/data/idempotency.log")));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.IDEMPOTENCY_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_KEY_EXPRESSION, "$ctx:orderId");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_MAX_ENTRIES, "500");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_FILE, new File("/data/idempotency.log").getPath());
+    }
+
+    @Test
+    public void serializesMemoryBudgetTimeout() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setMemoryBudgetSettings(new MemoryBudget.Settings(5000));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_TIMEOUT, "5000");
+    }
+
+    @Test
+    public void serializesFileSystem() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setFileSystemSettings(new TargetFileSystem.Settings(URI.create("memory://test/"), "fi.mystes.synapse.mediator.fs.MemoryFileSystemProvider"));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_URI, "memory://test/");
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_PROVIDER, "fi.mystes.synapse.mediator.fs.MemoryFileSystemProvider");
+    }
+
+    @Test
+    public void serializesModeFromValueAttribute() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setMode(WriteMode.APPEND);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MODE_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "append");
+    }
+
+    @Test
+    public void serializesBase64DecoderByName() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setBase64Decoder(StandardBase64Decoder.TABLE);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "table");
+    }
+
+    @Test
+    public void serializesWriteTimeout() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setWriteTimeout(30000);
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "30000");
+    }
+
+    @Test
+    public void serializesBinaryJsonPathInsteadOfBinaryElementXPath() {
+        WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
+        mediator.setBinaryJsonPath(JsonPath.compile("$.document.content"));
+
+        OMElement mediatorDefinition = doSerialize(mediator);
+
+        OMElement configElement = assertChildElementExists(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG);
+        assertConfigurationAttributeValue(configElement, WriteBinaryFileMediatorConfigConstants.ATTRIBUTE_VALUE, "$.document.content");
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.BINARY_ELEMENT_XPATH_TAG);
+    }
+
     @Test
     public void doesNotSerializeNonMandatoryConfigurationElementsWhenValuesNotSpecified() {
         WriteBinaryFileMediator mediator = new WriteBinaryFileMediator();
         OMElement mediatorDefinition = doSerialize(mediator);
         assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.FORCE_UNIQUE_FILE_NAME_TAG);
         assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.ALLOW_OVERWRITE_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.ON_COLLISION_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.CIRCUIT_BREAKER_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.SPOOL_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.SIZE_TIER_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.ENCRYPTION_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.FAN_OUT_POLICY_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.CHUNKED_UPLOAD_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MODE_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.BASE64_DECODER_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.BINARY_JSON_PATH_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.WRITE_TIMEOUT_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MANIFEST_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.RETENTION_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.COALESCE_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.OUTPUT_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.STRIPE_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.IDEMPOTENCY_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.MEMORY_BUDGET_TAG);
+        assertChildElementDoesNotExist(mediatorDefinition, WriteBinaryFileMediatorConfigConstants.FILE_SYSTEM_TAG);
     }
 
     private void assertChildElementDoesNotExist(OMElement mediatorDefinition, QName elementQName) {